@@ -0,0 +1,75 @@
+package net.sharksystem.asap;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message access by position in a channel spread over several eras (ASAPChannelMessages as
+ * used by apps to display a channel). Sequential access should be served by the message cache,
+ * random access shows the costs of cache misses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChannelMessagesBenchmark {
+    private static final String URI = "asap://benchmark/channel";
+    private static final int ERAS = 10;
+    private static final String SEQUENTIAL = "sequential";
+    private static final String RANDOM = "random";
+
+    @Param({StorageBackends.FS})
+    public String backend;
+
+    @Param({"1000", "10000"})
+    public int messages;
+
+    @Param({SEQUENTIAL, RANDOM})
+    public String access;
+
+    private String folder;
+    private ASAPChannelMessages channelMessages;
+    private int[] positions;
+    private int nextPosition = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, ASAPException {
+        this.folder = StorageBackends.createTempFolder("asapChannelMessages");
+        ASAPChunkStorage storage = StorageBackends.create(this.backend, this.folder);
+
+        int messagesPerEra = this.messages / ERAS;
+        for(int era = 0; era < ERAS; era++) {
+            ASAPChunk chunk = storage.getChunk(URI, era);
+            for(int i = 0; i < messagesPerEra; i++) {
+                chunk.addMessage("message " + era + "/" + i);
+            }
+        }
+
+        this.channelMessages = storage.getASAPChunkCache(URI, ERAS - 1);
+        int size = this.channelMessages.getNumberMessage();
+
+        this.positions = new int[size];
+        Random random = new Random(42);
+        for(int i = 0; i < size; i++) {
+            this.positions[i] = RANDOM.equals(this.access) ? random.nextInt(size) : i;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        StorageBackends.removeTempFolder(this.folder);
+    }
+
+    @Benchmark
+    public CharSequence getMessage() throws IOException, ASAPException {
+        int position = this.positions[this.nextPosition];
+        this.nextPosition = (this.nextPosition + 1) % this.positions.length;
+
+        return this.channelMessages.getMessage(position, true);
+    }
+}
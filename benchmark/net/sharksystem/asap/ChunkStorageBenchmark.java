@@ -0,0 +1,134 @@
+package net.sharksystem.asap;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chunk level operations: append messages, iterate messages, list chunks of an era.
+ * Anything is written into a temporary folder which is removed afterwards.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkStorageBenchmark {
+    private static final String URI = "asap://benchmark/channel";
+
+    @State(Scope.Thread)
+    public static class AppendState {
+        @Param({StorageBackends.FS})
+        public String backend;
+
+        @Param({"16", "1024", "65536"})
+        public int messageSize;
+
+        String folder;
+        ASAPChunk chunk;
+        byte[] message;
+        private int era = 0;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            this.folder = StorageBackends.createTempFolder("asapAppend");
+            this.message = new byte[this.messageSize];
+        }
+
+        /** chunk grows with each append - start with an empty one in each iteration */
+        @Setup(Level.Iteration)
+        public void newChunk() throws IOException {
+            ASAPChunkStorage storage = StorageBackends.create(this.backend, this.folder);
+            storage.dropChunks(this.era);
+            this.era++;
+            this.chunk = storage.getChunk(URI, this.era);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            StorageBackends.removeTempFolder(this.folder);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class FilledChunkState {
+        @Param({StorageBackends.FS})
+        public String backend;
+
+        @Param({"10", "1000"})
+        public int messages;
+
+        @Param({"64", "4096"})
+        public int messageSize;
+
+        String folder;
+        ASAPChunk chunk;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            this.folder = StorageBackends.createTempFolder("asapIterate");
+            ASAPChunkStorage storage = StorageBackends.create(this.backend, this.folder);
+            this.chunk = storage.getChunk(URI, 0);
+
+            byte[] message = new byte[this.messageSize];
+            for(int i = 0; i < this.messages; i++) {
+                this.chunk.addMessage(message);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            StorageBackends.removeTempFolder(this.folder);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ChannelsState {
+        @Param({StorageBackends.FS})
+        public String backend;
+
+        @Param({"100", "1000", "5000"})
+        public int channels;
+
+        String folder;
+        ASAPChunkStorage storage;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            this.folder = StorageBackends.createTempFolder("asapChannels");
+            this.storage = StorageBackends.create(this.backend, this.folder);
+
+            byte[] message = new byte[64];
+            for(int i = 0; i < this.channels; i++) {
+                this.storage.getChunk(URI + i, 0).addMessage(message);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            StorageBackends.removeTempFolder(this.folder);
+        }
+    }
+
+    @Benchmark
+    public void addMessage(AppendState state) throws IOException {
+        state.chunk.addMessage(state.message);
+    }
+
+    @Benchmark
+    public void iterateMessagesAsBytes(FilledChunkState state, Blackhole blackhole) throws IOException {
+        Iterator<byte[]> messages = state.chunk.getMessagesAsBytes();
+        while(messages.hasNext()) {
+            blackhole.consume(messages.next());
+        }
+    }
+
+    @Benchmark
+    public List<ASAPChunk> getChunks(ChannelsState state) throws IOException {
+        return state.storage.getChunks(0);
+    }
+}
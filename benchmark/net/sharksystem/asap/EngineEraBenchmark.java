@@ -0,0 +1,63 @@
+package net.sharksystem.asap;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Era change with many channels. Each channel is set up in the new era. One message is added
+ * before each era change - an engine does not change era without new content.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EngineEraBenchmark {
+    private static final String URI = "asap://benchmark/channel";
+
+    @Param({StorageBackends.FS})
+    public String backend;
+
+    @Param({"100", "1000"})
+    public int channels;
+
+    private String folder;
+    private ASAPChunkStorage storage;
+    private ASAPEngine engine;
+    private byte[] message = new byte[64];
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, ASAPException {
+        this.folder = StorageBackends.createTempFolder("asapNewEra");
+        this.engine = new StorageBackends.StorageEngine(this.backend, this.folder);
+        this.storage = this.engine.getChunkStorage();
+
+        for(int i = 0; i < this.channels; i++) {
+            this.engine.add(URI + i, this.message);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void changeContent() throws IOException {
+        this.engine.add(URI + 0, this.message);
+    }
+
+    /** keep disk usage stable - previous era is not needed any longer */
+    @TearDown(Level.Invocation)
+    public void dropPreviousEra() throws IOException {
+        this.storage.dropChunks(this.engine.getPreviousEra(this.engine.getEra()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        StorageBackends.removeTempFolder(this.folder);
+    }
+
+    @Benchmark
+    public void newEra() {
+        this.engine.newEra();
+    }
+}
@@ -0,0 +1,126 @@
+package net.sharksystem.asap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chunk storage implementations under test. Benchmarks choose a backend by name (JMH parameter
+ * backend). Compare backends side by side by registering another factory here and running
+ *
+ * <pre>
+ * -p backend=fs,otherBackend
+ * </pre>
+ */
+class StorageBackends {
+    static final String FS = "fs";
+
+    interface Factory {
+        /**
+         * @param rootDirectory empty temporary folder - backend may ignore it
+         */
+        ASAPChunkStorage create(String rootDirectory) throws IOException;
+    }
+
+    private static final Map<String, Factory> factories = new HashMap<>();
+
+    static {
+        StorageBackends.register(FS, new Factory() {
+            @Override
+            public ASAPChunkStorage create(String rootDirectory) {
+                return new ASAPChunkStorageFS(rootDirectory);
+            }
+        });
+    }
+
+    static void register(String name, Factory factory) {
+        factories.put(name, factory);
+    }
+
+    static ASAPChunkStorage create(String name, String rootDirectory) throws IOException {
+        Factory factory = factories.get(name);
+        if(factory == null) {
+            throw new IllegalArgumentException("unknown storage backend: " + name);
+        }
+
+        return factory.create(rootDirectory);
+    }
+
+    static String createTempFolder(String prefix) throws IOException {
+        File folder = File.createTempFile(prefix, "");
+        if(!folder.delete() || !folder.mkdirs()) {
+            throw new IOException("cannot create temporary folder: " + folder);
+        }
+
+        return folder.getAbsolutePath();
+    }
+
+    static void removeTempFolder(String folder) {
+        if(folder != null) {
+            ASAPEngineFS.removeFolder(folder);
+        }
+    }
+
+    /**
+     * Engine on top of a chunk storage - no memento. Incoming storages are created with the same
+     * backend in a sub folder per sender. Measures engine logic and storage only.
+     */
+    static class StorageEngine extends ASAPEngine {
+        private final String backend;
+        private final String rootDirectory;
+        private final Map<String, StorageEngine> incomingEngines = new HashMap<>();
+
+        StorageEngine(String backend, String rootDirectory) throws ASAPException, IOException {
+            super(StorageBackends.create(backend, rootDirectory), "application/x-asap-benchmark");
+            this.backend = backend;
+            this.rootDirectory = rootDirectory;
+        }
+
+        @Override
+        public ASAPChunkStorage getIncomingChunkStorage(CharSequence sender) {
+            return this.getIncomingEngine(sender).getChunkStorage();
+        }
+
+        @Override
+        public ASAPStorage getExistingIncomingStorage(CharSequence sender) {
+            return this.getIncomingEngine(sender);
+        }
+
+        private synchronized StorageEngine getIncomingEngine(CharSequence sender) {
+            StorageEngine incomingEngine = this.incomingEngines.get(sender.toString());
+            if(incomingEngine == null) {
+                File folder = new File(this.rootDirectory, sender.toString());
+                try {
+                    if(!folder.isDirectory() && !folder.mkdirs()) {
+                        throw new IOException("cannot create folder: " + folder);
+                    }
+                    incomingEngine = new StorageEngine(this.backend, folder.getAbsolutePath());
+                } catch (IOException | ASAPException e) {
+                    // benchmark setup is broken - nothing to measure
+                    throw new IllegalStateException("no incoming storage of " + sender, e);
+                }
+                this.incomingEngines.put(sender.toString(), incomingEngine);
+            }
+
+            return incomingEngine;
+        }
+
+        @Override
+        public synchronized List<CharSequence> getSender() {
+            return new ArrayList<CharSequence>(this.incomingEngines.keySet());
+        }
+
+        @Override
+        public CharSequence getOwner() {
+            return this.owner;
+        }
+
+        @Override
+        public ASAPStorage refresh() {
+            return this;
+        }
+    }
+}
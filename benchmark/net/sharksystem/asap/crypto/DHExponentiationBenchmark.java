@@ -0,0 +1,65 @@
+package net.sharksystem.asap.crypto;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blinding keys of group key agreement - g^e mod p with RFC 3526 4096-bit p and 512-bit exponents.
+ * Plain {@link BigInteger#modPow(BigInteger, BigInteger)} against precomputed powers of g, one
+ * exponent and batches. Table is built in setup - it is built once per process anyway.
+ *
+ * batch: number of exponents - a member computes some log(n) of them with a membership change.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DHExponentiationBenchmark {
+    @Param({"1", "8", "64"})
+    public int batch;
+
+    @Param({"5", "6"})
+    public int windowBits;
+
+    private BigInteger[] exponents;
+    private ASAPFixedBaseExponentiation powers;
+
+    @Setup
+    public void setup() {
+        this.exponents = new BigInteger[this.batch];
+        for(int i = 0; i < this.batch; i++) this.exponents[i] = ASAPDHGroup.createSecret();
+
+        this.powers = new ASAPFixedBaseExponentiation(ASAPDHGroup.G, ASAPDHGroup.P,
+                ASAPDHGroup.EXPONENT_BITS, this.windowBits);
+        this.powers.modPow(this.exponents[0]);
+    }
+
+    @Benchmark
+    public BigInteger[] modPow() {
+        BigInteger[] results = new BigInteger[this.batch];
+        for(int i = 0; i < this.batch; i++) {
+            results[i] = ASAPDHGroup.G.modPow(this.exponents[i], ASAPDHGroup.P);
+        }
+
+        return results;
+    }
+
+    @Benchmark
+    public BigInteger[] fixedBase() {
+        BigInteger[] results = new BigInteger[this.batch];
+        for(int i = 0; i < this.batch; i++) {
+            results[i] = this.powers.modPow(this.exponents[i]);
+        }
+
+        return results;
+    }
+
+    @Benchmark
+    public BigInteger[] fixedBaseParallel() {
+        return this.powers.modPow(this.exponents);
+    }
+}
@@ -0,0 +1,136 @@
+package net.sharksystem.asap.protocol;
+
+import net.sharksystem.asap.ASAPException;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode throughput of assimilate PDUs - header, offset list and data.
+ * Run with -prof gc to see allocation rates.
+ *
+ * Stream modes:
+ * memory - byte array streams
+ * buffered - buffered streams on top of a socket like stream (segmented reads)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ASAPAssimilationCodecBenchmark {
+    /** number of messages in chunk minus one */
+    @Param({"0", "16", "256"})
+    public int offsets;
+
+    @Param({"64", "4096", "65536"})
+    public int payloadSize;
+
+    @Param({"8", "64", "512"})
+    public int stringLength;
+
+    @Param({BenchmarkStreams.MEMORY, BenchmarkStreams.BUFFERED})
+    public String streams;
+
+    private static final int ERA = 3;
+
+    private ASAP_1_0 protocol;
+    private String peer;
+    private String recipient;
+    private String format;
+    private String channel;
+    private List<Long> offsetList;
+    private ByteArrayInputStream payloadIS;
+    private OutputStream dataSink;
+
+    private ByteArrayOutputStream memoryOS;
+    private OutputStream bufferedOS;
+
+    private ByteArrayInputStream memoryIS;
+    private BenchmarkStreams.SegmentedInputStream segmentedIS;
+    private InputStream bufferedIS;
+
+    @Setup
+    public void setup() throws IOException, ASAPException {
+        this.protocol = new ASAP_Modem_Impl();
+        this.peer = BenchmarkStreams.createString(this.stringLength, 'p');
+        this.recipient = BenchmarkStreams.createString(this.stringLength, 'r');
+        this.format = BenchmarkStreams.createString(this.stringLength, 'f');
+        this.channel = BenchmarkStreams.createString(this.stringLength, 'c');
+
+        // messages of same size - offsets cannot exceed payload
+        int numberOffsets = Math.min(this.offsets, this.payloadSize - 1);
+        int messageSize = this.payloadSize / (numberOffsets + 1);
+        this.offsetList = new ArrayList<>();
+        for(int i = 1; i <= numberOffsets; i++) {
+            this.offsetList.add((long) i * messageSize);
+        }
+
+        byte[] payload = new byte[this.payloadSize];
+        for(int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        this.payloadIS = new ByteArrayInputStream(payload);
+        this.dataSink = new BenchmarkStreams.NullOutputStream();
+
+        this.memoryOS = new ByteArrayOutputStream();
+        this.bufferedOS = new BufferedOutputStream(new BenchmarkStreams.NullOutputStream(),
+                BenchmarkStreams.BUFFER_SIZE);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        this.protocol.assimilate(this.peer, this.recipient, this.format, this.channel, ERA,
+                payload.length, this.offsetList, this.payloadIS, os, false);
+        byte[] pdu = os.toByteArray();
+
+        this.memoryIS = new ByteArrayInputStream(pdu);
+        this.segmentedIS = new BenchmarkStreams.SegmentedInputStream(pdu, BenchmarkStreams.SEGMENT_SIZE);
+        this.bufferedIS = new BufferedInputStream(this.segmentedIS, BenchmarkStreams.BUFFER_SIZE);
+
+        // decoding works at all?
+        ASAP_AssimilationPDU_1_0 decoded = this.decodeAssimilate();
+        if(!this.channel.equals(decoded.getChannelUri()) || decoded.getLength() != this.payloadSize
+                || decoded.getMessageOffsetArray().length != numberOffsets) {
+            throw new IllegalStateException("codec failure - benchmark makes no sense");
+        }
+    }
+
+    @Benchmark
+    public void encodeAssimilate() throws IOException, ASAPException {
+        OutputStream os;
+        if(BenchmarkStreams.MEMORY.equals(this.streams)) {
+            this.memoryOS.reset();
+            os = this.memoryOS;
+        } else {
+            os = this.bufferedOS;
+        }
+
+        this.payloadIS.reset();
+        this.protocol.assimilate(this.peer, this.recipient, this.format, this.channel, ERA,
+                this.payloadSize, this.offsetList, this.payloadIS, os, false);
+        os.flush();
+    }
+
+    /**
+     * PDU is decoded and its data are streamed into a sink - like an engine does.
+     */
+    @Benchmark
+    public ASAP_AssimilationPDU_1_0 decodeAssimilate() throws IOException, ASAPException {
+        InputStream is;
+        if(BenchmarkStreams.MEMORY.equals(this.streams)) {
+            this.memoryIS.reset();
+            is = this.memoryIS;
+        } else {
+            this.segmentedIS.rewind();
+            is = this.bufferedIS;
+        }
+
+        ASAP_AssimilationPDU_1_0 pdu = (ASAP_AssimilationPDU_1_0) this.protocol.readPDU(is);
+        pdu.streamData(this.dataSink, pdu.getLength());
+
+        return pdu;
+    }
+}
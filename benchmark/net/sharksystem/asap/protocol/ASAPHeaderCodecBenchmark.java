@@ -0,0 +1,127 @@
+package net.sharksystem.asap.protocol;
+
+import net.sharksystem.asap.ASAPException;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode throughput of PDUs without data: interest and offer.
+ * Run with -prof gc to see allocation rates.
+ *
+ * Stream modes:
+ * memory - byte array streams
+ * buffered - buffered streams on top of a socket like stream (segmented reads)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ASAPHeaderCodecBenchmark {
+    @Param({"8", "64", "512"})
+    public int stringLength;
+
+    @Param({BenchmarkStreams.MEMORY, BenchmarkStreams.BUFFERED})
+    public String streams;
+
+    private static final int ERA = 3;
+
+    private ASAP_1_0 protocol;
+    private String peer;
+    private String sourcePeer;
+    private String format;
+    private String channel;
+
+    private ByteArrayOutputStream memoryOS;
+    private OutputStream bufferedOS;
+
+    private ByteArrayInputStream interestMemoryIS;
+    private BenchmarkStreams.SegmentedInputStream interestSegmentedIS;
+    private InputStream interestBufferedIS;
+    private ByteArrayInputStream offerMemoryIS;
+    private BenchmarkStreams.SegmentedInputStream offerSegmentedIS;
+    private InputStream offerBufferedIS;
+
+    @Setup
+    public void setup() throws IOException, ASAPException {
+        this.protocol = new ASAP_Modem_Impl();
+        this.peer = BenchmarkStreams.createString(this.stringLength, 'p');
+        this.sourcePeer = BenchmarkStreams.createString(this.stringLength, 's');
+        this.format = BenchmarkStreams.createString(this.stringLength, 'f');
+        this.channel = BenchmarkStreams.createString(this.stringLength, 'c');
+
+        this.memoryOS = new ByteArrayOutputStream();
+        this.bufferedOS = new BufferedOutputStream(new BenchmarkStreams.NullOutputStream(),
+                BenchmarkStreams.BUFFER_SIZE);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        this.protocol.interest(this.peer, this.sourcePeer, this.format, this.channel, ERA, ERA, os, false);
+        byte[] interest = os.toByteArray();
+
+        os = new ByteArrayOutputStream();
+        this.protocol.offer(this.peer, this.format, this.channel, ERA, os, false);
+        byte[] offer = os.toByteArray();
+
+        this.interestMemoryIS = new ByteArrayInputStream(interest);
+        this.interestSegmentedIS = new BenchmarkStreams.SegmentedInputStream(interest, BenchmarkStreams.SEGMENT_SIZE);
+        this.interestBufferedIS = new BufferedInputStream(this.interestSegmentedIS, BenchmarkStreams.BUFFER_SIZE);
+
+        this.offerMemoryIS = new ByteArrayInputStream(offer);
+        this.offerSegmentedIS = new BenchmarkStreams.SegmentedInputStream(offer, BenchmarkStreams.SEGMENT_SIZE);
+        this.offerBufferedIS = new BufferedInputStream(this.offerSegmentedIS, BenchmarkStreams.BUFFER_SIZE);
+
+        // decoding works at all?
+        if(!this.channel.equals(this.decodeInterest().getChannelUri())
+                || !this.channel.equals(this.decodeOffer().getChannelUri())) {
+            throw new IllegalStateException("codec failure - benchmark makes no sense");
+        }
+    }
+
+    private OutputStream outputStream() {
+        if(BenchmarkStreams.MEMORY.equals(this.streams)) {
+            this.memoryOS.reset();
+            return this.memoryOS;
+        }
+
+        return this.bufferedOS;
+    }
+
+    @Benchmark
+    public void encodeInterest() throws IOException, ASAPException {
+        OutputStream os = this.outputStream();
+        this.protocol.interest(this.peer, this.sourcePeer, this.format, this.channel, ERA, ERA, os, false);
+        os.flush();
+    }
+
+    @Benchmark
+    public void encodeOffer() throws IOException, ASAPException {
+        OutputStream os = this.outputStream();
+        this.protocol.offer(this.peer, this.format, this.channel, ERA, os, false);
+        os.flush();
+    }
+
+    @Benchmark
+    public ASAP_PDU_1_0 decodeInterest() throws IOException, ASAPException {
+        if(BenchmarkStreams.MEMORY.equals(this.streams)) {
+            this.interestMemoryIS.reset();
+            return this.protocol.readPDU(this.interestMemoryIS);
+        }
+
+        this.interestSegmentedIS.rewind();
+        return this.protocol.readPDU(this.interestBufferedIS);
+    }
+
+    @Benchmark
+    public ASAP_PDU_1_0 decodeOffer() throws IOException, ASAPException {
+        if(BenchmarkStreams.MEMORY.equals(this.streams)) {
+            this.offerMemoryIS.reset();
+            return this.protocol.readPDU(this.offerMemoryIS);
+        }
+
+        this.offerSegmentedIS.rewind();
+        return this.protocol.readPDU(this.offerBufferedIS);
+    }
+}
@@ -0,0 +1,78 @@
+package net.sharksystem.asap.protocol;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Streams used by codec benchmarks.
+ */
+class BenchmarkStreams {
+    /** typical TCP segment payload size */
+    static final int SEGMENT_SIZE = 1460;
+    static final int BUFFER_SIZE = 8192;
+
+    static final String MEMORY = "memory";
+    static final String BUFFERED = "buffered";
+
+    /**
+     * Swallows anything - like a socket which never blocks.
+     */
+    static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) { }
+
+        @Override
+        public void write(byte[] b, int off, int len) { }
+    }
+
+    /**
+     * Delivers data in segments like a socket does: a read call never returns more
+     * than a segment. Can be rewound to read same data again.
+     */
+    static class SegmentedInputStream extends InputStream {
+        private final byte[] data;
+        private final int segmentSize;
+        private int position = 0;
+
+        SegmentedInputStream(byte[] data, int segmentSize) {
+            this.data = data;
+            this.segmentSize = segmentSize;
+        }
+
+        void rewind() {
+            this.position = 0;
+        }
+
+        @Override
+        public int read() {
+            if(this.position >= this.data.length) return -1;
+            return this.data[this.position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if(this.position >= this.data.length) return -1;
+
+            int n = Math.min(len, Math.min(this.segmentSize, this.data.length - this.position));
+            System.arraycopy(this.data, this.position, b, off, n);
+            this.position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            // a socket knows only about the current segment
+            int remaining = this.data.length - this.position;
+            return Math.min(remaining, this.segmentSize);
+        }
+    }
+
+    static String createString(int length, char c) {
+        StringBuilder sb = new StringBuilder(length);
+        for(int i = 0; i < length; i++) {
+            sb.append(c);
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,116 @@
+package net.sharksystem.asap.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder events. Source folder jfr is compiled only by JDKs with jdk.jfr - Java 8 and Android
+ * have none. Only loaded if jdk.jfr is available - see ASAPTracing.
+ */
+@Category("ASAP")
+@StackTrace(false)
+abstract class ASAPEvent extends Event implements ASAPTrace {
+    @Label("Peer")
+    String peer;
+
+    @Label("Format")
+    String format;
+
+    @Label("URI")
+    String uri;
+
+    @Label("Era")
+    int era;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    static ASAPTrace begin(ASAPEvent event) {
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void end(CharSequence peer, CharSequence format, CharSequence uri, int era, long bytes) {
+        this.end();
+        if(this.shouldCommit()) {
+            this.peer = peer != null ? peer.toString() : null;
+            this.format = format != null ? format.toString() : null;
+            this.uri = uri != null ? uri.toString() : null;
+            this.era = era;
+            this.bytes = bytes;
+            this.commit();
+        }
+    }
+
+    @Name("net.sharksystem.asap.PDURead")
+    @Label("PDU Read")
+    @Description("ASAP PDU decoded - waiting for first byte not included")
+    static class PDURead extends ASAPEvent { }
+
+    @Name("net.sharksystem.asap.PDUSend")
+    @Label("PDU Send")
+    @Description("Assimilate PDU encoded and sent including data")
+    static class PDUSend extends ASAPEvent { }
+
+    @Name("net.sharksystem.asap.ChunkAppend")
+    @Label("Chunk Append")
+    @Description("Message written into a chunk")
+    static class ChunkAppend extends ASAPEvent { }
+
+    @Name("net.sharksystem.asap.EraChange")
+    @Label("Era Change")
+    @Description("Engine changed its era and set up chunks of the new era")
+    static class EraChange extends ASAPEvent { }
+
+    @Name("net.sharksystem.asap.ChunkSend")
+    @Label("Chunk Send")
+    @Description("Engine sent chunks to a peer")
+    static class ChunkSend extends ASAPEvent { }
+
+    @Name("net.sharksystem.asap.StreamLockWait")
+    @Label("Stream Lock Wait")
+    @Description("Thread blocked waiting for exclusive access to connection streams")
+    static class StreamLockWait extends ASAPEvent { }
+
+    /**
+     * Created reflectively by ASAPTracing.
+     */
+    static class Factory implements ASAPTraceFactory {
+        @Override
+        public ASAPTrace pduRead() {
+            return ASAPEvent.begin(new PDURead());
+        }
+
+        @Override
+        public ASAPTrace pduSend() {
+            return ASAPEvent.begin(new PDUSend());
+        }
+
+        @Override
+        public ASAPTrace chunkAppend() {
+            return ASAPEvent.begin(new ChunkAppend());
+        }
+
+        @Override
+        public ASAPTrace eraChange() {
+            return ASAPEvent.begin(new EraChange());
+        }
+
+        @Override
+        public ASAPTrace chunkSend() {
+            return ASAPEvent.begin(new ChunkSend());
+        }
+
+        @Override
+        public ASAPTrace streamLockWait() {
+            return ASAPEvent.begin(new StreamLockWait());
+        }
+    }
+}
@@ -1,29 +1,14 @@
 package bigNumbersDrafts;
 
+import net.sharksystem.asap.crypto.ASAPDHGroup;
+
 import java.math.BigInteger;
 
 public class VeryBigNum {
 	
 	
-    final BigInteger p = new BigInteger("104438888141315250667960271984652954583126906099213500902258875644433" +
-			"817202232269071044404666980978393011158573789036269186012707927049545" +
-			"451721867301692842745914600186688577976298222932119236830334623520436" +
-			"805101030915567415569746034717694639407653515728499489528482163370092" +
-			"181171673897245183497945589701030633346859075135836513878225037226911" +
-			"796898519432244453568741552200715163863814145617842062127782267499502" +
-			"799027867345862954439173691976629900551150544617766815444623488266596" +
-			"168079657690319911608934763494718777890652800800475669257166692296412" +
-			"256617458277670733245237100127216377684122931832490312574071357414100" +
-			"512456196591388889975346173534797001169325631675166067895083002751025" +
-			"580484610558346505544661509044430958305077580850929704003968005743534" +
-			"225392656624089819586363158888893636412992005930845566945403401039147" +
-			"823878418988859467233624276379513817635322284552464404009425896243361" +
-			"335403610464388192523848922401019419308891166616558422942466816544168" +
-			"892779046060826486420423771700205474433798894197466121469968970652154" +
-			"300626260453589099812575227594260877217437610731421774923304821790494" +
-			"440983623823577230674987439676046337648021513346133347839568274660824" +
-			"2585133953883882226786118030184028136755970045385534758453247");     // rfc3526
-    final BigInteger q = new BigInteger("2");
+    final BigInteger p = ASAPDHGroup.P; // rfc3526, 4096 bit
+    final BigInteger q = ASAPDHGroup.G;
     BigInteger secret;
     
    VeryBigNum(BigInteger num) {
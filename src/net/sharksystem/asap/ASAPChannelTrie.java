@@ -0,0 +1,70 @@
+package net.sharksystem.asap;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Channel subscriptions of a peer. A pattern ending with * matches any uri starting with
+ * that prefix, e.g. sn2://region/north/* - other patterns match a uri exactly.
+ *
+ * Patterns are kept in a trie - a uri is checked in a single walk, whatever number of patterns.
+ *
+ * @author thsc
+ */
+class ASAPChannelTrie {
+    static final char WILDCARD = '*';
+
+    private final Node root = new Node();
+
+    private static class Node {
+        private final Map<Character, Node> children = new HashMap<>();
+        /** a pattern ends here */
+        private boolean exact = false;
+        /** a prefix pattern ends here - anything below matches */
+        private boolean prefix = false;
+    }
+
+    ASAPChannelTrie(Collection<? extends CharSequence> patterns) {
+        for(CharSequence pattern : patterns) {
+            this.add(pattern);
+        }
+    }
+
+    void add(CharSequence pattern) {
+        int length = pattern.length();
+        boolean isPrefix = length > 0 && pattern.charAt(length - 1) == WILDCARD;
+        if(isPrefix) length--;
+
+        Node node = this.root;
+        for(int i = 0; i < length; i++) {
+            Character c = pattern.charAt(i);
+            Node child = node.children.get(c);
+            if(child == null) {
+                child = new Node();
+                node.children.put(c, child);
+            }
+            node = child;
+        }
+
+        if(isPrefix) {
+            node.prefix = true;
+        } else {
+            node.exact = true;
+        }
+    }
+
+    /**
+     * @return true if any pattern matches that uri
+     */
+    boolean matches(CharSequence uri) {
+        Node node = this.root;
+        for(int i = 0; i < uri.length(); i++) {
+            if(node.prefix) return true;
+            node = node.children.get(uri.charAt(i));
+            if(node == null) return false;
+        }
+
+        return node.exact || node.prefix;
+    }
+}
@@ -121,9 +121,31 @@ public interface ASAPChunk {
 
     HashMap<String, String> getExtraData();
 
+    /**
+     * remember peer got all messages of this chunk
+     */
     void deliveredTo(String peer) throws IOException;
 
+    /**
+     * remember peer got first messages of this chunk - chunk can grow meanwhile
+     * @param numberMessages number of messages sent
+     */
+    void deliveredTo(String peer, int numberMessages) throws IOException;
+
+    /**
+     * @return peers which got all messages of this chunk - peers which got fewer messages are not on that list
+     */
     List<CharSequence> getDeliveredTo();
 
     void copyMetaData(ASAPChannel channel) throws IOException;
+
+    /**
+     * remember signature of chunk origin - relays forward it with that part of this chunk
+     */
+    void addSignature(ASAPChunkSignature signature) throws IOException;
+
+    /**
+     * @return signatures of parts of this chunk ordered by offset - parts not on that list are not signed
+     */
+    List<ASAPChunkSignature> getSignatures();
 }
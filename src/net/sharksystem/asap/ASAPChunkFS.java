@@ -1,5 +1,7 @@
 package net.sharksystem.asap;
 
+import net.sharksystem.asap.jfr.ASAPTrace;
+import net.sharksystem.asap.jfr.ASAPTracing;
 import net.sharksystem.asap.util.Helper;
 
 import java.io.*;
@@ -17,8 +19,11 @@ class ASAPChunkFS implements ASAPChunk {
     private String sender;
     private String uri = DEFAULT_URL;
     private Set<CharSequence> recipients;
-    private List<CharSequence> deliveredTo;
+    /** peer - number of messages it got - chunks can grow after delivery */
+    private Map<CharSequence, Integer> deliveredTo;
     private List<Long> messageStartOffsets = new ArrayList<>();
+    /** signatures of received parts - ordered by offset */
+    private List<ASAPChunkSignature> signatures = new ArrayList<>();
     private File metaFile;
     private File messageFile;
     
@@ -33,6 +38,13 @@ class ASAPChunkFS implements ASAPChunk {
         this.recipients = chunkSource.getRecipients();
         this.extraData = chunkSource.getExtraData();
 
+        // peers which got whole source got all messages this chunk has now
+        this.deliveredTo = new LinkedHashMap<>();
+        int numberMessages = this.getNumberMessage();
+        for(CharSequence peer : chunkSource.getDeliveredTo()) {
+            this.deliveredTo.put(peer, numberMessages);
+        }
+
         this.saveStatus();
     }
 
@@ -51,13 +63,38 @@ class ASAPChunkFS implements ASAPChunk {
 
     @Override
     public void deliveredTo(String peer) throws IOException {
-        this.deliveredTo.add(peer);
-        this.saveStatus();
+        this.deliveredTo(peer, this.getNumberMessage());
+    }
+
+    @Override
+    public void deliveredTo(String peer, int numberMessages) throws IOException {
+        Integer delivered = this.deliveredTo.get(peer);
+        if(delivered == null || delivered < numberMessages) {
+            this.deliveredTo.put(peer, numberMessages);
+            this.saveStatus();
+        }
     }
 
     @Override
     public List<CharSequence> getDeliveredTo() {
-        return this.deliveredTo;
+        int numberMessages = this.getNumberMessage();
+        List<CharSequence> peers = new ArrayList<>();
+        for(Map.Entry<CharSequence, Integer> entry : this.deliveredTo.entrySet()) {
+            if(entry.getValue() >= numberMessages) peers.add(entry.getKey());
+        }
+
+        return peers;
+    }
+
+    @Override
+    public void addSignature(ASAPChunkSignature signature) throws IOException {
+        this.signatures.add(signature);
+        this.saveStatus();
+    }
+
+    @Override
+    public List<ASAPChunkSignature> getSignatures() {
+        return this.signatures;
     }
 
     ASAPChunkFS(ASAPChunkStorageFS storage, String targetUri, int era) throws IOException {
@@ -102,8 +139,9 @@ class ASAPChunkFS implements ASAPChunk {
             // no metadate to be read - set defaults
             this.writeMetaData(this.metaFile);
             this.recipients = new HashSet<>();
-            this.deliveredTo = new ArrayList<>();
+            this.deliveredTo = new LinkedHashMap<>();
             this.messageStartOffsets = new ArrayList<>();
+            this.signatures = new ArrayList<>();
         }
     }
     
@@ -164,21 +202,28 @@ class ASAPChunkFS implements ASAPChunk {
             throw new IOException("message must not be longer than Integer.MAXVALUE");
         }
 
+        ASAPTrace trace = ASAPTracing.chunkAppend();
+        long messageLength = length;
         long offset = this.messageFile.length();
 
         OutputStream os = new FileOutputStream(this.messageFile, true);
+        this.storage.getMetrics().fileOpened();
+        this.storage.getMetrics().bytesWritten(length);
 
-        while(length-- > 0) {
-            os.write(messageByteIS.read());
+        try {
+            Helper.copy(messageByteIS, os, length);
+        }
+        finally {
+            os.close();
         }
-
-        os.close();
 
         // remember offset if not 0
         if(offset > 0) {
             this.messageStartOffsets.add(offset);
             this.saveStatus();
         }
+
+        trace.end(this.sender, null, this.uri, this.era, messageLength);
     }
 
     @Override
@@ -190,34 +235,42 @@ class ASAPChunkFS implements ASAPChunk {
         List<byte[]> byteMessageList = new ArrayList<>();
 
         if(this.messageFile.length() > 0) {
-            InputStream is = new FileInputStream((this.messageFile));
-            long offset = 0;
-            for(Long nextOffset : this.messageStartOffsets) {
-                long messageLenLong = nextOffset.longValue() - offset;
+            // a single read can return less than requested - read fully
+            DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(this.messageFile)));
+            this.storage.getMetrics().fileOpened();
+            this.storage.getMetrics().bytesRead(this.messageFile.length());
+            try {
+                long offset = 0;
+                for(Long nextOffset : this.messageStartOffsets) {
+                    long messageLenLong = nextOffset.longValue() - offset;
+                    if(messageLenLong > Integer.MAX_VALUE) {
+                        throw new IOException("message longer than Integer.MAXVALUE");
+                    }
+
+                    int messageLen = (int) messageLenLong;
+                    byte[] messageBytes = new byte[messageLen];
+
+                    is.readFully(messageBytes);
+
+                    byteMessageList.add(messageBytes);
+
+                    offset = nextOffset;
+                }
+
+                // read last one
+                long messageLenLong = this.messageFile.length() - offset;
                 if(messageLenLong > Integer.MAX_VALUE) {
                     throw new IOException("message longer than Integer.MAXVALUE");
                 }
 
                 int messageLen = (int) messageLenLong;
                 byte[] messageBytes = new byte[messageLen];
-
-                is.read(messageBytes);
-
+                is.readFully(messageBytes);
                 byteMessageList.add(messageBytes);
-
-                offset = nextOffset;
             }
-
-            // read last one
-            long messageLenLong = this.messageFile.length() - offset;
-            if(messageLenLong > Integer.MAX_VALUE) {
-                throw new IOException("message longer than Integer.MAXVALUE");
+            finally {
+                is.close();
             }
-
-            int messageLen = (int) messageLenLong;
-            byte[] messageBytes = new byte[messageLen];
-            is.read(messageBytes);
-            byteMessageList.add(messageBytes);
         }
 
         return byteMessageList;
@@ -237,6 +290,8 @@ class ASAPChunkFS implements ASAPChunk {
         InputStream is = null;
         try {
             is = new FileInputStream(this.messageFile);
+            this.storage.getMetrics().fileOpened();
+            this.storage.getMetrics().bytesRead(this.messageFile.length());
         } catch (FileNotFoundException e) {
             // cannot happen - is checked before
         }
@@ -287,6 +342,8 @@ class ASAPChunkFS implements ASAPChunk {
         if(!metaFile.exists()) return false;
         // read data from metafile
         DataInputStream dis = new DataInputStream(new FileInputStream(metaFile));
+        this.storage.getMetrics().fileOpened();
+        this.storage.getMetrics().bytesRead(metaFile.length());
 
         try {
             this.uri = dis.readUTF();
@@ -297,13 +354,21 @@ class ASAPChunkFS implements ASAPChunk {
             return false;
         }
         
+        List<CharSequence> deliveredPeers = new ArrayList<>();
+        List<Long> deliveredMessages = new ArrayList<>();
         try {
             this.recipients = Helper.string2CharSequenceSet(dis.readUTF());
-            this.deliveredTo = Helper.string2CharSequenceList(dis.readUTF());
+            deliveredPeers = Helper.string2CharSequenceList(dis.readUTF());
 
-            // finally read offset list
+            // read offset list
             String offsetList = dis.readUTF();
             this.messageStartOffsets = this.messageOffsetString2List(offsetList);
+
+            // number of delivered messages
+            deliveredMessages = this.messageOffsetString2List(dis.readUTF());
+
+            // finally signatures of received parts
+            this.signatures = this.string2Signatures(dis.readUTF());
         }
         catch(IOException ioe) {
             // no more data - ok
@@ -311,6 +376,13 @@ class ASAPChunkFS implements ASAPChunk {
         finally {
             dis.close();
         }
+
+        // delivered before messages were counted - got what is there now
+        this.deliveredTo = new LinkedHashMap<>();
+        for(int i = 0; i < deliveredPeers.size(); i++) {
+            this.deliveredTo.put(deliveredPeers.get(i), i < deliveredMessages.size()
+                    ? deliveredMessages.get(i).intValue() : this.getNumberMessage());
+        }
         
         return true;
     }
@@ -322,29 +394,98 @@ class ASAPChunkFS implements ASAPChunk {
         dos.writeUTF(this.uri);
         dos.writeUTF(this.getExtraAsString());
         dos.writeUTF(Helper.collection2String(this.recipients));
-        dos.writeUTF(Helper.collection2String(this.deliveredTo));
+        Map<CharSequence, Integer> deliveredTo = this.deliveredTo != null
+                ? this.deliveredTo : new LinkedHashMap<CharSequence, Integer>();
+        dos.writeUTF(Helper.collection2String(deliveredTo.keySet()));
 
         // write offsetList
         dos.writeUTF(this.messageStartOffsetListAsString());
+
+        // number of delivered messages - same order as peers
+        dos.writeUTF(this.longList2String(deliveredTo.values()));
+
+        // signatures of received parts
+        dos.writeUTF(this.signatures2String());
         
         dos.close();
+
+        this.storage.getMetrics().fileOpened();
+        this.storage.getMetrics().bytesWritten(dos.size());
     }
 
     private String messageStartOffsetListAsString() {
+        return this.longList2String(this.messageStartOffsets);
+    }
+
+    private String longList2String(Collection<? extends Number> numbers) {
         StringBuilder sb = new StringBuilder();
 
         boolean first = true;
-        for(Long offset : this.messageStartOffsets) {
+        for(Number number : numbers) {
             if(!first) {
                 sb.append(Helper.SERIALIZATION_DELIMITER);
             }
             first = false;
-            sb.append(offset.toString());
+            sb.append(number.toString());
         }
 
         return sb.toString();
     }
 
+    /**
+     * offset, length, signer and hex encoded signature of each signature
+     */
+    private String signatures2String() {
+        StringBuilder sb = new StringBuilder();
+        if(this.signatures == null) return sb.toString();
+
+        boolean first = true;
+        for(ASAPChunkSignature signature : this.signatures) {
+            if(first) { first = false; }
+            else { sb.append(Helper.SERIALIZATION_DELIMITER); }
+
+            sb.append(signature.getOffset());
+            sb.append(Helper.SERIALIZATION_DELIMITER);
+            sb.append(signature.getLength());
+            sb.append(Helper.SERIALIZATION_DELIMITER);
+            sb.append(signature.getSigner());
+            sb.append(Helper.SERIALIZATION_DELIMITER);
+            for(byte b : signature.getSignature()) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+        }
+
+        return sb.toString();
+    }
+
+    private List<ASAPChunkSignature> string2Signatures(String s) throws IOException {
+        List<ASAPChunkSignature> signatures = new ArrayList<>();
+
+        try {
+            StringTokenizer st = new StringTokenizer(s, Helper.SERIALIZATION_DELIMITER);
+            while (st.hasMoreTokens()) {
+                long offset = Long.parseLong(st.nextToken());
+                long length = Long.parseLong(st.nextToken());
+                String signer = st.nextToken();
+                String hex = st.nextToken();
+
+                byte[] signature = new byte[hex.length() / 2];
+                for(int i = 0; i < signature.length; i++) {
+                    signature[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+                }
+
+                signatures.add(new ASAPChunkSignature(offset, length, signer, signature));
+            }
+        }
+        catch(RuntimeException e) {
+            // missing token or something
+            throw new IOException(e.getLocalizedMessage());
+        }
+
+        return signatures;
+    }
+
     private String getExtraAsString() throws IOException {
         StringBuilder sb = new StringBuilder();
 
@@ -0,0 +1,203 @@
+package net.sharksystem.asap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bookkeeping of offer based synchronization (FEATURE_OFFERS). Chunks are offered first: uri, era,
+ * length and digest of their content. Receiver asks for those it wants - only those are sent.
+ *
+ * Receiver side: digests of received chunks - same chunk is not received twice, e.g. from
+ * another peer which got it already. Requests not answered are repeated with following encounters
+ * with that peer until chunk is received - up to MAX_REQUEST_RETRIES times.
+ *
+ * Sender side: digests of offered chunks. Chunks of previous eras do not change - digest is not
+ * calculated with each encounter. Offers to a peer are counted - a chunk that was offered MAX_OFFERS
+ * times and never asked for is not wanted by that peer.
+ *
+ * Anything is kept in memory - bounded, least recently used entries are dropped.
+ *
+ * @author thsc
+ */
+class ASAPChunkInventory {
+    static final String DIGEST_ALGORITHM = "SHA-256";
+    static final int MAX_DIGESTS = 4096;
+    static final int MAX_OPEN_REQUESTS = 1024;
+    static final int MAX_REQUEST_RETRIES = 3;
+    static final int MAX_OFFERS = 3;
+    static final long UNLIMITED = -1;
+
+    private final Map<String, Boolean> receivedDigests = ASAPChunkInventory.createLRUMap(MAX_DIGESTS);
+    private final Map<String, byte[]> offeredDigests = ASAPChunkInventory.createLRUMap(MAX_DIGESTS);
+    private final Map<String, Request> openRequests = ASAPChunkInventory.createLRUMap(MAX_OPEN_REQUESTS);
+    private final Map<String, Integer> offers = ASAPChunkInventory.createLRUMap(MAX_DIGESTS);
+    private long maxChunkLength = UNLIMITED;
+
+    static {
+        // first lookup of a digest provider takes a while - better with engine setup than in an encounter
+        try {
+            MessageDigest.getInstance(DIGEST_ALGORITHM).digest();
+        } catch (NoSuchAlgorithmException e) {
+            // reported when used
+        }
+    }
+
+    /**
+     * A chunk we asked a peer for.
+     */
+    static class Request {
+        final String peer;
+        final String sender;
+        final String uri;
+        final int era;
+        int retries = 0;
+
+        Request(String peer, String sender, String uri, int era) {
+            this.peer = peer;
+            this.sender = sender;
+            this.uri = uri;
+            this.era = era;
+        }
+    }
+
+    private static <V> Map<String, V> createLRUMap(final int maxEntries) {
+        return new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return this.size() > maxEntries;
+            }
+        };
+    }
+
+    private static String getKey(CharSequence sender, CharSequence uri, int era) {
+        return sender + "@" + uri + "@" + era;
+    }
+
+    private static String getReceivedKey(CharSequence sender, CharSequence uri, int era, byte[] digest) {
+        return ASAPChunkInventory.getKey(sender, uri, era) + "#" + ASAPChunkInventory.toHex(digest);
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder();
+        for(byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    static MessageDigest createMessageDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("no digest algorithm: " + DIGEST_ALGORITHM);
+        }
+    }
+
+    /**
+     * @return digest of chunk content - messages as they are sent
+     */
+    static byte[] calculateDigest(ASAPChunk chunk) throws IOException {
+        MessageDigest messageDigest = ASAPChunkInventory.createMessageDigest();
+        InputStream is = chunk.getMessageInputStream();
+        if(is == null) return messageDigest.digest();
+
+        try {
+            byte[] buffer = new byte[8 * 1024];
+            long remaining = chunk.getLength();
+            while(remaining > 0) {
+                int read = is.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if(read < 0) break;
+                messageDigest.update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        finally {
+            is.close();
+        }
+
+        return messageDigest.digest();
+    }
+
+    /**
+     * @return digest of a chunk about to be offered - calculated once per chunk content
+     */
+    byte[] getOfferedDigest(CharSequence sender, int era, ASAPChunk chunk) throws IOException {
+        // incoming chunks can grow - length is part of key
+        String key = ASAPChunkInventory.getKey(sender, chunk.getUri(), era) + "#" + chunk.getLength();
+        synchronized(this.offeredDigests) {
+            byte[] digest = this.offeredDigests.get(key);
+            if(digest != null) return digest;
+        }
+
+        byte[] digest = ASAPChunkInventory.calculateDigest(chunk);
+        synchronized(this.offeredDigests) {
+            this.offeredDigests.put(key, digest);
+        }
+
+        return digest;
+    }
+
+    /**
+     * @return number of encounters that chunk was offered to that peer in - including this one
+     */
+    synchronized int offered(CharSequence peer, CharSequence sender, int era, ASAPChunk chunk) throws IOException {
+        String key = peer + "|" + ASAPChunkInventory.getKey(sender, chunk.getUri(), era) + "#" + chunk.getLength();
+        Integer offers = this.offers.get(key);
+        offers = offers == null ? 1 : offers + 1;
+        this.offers.put(key, offers);
+
+        return offers;
+    }
+
+    /**
+     * @return true if that chunk was received with that content - e.g. from another peer
+     */
+    synchronized boolean isReceived(CharSequence sender, CharSequence uri, int era, byte[] digest) {
+        return this.receivedDigests.containsKey(ASAPChunkInventory.getReceivedKey(sender, uri, era, digest));
+    }
+
+    synchronized void received(CharSequence sender, CharSequence uri, int era, byte[] digest) {
+        this.openRequests.remove(ASAPChunkInventory.getKey(sender, uri, era));
+        if(digest != null) {
+            this.receivedDigests.put(ASAPChunkInventory.getReceivedKey(sender, uri, era, digest), Boolean.TRUE);
+        }
+    }
+
+    synchronized void requested(String peer, String sender, String uri, int era) {
+        this.openRequests.put(ASAPChunkInventory.getKey(sender, uri, era), new Request(peer, sender, uri, era));
+    }
+
+    /**
+     * @return requests sent to that peer and not answered yet - to be repeated. They are kept until
+     * chunk is received or they were repeated MAX_REQUEST_RETRIES times.
+     */
+    synchronized List<Request> getOpenRequests(CharSequence peer) {
+        List<Request> requests = new ArrayList<>();
+        Iterator<Request> iterator = this.openRequests.values().iterator();
+        while(iterator.hasNext()) {
+            Request request = iterator.next();
+            if(request.peer.equals(peer.toString())) {
+                requests.add(request);
+                if(++request.retries >= MAX_REQUEST_RETRIES) iterator.remove();
+            }
+        }
+
+        return requests;
+    }
+
+    synchronized long getMaxChunkLength() {
+        return this.maxChunkLength;
+    }
+
+    synchronized void setMaxChunkLength(long maxChunkLength) {
+        this.maxChunkLength = maxChunkLength;
+    }
+}
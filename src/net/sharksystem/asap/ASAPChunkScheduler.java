@@ -0,0 +1,145 @@
+package net.sharksystem.asap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Orders chunks which are about to be sent during an encounter.
+ *
+ * Encounters can be short. Chunks are not sent era by era any longer. All chunks
+ * (local and received ones, any era) are collected first and sent by priority class.
+ * Chunks within the same priority class are ordered by a policy: smallest chunk first
+ * or earliest deadline first.
+ *
+ * Priority and deadline are set per channel as extra data, e.g.
+ *
+ * <pre>
+ * storage.putExtra(uri, ASAPChunkScheduler.PRIORITY_EXTRA_KEY, Integer.toString(ASAPChunkScheduler.PRIORITY_HIGH));
+ * storage.putExtra(uri, ASAPChunkScheduler.DEADLINE_EXTRA_KEY, Long.toString(deadlineInMillis));
+ * </pre>
+ *
+ * @author thsc
+ */
+public class ASAPChunkScheduler {
+    public static final String PRIORITY_EXTRA_KEY = "asap_priority";
+    public static final String DEADLINE_EXTRA_KEY = "asap_deadline";
+
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+    public static final int PRIORITY_URGENT = 3;
+
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    public enum Policy {
+        /** send small chunks first - most chunks are delivered in a short encounter */
+        SMALLEST_FIRST,
+        /** send chunks with earliest deadline first - chunks without deadline come last */
+        DEADLINE_FIRST
+    }
+
+    public static final Policy DEFAULT_POLICY = Policy.SMALLEST_FIRST;
+
+    private final Policy policy;
+    private final List<ScheduledChunk> scheduledChunks = new ArrayList<>();
+
+    ASAPChunkScheduler(Policy policy) {
+        this.policy = policy != null ? policy : DEFAULT_POLICY;
+    }
+
+    /**
+     * A chunk waiting for transmission
+     */
+    static class ScheduledChunk {
+        final CharSequence sender;
+        final int era;
+        final ASAPChunk chunk;
+        final int priority;
+        final long deadline;
+        final long length;
+        final int sequence;
+
+        ScheduledChunk(CharSequence sender, int era, ASAPChunk chunk, int sequence) throws IOException {
+            this.sender = sender;
+            this.sequence = sequence;
+            this.era = era;
+            this.chunk = chunk;
+            this.length = chunk.getLength();
+            this.priority = ASAPChunkScheduler.getPriority(chunk);
+            this.deadline = ASAPChunkScheduler.getDeadline(chunk);
+        }
+    }
+
+    void add(CharSequence sender, int era, ASAPChunk chunk) throws IOException {
+        this.scheduledChunks.add(new ScheduledChunk(sender, era, chunk, this.scheduledChunks.size()));
+    }
+
+    boolean isEmpty() {
+        return this.scheduledChunks.isEmpty();
+    }
+
+    /**
+     * @return chunks in order of transmission
+     */
+    List<ScheduledChunk> getSchedule() {
+        List<ScheduledChunk> schedule = new ArrayList<>(this.scheduledChunks);
+        Collections.sort(schedule, new ScheduleComparator(this.policy));
+        return schedule;
+    }
+
+    static int getPriority(ASAPChunk chunk) throws IOException {
+        CharSequence priorityString = chunk.getExtra(PRIORITY_EXTRA_KEY);
+        if(priorityString == null) return PRIORITY_NORMAL;
+
+        try {
+            return Integer.parseInt(priorityString.toString().trim());
+        }
+        catch(NumberFormatException e) {
+            // malformed - ignore
+            return PRIORITY_NORMAL;
+        }
+    }
+
+    static long getDeadline(ASAPChunk chunk) throws IOException {
+        CharSequence deadlineString = chunk.getExtra(DEADLINE_EXTRA_KEY);
+        if(deadlineString == null) return NO_DEADLINE;
+
+        try {
+            return Long.parseLong(deadlineString.toString().trim());
+        }
+        catch(NumberFormatException e) {
+            // malformed - ignore
+            return NO_DEADLINE;
+        }
+    }
+
+    private static class ScheduleComparator implements Comparator<ScheduledChunk> {
+        private final Policy policy;
+
+        ScheduleComparator(Policy policy) {
+            this.policy = policy;
+        }
+
+        @Override
+        public int compare(ScheduledChunk a, ScheduledChunk b) {
+            // higher priority first
+            int result = Integer.compare(b.priority, a.priority);
+            if(result != 0) return result;
+
+            if(this.policy == Policy.DEADLINE_FIRST) {
+                result = Long.compare(a.deadline, b.deadline);
+                if(result != 0) return result;
+            }
+
+            // smallest first - also tie breaker for deadline first
+            result = Long.compare(a.length, b.length);
+            if(result != 0) return result;
+
+            // keep collection order (older eras first) - era numbers wrap, cannot compare them
+            return Integer.compare(a.sequence, b.sequence);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package net.sharksystem.asap;
+
+/**
+ * Signature of a part of a received chunk - as received with a single assimilate pdu. It is signed by
+ * origin of that chunk. Relays forward it together with that part - they cannot sign in origin's name.
+ *
+ * @author thsc
+ */
+public class ASAPChunkSignature {
+    private final long offset;
+    private final long length;
+    private final String signer;
+    private final byte[] signature;
+
+    /**
+     * @param offset position of first signed byte in chunk
+     * @param length number of signed bytes
+     */
+    public ASAPChunkSignature(long offset, long length, String signer, byte[] signature) {
+        this.offset = offset;
+        this.length = length;
+        this.signer = signer;
+        this.signature = signature;
+    }
+
+    public long getOffset() {
+        return this.offset;
+    }
+
+    public long getLength() {
+        return this.length;
+    }
+
+    public String getSigner() {
+        return this.signer;
+    }
+
+    public byte[] getSignature() {
+        return this.signature;
+    }
+}
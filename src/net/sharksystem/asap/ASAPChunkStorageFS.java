@@ -1,6 +1,7 @@
 package net.sharksystem.asap;
 
 import net.sharksystem.Utils;
+import net.sharksystem.asap.metrics.ASAPStorageMetrics;
 
 import java.io.File;
 import java.io.FilenameFilter;
@@ -17,9 +18,19 @@ import static net.sharksystem.asap.ASAPChunkFS.META_DATA_EXTENSION;
 class ASAPChunkStorageFS implements ASAPChunkStorage {
 
     private final String rootDirectory;
+    private final ASAPStorageMetrics metrics;
 
     ASAPChunkStorageFS(String rootDirectory) {
+        this(rootDirectory, new ASAPStorageMetrics());
+    }
+
+    ASAPChunkStorageFS(String rootDirectory, ASAPStorageMetrics metrics) {
         this.rootDirectory = rootDirectory;
+        this.metrics = metrics;
+    }
+
+    ASAPStorageMetrics getMetrics() {
+        return this.metrics;
     }
 
     @Override
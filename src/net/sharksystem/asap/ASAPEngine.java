@@ -1,18 +1,33 @@
 package net.sharksystem.asap;
 
+import net.sharksystem.asap.management.ASAPGroupKeyService;
 import net.sharksystem.asap.management.ASAPManagementStorage;
+import net.sharksystem.asap.jfr.ASAPTrace;
+import net.sharksystem.asap.jfr.ASAPTracing;
 import net.sharksystem.asap.management.ASAPManagementStorageImpl;
+import net.sharksystem.asap.metrics.ASAPEngineMetrics;
 import net.sharksystem.asap.protocol.*;
+import net.sharksystem.asap.util.Helper;
 import net.sharksystem.asap.util.Log;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * That ASAPEngine manages exchange of stored messages with peers.
  * See ASPChunkStorage for details.
+ *
+ * An engine can be used concurrently: local apps add messages while several peers
+ * synchronize. Era changes are exclusive (write lock). Adding messages holds the
+ * read lock - era does not change during an add. Changes on a channel are serialized
+ * by a per channel lock.
  * 
  * @see ASAPStorage
  * @author thsc
@@ -21,22 +36,37 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
     public static final String ANONYMOUS_OWNER = "anon";
     static String DEFAULT_OWNER = ANONYMOUS_OWNER;
     static int DEFAULT_INIT_ERA = 0;
+    /** signed chunks are staged before stored - in memory up to that length, in a temporary file otherwise */
+    static final int MAX_IN_MEMORY_STAGING_LENGTH = 1024 * 1024;
 
     protected String owner = ANONYMOUS_OWNER;
     protected String format = ASAP_1_0.ANY_FORMAT.toString();
 
-    protected int era = 0;
+    protected volatile int era = 0;
     protected int oldestEra = 0;
-    protected HashMap<String, Integer> lastSeen = new HashMap<>();
+    protected volatile Map<String, Integer> lastSeen = new ConcurrentHashMap<>();
     protected ASAPMemento memento = null;
+
+    /** era changes are exclusive - write lock. Adding messages requires a stable era - read lock */
+    protected final ReadWriteLock eraLock = new ReentrantReadWriteLock();
+    private final Object mementoLock = new Object();
+    private final ConcurrentHashMap<String, Object> channelLocks = new ConcurrentHashMap<>();
     
     /* private */ final private ASAPChunkStorage chunkStorage;
     protected boolean dropDeliveredChunks = false;
 
     private ASAPOnlineMessageSender asapOnlineMessageSender;
-    protected boolean contentChanged = false;
+    protected volatile boolean contentChanged = false;
     protected boolean sendReceivedChunks = false;
 
+    /** bytes added or received in current era - not persisted */
+    private final AtomicLong eraContentSize = new AtomicLong();
+
+    protected final ASAPEngineMetrics metrics = new ASAPEngineMetrics();
+
+    /** offered and received chunks - used if peers negotiated FEATURE_OFFERS */
+    private final ASAPChunkInventory inventory = new ASAPChunkInventory();
+
     protected ASAPEngine(ASAPChunkStorage chunkStorage, CharSequence chunkContentFormat)
             throws ASAPException, IOException {
         
@@ -48,12 +78,67 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
         }
     }
 
-    private void saveStatus() throws IOException {
+    protected void saveStatus() throws IOException {
         if (this.memento != null) {
-            this.memento.save(this);
+            // parallel writes would corrupt memento file
+            synchronized(this.mementoLock) {
+                long start = System.nanoTime();
+                this.memento.save(this);
+                this.metrics.mementoSaved(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Re-read status if another engine object on same storage changed it - own changes are kept otherwise.
+     */
+    protected void refreshStatus() throws IOException {
+        if(this.memento == null) return;
+        synchronized(this.mementoLock) {
+            if(!this.memento.isChanged()) return;
+        }
+
+        // restoring changes era, exclusive access required
+        this.eraLock.writeLock().lock();
+        try {
+            synchronized(this.mementoLock) {
+                if(this.memento.isChanged()) this.memento.restore(this);
+            }
+        }
+        finally {
+            this.eraLock.writeLock().unlock();
         }
     }
 
+    /**
+     * @return lock of own channel - same object for same uri
+     */
+    protected Object getChannelLock(CharSequence uri) {
+        return this.getChannelLock(null, uri);
+    }
+
+    /**
+     * @param sender owner or null: own channel - incoming channel of that sender otherwise
+     * @return lock of that channel - same object for same sender and uri
+     */
+    protected Object getChannelLock(CharSequence sender, CharSequence uri) {
+        String keyString = sender == null || sender.toString().equals(this.owner)
+                ? uri.toString() : sender + "@" + uri;
+
+        Object lock = this.channelLocks.get(keyString);
+        if(lock == null) {
+            Object newLock = new Object();
+            lock = this.channelLocks.putIfAbsent(keyString, newLock);
+            if(lock == null) lock = newLock;
+        }
+
+        return lock;
+    }
+
+    public ASAPEngineMetrics getEngineMetrics() {
+        return this.metrics;
+    }
+
     @Override
     public ASAPChunkStorage getChunkStorage() {
         return this.chunkStorage;
@@ -77,12 +162,16 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
 
     @Override
     public void putExtra(CharSequence uri, String key, String value) throws IOException {
-        this.chunkStorage.getChunk(uri, this.era).putExtra(key, value);
+        synchronized(this.getChannelLock(uri)) {
+            this.chunkStorage.getChunk(uri, this.era).putExtra(key, value);
+        }
     }
 
     @Override
     public CharSequence removeExtra(CharSequence uri, String key) throws IOException {
-        return this.chunkStorage.getChunk(uri, this.era).removeExtra(key);
+        synchronized(this.getChannelLock(uri)) {
+            return this.chunkStorage.getChunk(uri, this.era).removeExtra(key);
+        }
     }
 
     @Override
@@ -102,11 +191,16 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
         this.setRecipients(uri, recipients);
         this.getASAPChannelImpl(uri).setOwner(owner);
 
+        // members agree on a group key
+        if(this.groupKeyService != null) {
+            this.groupKeyService.createGroup(this.format, uri, owner, recipients);
+        }
+
         // inform recipients about that event
         if(this.isASAPManagementStorageSet()) {
             this.getASAPManagementStorage().notifyChannelCreated(this.format, owner, uri, recipients);
         } else {
-            System.out.println(this.getLogStart()
+            if(Log.isDebugEnabled()) Log.debug(this.getLogStart()
                     + "asap management storage not set - no propagation of channel creation");
         }
     }
@@ -118,6 +212,14 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
         this.createChannel(urlTarget, recipients);
     }
 
+    private ASAPGroupKeyService groupKeyService = null;
+    /**
+     * @param groupKeyService members of closed channels created from now on agree on a group key
+     */
+    public void setGroupKeyService(ASAPGroupKeyService groupKeyService) {
+        this.groupKeyService = groupKeyService;
+    }
+
     private ASAPManagementStorage asapManagementStorage = null;
     public void setASAPManagementStorage(ASAPManagementStorage asapManagementStorage) {
         this.asapManagementStorage = asapManagementStorage;
@@ -143,11 +245,15 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
     }
 
     public void addRecipient(CharSequence urlTarget, CharSequence recipient) throws IOException {
-        this.chunkStorage.getChunk(urlTarget, this.era).addRecipient(recipient);
+        synchronized(this.getChannelLock(urlTarget)) {
+            this.chunkStorage.getChunk(urlTarget, this.era).addRecipient(recipient);
+        }
     }
 
     public void setRecipients(CharSequence urlTarget, Set<CharSequence> recipients) throws IOException {
-        this.chunkStorage.getChunk(urlTarget, this.era).setRecipients(recipients);
+        synchronized(this.getChannelLock(urlTarget)) {
+            this.chunkStorage.getChunk(urlTarget, this.era).setRecipients(recipients);
+        }
     }
 
     public Set<CharSequence> getRecipients(CharSequence urlTarget) throws IOException {
@@ -155,7 +261,9 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
     }
 
     public void removeRecipient(CharSequence urlTarget, CharSequence recipients) throws IOException {
-        this.chunkStorage.getChunk(urlTarget, this.era).removeRecipient(recipients);
+        synchronized(this.getChannelLock(urlTarget)) {
+            this.chunkStorage.getChunk(urlTarget, this.era).removeRecipient(recipients);
+        }
     }
 
     @Override
@@ -165,27 +273,57 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
 
     @Override
     public void add(CharSequence urlTarget, byte[] messageAsBytes) throws IOException {
-        ASAPChunk chunk = this.chunkStorage.getChunk(urlTarget, this.era);
+        ASAPChunk chunk;
+        int addEra;
+        long start = System.nanoTime();
 
-        chunk.addMessage(messageAsBytes);
+        // era must not change while adding
+        this.eraLock.readLock().lock();
+        try {
+            addEra = this.era;
+            synchronized(this.getChannelLock(urlTarget)) {
+                chunk = this.chunkStorage.getChunk(urlTarget, addEra);
+                chunk.addMessage(messageAsBytes);
+            }
+            this.eraContentSize.addAndGet(messageAsBytes.length);
 
-        // remember - something changed in that era
-        this.contentChanged();
+            // remember - something changed in that era
+            this.contentChanged();
+        }
+        finally {
+            this.eraLock.readLock().unlock();
+        }
+
+        this.metrics.messageAdded(System.nanoTime() - start);
 
         if(this.asapOnlineMessageSender != null) {
             try {
                 this.asapOnlineMessageSender.sendASAPAssimilate(
                         this.format, urlTarget, chunk.getRecipients(),
-                        messageAsBytes, this.era);
+                        messageAsBytes, addEra);
             } catch (IOException | ASAPException e) {
                 StringBuilder sb = Log.startLog(this);
                 sb.append("message written to local storage - but could not write to open asap connection: ");
                 sb.append(e.getLocalizedMessage());
-                System.err.println(sb.toString());
+                Log.error(sb.toString());
             }
         }
     }
 
+    /**
+     * @return true if anything was added or received in current era - a new era would be started
+     */
+    public boolean isContentChanged() {
+        return this.contentChanged;
+    }
+
+    /**
+     * @return bytes added or received in current era since engine object was created
+     */
+    public long getContentSizeInEra() {
+        return this.eraContentSize.get();
+    }
+
     private void contentChanged() throws IOException {
         this.contentChanged = true;
         this.saveStatus();
@@ -257,7 +395,8 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
     //                       ProtocolEngine                             //
     //////////////////////////////////////////////////////////////////////
     
-    List<String> activePeers = new ArrayList<>();
+    /** peers we are currently in a session with */
+    private final Set<String> activePeers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     
     private String getLogStart() {
         StringBuilder b = new StringBuilder();
@@ -288,43 +427,190 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
                 throw new ASAPException("protocol error: expected asap interest - got something else");
             }
 
-            this.handleASAPInterest((ASAP_Interest_PDU_1_0) asapPDU, protocol, os);
+            try {
+                this.handleASAPInterest((ASAP_Interest_PDU_1_0) asapPDU, protocol, os);
+            }
+            finally {
+                this.peerDisconnected(asapPDU.getPeer());
+            }
         }
         catch(Exception ioe) {
-            //<<<<<<<<<<<<<<<<<<debug
-            StringBuilder b = new StringBuilder();
-            b.append(this.getLogStart());
-            b.append("IOEXception: ");
-            b.append(ioe.getLocalizedMessage());
-            System.out.println(b.toString());
-            //>>>>>>>>>>>>>>>>>>>debug
+            if(Log.isDebugEnabled()) {
+                StringBuilder b = new StringBuilder();
+                b.append(this.getLogStart());
+                b.append("IOEXception: ");
+                b.append(ioe.getLocalizedMessage());
+                Log.debug(b.toString());
+            }
         }
     }
 
     public void handleASAPOffer(ASAP_OfferPDU_1_0 asapOffer, ASAP_1_0 protocol, OutputStream os)
             throws ASAPException, IOException {
 
+        if(asapOffer.inventorySet()) {
+            this.handleChunkOffer(asapOffer, protocol, os);
+            return;
+        }
+
         /*
         if(this.isASAPManagementMessage(asapOffer)) {
-            //<<<<<<<<<<<<<<<<<<debug
-            StringBuilder b = new StringBuilder();
-            b.append(this.getLogStart());
-            b.append("got asap management assimilate - not handled in this implementation.");
-            System.out.println(b.toString());
-            //>>>>>>>>>>>>>>>>>>>debug
+            if(Log.isDebugEnabled()) {
+                StringBuilder b = new StringBuilder();
+                b.append(this.getLogStart());
+                b.append("got asap management assimilate - not handled in this implementation.");
+                Log.debug(b.toString());
+            }
             return;
         } else {
          */
-            //<<<<<<<<<<<<<<<<<<debug
-            StringBuilder b = new StringBuilder();
-            b.append(this.getLogStart());
-            b.append("ASAP Offer is not processed in this implementation");
-            System.out.println(b.toString());
-            //>>>>>>>>>>>>>>>>>>>debug
+            if(Log.isDebugEnabled()) {
+                StringBuilder b = new StringBuilder();
+                b.append(this.getLogStart());
+                b.append("ASAP Offer is not processed in this implementation");
+                Log.debug(b.toString());
+            }
             return;
 //        }
     }
 
+    /**
+     * A chunk is offered - ask for it if we want it.
+     */
+    private void handleChunkOffer(ASAP_OfferPDU_1_0 asapOffer, ASAP_1_0 protocol, OutputStream os)
+            throws ASAPException, IOException {
+
+        String peer = asapOffer.getPeer();
+        String sender = asapOffer.getSourcePeer() != null ? asapOffer.getSourcePeer() : peer;
+        String uri = asapOffer.getChannelUri();
+        int era = asapOffer.getEra();
+
+        if(peer == null || sender == null || uri == null || !asapOffer.eraSet()) {
+            throw new ASAPException("offer must name peer, channel and era");
+        }
+
+        String reason = this.getRejectionReason(sender, uri, era, asapOffer.getLength(), asapOffer.getDigest());
+        if(reason != null) {
+            if(Log.isDebugEnabled()) {
+                StringBuilder b = new StringBuilder();
+                b.append(this.getLogStart());
+                b.append("offered chunk not wanted (");
+                b.append(reason);
+                b.append("): ");
+                b.append(sender);
+                b.append(" | ");
+                b.append(uri);
+                b.append(" | era: ");
+                b.append(era);
+                Log.debug(b.toString());
+            }
+            return;
+        }
+
+        if(Log.isDebugEnabled()) {
+            StringBuilder b = new StringBuilder();
+            b.append(this.getLogStart());
+            b.append("ask for offered chunk: ");
+            b.append(sender);
+            b.append(" | ");
+            b.append(uri);
+            b.append(" | era: ");
+            b.append(era);
+            b.append(" | len: ");
+            b.append(asapOffer.getLength());
+            Log.debug(b.toString());
+        }
+
+        this.inventory.requested(peer, sender, uri, era);
+        protocol.interest(this.owner, sender, asapOffer.getFormat(), uri, era, era, os, false);
+    }
+
+    /**
+     * @return why we do not want that chunk - null if we want it
+     */
+    private String getRejectionReason(String sender, String uri, int era, long length, byte[] digest)
+            throws IOException {
+
+        if(sender.equals(this.owner)) return "own chunk";
+
+        long maxLength = this.inventory.getMaxChunkLength();
+        if(maxLength != ASAPChunkInventory.UNLIMITED && length > maxLength) return "too large";
+
+        ASAPChunkStorage incomingSenderStorage = this.getIncomingChunkStorage(sender);
+        if(incomingSenderStorage.existsChunk(uri, era)
+                && incomingSenderStorage.getChunk(uri, era).getLength() >= length) return "already stored";
+
+        if(this.inventory.isReceived(sender, uri, era, digest)) return "already received";
+
+        return null;
+    }
+
+    /**
+     * Offered chunks larger than that are not requested. Not persisted.
+     * @param maxLength max length in bytes - -1 means no limit
+     */
+    public void setMaxIncomingChunkLength(long maxLength) {
+        this.inventory.setMaxChunkLength(maxLength < 0 ? ASAPChunkInventory.UNLIMITED : maxLength);
+    }
+
+    public long getMaxIncomingChunkLength() {
+        return this.inventory.getMaxChunkLength();
+    }
+
+    /**
+     * Read whole payload - in memory or into a temporary file that is removed when stream is closed.
+     * Signature and signer are checked afterwards.
+     *
+     * @return staged payload
+     * @throws ASAPException invalid signature or chunk not signed by its sender
+     */
+    private InputStream stageSignedPayload(ASAP_AssimilationPDU_1_0 asapAssimiliationPDU, InputStream is)
+            throws ASAPException, IOException {
+
+        long length = asapAssimiliationPDU.getLength();
+        if(length <= MAX_IN_MEMORY_STAGING_LENGTH) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream((int) length);
+            Helper.copy(is, baos, length);
+            this.checkSignature(asapAssimiliationPDU);
+
+            return new ByteArrayInputStream(baos.toByteArray());
+        }
+
+        final File stagingFile = File.createTempFile("asapStaging", null);
+        try {
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(stagingFile))) {
+                Helper.copy(is, os, length);
+            }
+            this.checkSignature(asapAssimiliationPDU);
+
+            return new BufferedInputStream(new FileInputStream(stagingFile) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    stagingFile.delete();
+                }
+            });
+        } catch (ASAPException | IOException e) {
+            stagingFile.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Signature is digested while payload is read - payload must be read completely before.
+     * Chunks are signed by their origin - relays forward that signature, see {@link #relayChunk}.
+     */
+    private void checkSignature(ASAP_AssimilationPDU_1_0 asapAssimiliationPDU) throws ASAPException, IOException {
+        if(!asapAssimiliationPDU.verify()) {
+            throw new ASAPException("invalid signature of chunk signed by " + asapAssimiliationPDU.getSigner());
+        }
+
+        if(!asapAssimiliationPDU.getSigner().equals(asapAssimiliationPDU.getPeer())) {
+            throw new ASAPException("chunk of " + asapAssimiliationPDU.getPeer() + " signed by "
+                    + asapAssimiliationPDU.getSigner());
+        }
+    }
+
     public void handleASAPAssimilate(ASAP_AssimilationPDU_1_0 asapAssimiliationPDU, ASAP_1_0 protocol,
                               InputStream is, OutputStream os, ASAPChunkReceivedListener listener)
             throws ASAPException, IOException {
@@ -332,25 +618,25 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
         String sender = asapAssimiliationPDU.getPeer();
         int eraSender = asapAssimiliationPDU.getEra();
 
-        //<<<<<<<<<<<<<<<<<<debug
-        StringBuilder b = new StringBuilder();
-        b.append(this.getLogStart());
-        b.append("going to assimilate pdu sender: ");
-        b.append(sender);
-        b.append(" | era: ");
-        b.append(eraSender);
-        System.out.println(b.toString());
-        //>>>>>>>>>>>>>>>>>>>debug
+        if(Log.isDebugEnabled()) {
+            StringBuilder b = new StringBuilder();
+            b.append(this.getLogStart());
+            b.append("going to assimilate pdu sender: ");
+            b.append(sender);
+            b.append(" | era: ");
+            b.append(eraSender);
+            Log.debug(b.toString());
+        }
 
         // get received storage
         ASAPChunkStorage incomingSenderStorage = this.getIncomingChunkStorage(sender);
-        //<<<<<<<<<<<<<<<<<<debug
-        b = new StringBuilder();
-        b.append(this.getLogStart());
-        b.append("got incoming chunk storage for sender: ");
-        b.append(sender);
-        System.out.println(b.toString());
-        //>>>>>>>>>>>>>>>>>>>debug
+        if(Log.isDebugEnabled()) {
+            StringBuilder b = new StringBuilder();
+            b.append(this.getLogStart());
+            b.append("got incoming chunk storage for sender: ");
+            b.append(sender);
+            Log.debug(b.toString());
+        }
 
         boolean changed = false;
 
@@ -362,13 +648,13 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
             ASAPChunk localChunk = null;
 
             if(!incomingSenderStorage.existsChunk(uri, eraSender)) {
-                //<<<<<<<<<<<<<<<<<<debug
-                b = new StringBuilder();
-                b.append(this.getLogStart());
-                b.append("no incoming chunk yet | ");
-                b.append(asapAssimiliationPDU.toString());
-                System.out.println(b.toString());
-                //>>>>>>>>>>>>>>>>>>>debug
+                if(Log.isDebugEnabled()) {
+                    StringBuilder b = new StringBuilder();
+                    b.append(this.getLogStart());
+                    b.append("no incoming chunk yet | ");
+                    b.append(asapAssimiliationPDU.toString());
+                    Log.debug(b.toString());
+                }
 
                 // is there a local chunk - to clone recipients from?
                 if(this.channelExists(uri)) {
@@ -376,80 +662,116 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
                 }
             }
 
-            ASAPChunk incomingChunk = incomingSenderStorage.getChunk(uri, eraSender);
-            if(localChunk != null) {
-                System.out.println(this.getLogStart() + "copy local meta data into newly created incoming chunk");
-                incomingChunk.copyMetaData(this.getChannel(uri));
-            }
-
-            List<Integer> messageOffsets = asapAssimiliationPDU.getMessageOffsets();
+            long[] messageOffsets = asapAssimiliationPDU.getMessageOffsetArray();
 
             // iterate messages and stream into chunk
             InputStream protocolInputStream = asapAssimiliationPDU.getInputStream();
-            long offset = 0;
-            for(long nextOffset : messageOffsets) {
-                //<<<<<<<<<<<<<<<<<<debug
-                b = new StringBuilder();
-                b.append(this.getLogStart());
-                b.append("going to read message: [");
-                b.append(offset);
-                b.append(", ");
-                b.append(nextOffset);
-                b.append(")");
-                System.out.println(b.toString());
-                //>>>>>>>>>>>>>>>>>>>debug
-                incomingChunk.addMessage(protocolInputStream, nextOffset - offset);
-                if(!changed) { changed = true; this.contentChanged();}
-                offset = nextOffset;
-            }
-
-            // last round
-            //<<<<<<<<<<<<<<<<<<debug
-            b = new StringBuilder();
-            b.append(this.getLogStart());
-            b.append("going to read last message: from offset ");
-            b.append(offset);
-            b.append(" to end of file - total length: ");
-            b.append(asapAssimiliationPDU.getLength());
-            System.out.println(b.toString());
-            //>>>>>>>>>>>>>>>>>>>debug
 
-            incomingChunk.addMessage(protocolInputStream, asapAssimiliationPDU.getLength() - offset);
-            if(!changed) { changed = true; this.contentChanged();}
+            // remember content - same chunk is not requested again when offered by another peer
+            MessageDigest messageDigest = null;
+            if(protocol != null && protocol.isFeatureNegotiated(ASAP_1_0.FEATURE_OFFERS)) {
+                messageDigest = ASAPChunkInventory.createMessageDigest();
+                protocolInputStream = new DigestInputStream(protocolInputStream, messageDigest);
+            }
+
+            // signed chunks are staged - nothing is stored before signature and signer are checked
+            InputStream stagedInputStream = null;
+            if(asapAssimiliationPDU.isSigned()) {
+                stagedInputStream = this.stageSignedPayload(asapAssimiliationPDU, protocolInputStream);
+                protocolInputStream = stagedInputStream;
+            }
+
+            // nobody else must write into that incoming chunk meanwhile
+            synchronized(this.getChannelLock(sender, uri)) {
+                ASAPChunk incomingChunk = incomingSenderStorage.getChunk(uri, eraSender);
+                if(localChunk != null) {
+                    if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "copy local meta data into newly created incoming chunk");
+                    incomingChunk.copyMetaData(this.getChannel(uri));
+                }
+
+                long chunkOffset = incomingChunk.getLength();
+                try {
+                    long offset = 0;
+                    for(long nextOffset : messageOffsets) {
+                        if(Log.isDebugEnabled()) {
+                            StringBuilder b = new StringBuilder();
+                            b.append(this.getLogStart());
+                            b.append("going to read message: [");
+                            b.append(offset);
+                            b.append(", ");
+                            b.append(nextOffset);
+                            b.append(")");
+                            Log.debug(b.toString());
+                        }
+                        incomingChunk.addMessage(protocolInputStream, nextOffset - offset);
+                        if(!changed) { changed = true; this.contentChanged();}
+                        offset = nextOffset;
+                    }
+
+                    // last round
+                    if(Log.isDebugEnabled()) {
+                        StringBuilder b = new StringBuilder();
+                        b.append(this.getLogStart());
+                        b.append("going to read last message: from offset ");
+                        b.append(offset);
+                        b.append(" to end of file - total length: ");
+                        b.append(asapAssimiliationPDU.getLength());
+                        Log.debug(b.toString());
+                    }
+
+                    incomingChunk.addMessage(protocolInputStream, asapAssimiliationPDU.getLength() - offset);
+                    if(!changed) { changed = true; this.contentChanged();}
+                } finally {
+                    if(stagedInputStream != null) stagedInputStream.close();
+                }
+
+                // relays forward signature of origin with that part of the chunk
+                if(asapAssimiliationPDU.isSigned()) {
+                    incomingChunk.addSignature(new ASAPChunkSignature(chunkOffset, asapAssimiliationPDU.getLength(),
+                            asapAssimiliationPDU.getSigner(), asapAssimiliationPDU.getSignature()));
+                }
+
+                this.inventory.received(sender, uri, eraSender,
+                        messageDigest != null ? messageDigest.digest() : null);
+                this.metrics.chunkReceived(asapAssimiliationPDU.getLength());
+                this.eraContentSize.addAndGet(asapAssimiliationPDU.getLength());
+            }
 
             // read all messages
             if(listener != null) {
-                //<<<<<<<<<<<<<<<<<<debug
-                b = new StringBuilder();
-                b.append(this.getLogStart());
-                b.append("call ");
-                b.append(listener.getClass().getSimpleName());
-                b.append(".chunkReceived(sender: ");
-                b.append(sender);
-                b.append(", uri: ");
-                b.append(uri);
-                b.append(", eraSender: ");
-                b.append(eraSender);
-                b.append(")");
-                System.out.println(b.toString());
-                //>>>>>>>>>>>>>>>>>>>debug
+                if(Log.isDebugEnabled()) {
+                    StringBuilder b = new StringBuilder();
+                    b.append(this.getLogStart());
+                    b.append("call ");
+                    b.append(listener.getClass().getSimpleName());
+                    b.append(".chunkReceived(sender: ");
+                    b.append(sender);
+                    b.append(", uri: ");
+                    b.append(uri);
+                    b.append(", eraSender: ");
+                    b.append(eraSender);
+                    b.append(")");
+                    Log.debug(b.toString());
+                }
 
                 listener.chunkReceived(sender, uri, eraSender);
             } else {
-                //<<<<<<<<<<<<<<<<<<debug
-                b = new StringBuilder();
-                b.append(this.getLogStart());
-                b.append("listener is null - no callback");
-                System.out.println(b.toString());
-                //>>>>>>>>>>>>>>>>>>>debug
+                if(Log.isDebugEnabled()) {
+                    StringBuilder b = new StringBuilder();
+                    b.append(this.getLogStart());
+                    b.append("listener is null - no callback");
+                    Log.debug(b.toString());
+                }
             }
         }
         catch (IOException | ASAPException e) {
-            b = new StringBuilder();
-            b.append(this.getLogStart());
-            b.append("Exception (give up, keep streams untouched): ");
-            b.append(e.getLocalizedMessage());
-            System.out.println(b.toString());
+            if(Log.isDebugEnabled()) {
+                StringBuilder b = new StringBuilder();
+                b.append(this.getLogStart());
+                b.append("Exception (give up, keep streams untouched): ");
+                b.append(e.getLocalizedMessage());
+                Log.debug(b);
+            }
             throw e;
         }
     }
@@ -457,87 +779,134 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
     public void handleASAPInterest(ASAP_Interest_PDU_1_0 asapInterest, ASAP_1_0 protocol, OutputStream os)
             throws ASAPException, IOException {
 
+        this.handleASAPInterest(asapInterest, protocol, os, null);
+    }
+
+    public void handleASAPInterest(ASAP_Interest_PDU_1_0 asapInterest, ASAP_1_0 protocol, OutputStream os,
+                                   ASAPEncounterBudget budget) throws ASAPException, IOException {
+
+        // a single chunk is asked for - answer to an offer
+        if(asapInterest.channelSet() && protocol.isFeatureNegotiated(ASAP_1_0.FEATURE_OFFERS)) {
+            this.handleChunkRequest(asapInterest, protocol, os, budget);
+            return;
+        }
+
         // get remote peer
         String peer = asapInterest.getPeer();
 
-        //<<<<<<<<<<<<<<<<<<debug
-        StringBuilder b = new StringBuilder();
-        b.append(this.getLogStart());
-        b.append("handle interest pdu received from ");
-        b.append(peer);
-        System.out.println(b.toString());
-        //>>>>>>>>>>>>>>>>>>>debug
+        if(Log.isDebugEnabled()) {
+            StringBuilder b = new StringBuilder();
+            b.append(this.getLogStart());
+            b.append("handle interest pdu received from ");
+            b.append(peer);
+            Log.debug(b.toString());
+        }
 
         // check conflict
         if(!this.permission2ProceedConversation(peer)) {
-            b = new StringBuilder();
+            StringBuilder b = new StringBuilder();
             b.append(this.getLogStart());
             b.append("no permission to communicate with remote peer: ");
             b.append(peer);
-            System.err.println(b.toString());
+            Log.error(b.toString());
             throw new ASAPException("no permission to communicate with remote peer: " + peer);
         } else {
-            System.out.println(this.getLogStart() + "permission ok, process interest");
+            if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "permission ok, process interest");
         }
 
+        boolean offers = protocol.isFeatureNegotiated(ASAP_1_0.FEATURE_OFFERS);
+        if(offers) this.repeatOpenRequests(peer, protocol, os);
+
+        // era can be changed by other threads meanwhile - work with a snapshot
+        int currentEra = this.era;
+
         // era we are about to transmit
-        int workingEra = this.getEraStartSync(peer);
-        System.out.println(this.getLogStart() + "last_seen: " + workingEra + " | era: " + this.era);
+        int workingEra = this.getEraStartSync(peer, currentEra);
+        if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "last_seen: " + workingEra + " | era: " + currentEra);
 
-        if(workingEra == this.era) {
+        if(workingEra == currentEra) {
             // nothing todo
-            b = new StringBuilder();
-            b.append(this.getLogStart());
-            b.append("there are no information before that era; ");
-            b.append("we only deliver information from previous eras - nothing todo here.");
-            System.out.println(b.toString());
+            if(Log.isDebugEnabled()) {
+                StringBuilder b = new StringBuilder();
+                b.append(this.getLogStart());
+                b.append("there are no information before that era; ");
+                b.append("we only deliver information from previous eras - nothing todo here.");
+                Log.debug(b);
+            }
             return;
         }
 
         // we iterate up to era just before current one - current one is active sync.
-        int lastEra = this.getPreviousEra(this.era);
-
-        //<<<<<<<<<<<<<<<<<<debug
-        b = new StringBuilder();
-        b.append(this.getLogStart());
-        b.append("workingEra: ");
-        b.append(workingEra);
-        b.append(" | lastEra: ");
-        b.append(lastEra);
-        b.append(" | this.era: ");
-        b.append(this.era);
-        System.out.println(b.toString());
-        //>>>>>>>>>>>>>>>>>>>debug
+        int lastEra = this.getPreviousEra(currentEra);
+
+        if(Log.isDebugEnabled()) {
+            StringBuilder b = new StringBuilder();
+            b.append(this.getLogStart());
+            b.append("workingEra: ");
+            b.append(workingEra);
+            b.append(" | lastEra: ");
+            b.append(lastEra);
+            b.append(" | this.era: ");
+            b.append(currentEra);
+            Log.debug(b.toString());
+        }
 
         // make a breakpoint here
-        if(this.memento != null) this.memento.save(this);
-        //<<<<<<<<<<<<<<<<<<debug
-        b = new StringBuilder();
-        b.append(this.getLogStart());
-        b.append("memento saved");
-        System.out.println(b.toString());
-        //>>>>>>>>>>>>>>>>>>>debug
-
-        this.sendChunks(this.owner, peer, this.getChunkStorage(), protocol, workingEra, lastEra, os);
-
-        //<<<<<<<<<<<<<<<<<<debug
-        b = new StringBuilder();
-        b.append(this.getLogStart());
-        b.append("ended iterating local chunks");
-        System.out.println(b.toString());
-        //>>>>>>>>>>>>>>>>>>>debug
+        this.saveStatus();
+        if(Log.isDebugEnabled()) {
+            StringBuilder b = new StringBuilder();
+            b.append(this.getLogStart());
+            b.append("memento saved");
+            Log.debug(b.toString());
+        }
+
+        // other side can be interested in some channels only
+        ASAPChannelTrie subscriptions = null;
+        List<String> channelPatterns = asapInterest.getChannelPatterns();
+        if(channelPatterns != null && !channelPatterns.isEmpty()) {
+            subscriptions = new ASAPChannelTrie(channelPatterns);
+            if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "remote peer subscribed to: " + channelPatterns);
+        }
+
+        // collect anything to be sent - local chunks first
+        ASAPChunkScheduler scheduler = new ASAPChunkScheduler(this.chunkSchedulingPolicy);
+        this.collectChunks(this.owner, peer, this.getChunkStorage(), workingEra, lastEra, scheduler, subscriptions);
 
         if(this.isSendReceivedChunks()) {
-            System.out.println(this.getLogStart() + "send also received chunks - if any");
+            if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "send also received chunks - if any");
 
             for(CharSequence sender : this.getSender()) {
-                System.out.println(this.getLogStart() + "send chunks received from: " + sender);
+                if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "collect chunks received from: " + sender);
                 ASAPChunkStorage incomingChunkStorage = this.getIncomingChunkStorage(sender);
 
-                this.sendChunks(sender, peer, incomingChunkStorage, protocol, workingEra, lastEra, os);
+                this.collectChunks(sender, peer, incomingChunkStorage, workingEra, lastEra, scheduler,
+                        subscriptions);
             }
         } else {
-            System.out.println(this.getLogStart() + "engine does not send received chunks");
+            if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "engine does not send received chunks");
+        }
+
+        // offered chunks are sent when asked for
+        ASAPChunkScheduler.ScheduledChunk firstDeferred = offers ?
+                this.offerChunks(peer, scheduler, protocol, os, budget, workingEra)
+                : this.sendChunks(peer, scheduler, protocol, os, budget, workingEra);
+
+        // remember that we are in sync until that era - or until first era with a deferred chunk
+        if(firstDeferred == null) {
+            this.setLastSeen(peer, currentEra);
+        } else {
+            if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "chunks deferred - next sync starts at era " + firstDeferred.era);
+            this.setLastSeen(peer, firstDeferred.era);
+        }
+
+        // make a breakpoint here
+        this.saveStatus();
+
+        if(Log.isDebugEnabled()) {
+            StringBuilder b = new StringBuilder();
+            b.append(this.getLogStart());
+            b.append("ended sending chunks");
+            Log.debug(b.toString());
         }
     }
 
@@ -550,9 +919,59 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
         this.saveStatus();
     }
 
-    private void sendChunks(CharSequence sender, String remotePeer, ASAPChunkStorage chunkStorage,
-                            ASAP_1_0 protocol, int workingEra,
-                            int lastEra, OutputStream os) throws IOException, ASAPException {
+    private ASAPChunkScheduler.Policy chunkSchedulingPolicy = ASAPChunkScheduler.DEFAULT_POLICY;
+
+    /**
+     * Chunks are sent by priority class (channel extra ASAPChunkScheduler.PRIORITY_EXTRA_KEY). That policy
+     * decides on order within a priority class.
+     * @param policy smallest first or deadline first
+     */
+    public void setChunkSchedulingPolicy(ASAPChunkScheduler.Policy policy) {
+        this.chunkSchedulingPolicy = policy != null ? policy : ASAPChunkScheduler.DEFAULT_POLICY;
+    }
+
+    public ASAPChunkScheduler.Policy getChunkSchedulingPolicy() {
+        return this.chunkSchedulingPolicy;
+    }
+
+    /** channels we want to get from other peers - sent with interests. Empty: any channel */
+    private Set<String> channelSubscriptions = new CopyOnWriteArraySet<>();
+
+    /**
+     * Subscribe to channels - other peers send chunks of subscribed channels only. Channels which are not
+     * subscribed are skipped for good: other side remembers eras as synchronized.
+     *
+     * @param pattern channel uri - or uri prefix ending with *, e.g. sn2://region/north/*
+     */
+    public void addChannelSubscription(CharSequence pattern) throws ASAPException {
+        if(pattern == null || pattern.length() < 1) throw new ASAPException("channel pattern must not be empty");
+        this.channelSubscriptions.add(pattern.toString());
+    }
+
+    public void removeChannelSubscription(CharSequence pattern) {
+        this.channelSubscriptions.remove(pattern.toString());
+    }
+
+    /**
+     * @return subscribed channel patterns - empty if engine is interested in any channel
+     */
+    public Set<String> getChannelSubscriptions() {
+        return Collections.unmodifiableSet(this.channelSubscriptions);
+    }
+
+    /**
+     * Subscriptions survive an engine being unloaded - they are kept by whom loads it.
+     */
+    void setChannelSubscriptions(Set<String> channelSubscriptions) {
+        this.channelSubscriptions = channelSubscriptions;
+    }
+
+    /**
+     * @param subscriptions channels remote peer subscribed to - null: any channel
+     */
+    private void collectChunks(CharSequence sender, String remotePeer, ASAPChunkStorage chunkStorage,
+                               int workingEra, int lastEra, ASAPChunkScheduler scheduler,
+                               ASAPChannelTrie subscriptions) throws IOException {
         /*
         There is a little challenge: era uses a circle of numbers
         We cannot say: higher number, later era. That rule does *not*
@@ -566,99 +985,59 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
 
         boolean lastRound = false; // assume more than one round
         do {
-            boolean goAhead = true; // to avoid deep if-if-if-if structures
             lastRound = workingEra == lastEra;
 
             List<ASAPChunk> chunks = chunkStorage.getChunks(workingEra);
-            //<<<<<<<<<<<<<<<<<<debug
-            StringBuilder b = new StringBuilder();
-            b.append(this.getLogStart());
-            b.append("start iterating chunks with working Era: ");
-            b.append(workingEra);
-            System.out.println(b.toString());
-            //>>>>>>>>>>>>>>>>>>>debug
+            if(Log.isDebugEnabled()) {
+                StringBuilder b = new StringBuilder();
+                b.append(this.getLogStart());
+                b.append("start collecting chunks with working Era: ");
+                b.append(workingEra);
+                Log.debug(b.toString());
+            }
 
             for(ASAPChunk chunk : chunks) {
-                //<<<<<<<<<<<<<<<<<<debug
-                b = new StringBuilder();
-                b.append(this.getLogStart());
-                b.append("chunkUrl: ");
-                b.append(chunk.getUri());
-                b.append(" | isPublic: ");
-                b.append(this.isPublic(chunk));
-                b.append(" | len: ");
-                b.append(chunk.getLength());
-                System.out.println(b.toString());
-                //>>>>>>>>>>>>>>>>>>>debug
+                if(Log.isDebugEnabled()) {
+                    StringBuilder b = new StringBuilder();
+                    b.append(this.getLogStart());
+                    b.append("chunkUrl: ");
+                    b.append(chunk.getUri());
+                    b.append(" | isPublic: ");
+                    b.append(this.isPublic(chunk));
+                    b.append(" | len: ");
+                    b.append(chunk.getLength());
+                    Log.debug(b.toString());
+                }
 
                 if(chunk.getLength() < 1) {
-                    goAhead = false;
+                    if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "nothing to send: empty chunk");
+                    continue;
+                }
+
+                if(subscriptions != null && !subscriptions.matches(chunk.getUri())) {
+                    if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "nothing to send: not subscribed");
+                    continue;
+                }
+
+                // already sent in a previous - maybe interrupted - encounter, and not grown since
+                List<CharSequence> deliveredTo = chunk.getDeliveredTo();
+                if(deliveredTo != null && deliveredTo.contains(remotePeer)) {
+                    if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "nothing to send: already delivered");
+                    continue;
                 }
 
                 // is not a public chunk
-                if (goAhead && !this.isPublic(chunk)) {
+                if (!this.isPublic(chunk)) {
                     Set<CharSequence> recipients = chunk.getRecipients();
                     if (recipients == null || !recipients.contains(remotePeer)) {
-                        goAhead = false;
+                        if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "nothing to send: not on recipient list");
+                        continue;
                     }
                 }
 
-                if (goAhead) {
-                    //<<<<<<<<<<<<<<<<<<debug
-                    b = new StringBuilder();
-                    b.append(this.getLogStart());
-                    b.append("send chunk");
-                    System.out.println(b.toString());
-                    //>>>>>>>>>>>>>>>>>>>debug
-
-                    protocol.assimilate(sender, // remotePeer
-                            remotePeer, // remotePeer
-                            this.format,
-                            chunk.getUri(), // channel ok
-                            workingEra, // era ok
-                            chunk.getLength(), // data length
-                            chunk.getOffsetList(),
-                            chunk.getMessageInputStream(),
-                            os,
-                            false);
-
-                    // remember sent
-                    chunk.deliveredTo(remotePeer);
-                    //<<<<<<<<<<<<<<<<<<debug
-                    b = new StringBuilder();
-                    b.append(this.getLogStart());
-                    b.append("remembered delivered to ");
-                    b.append(remotePeer);
-                    System.out.println(b.toString());
-                    //>>>>>>>>>>>>>>>>>>>debug
-                    // sent to all recipients
-                    if (chunk.getRecipients().size() == chunk.getDeliveredTo().size()) {
-                        b = Log.startLog(this);
-                        b.append("#recipients == #deliveredTo chunk delivered to any potential remotePeer - could drop it");
-                        System.out.println(b.toString());
-                        if (this.isDropDeliveredChunks()) {
-                            chunk.drop();
-                            //<<<<<<<<<<<<<<<<<<debug
-                            b = Log.startLog(this);
-                            b.append("chunk dropped");
-                            System.out.println(b.toString());
-                        } else {
-                            b = Log.startLog(this);
-                            b.append("drop flag set false - engine does not remove delivered chunks");
-                            System.out.println(b.toString());
-                        }
-                    }
-                } else {
-                    System.out.println(this.getLogStart() + "nothing sent: empty or not on recipient list");
-                }
+                scheduler.add(sender, workingEra, chunk);
             }
 
-            // remember that we are in sync until that era
-            this.setLastSeen(remotePeer, workingEra);
-
-            // make a breakpoint here
-            if(this.memento != null) this.memento.save(this);
-
             // next era which isn't necessarilly workingEra++
             workingEra = this.getNextEra(workingEra);
 
@@ -666,6 +1045,427 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
         } while(!lastRound);
     }
 
+    /** assumed size of pdu header and offset list entries - used when planning transmissions */
+    static final int ASSUMED_PDU_HEADER_SIZE = 256;
+    static final int ASSUMED_OFFSET_SIZE = 8;
+
+    /**
+     * @return bytes presumably written to send that chunk
+     */
+    private static long getPlannedBytes(ASAPChunkScheduler.ScheduledChunk scheduledChunk) throws IOException {
+        return scheduledChunk.length + ASSUMED_PDU_HEADER_SIZE
+                + (long) scheduledChunk.chunk.getOffsetList().size() * ASSUMED_OFFSET_SIZE;
+    }
+
+    /**
+     * @param usedBytes bytes planned for other chunks but not yet written
+     * @return true if that chunk presumably cannot be sent completely within the budget
+     */
+    private boolean exceedsBudget(ASAPChunkScheduler.ScheduledChunk scheduledChunk, ASAPEncounterBudget budget,
+                                  long usedBytes) throws IOException {
+        if(budget == null) return false;
+
+        long remainingBytes = budget.getRemainingBytes();
+        if(remainingBytes == ASAPEncounterBudget.UNLIMITED) return false;
+
+        long plannedBytes = ASAPEngine.getPlannedBytes(scheduledChunk);
+        if(plannedBytes + usedBytes <= remainingBytes) return false;
+
+        if(Log.isDebugEnabled()) {
+            StringBuilder b = new StringBuilder();
+            b.append(this.getLogStart());
+            b.append("defer chunk - would not be completed in time: ");
+            b.append(scheduledChunk.chunk.getUri());
+            b.append(" | planned bytes: ");
+            b.append(plannedBytes);
+            b.append(" | remaining bytes: ");
+            b.append(remainingBytes - usedBytes);
+            Log.debug(b.toString());
+        }
+
+        return true;
+    }
+
+    /**
+     * @return deferred chunk of oldest era - seen from working era, era numbers can wrap
+     */
+    private static ASAPChunkScheduler.ScheduledChunk getOldestChunk(List<ASAPChunkScheduler.ScheduledChunk> chunks,
+                                                                    int workingEra) {
+        ASAPChunkScheduler.ScheduledChunk oldest = null;
+        for(ASAPChunkScheduler.ScheduledChunk scheduledChunk : chunks) {
+            if(oldest == null || ASAPEngine.eraDistance(workingEra, scheduledChunk.era)
+                    < ASAPEngine.eraDistance(workingEra, oldest.era)) {
+                oldest = scheduledChunk;
+            }
+        }
+
+        return oldest;
+    }
+
+    /**
+     * Send scheduled chunks. Chunks which presumably cannot be sent completely within the
+     * budget are deferred to next encounter - smaller chunks later in the schedule are still tried.
+     * First deferred chunk in schedule is sent anyway after the others. Estimates can be wrong - and
+     * a chunk larger than any budget would never be sent otherwise.
+     *
+     * @param workingEra first era of this synchronization
+     * @return deferred chunk of oldest era - null if anything was sent
+     */
+    private ASAPChunkScheduler.ScheduledChunk sendChunks(String remotePeer, ASAPChunkScheduler scheduler,
+                            ASAP_1_0 protocol, OutputStream os, ASAPEncounterBudget budget, int workingEra)
+            throws IOException, ASAPException {
+
+        List<ASAPChunkScheduler.ScheduledChunk> deferred = new ArrayList<>();
+        ASAPTrace trace = ASAPTracing.chunkSend();
+        long sentBytes = 0;
+
+        for(ASAPChunkScheduler.ScheduledChunk scheduledChunk : scheduler.getSchedule()) {
+            if(this.exceedsBudget(scheduledChunk, budget, 0)) {
+                deferred.add(scheduledChunk);
+                continue;
+            }
+
+            this.sendScheduledChunk(remotePeer, scheduledChunk, protocol, os);
+            sentBytes += scheduledChunk.length;
+        }
+
+        if(!deferred.isEmpty()) {
+            ASAPChunkScheduler.ScheduledChunk scheduledChunk = deferred.remove(0);
+            if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "send a deferred chunk anyway");
+            this.sendScheduledChunk(remotePeer, scheduledChunk, protocol, os);
+            sentBytes += scheduledChunk.length;
+        }
+
+        trace.end(remotePeer, this.format, null, -1, sentBytes);
+
+        return ASAPEngine.getOldestChunk(deferred, workingEra);
+    }
+
+    private void sendScheduledChunk(String remotePeer, ASAPChunkScheduler.ScheduledChunk scheduledChunk,
+                                    ASAP_1_0 protocol, OutputStream os) throws IOException, ASAPException {
+
+        ASAPChunk chunk = scheduledChunk.chunk;
+        if(Log.isDebugEnabled()) {
+            StringBuilder b = new StringBuilder();
+            b.append(this.getLogStart());
+            b.append("send chunk: ");
+            b.append(chunk.getUri());
+            b.append(" | era: ");
+            b.append(scheduledChunk.era);
+            b.append(" | priority: ");
+            b.append(scheduledChunk.priority);
+            b.append(" | len: ");
+            b.append(scheduledChunk.length);
+            Log.debug(b.toString());
+        }
+
+        this.sendChunk(remotePeer, scheduledChunk.sender, scheduledChunk.era, chunk, protocol, os);
+    }
+
+    /**
+     * Send a chunk and remember it was delivered.
+     */
+    private void sendChunk(String remotePeer, CharSequence sender, int era, ASAPChunk chunk,
+                           ASAP_1_0 protocol, OutputStream os) throws IOException, ASAPException {
+
+        // messages added meanwhile are not delivered - chunk is sent again with them
+        int numberMessages;
+        long length;
+        List<ASAPChunkSignature> signatures;
+        synchronized(this.getChannelLock(sender, chunk.getUri())) {
+            numberMessages = chunk.getNumberMessage();
+            length = chunk.getLength();
+            signatures = new ArrayList<>(chunk.getSignatures());
+        }
+
+        if(!sender.toString().equals(this.owner) && (protocol.isSigning() || !signatures.isEmpty())) {
+            length = this.relayChunk(remotePeer, sender, era, chunk, length, signatures, protocol, os);
+        } else {
+            // whole chunk - signed by this peer if protocol engine signs
+            length = chunk.getLength();
+            InputStream chunkIS = chunk.getMessageInputStream();
+            try {
+                protocol.assimilate(sender, // original sender
+                        remotePeer, // remotePeer
+                        this.format,
+                        chunk.getUri(), // channel ok
+                        era, // era ok
+                        length, // data length
+                        chunk.getOffsetList(),
+                        chunkIS,
+                        os,
+                        false);
+            }
+            finally {
+                if(chunkIS != null) chunkIS.close();
+            }
+        }
+        this.metrics.chunkSent(length);
+
+        // remember sent - other sessions could deliver same chunk meanwhile
+        synchronized(this.getChannelLock(sender, chunk.getUri())) {
+            chunk.deliveredTo(remotePeer, numberMessages);
+        }
+        if(Log.isDebugEnabled()) {
+            StringBuilder b = new StringBuilder();
+            b.append(this.getLogStart());
+            b.append("remembered delivered to ");
+            b.append(remotePeer);
+            Log.debug(b.toString());
+        }
+        // sent to all recipients
+        if (chunk.getRecipients().size() == chunk.getDeliveredTo().size()) {
+            if(Log.isDebugEnabled()) {
+                StringBuilder b = Log.startLog(this);
+                b.append("#recipients == #deliveredTo chunk delivered to any potential remotePeer - could drop it");
+                Log.debug(b);
+            }
+            if (this.isDropDeliveredChunks()) {
+                chunk.drop();
+                //<<<<<<<<<<<<<<<<<<debug
+                if(Log.isDebugEnabled()) {
+                    StringBuilder b = Log.startLog(this);
+                    b.append("chunk dropped");
+                    Log.debug(b);
+                }
+            } else {
+                if(Log.isDebugEnabled()) {
+                    StringBuilder b = Log.startLog(this);
+                    b.append("drop flag set false - engine does not remove delivered chunks");
+                    Log.debug(b);
+                }
+            }
+        }
+    }
+
+    /**
+     * Relay a received chunk - each part as received, signed parts with signature of their origin. Parts
+     * without signature cannot be signed in origin's name - they are not sent by a signing protocol engine.
+     *
+     * @param length bytes to be sent - chunk can grow meanwhile
+     * @param signatures signatures of parts within length, ordered by offset
+     * @return number of bytes sent
+     */
+    private long relayChunk(String remotePeer, CharSequence sender, int era, ASAPChunk chunk, long length,
+                            List<ASAPChunkSignature> signatures, ASAP_1_0 protocol, OutputStream os)
+            throws IOException, ASAPException {
+
+        List<Long> chunkOffsets = chunk.getOffsetList();
+        long sentBytes = 0;
+
+        InputStream chunkIS = chunk.getMessageInputStream();
+        try {
+            long position = 0;
+            Iterator<ASAPChunkSignature> signatureIterator = signatures.iterator();
+            while(position < length) {
+                ASAPChunkSignature signature = signatureIterator.hasNext() ? signatureIterator.next() : null;
+                // not signed up to next signed part
+                long partEnd = signature != null ? signature.getOffset() : length;
+                if(partEnd > position) {
+                    if(protocol.isSigning()) {
+                        Log.warn(this.getLogStart() + "part not signed by " + sender + " not relayed: "
+                                + chunk.getUri() + " | era: " + era + " | bytes: " + position + " - " + partEnd);
+                        ASAPEngine.skip(chunkIS, partEnd - position);
+                    } else {
+                        protocol.assimilate(sender, remotePeer, this.format, chunk.getUri(), era,
+                                partEnd - position, ASAPEngine.getPartOffsets(chunkOffsets, position, partEnd),
+                                chunkIS, os, false);
+                        sentBytes += partEnd - position;
+                    }
+                    position = partEnd;
+                }
+                if(signature == null) break;
+
+                partEnd = signature.getOffset() + signature.getLength();
+                protocol.assimilate(sender, remotePeer, this.format, chunk.getUri(), era,
+                        signature.getLength(), ASAPEngine.getPartOffsets(chunkOffsets, position, partEnd),
+                        chunkIS, os, signature.getSigner(), signature.getSignature());
+                sentBytes += signature.getLength();
+                position = partEnd;
+            }
+        }
+        finally {
+            if(chunkIS != null) chunkIS.close();
+        }
+
+        return sentBytes;
+    }
+
+    /**
+     * @return offsets of messages in that part of a chunk - relative to beginning of that part
+     */
+    private static List<Long> getPartOffsets(List<Long> chunkOffsets, long partStart, long partEnd) {
+        List<Long> offsets = new ArrayList<>();
+        for(long offset : chunkOffsets) {
+            if(offset > partStart && offset < partEnd) offsets.add(offset - partStart);
+        }
+
+        return offsets;
+    }
+
+    private static void skip(InputStream is, long number) throws IOException {
+        while(number > 0) {
+            long skipped = is.skip(number);
+            if(skipped <= 0) throw new IOException("chunk ended before part was skipped");
+            number -= skipped;
+        }
+    }
+
+    /**
+     * Offer scheduled chunks - they are sent when other side asks for them. Chunks which presumably
+     * cannot be sent within the budget together with those offered before are not offered but deferred -
+     * except the first one in schedule, see {@link #sendChunks}.
+     *
+     * Offered chunks are not delivered yet - they are kept like deferred ones and offered again next time.
+     * A chunk that other side did not ask for after some offers is not wanted - it is not kept.
+     *
+     * @param workingEra first era of this synchronization
+     * @return chunk of oldest era not offered or not delivered yet - null if there is none
+     */
+    private ASAPChunkScheduler.ScheduledChunk offerChunks(String remotePeer, ASAPChunkScheduler scheduler,
+                            ASAP_1_0 protocol, OutputStream os, ASAPEncounterBudget budget, int workingEra)
+            throws IOException, ASAPException {
+
+        List<ASAPChunkScheduler.ScheduledChunk> deferred = new ArrayList<>();
+        List<ASAPChunkScheduler.ScheduledChunk> undelivered = new ArrayList<>();
+        long offeredBytes = 0;
+
+        for(ASAPChunkScheduler.ScheduledChunk scheduledChunk : scheduler.getSchedule()) {
+            if(this.exceedsBudget(scheduledChunk, budget, offeredBytes)) {
+                deferred.add(scheduledChunk);
+                continue;
+            }
+
+            if(this.offerScheduledChunk(remotePeer, scheduledChunk, protocol, os)) undelivered.add(scheduledChunk);
+            offeredBytes += ASAPEngine.getPlannedBytes(scheduledChunk);
+        }
+
+        if(!deferred.isEmpty()) {
+            ASAPChunkScheduler.ScheduledChunk scheduledChunk = deferred.remove(0);
+            if(this.offerScheduledChunk(remotePeer, scheduledChunk, protocol, os)) undelivered.add(scheduledChunk);
+        }
+
+        undelivered.addAll(deferred);
+        return ASAPEngine.getOldestChunk(undelivered, workingEra);
+    }
+
+    /**
+     * @return false if other side did not ask for that chunk after MAX_OFFERS offers - it is not wanted
+     */
+    private boolean offerScheduledChunk(String remotePeer, ASAPChunkScheduler.ScheduledChunk scheduledChunk,
+                                        ASAP_1_0 protocol, OutputStream os) throws IOException, ASAPException {
+
+        ASAPChunk chunk = scheduledChunk.chunk;
+        byte[] digest = this.inventory.getOfferedDigest(scheduledChunk.sender, scheduledChunk.era, chunk);
+
+        if(Log.isDebugEnabled()) {
+            StringBuilder b = new StringBuilder();
+            b.append(this.getLogStart());
+            b.append("offer chunk: ");
+            b.append(chunk.getUri());
+            b.append(" | era: ");
+            b.append(scheduledChunk.era);
+            b.append(" | len: ");
+            b.append(scheduledChunk.length);
+            Log.debug(b.toString());
+        }
+
+        protocol.offer(this.owner, scheduledChunk.sender, this.format, chunk.getUri(), scheduledChunk.era,
+                scheduledChunk.length, digest, os, false);
+
+        return this.inventory.offered(remotePeer, scheduledChunk.sender, scheduledChunk.era, chunk)
+                < ASAPChunkInventory.MAX_OFFERS;
+    }
+
+    /**
+     * Other side asks for a chunk - most probably offered before.
+     */
+    private void handleChunkRequest(ASAP_Interest_PDU_1_0 asapInterest, ASAP_1_0 protocol, OutputStream os,
+                                    ASAPEncounterBudget budget) throws IOException, ASAPException {
+
+        String peer = asapInterest.getPeer();
+        String sender = asapInterest.getSourcePeer() != null ? asapInterest.getSourcePeer() : this.owner;
+        String uri = asapInterest.getChannelUri();
+        int era = asapInterest.getEraFrom();
+
+        if(peer == null || !asapInterest.eraFromSet()) throw new ASAPException("chunk request must name peer and era");
+
+        ASAPChunkStorage chunkStorage = null;
+        if(sender.equals(this.owner)) {
+            chunkStorage = this.getChunkStorage();
+        } else if(this.isSendReceivedChunks()) {
+            chunkStorage = this.getIncomingChunkStorage(sender);
+        }
+
+        ASAPChunk chunk = null;
+        if(chunkStorage != null && chunkStorage.existsChunk(uri, era)) {
+            chunk = chunkStorage.getChunk(uri, era);
+            if(chunk.getLength() < 1 || (!this.isPublic(chunk) && !chunk.getRecipients().contains(peer))) {
+                chunk = null;
+            }
+        }
+
+        if(chunk == null) {
+            if(Log.isDebugEnabled()) {
+                StringBuilder b = new StringBuilder();
+                b.append(this.getLogStart());
+                b.append("asked for chunk which cannot be sent to ");
+                b.append(peer);
+                b.append(": ");
+                b.append(sender);
+                b.append(" | ");
+                b.append(uri);
+                b.append(" | era: ");
+                b.append(era);
+                Log.debug(b.toString());
+            }
+            return;
+        }
+
+        if(budget != null) {
+            long remainingBytes = budget.getRemainingBytes();
+            long plannedBytes = chunk.getLength() + ASSUMED_PDU_HEADER_SIZE
+                    + (long) chunk.getOffsetList().size() * ASSUMED_OFFSET_SIZE;
+
+            if(remainingBytes != ASAPEncounterBudget.UNLIMITED && plannedBytes > remainingBytes) {
+                // other side asks again next time
+                if(Log.isDebugEnabled()) {
+                    StringBuilder b = new StringBuilder();
+                    b.append(this.getLogStart());
+                    b.append("asked for chunk would not be completed in time: ");
+                    b.append(uri);
+                    Log.debug(b.toString());
+                }
+                return;
+            }
+        }
+
+        this.sendChunk(peer, sender, era, chunk, protocol, os);
+    }
+
+    /**
+     * Ask again for chunks we asked that peer for last time - and did not get.
+     */
+    private void repeatOpenRequests(String peer, ASAP_1_0 protocol, OutputStream os)
+            throws IOException, ASAPException {
+
+        for(ASAPChunkInventory.Request request : this.inventory.getOpenRequests(peer)) {
+            if(Log.isDebugEnabled()) {
+                StringBuilder b = new StringBuilder();
+                b.append(this.getLogStart());
+                b.append("ask again for chunk: ");
+                b.append(request.sender);
+                b.append(" | ");
+                b.append(request.uri);
+                b.append(" | era: ");
+                b.append(request.era);
+                Log.debug(b.toString());
+            }
+            protocol.interest(this.owner, request.sender, this.format, request.uri, request.era, request.era,
+                    os, false);
+        }
+    }
+
     private boolean isDropDeliveredChunks() {
         return this.dropDeliveredChunks;
     }
@@ -701,16 +1501,49 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
         return ASAPEngine.previousEra(workingEra);
     }
 
-    private int getEraStartSync(String peer) {
+    /**
+     * Eras are circular: era numbers wrap from Integer.MAX_VALUE to 0.
+     *
+     * @return number of eras from era from to era to - moving forward
+     */
+    public static int eraDistance(int from, int to) {
+        if(to >= from) return to - from;
+
+        return (Integer.MAX_VALUE - from) + to + 1;
+    }
+
+    /**
+     * @return true if era lies within eras from and to (both included) - taking wrap-around into account
+     */
+    public static boolean isEraInRange(int era, int from, int to) {
+        return ASAPEngine.eraDistance(from, era) <= ASAPEngine.eraDistance(from, to);
+    }
+
+    private int getEraStartSync(String peer, int currentEra) {
         Integer lastEra = this.lastSeen.get(peer);
         if(lastEra == null) {
             return this.getOldestEra();
         }
-        
+
+        // stale last seen value - e.g. era numbers wrapped meanwhile. Would make us iterate the whole era space
+        if(!ASAPEngine.isEraInRange(lastEra, this.getOldestEra(), currentEra)) {
+            if(Log.isDebugEnabled()) {
+                StringBuilder b = new StringBuilder();
+                b.append(this.getLogStart());
+                b.append("last seen era of ");
+                b.append(peer);
+                b.append(" (");
+                b.append(lastEra);
+                b.append(") not between oldest and current era - sync from oldest era");
+                Log.debug(b.toString());
+            }
+            return this.getOldestEra();
+        }
+
         return lastEra;
     }
 
-    private void setLastSeen(String peer, int workingEra) {
+    private void setLastSeen(String peer, int era) {
         this.lastSeen.put(peer, era);
     }
 
@@ -737,15 +1570,25 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
      * @param peer
      * @return 
      */
-    private synchronized boolean permission2ProceedConversation(String peer) {
-        // if that peer is not in the list - go ahead
-        boolean goAhead = !this.activePeers.contains(peer);
-        if(goAhead) {
-            // add that peer - an other call will fail.
-            this.activePeers.add(peer);
-        }
-        
-        return goAhead;
+    private boolean permission2ProceedConversation(String peer) {
+        // if that peer is not in the set - go ahead. An other call will fail.
+        return this.activePeers.add(peer);
+    }
+
+    /**
+     * @return true if a conversation with a peer is running
+     */
+    boolean hasActivePeers() {
+        return !this.activePeers.isEmpty();
+    }
+
+    /**
+     * Session with that peer is over. Peer can start a new conversation.
+     * @param peer
+     */
+    public void peerDisconnected(CharSequence peer) {
+        if(peer == null) return;
+        this.activePeers.remove(peer.toString());
     }
 
     /**
@@ -760,6 +1603,57 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
 
     @Override
     public void newEra() {
+        // no add and no other era change meanwhile
+        this.eraLock.writeLock().lock();
+        try {
+            if(this.contentChanged) {
+                if(Log.isDebugEnabled()) Log.debug(this.getNewEraLogStart() + "content changed - increment era...");
+                ASAPTrace trace = ASAPTracing.eraChange();
+                try {
+                    int oldEra = this.era;
+                    int nextEra = this.getNextEra(this.era);
+
+                    // set as fast as possible to make race conditions less likely
+                    this.contentChanged = false;
+
+                    // we are done here - we are in a new era.
+                    this.era = nextEra;
+                    this.eraContentSize.set(0);
+                    this.metrics.eraRollover();
+
+                    // era numbers wrapped - oldest era is overwritten now
+                    if(nextEra == this.oldestEra) {
+                        this.oldestEra = this.getNextEra(nextEra);
+                    }
+
+                    // persistent values
+                    this.saveStatus();
+
+                    // drop very very old chunks - if available
+                    this.chunkStorage.dropChunks(nextEra);
+
+                    // setup new era - copy all chunks
+                    for(ASAPChunk chunk : this.chunkStorage.getChunks(oldEra)) {
+                        ASAPChunk copyChunk = this.chunkStorage.getChunk(chunk.getUri(), nextEra);
+                        copyChunk.clone(chunk);
+                    }
+
+                    trace.end(null, this.format, null, nextEra, 0);
+                    if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "era incremented");
+                } catch (IOException ex) {
+                    Log.error(this.getNewEraLogStart() + "IOException while incrementing era: "
+                            + ex.getLocalizedMessage());
+                }
+            } else {
+                if(Log.isDebugEnabled()) Log.debug(this.getNewEraLogStart() + "content not changed - era not changed");
+            }
+        }
+        finally {
+            this.eraLock.writeLock().unlock();
+        }
+    }
+
+    private String getNewEraLogStart() {
         StringBuilder sb = new StringBuilder();
         sb.append(this.getLogStart());
         sb.append("newEra() | owner: ");
@@ -768,40 +1662,6 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
         sb.append(this.format);
         sb.append(" | ");
 
-        if(this.contentChanged) {
-            sb.append("content changed - increment era...");
-            System.out.println(sb.toString());
-            try {
-                int oldEra = this.era;
-                int nextEra = this.getNextEra(this.era);
-
-                // set as fast as possible to make race conditions less likely
-                this.contentChanged = false;
-
-                // we are done here - we are in a new era.
-                this.era = nextEra;
-
-                // persistent values
-                if(this.memento != null) this.memento.save(this);
-
-                // drop very very old chunks - if available
-                this.chunkStorage.dropChunks(nextEra);
-
-                // setup new era - copy all chunks
-                for(ASAPChunk chunk : this.chunkStorage.getChunks(oldEra)) {
-                    ASAPChunk copyChunk = this.chunkStorage.getChunk(chunk.getUri(), nextEra);
-                    copyChunk.clone(chunk);
-                }
-
-                System.out.println(this.getLogStart() + "era incremented");
-            } catch (IOException ex) {
-                sb.append("IOException while incrementing era: ");
-                sb.append(ex.getLocalizedMessage());
-                System.err.println(sb.toString());
-            }
-        } else {
-            sb.append("content not changed - era not changed");
-            System.out.println(sb.toString());
-        }
+        return sb.toString();
     }
 }
\ No newline at end of file
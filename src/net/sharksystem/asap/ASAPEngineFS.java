@@ -1,6 +1,8 @@
 package net.sharksystem.asap;
 
+import net.sharksystem.asap.metrics.ASAPStorageMetrics;
 import net.sharksystem.asap.protocol.ASAP_1_0;
+import net.sharksystem.asap.util.Log;
 
 import java.io.File;
 import java.io.IOException;
@@ -22,7 +24,7 @@ public class ASAPEngineFS extends ASAPEngine {
                          String rootDirectory, ASAPChunkStorageFS chunkStorage, CharSequence format)
         throws ASAPException, IOException {
         
-        super(new ASAPChunkStorageFS(rootDirectory), format);
+        super(new ASAPChunkStorageFS(rootDirectory, new ASAPStorageMetrics()), format);
 
         this.owner = owner;
         this.rootDirectory = rootDirectory;
@@ -36,6 +38,13 @@ public class ASAPEngineFS extends ASAPEngine {
         return this.owner;
     }
 
+    /**
+     * @return metrics of local and incoming chunk storages
+     */
+    public ASAPStorageMetrics getStorageMetrics() {
+        return ((ASAPChunkStorageFS) this.getChunkStorage()).getMetrics();
+    }
+
     public static ASAPEngine getASAPStorage(String owner, String rootDirectory, CharSequence format)
             throws IOException, ASAPException {
         
@@ -134,19 +143,11 @@ public class ASAPEngineFS extends ASAPEngine {
         return engine;
     }
     
-    private void restoreFromMemento() throws IOException {
-        ASAPMementoFS mementoFS = this.getMemento(rootDirectory);
-        this.memento = mementoFS;
-
-        mementoFS.restore(this);
-
-    }
-
     @Override
     public void add(CharSequence urlTarget, byte[] messageAsBytes) throws IOException {
-        // always re-read metainformation
-        this.restoreFromMemento();
-        
+        // another engine object on that folder could have started a new era meanwhile
+        this.refreshStatus();
+
         // do the real work
         super.add(urlTarget, messageAsBytes);
     }
@@ -168,7 +169,7 @@ public class ASAPEngineFS extends ASAPEngine {
     @Override
     public ASAPChunkStorage getIncomingChunkStorage(CharSequence sender) {
         String dir = this.rootDirectory + "/" + sender;
-        return new ASAPChunkStorageFS(dir);
+        return new ASAPChunkStorageFS(dir, this.getStorageMetrics());
     }
 
     public ASAPStorage getExistingIncomingStorage(CharSequence sender) throws IOException, ASAPException {
@@ -222,10 +223,10 @@ public class ASAPEngineFS extends ASAPEngine {
                 } else {
                     try {
                         if(!fileInDir.delete()) {
-                            System.out.println("ASAPEngineFS: cannot delete file (try deleteOnExit):" + fileInDir);
+                            Log.warn("ASAPEngineFS: cannot delete file: " + fileInDir);
                         }
                     } catch (RuntimeException e) {
-                        System.err.println("ASAPEngineFS: cannot file:" + e.getLocalizedMessage());
+                        Log.warn("ASAPEngineFS: cannot delete file: " + e.getLocalizedMessage());
                         // try next
                     }
                 }
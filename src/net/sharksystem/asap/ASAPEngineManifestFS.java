@@ -0,0 +1,77 @@
+package net.sharksystem.asap;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lists the engines below a multi engine root folder: sub folder name and format. A multi engine
+ * reads that file at startup instead of restoring each engine. Engines are set up on first use.
+ *
+ * @author thsc
+ */
+class ASAPEngineManifestFS {
+    public static final String MANIFEST_FILENAME = "asapEngines";
+
+    private final File rootDirectory;
+
+    ASAPEngineManifestFS(File rootDirectory) {
+        this.rootDirectory = rootDirectory;
+    }
+
+    /**
+     * @return sub folder name -> format. Empty if there is no manifest yet.
+     */
+    Map<String, String> restore() throws IOException {
+        Map<String, String> folderFormats = new HashMap<>();
+
+        File file = this.getManifestFile();
+        if(!file.exists()) return folderFormats;
+
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            int number = dis.readInt();
+            for(int i = 0; i < number; i++) {
+                String folderName = dis.readUTF();
+                String format = dis.readUTF();
+                folderFormats.put(folderName, format);
+            }
+        }
+        catch(EOFException e) {
+            // broken manifest - take what we got, unknown folders are scanned anyway
+        }
+        finally {
+            dis.close();
+        }
+
+        return folderFormats;
+    }
+
+    void save(Map<CharSequence, EngineSetting> folderMap) throws IOException {
+        // write a copy and rename - a broken manifest would hide engines
+        File tmpFile = new File(this.rootDirectory, MANIFEST_FILENAME + ".tmp");
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            // snapshot - map can be changed concurrently
+            Map<CharSequence, EngineSetting> settings = new HashMap<>(folderMap);
+            dos.writeInt(settings.size());
+            for(Map.Entry<CharSequence, EngineSetting> entry : settings.entrySet()) {
+                dos.writeUTF(new File(entry.getValue().folder.toString()).getName());
+                dos.writeUTF(entry.getKey().toString());
+            }
+        }
+        finally {
+            dos.close();
+        }
+
+        File file = this.getManifestFile();
+        if(file.exists()) file.delete();
+        if(!tmpFile.renameTo(file)) {
+            throw new IOException("could not write engine manifest: " + file.getAbsolutePath());
+        }
+    }
+
+    private File getManifestFile() {
+        return new File(this.rootDirectory, MANIFEST_FILENAME);
+    }
+}
@@ -0,0 +1,219 @@
+package net.sharksystem.asap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * Era policies shipped with ASAP.
+ *
+ * <ul>
+ *     <li>per connection: new era whenever a connection starts or ends (default)</li>
+ *     <li>time window: at most one new era within a time window</li>
+ *     <li>size threshold: new era after a number of bytes were added or received - or after a maximum age</li>
+ *     <li>coalescing: encounters following each other within a time window share an era</li>
+ * </ul>
+ *
+ * Policies take the time from their callers - they work with virtual time as well. Policies
+ * remember state per format. Use an object per multi engine.
+ *
+ * Policies can also be described as text - e.g. on a command line: connection, window:ms,
+ * size:bytes[:maxAgeMs], coalesce:ms[:maxAgeMs]
+ *
+ * @author thsc
+ */
+public class ASAPEraPolicies {
+    public static final String PER_CONNECTION = "connection";
+    public static final String TIME_WINDOW = "window";
+    public static final String SIZE_THRESHOLD = "size";
+    public static final String COALESCING = "coalesce";
+
+    private static final ASAPEraPolicy PER_CONNECTION_POLICY = new PerConnectionPolicy();
+
+    public static ASAPEraPolicy perConnection() {
+        return PER_CONNECTION_POLICY;
+    }
+
+    /**
+     * @param window minimum era duration in milliseconds
+     */
+    public static ASAPEraPolicy timeWindow(long window) {
+        return new TimeWindowPolicy(window);
+    }
+
+    /**
+     * @param threshold bytes added or received in current era
+     * @param maxAge start new era anyway if current era is older (milliseconds), 0: no maximum age.
+     *               Without a maximum age, a few small messages can stay undelivered for a long time.
+     */
+    public static ASAPEraPolicy sizeThreshold(long threshold, long maxAge) {
+        return new SizeThresholdPolicy(threshold, maxAge);
+    }
+
+    /**
+     * @param window connection events less than window milliseconds apart belong to the same burst
+     *               of encounters - no new era within a burst.
+     */
+    public static ASAPEraPolicy coalescing(long window) {
+        return new CoalescingPolicy(window, 0);
+    }
+
+    /**
+     * @param maxAge start new era anyway if current era is older (milliseconds), 0: no maximum age.
+     *               Without a maximum age, a never ending burst of encounters keeps the era forever.
+     */
+    public static ASAPEraPolicy coalescing(long window, long maxAge) {
+        return new CoalescingPolicy(window, maxAge);
+    }
+
+    /**
+     * @param description connection | window:ms | size:bytes[:maxAgeMs] | coalesce:ms[:maxAgeMs]
+     * @throws ASAPException unknown policy or malformed parameter
+     */
+    public static ASAPEraPolicy parse(String description) throws ASAPException {
+        StringTokenizer st = new StringTokenizer(description, ":");
+        if(!st.hasMoreTokens()) throw new ASAPException("era policy expected");
+
+        String name = st.nextToken().trim();
+        try {
+            switch(name) {
+                case PER_CONNECTION:
+                    return perConnection();
+                case TIME_WINDOW:
+                    return timeWindow(Long.parseLong(st.nextToken().trim()));
+                case SIZE_THRESHOLD:
+                    long threshold = Long.parseLong(st.nextToken().trim());
+                    long maxAge = st.hasMoreTokens() ? Long.parseLong(st.nextToken().trim()) : 0;
+                    return sizeThreshold(threshold, maxAge);
+                case COALESCING:
+                    long window = Long.parseLong(st.nextToken().trim());
+                    long maxBurstAge = st.hasMoreTokens() ? Long.parseLong(st.nextToken().trim()) : 0;
+                    return coalescing(window, maxBurstAge);
+                default:
+                    throw new ASAPException("unknown era policy: " + name);
+            }
+        }
+        catch(RuntimeException e) {
+            throw new ASAPException("malformed era policy: " + description);
+        }
+    }
+
+    private static class PerConnectionPolicy implements ASAPEraPolicy {
+        @Override
+        public boolean isNewEraRequired(ASAPEngine engine, Trigger trigger, long now) {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return PER_CONNECTION;
+        }
+    }
+
+    /**
+     * Remembers when a policy decided on a new era for a format
+     */
+    private static class EraStarts {
+        private final Map<String, Long> eraStarts = new HashMap<>();
+
+        /**
+         * @return milliseconds since last new era of that format - Long.MAX_VALUE if there was none
+         */
+        long getEraAge(ASAPEngine engine, long now) {
+            Long eraStart = this.eraStarts.get(engine.format);
+            return eraStart == null ? Long.MAX_VALUE : now - eraStart;
+        }
+
+        boolean newEra(ASAPEngine engine, long now) {
+            this.eraStarts.put(engine.format, now);
+            return true;
+        }
+    }
+
+    private static class TimeWindowPolicy implements ASAPEraPolicy {
+        private final long window;
+        private final EraStarts eraStarts = new EraStarts();
+
+        TimeWindowPolicy(long window) {
+            this.window = window;
+        }
+
+        @Override
+        public synchronized boolean isNewEraRequired(ASAPEngine engine, Trigger trigger, long now) {
+            if(!engine.isContentChanged()) return false;
+
+            if(this.eraStarts.getEraAge(engine, now) < this.window) return false;
+
+            return this.eraStarts.newEra(engine, now);
+        }
+
+        @Override
+        public String toString() {
+            return TIME_WINDOW + ":" + this.window;
+        }
+    }
+
+    private static class SizeThresholdPolicy implements ASAPEraPolicy {
+        private final long threshold;
+        private final long maxAge;
+        private final EraStarts eraStarts = new EraStarts();
+
+        SizeThresholdPolicy(long threshold, long maxAge) {
+            this.threshold = threshold;
+            this.maxAge = maxAge;
+        }
+
+        @Override
+        public synchronized boolean isNewEraRequired(ASAPEngine engine, Trigger trigger, long now) {
+            if(!engine.isContentChanged()) return false;
+
+            if(engine.getContentSizeInEra() >= this.threshold
+                    || (this.maxAge > 0 && this.eraStarts.getEraAge(engine, now) >= this.maxAge)) {
+
+                return this.eraStarts.newEra(engine, now);
+            }
+
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return SIZE_THRESHOLD + ":" + this.threshold + ":" + this.maxAge;
+        }
+    }
+
+    private static class CoalescingPolicy implements ASAPEraPolicy {
+        private final long window;
+        private final long maxAge;
+        // format -> time of last connection event
+        private final Map<String, Long> lastEvents = new HashMap<>();
+        private final EraStarts eraStarts = new EraStarts();
+
+        CoalescingPolicy(long window, long maxAge) {
+            this.window = window;
+            this.maxAge = maxAge;
+        }
+
+        @Override
+        public synchronized boolean isNewEraRequired(ASAPEngine engine, Trigger trigger, long now) {
+            Long lastEvent = this.lastEvents.put(engine.format, now);
+
+            // burst lasts too long
+            if(this.maxAge > 0 && this.eraStarts.getEraAge(engine, now) >= this.maxAge) {
+                return this.eraStarts.newEra(engine, now);
+            }
+
+            // a burst ends with a connection end - next connection starts next burst
+            if(trigger == Trigger.CONNECTION_TERMINATED) return false;
+
+            if(lastEvent == null || now - lastEvent >= this.window) return this.eraStarts.newEra(engine, now);
+
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return COALESCING + ":" + this.window + ":" + this.maxAge;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package net.sharksystem.asap;
+
+/**
+ * Decides if an engine starts a new era when a connection to a peer starts or ends.
+ *
+ * Only chunks of previous eras are sent. A new era makes anything added or received so far
+ * available to the next peer. But each era costs folders and copied channel meta data, and
+ * era numbers wrap. Policies balance freshness against that churn.
+ *
+ * Policies are asked on any connection event. Engines do not start a new era if nothing changed -
+ * whatever the policy decides.
+ *
+ * @see ASAPEraPolicies
+ * @author thsc
+ */
+public interface ASAPEraPolicy {
+    enum Trigger {
+        CONNECTION_STARTED,
+        CONNECTION_TERMINATED
+    }
+
+    /**
+     * @param engine engine - content in current era might have changed or not
+     * @param trigger connection event
+     * @param now current time in milliseconds
+     * @return true if engine is to start a new era
+     */
+    boolean isNewEraRequired(ASAPEngine engine, Trigger trigger, long now);
+}
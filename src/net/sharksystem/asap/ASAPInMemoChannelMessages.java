@@ -120,10 +120,12 @@ class ASAPInMemoChannelMessages implements ASAPChannelMessages {
         }
 
         if(this.messageCache != null && position >= this.firstIndexMessageCache && position <= this.lastIndexMessageCache) {
+            this.chunkStorage.getMetrics().cacheHit();
             return this.messageCache.get(position - this.firstIndexMessageCache); // TODO calculation correct?
         }
 
         // not yet in cache - find chunk with required message
+        this.chunkStorage.getMetrics().cacheMiss();
         int firstIndex = 0; // absolut index of first message in current chunk
         int lastIndex = 0; // absolut index of last message in current chunk
 
@@ -204,6 +206,11 @@ class ASAPInMemoChannelMessages implements ASAPChannelMessages {
         move it around again with that call - keep position unchanged: true!
          */
 
+        if(position >= this.firstIndexMessageCache && position <= this.lastIndexMessageCache) {
+            // don't count that lookup as cache hit
+            return this.messageCache.get(position - this.firstIndexMessageCache);
+        }
+
         return this.getMessage(position, true);
     }
 
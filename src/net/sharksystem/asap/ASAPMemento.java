@@ -9,4 +9,11 @@ import java.io.IOException;
  */
 interface ASAPMemento {
     public void save(ASAPEngine engine) throws IOException;
+
+    /**
+     * @return true if status was changed by another engine object since it was saved or restored by this one
+     */
+    public boolean isChanged() throws IOException;
+
+    public void restore(ASAPEngine engine) throws IOException;
 }
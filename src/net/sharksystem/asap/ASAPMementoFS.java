@@ -3,7 +3,9 @@ package net.sharksystem.asap;
 import net.sharksystem.asap.protocol.ASAP_1_0;
 
 import java.io.*;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Engine memento implementation in filesystem.
@@ -12,6 +14,8 @@ import java.util.HashMap;
  */
 class ASAPMementoFS implements ASAPMemento {
     private final File rootDirectory;
+    /** file content after last save or restore - null if unknown */
+    private byte[] knownContent = null;
 
     public ASAPMementoFS(File rootDirectory) {
         this.rootDirectory = rootDirectory;
@@ -28,8 +32,8 @@ class ASAPMementoFS implements ASAPMemento {
             }
         }
 
-        DataOutputStream dos = new DataOutputStream(
-                                new FileOutputStream(fName));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
 
         dos.writeUTF(engine.owner);
         dos.writeUTF(engine.format);
@@ -39,16 +43,50 @@ class ASAPMementoFS implements ASAPMemento {
         dos.writeBoolean(engine.dropDeliveredChunks);
         dos.writeBoolean(engine.sendReceivedChunks);
 
-        // write lastSeen hash map
+        // write lastSeen hash map - entries can be changed concurrently, iterate entries
         if(engine.lastSeen != null && !engine.lastSeen.isEmpty()) {
-            for(String key : engine.lastSeen.keySet()) {
-                Integer era = engine.lastSeen.get(key);
-
+            for(Map.Entry<String, Integer> entry : engine.lastSeen.entrySet()) {
                 // write peer and era
-                dos.writeUTF(key);
-                dos.writeInt(era);
+                dos.writeUTF(entry.getKey());
+                dos.writeInt(entry.getValue());
             }
         }
+
+        dos.close();
+
+        byte[] content = baos.toByteArray();
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(content);
+        }
+        finally {
+            fos.close();
+        }
+        this.knownContent = content;
+    }
+
+    @Override
+    public boolean isChanged() throws IOException {
+        File file = new File(this.getMementoFileName());
+        if(!file.exists()) return false;
+
+        return !Arrays.equals(this.knownContent, this.readContent(file));
+    }
+
+    private byte[] readContent(File file) throws IOException {
+        // file could be written meanwhile - take what is there
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[1024];
+            int read;
+            while((read = is.read(buffer)) != -1) baos.write(buffer, 0, read);
+        }
+        finally {
+            is.close();
+        }
+
+        return baos.toByteArray();
     }
 
     private void setDefaults(ASAPEngine engine) {
@@ -57,7 +95,7 @@ class ASAPMementoFS implements ASAPMemento {
         engine.format = ASAP_1_0.ANY_FORMAT.toString();
         engine.era = ASAPEngine.DEFAULT_INIT_ERA;
         engine.oldestEra = ASAPEngine.DEFAULT_INIT_ERA;
-        engine.lastSeen = new HashMap<>();
+        engine.lastSeen = new ConcurrentHashMap<>();
         engine.dropDeliveredChunks = false;
         engine.sendReceivedChunks = false;
     }
@@ -71,8 +109,9 @@ class ASAPMementoFS implements ASAPMemento {
             return;
         }
 
-        DataInputStream dis = new DataInputStream(
-                                new FileInputStream(file));
+        byte[] content = this.readContent(file);
+        this.knownContent = content;
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(content));
 
         try {
             engine.owner = dis.readUTF();
@@ -88,18 +127,10 @@ class ASAPMementoFS implements ASAPMemento {
             return; // reached end of file - nothing to do here
         }
 
-        // try to read lastSeen list
-        boolean first = true;
+        // try to read lastSeen list - kept in existing map, it could be changed concurrently
         try {
             for(;;) { // escapes from that loop via ioexception
                 String peer = dis.readUTF();
-                // got one
-                if(first) {
-                    // init empty list
-                    engine.lastSeen = new HashMap<>();
-                    first = false;
-                }
-
                 Integer era = dis.readInt();
 
                 // remember
@@ -111,6 +142,26 @@ class ASAPMementoFS implements ASAPMemento {
         }
     }
 
+    /**
+     * @return format of an engine in that folder without restoring it - default format if there is no memento
+     */
+    static String readFormat(File rootDirectory) throws IOException {
+        File file = new File(rootDirectory, ASAPEngineFS.MEMENTO_FILENAME);
+        if(!file.exists()) return ASAP_1_0.ANY_FORMAT.toString();
+
+        DataInputStream dis = new DataInputStream(new FileInputStream(file));
+        try {
+            dis.readUTF(); // owner
+            return dis.readUTF();
+        }
+        catch(EOFException e) {
+            return ASAP_1_0.ANY_FORMAT.toString();
+        }
+        finally {
+            dis.close();
+        }
+    }
+
     private String getMementoFileName() {
         return this.rootDirectory + "/" + ASAPEngineFS.MEMENTO_FILENAME;
     }
@@ -32,14 +32,14 @@ public class ASAPOnlineMessageSenderEngineSide extends ASAPAbstractOnlineMessage
 
         Set<CharSequence> onlinePeers = this.multiEngine.getOnlinePeers();
         if(onlinePeers == null || onlinePeers.size() < 1) {
-            System.out.println(this.getLogStart() + "no online peers");
+            if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "no online peers");
             throw new ASAPException("no online peers");
         }
 
         Set<CharSequence> onlinePeerList = new HashSet<>();
         for(CharSequence peerName : onlinePeers) {
             onlinePeerList.add(peerName);
-            System.out.println(this.getLogStart() + peerName  + "is online");
+            if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + peerName  + "is online");
         }
 
         this.sendASAPAssimilate(format, uri, onlinePeerList, messageAsBytes, era);
@@ -52,41 +52,50 @@ public class ASAPOnlineMessageSenderEngineSide extends ASAPAbstractOnlineMessage
             this.sendASAPAssimilate(format, uri, messageAsBytes, era);
         }
 
-        StringBuilder sb = Log.startLog(this);
-        sb.append("sendASAPAssimilate(format: ");
-        sb.append(format);
-        sb.append(", uri: ");
-        sb.append(uri);
-        sb.append(", era: ");
-        sb.append(era);
-        sb.append(", #recipients: ");
-        sb.append(recipients.size());
-        sb.append(", messageBytes: ");
-        sb.append(new String(messageAsBytes));
-        sb.append(")");
-        System.out.println(sb.toString());
+        if(Log.isDebugEnabled()) {
+            StringBuilder sb = Log.startLog(this);
+            sb.append("sendASAPAssimilate(format: ");
+            sb.append(format);
+            sb.append(", uri: ");
+            sb.append(uri);
+            sb.append(", era: ");
+            sb.append(era);
+            sb.append(", #recipients: ");
+            sb.append(recipients.size());
+            sb.append(", messageBytes: ");
+            sb.append(new String(messageAsBytes));
+            sb.append(")");
+            Log.debug(sb);
+        }
 
         // each message can have multiple recipients. Iterate
 
         // is there an open connection to each of the recipients.
         boolean foundAll = true; // optimism captain :)
         for(CharSequence recipient : recipients) {
-            sb = Log.startLog(this);
-            sb.append("try to find connection for recipient: ");
-            sb.append(recipient);
-            System.out.println(sb.toString());
+            if(Log.isDebugEnabled()) {
+                StringBuilder sb = Log.startLog(this);
+                sb.append("try to find connection for recipient: ");
+                sb.append(recipient);
+                Log.debug(sb);
+            }
             if(multiEngine.existASAPConnection(recipient)) {
                 ASAPConnection asapConnection = multiEngine.getASAPConnection(recipient);
-                sb = Log.startLog(this);
-                sb.append("got asap connection, subscribe / and store message");
-                System.out.println(sb.toString());
+                if(Log.isDebugEnabled()) {
+                    StringBuilder sb = Log.startLog(this);
+                    sb.append("got asap connection, subscribe / and store message");
+                    Log.debug(sb);
+                }
 
-                // subscribe and remember it
-                asapConnection.addOnlineMessageSource(this);
+                // remember it - subscribe after message is stored, connection can send right away
                 this.connectionPeers.put(asapConnection, recipient);
 
                 // serialize message for this recipient
                 ByteArrayOutputStream asapPDUBytes = new ByteArrayOutputStream();
+                ASAP_1_0 protocol = asapConnection.isSigned() || this.multiEngine.getPayloadKeys().hasKey(uri) ?
+                        new ASAP_Modem_Impl(asapConnection.isSigned() ? this.multiEngine.getKeyStore() : null,
+                                null, this.multiEngine.getPayloadKeys(), this.multiEngine.getCompression())
+                        : this.protocol;
                 protocol.assimilate(this.multiEngine.getOwner(), recipient, format, uri, era, null, // no offsets
                         messageAsBytes, asapPDUBytes, asapConnection.isSigned());
 
@@ -99,10 +108,14 @@ public class ASAPOnlineMessageSenderEngineSide extends ASAPAbstractOnlineMessage
 
                 messageList.add(asapPDUBytes.toByteArray());
 
+                asapConnection.addOnlineMessageSource(this);
+
             } else {
-                sb = Log.startLog(this);
-                sb.append("no connection found");
-                System.out.println(sb.toString());
+                if(Log.isDebugEnabled()) {
+                    StringBuilder sb = Log.startLog(this);
+                    sb.append("no connection found");
+                    Log.debug(sb);
+                }
                 foundAll = false; // at least to one recipient is not open line
             }
         }
@@ -117,12 +130,12 @@ public class ASAPOnlineMessageSenderEngineSide extends ASAPAbstractOnlineMessage
         CharSequence recipient = this.connectionPeers.get(asapConnection);
 
         List<byte[]> messageList = this.messages.get(recipient);
-        System.out.println(this.getLogStart() + " send message(s) to " + recipient);
+        if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + " send message(s) to " + recipient);
         while(!messageList.isEmpty()) {
-            System.out.println(this.getLogStart() + " send message to " + recipient);
-            System.out.println(this.getLogStart() + "outstream: " + os.getClass().getSimpleName());
+            if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + " send message to " + recipient);
+            if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "outstream: " + os.getClass().getSimpleName());
             os.write(messageList.remove(0));
-            System.out.println(this.getLogStart() + "wrote");
+            if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "wrote");
         }
 
         this.messages.remove(recipient);
@@ -1,5 +1,6 @@
 package net.sharksystem.asap;
 
+import net.sharksystem.asap.protocol.ASAPEncounterBudget;
 import net.sharksystem.asap.protocol.ASAP_1_0;
 import net.sharksystem.asap.protocol.ASAP_AssimilationPDU_1_0;
 import net.sharksystem.asap.protocol.ASAP_Interest_PDU_1_0;
@@ -16,6 +17,14 @@ public interface ASAPProtocolEngine {
     void handleASAPInterest(ASAP_Interest_PDU_1_0 asapInterest, ASAP_1_0 protocol, OutputStream os)
             throws ASAPException, IOException;
 
+    /**
+     * Handle interest within a limited budget. Chunks which cannot be transmitted completely
+     * within that budget are deferred to next encounter.
+     * @param budget can be null - no limits
+     */
+    void handleASAPInterest(ASAP_Interest_PDU_1_0 asapInterest, ASAP_1_0 protocol, OutputStream os,
+                            ASAPEncounterBudget budget) throws ASAPException, IOException;
+
     void handleASAPOffer(ASAP_OfferPDU_1_0 asapOffer, ASAP_1_0 protocol, OutputStream os)
             throws ASAPException, IOException;
 
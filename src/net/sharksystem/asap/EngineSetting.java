@@ -1,16 +1,49 @@
 package net.sharksystem.asap;
 
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
 public class EngineSetting {
     public final CharSequence folder;
     public ASAPChunkReceivedListener listener;
     public ASAPEngine engine;
 
+    // engines are loaded on first use - remember what they missed meanwhile
+    ASAPEraPolicy.Trigger missedEraAnnouncement = null;
+    boolean missedNewEra = false;
+    volatile long lastUsed = System.currentTimeMillis();
+    // unloaded engine could still be kept by someone - it is used again, never two engines on that folder
+    WeakReference<ASAPEngine> unloadedEngine = null;
+    // pdus executed with that engine right now
+    private int executions = 0;
+    // channel subscriptions - kept while engine is unloaded
+    final Set<String> channelSubscriptions = new CopyOnWriteArraySet<>();
+
     EngineSetting(CharSequence folder, ASAPChunkReceivedListener listener) {
         this.folder = folder;
         this.listener = listener;
     }
 
+    /**
+     * A pdu is executed with that engine - it is not unloaded meanwhile.
+     */
+    public synchronized void executionStarted() {
+        this.executions++;
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    public synchronized void executionFinished() {
+        this.executions--;
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    synchronized boolean isExecuting() {
+        return this.executions > 0;
+    }
+
     void setASAPEngine(ASAPEngine engine) {
         this.engine = engine;
+        if(engine != null) engine.setChannelSubscriptions(this.channelSubscriptions);
     }
 }
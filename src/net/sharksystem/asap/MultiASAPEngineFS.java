@@ -1,5 +1,8 @@
 package net.sharksystem.asap;
 
+import net.sharksystem.asap.crypto.ASAPKeyStore;
+import net.sharksystem.asap.crypto.ASAPPayloadKeys;
+import net.sharksystem.asap.management.ASAPGroupKeyService;
 import net.sharksystem.asap.protocol.*;
 
 import java.io.IOException;
@@ -22,10 +25,26 @@ import java.util.Set;
 public interface MultiASAPEngineFS {
     public static final long DEFAULT_MAX_PROCESSING_TIME = Long.MAX_VALUE;
 
+    /**
+     * @return engine of that format - it can be kept. An idle engine can be unloaded - it is used again
+     * with next use as long as it is kept.
+     */
     public ASAPEngine getEngineByFormat(CharSequence format) throws ASAPException, IOException;
 
+    /**
+     * @return engine of that format for a single operation - it must not be kept, an idle engine can be
+     * unloaded and is loaded again with next use
+     */
+    ASAPEngine useEngineByFormat(CharSequence format) throws ASAPException, IOException;
+
     ASAPChunkReceivedListener getListenerByFormat(CharSequence format) throws ASAPException;
 
+    /**
+     * Unregister metrics of this multi engine and its engines - call it when this multi engine is no
+     * longer used. Connections are not closed.
+     */
+    void close();
+
     /**
      * get or create engine for a given application - mainly means: setup folder
      * @param appName
@@ -54,6 +73,49 @@ public interface MultiASAPEngineFS {
 
     void newEra() throws IOException, ASAPException;
 
+    /**
+     * Engines can start a new era whenever a connection starts or ends. That policy decides.
+     * Management engine is not subject to it.
+     *
+     * @param policy null: default - new era on each connection event
+     * @see ASAPEraPolicies
+     */
+    void setEraPolicy(ASAPEraPolicy policy);
+
+    /**
+     * Connections established afterwards sign any pdu and accept signed pdus only.
+     * @param keyStore null: no signatures
+     */
+    void setKeyStore(ASAPKeyStore keyStore);
+
+    /**
+     * @return null if pdus are not signed
+     */
+    ASAPKeyStore getKeyStore();
+
+    /**
+     * Assimilate payloads are encrypted and accepted encrypted only afterwards. Management format is not
+     * encrypted. Closed channels can have group keys of their own - see {@link #getPayloadKeys()}.
+     * @param groupKey shared by all peers of that group - null: payloads are sent in clear
+     */
+    void setGroupKey(byte[] groupKey) throws ASAPException;
+
+    /**
+     * @return keys derived from group keys - shared by all connections, payloads of channels without
+     * a group key are sent in clear
+     */
+    ASAPPayloadKeys getPayloadKeys();
+
+    /**
+     * @return dictionaries and formats not to be compressed - used by all connections of this multi engine
+     */
+    ASAPCompression getCompression();
+
+    /**
+     * @return members of closed channels agree on group keys of those channels
+     */
+    ASAPGroupKeyService getGroupKeyService();
+
     void setASAPChunkReceivedListener(CharSequence appName, ASAPChunkReceivedListener listener) throws ASAPException;
 
     void addOnlinePeersChangedListener(ASAPOnlinePeersChangedListener listener);
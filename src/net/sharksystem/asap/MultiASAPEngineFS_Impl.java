@@ -1,26 +1,51 @@
 package net.sharksystem.asap;
 
+import net.sharksystem.asap.crypto.ASAPKeyStore;
+import net.sharksystem.asap.crypto.ASAPPayloadKeys;
+import net.sharksystem.asap.crypto.ASAPSignatureVerifier;
 import net.sharksystem.asap.management.ASAPManagementCreateASAPStorageMessage;
 import net.sharksystem.asap.management.ASAPManagementMessage;
+import net.sharksystem.asap.management.ASAPGroupKeyService;
 import net.sharksystem.asap.management.ASAPManagementMessageHandler;
 import net.sharksystem.asap.management.ASAPManagementStorage;
+import net.sharksystem.asap.metrics.ASAPConnectionMetrics;
+import net.sharksystem.asap.metrics.ASAPMetricsRegistry;
 import net.sharksystem.asap.protocol.*;
 import net.sharksystem.asap.util.Helper;
+import net.sharksystem.asap.util.Log;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.WeakReference;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class MultiASAPEngineFS_Impl implements
         MultiASAPEngineFS, ASAPConnectionListener, ThreadFinishedListener/*, ASAPChunkReceivedListener */ {
     private static final String DEFAULT_ASAP_MANAGEMENT_ENGINE_ROOTFOLDER = "ASAPManagement";
+    /** engines not used that long can be unloaded if memory runs low */
+    public static final long DEFAULT_MAX_ENGINE_IDLE_TIME = 5 * 60 * 1000;
+    /** memory is low if less than that part of max memory is available */
+    private static final double LOW_MEMORY_RATIO = 0.1;
     private final CharSequence rootFolderName;
     private final ASAPChunkReceivedListener listener;
     private CharSequence owner;
-    private HashMap<CharSequence, EngineSetting> folderMap;
+    private Map<CharSequence, EngineSetting> folderMap;
     private final long maxExecutionTime;
+    private final ASAPConnectionMetrics connectionMetrics = new ASAPConnectionMetrics();
+    private volatile ASAPEraPolicy eraPolicy = ASAPEraPolicies.perConnection();
+    private final ASAPEngineManifestFS manifest;
+    private long maxEngineIdleTime = DEFAULT_MAX_ENGINE_IDLE_TIME;
+    private volatile ASAPKeyStore keyStore = null;
+    /** shared by all connections - decoded keys and verified signatures are kept */
+    private volatile ASAPSignatureVerifier signatureVerifier = null;
+    /** shared by all connections - derived keys are kept */
+    private final ASAPPayloadKeys payloadKeys = new ASAPPayloadKeys();
+    /** shared by all connections */
+    private final ASAPCompression compression = new ASAPCompression();
+    private final ASAPGroupKeyService groupKeyService = new ASAPGroupKeyService(this);
 
     public static MultiASAPEngineFS createMultiEngine(CharSequence owner, CharSequence rootFolder, long maxExecutionTime,
                                                       ASAPChunkReceivedListener listener) throws ASAPException, IOException {
@@ -46,6 +71,8 @@ public class MultiASAPEngineFS_Impl implements
         this.rootFolderName = rootFolderName;
         this.listener = listener;
 
+        ASAPMetricsRegistry.register(this.connectionMetrics, ASAPMetricsRegistry.TYPE_CONNECTION, owner, null);
+
         File rootFolder = new File(rootFolderName.toString());
 
         if(!rootFolder.exists()) {
@@ -57,12 +84,14 @@ public class MultiASAPEngineFS_Impl implements
             throw new ASAPException("exists but is not a directory: " + rootFolderName);
         }
 
+        this.manifest = new ASAPEngineManifestFS(rootFolder);
+
         this.setupFolderMap();
 
         // check if management engine running
         if(!this.isASAPManagementEngineRunning()) {
             String fileName = rootFolderName + "/" + DEFAULT_ASAP_MANAGEMENT_ENGINE_ROOTFOLDER;
-            System.out.println(this.getLogStart() + "no asap management engine yet - set it up.");
+            if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "no asap management engine yet - set it up.");
             ASAPEngine asapManagementEngine = ASAPEngineFS.getASAPStorage(this.getOwner().toString(),
                     fileName, ASAP_1_0.ASAP_MANAGEMENT_FORMAT);
 
@@ -70,8 +99,9 @@ public class MultiASAPEngineFS_Impl implements
                     fileName, // folder
                     listener// listener
             );
-            setting.setASAPEngine(asapManagementEngine);
+            this.setEngine(setting, asapManagementEngine);
             this.folderMap.put(ASAP_1_0.ASAP_MANAGEMENT_FORMAT, setting);
+            this.manifest.save(this.folderMap);
         }
 
         // set listener to asap management app
@@ -81,34 +111,55 @@ public class MultiASAPEngineFS_Impl implements
         }
     }
 
+    /**
+     * Engines are not set up here - only their folders and formats are. Formats are taken from manifest.
+     * Memento of sub folders not yet in manifest are read.
+     */
     private void setupFolderMap() throws IOException, ASAPException {
-        this.folderMap = new HashMap<>();
+        this.folderMap = new ConcurrentHashMap<>();
         File rootFolder = new File(rootFolderName.toString());
 
-        System.out.println(this.getLogStart() + "setting up ASAPEngine based on subfolders in " + this.rootFolderName);
+        if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "setting up ASAPEngine based on subfolders in " + this.rootFolderName);
+        Map<String, String> folderFormats = this.manifest.restore();
+        boolean manifestChanged = false;
+
         File[] files = rootFolder.listFiles();
         for (File file : files) {
             if (file.isDirectory()) {
-                String fileName = file.getCanonicalPath();
-                System.out.println(this.getLogStart() + "setup engine for " + fileName);
-                ASAPEngine engine = ASAPEngineFS.getExistingASAPEngineFS(fileName);
+                String format = folderFormats.remove(file.getName());
+                if(format == null) {
+                    if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "folder not in manifest: " + file.getName());
+                    format = ASAPMementoFS.readFormat(file);
+                    manifestChanged = true;
+                }
+
+                if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "found engine folder " + file.getName() + " for " + format);
                 EngineSetting setting = new EngineSetting(
-                        rootFolderName + "/" + fileName, // folder
+                        rootFolderName + "/" + file.getName(), // folder
                         listener// listener
                 );
-                setting.setASAPEngine(engine);
-                this.folderMap.put(engine.format, setting);
+                this.folderMap.put(format, setting);
             }
         }
+
+        // folders removed meanwhile
+        if(!folderFormats.isEmpty()) manifestChanged = true;
+
+        if(manifestChanged) this.manifest.save(this.folderMap);
     }
 
     /**
-     * increase era for each engine
+     * increase era for each engine - engines not loaded catch up when loaded
      */
     public void newEra() throws IOException, ASAPException {
-        for(CharSequence format : this.folderMap.keySet()) {
-            ASAPEngine engine = this.getEngineByFormat(format);
-            engine.newEra();
+        for(EngineSetting setting : this.folderMap.values()) {
+            synchronized(setting) {
+                if(setting.engine == null) {
+                    setting.missedNewEra = true;
+                } else {
+                    setting.engine.newEra();
+                }
+            }
         }
     }
 
@@ -128,16 +179,109 @@ public class MultiASAPEngineFS_Impl implements
         return this.owner;
     }
 
+    @Override
     public ASAPEngine getEngineByFormat(CharSequence format) throws ASAPException, IOException {
+        return this.useEngineByFormat(format);
+    }
+
+    /**
+     * Engines are set up on first use. An unloaded engine which is still kept somewhere is used again.
+     * An engine catches up on era changes it missed while not loaded.
+     */
+    @Override
+    public ASAPEngine useEngineByFormat(CharSequence format) throws ASAPException, IOException {
         // get engine
         EngineSetting engineSetting = this.getEngineSettings(format);
-        ASAPEngine asapEngine = engineSetting.engine;
 
-        if (asapEngine == null) {
-            asapEngine = ASAPEngineFS.getASAPEngine(owner.toString(), engineSetting.folder.toString(), format);
-            engineSetting.setASAPEngine(asapEngine); // remember - keep that object
+        synchronized(engineSetting) {
+            engineSetting.lastUsed = System.currentTimeMillis();
+            ASAPEngine asapEngine = engineSetting.engine;
+
+            if (asapEngine == null) {
+                if(engineSetting.unloadedEngine != null) {
+                    asapEngine = engineSetting.unloadedEngine.get();
+                    engineSetting.unloadedEngine = null;
+                }
+
+                if(asapEngine == null) {
+                    if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "load engine for " + format);
+                    asapEngine = ASAPEngineFS.getASAPEngine(owner.toString(), engineSetting.folder.toString(), format);
+                }
+                this.setEngine(engineSetting, asapEngine); // remember - keep that object
+
+                if(engineSetting.missedNewEra) {
+                    asapEngine.newEra();
+                    engineSetting.missedNewEra = false;
+                    engineSetting.missedEraAnnouncement = null;
+                } else if(engineSetting.missedEraAnnouncement != null) {
+                    this.announceNewEra(asapEngine, engineSetting.missedEraAnnouncement, System.currentTimeMillis());
+                    engineSetting.missedEraAnnouncement = null;
+                }
+            }
+            return asapEngine;
         }
-        return asapEngine;
+    }
+
+    /**
+     * @return true if engine of that format is loaded
+     */
+    public boolean isEngineLoaded(CharSequence format) {
+        EngineSetting engineSetting = this.folderMap.get(format);
+        return engineSetting != null && engineSetting.engine != null;
+    }
+
+    /**
+     * @param maxIdleTime time after last use (milliseconds)
+     */
+    public void setMaxEngineIdleTime(long maxIdleTime) {
+        this.maxEngineIdleTime = maxIdleTime;
+    }
+
+    /**
+     * Unload engines not used for a while - they are loaded again on next use. Management engine, engines
+     * in a conversation with a peer and engines executing a pdu stay. Unloaded engines kept by someone
+     * are not loaded again but used again.
+     *
+     * @param maxIdleTime time after last use (milliseconds)
+     * @return number of unloaded engines
+     */
+    public int unloadIdleEngines(long maxIdleTime) {
+        long now = System.currentTimeMillis();
+        int unloaded = 0;
+        for(Map.Entry<CharSequence, EngineSetting> entry : this.folderMap.entrySet()) {
+            CharSequence format = entry.getKey();
+            if(ASAP_1_0.ASAP_MANAGEMENT_FORMAT.equals(format.toString())) continue;
+
+            EngineSetting setting = entry.getValue();
+            synchronized(setting) {
+                ASAPEngine engine = setting.engine;
+                if(engine == null || setting.isExecuting() || engine.hasActivePeers()
+                        || now - setting.lastUsed < maxIdleTime) continue;
+
+                try {
+                    engine.saveStatus();
+                } catch (IOException e) {
+                    Log.error(this.getLogStart() + "cannot save engine status - keep it loaded: " + format);
+                    continue;
+                }
+
+                setting.engine = null;
+                setting.unloadedEngine = new WeakReference<>(engine);
+                this.unregisterMetrics(engine);
+                unloaded++;
+            }
+        }
+
+        if(unloaded > 0 && Log.isDebugEnabled()) Log.debug(this.getLogStart() + "unloaded idle engines: " + unloaded);
+
+        return unloaded;
+    }
+
+    private boolean isMemoryLow() {
+        Runtime runtime = Runtime.getRuntime();
+        long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+
+        return available < runtime.maxMemory() * LOW_MEMORY_RATIO;
     }
 
     @Override
@@ -161,19 +305,62 @@ public class MultiASAPEngineFS_Impl implements
             }
         }
         catch(ASAPException e) {
-            System.out.println(this.getLogStart() + "engine does not yet exist. folder " + foldername);
+            if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "engine does not yet exist. folder " + foldername);
         }
 
-        System.out.println(this.getLogStart() + "setup engine with folder" + foldername);
+        if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "setup engine with folder" + foldername);
         ASAPEngine asapEngine = ASAPEngineFS.getASAPEngine(this.getOwner().toString(), foldername, format);
         // add to folderMap
         EngineSetting setting = new EngineSetting(foldername, this.listener);
-        setting.setASAPEngine(asapEngine);
+        this.setEngine(setting, asapEngine);
         this.folderMap.put(format, setting);
+        this.manifest.save(this.folderMap);
 
         return asapEngine;
     }
 
+    /**
+     * Remember engine and publish its metrics
+     */
+    private void setEngine(EngineSetting setting, ASAPEngine engine) {
+        setting.setASAPEngine(engine);
+        if(!ASAP_1_0.ASAP_MANAGEMENT_FORMAT.equals(engine.format)) engine.setGroupKeyService(this.groupKeyService);
+
+        ASAPMetricsRegistry.register(engine.getEngineMetrics(), ASAPMetricsRegistry.TYPE_ENGINE,
+                this.owner, engine.format);
+
+        if(engine instanceof ASAPEngineFS) {
+            ASAPMetricsRegistry.register(((ASAPEngineFS) engine).getStorageMetrics(),
+                    ASAPMetricsRegistry.TYPE_STORAGE, this.owner, engine.format);
+        }
+    }
+
+    private void unregisterMetrics(ASAPEngine engine) {
+        ASAPMetricsRegistry.unregister(engine.getEngineMetrics(), ASAPMetricsRegistry.TYPE_ENGINE,
+                this.owner, engine.format);
+
+        if(engine instanceof ASAPEngineFS) {
+            ASAPMetricsRegistry.unregister(((ASAPEngineFS) engine).getStorageMetrics(),
+                    ASAPMetricsRegistry.TYPE_STORAGE, this.owner, engine.format);
+        }
+    }
+
+    @Override
+    public void close() {
+        ASAPMetricsRegistry.unregister(this.connectionMetrics, ASAPMetricsRegistry.TYPE_CONNECTION,
+                this.owner, null);
+
+        for(EngineSetting setting : this.folderMap.values()) {
+            synchronized(setting) {
+                if(setting.engine != null) this.unregisterMetrics(setting.engine);
+            }
+        }
+    }
+
+    public ASAPConnectionMetrics getConnectionMetrics() {
+        return this.connectionMetrics;
+    }
+
     public EngineSetting getEngineSettings(CharSequence format) throws ASAPException {
         EngineSetting folderAndListener = folderMap.get(format);
         if(folderAndListener == null)
@@ -193,13 +380,15 @@ public class MultiASAPEngineFS_Impl implements
 
     public ASAPConnection handleConnection(InputStream is, OutputStream os) throws IOException, ASAPException {
         ASAPPersistentConnection asapConnection = new ASAPPersistentConnection(
-                is, os, this, new ASAP_Modem_Impl(),
-                maxExecutionTime, this, this);
+                is, os, this, this.createProtocol(),
+                maxExecutionTime, this, this, this.connectionMetrics);
 
-        StringBuilder sb = new StringBuilder();
-        sb.append(this.getLogStart());
-        sb.append("handleConnection: ask any asapStorage to increment era.");
-        System.out.println(sb.toString());
+        if(Log.isDebugEnabled()) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(this.getLogStart());
+            sb.append("handleConnection: ask any asapStorage to increment era.");
+            Log.debug(sb);
+        }
 
         // this.announceNewEra(); announce when connection is actually established
 
@@ -209,25 +398,102 @@ public class MultiASAPEngineFS_Impl implements
         // remember
         this.runningThreads.add(thread);
 
-        sb = new StringBuilder();
-        sb.append(this.getLogStart());
-        sb.append("launched new asapConnection thread, total number is now: ");
-        sb.append(this.runningThreads.size());
-        System.out.println(sb.toString());
+        if(Log.isDebugEnabled()) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(this.getLogStart());
+            sb.append("launched new asapConnection thread, total number is now: ");
+            sb.append(this.runningThreads.size());
+            Log.debug(sb);
+        }
 
         return asapConnection;
     }
 
     public void announceNewEra() throws IOException, ASAPException {
-        System.out.println(this.getLogStart() + "announce new era");
-        for(CharSequence format : this.folderMap.keySet()) {
-            ASAPStorage asapStorage = this.getEngineByFormat(format);
-            asapStorage.newEra();
+        if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "announce new era");
+        this.newEra();
+    }
+
+    @Override
+    public void setEraPolicy(ASAPEraPolicy policy) {
+        this.eraPolicy = policy != null ? policy : ASAPEraPolicies.perConnection();
+    }
+
+    public ASAPEraPolicy getEraPolicy() {
+        return this.eraPolicy;
+    }
+
+    @Override
+    public synchronized void setKeyStore(ASAPKeyStore keyStore) {
+        this.keyStore = keyStore;
+        this.signatureVerifier = keyStore != null ? new ASAPSignatureVerifier(keyStore) : null;
+    }
+
+    @Override
+    public ASAPKeyStore getKeyStore() {
+        return this.keyStore;
+    }
+
+    @Override
+    public void setGroupKey(byte[] groupKey) throws ASAPException {
+        this.payloadKeys.setGroupKey(groupKey);
+    }
+
+    @Override
+    public ASAPPayloadKeys getPayloadKeys() {
+        return this.payloadKeys;
+    }
+
+    @Override
+    public ASAPCompression getCompression() {
+        return this.compression;
+    }
+
+    @Override
+    public ASAPGroupKeyService getGroupKeyService() {
+        return this.groupKeyService;
+    }
+
+    private synchronized ASAP_1_0 createProtocol() {
+        return new ASAP_Modem_Impl(this.keyStore, this.signatureVerifier, this.payloadKeys, this.compression);
+    }
+
+    /**
+     * Let era policy decide which engine is to start a new era. Engines not loaded are not touched - they
+     * catch up when loaded.
+     */
+    private void announceNewEra(ASAPEraPolicy.Trigger trigger) throws IOException, ASAPException {
+        if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "announce new era: " + trigger);
+        long now = System.currentTimeMillis();
+        for(EngineSetting setting : this.folderMap.values()) {
+            synchronized(setting) {
+                if(setting.engine == null) {
+                    setting.missedEraAnnouncement = trigger;
+                } else {
+                    this.announceNewEra(setting.engine, trigger, now);
+                }
+            }
         }
     }
 
+    private void announceNewEra(ASAPEngine engine, ASAPEraPolicy.Trigger trigger, long now) {
+        // management messages are rare and must spread fast - not subject to a policy
+        if(ASAP_1_0.ASAP_MANAGEMENT_FORMAT.equals(engine.format)) {
+            engine.newEra();
+            return;
+        }
+
+        boolean contentChanged = engine.isContentChanged();
+        boolean newEra = this.eraPolicy.isNewEraRequired(engine, trigger, now);
+
+        // no decision at all if nothing changed
+        if(contentChanged) engine.getEngineMetrics().eraPolicyDecision(newEra);
+
+        if(newEra) engine.newEra();
+    }
+
     /** all running threads */
-    private List<Thread> runningThreads = new ArrayList<>();
+    private List<Thread> runningThreads = Collections.synchronizedList(new ArrayList<Thread>());
 
     @Override
     public void finished(Thread thread) {
@@ -235,17 +501,19 @@ public class MultiASAPEngineFS_Impl implements
             StringBuilder sb = new StringBuilder();
             sb.append(this.getLogStart());
             sb.append("finished thread cannot be null - do nothing");
-            System.err.println(sb.toString());
+            Log.error(sb.toString());
             return;
         }
 
         this.runningThreads.remove(thread);
 
-        StringBuilder sb = new StringBuilder();
-        sb.append(this.getLogStart());
-        sb.append("thread terminated - number of running threads is now: ");
-        sb.append(this.runningThreads.size());
-        System.out.println(sb.toString());
+        if(Log.isDebugEnabled()) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(this.getLogStart());
+            sb.append("thread terminated - number of running threads is now: ");
+            sb.append(this.runningThreads.size());
+            Log.debug(sb);
+        }
     }
 
     // thread connected to a peer
@@ -264,7 +532,7 @@ public class MultiASAPEngineFS_Impl implements
     @Override
     public boolean isASAPManagementEngineRunning() {
         try {
-            ASAPEngine engineByFormat = this.getEngineByFormat(ASAP_1_0.ASAP_MANAGEMENT_FORMAT);
+            ASAPEngine engineByFormat = this.useEngineByFormat(ASAP_1_0.ASAP_MANAGEMENT_FORMAT);
             if(engineByFormat == null) {
                 return false;
             }
@@ -277,11 +545,13 @@ public class MultiASAPEngineFS_Impl implements
 
     private void notifyOnlinePeersChangedListener() {
         if(!this.connectedThreads.isEmpty()) {
-            System.out.println(this.getLogStart()
-                    + "#online peers: " + this.connectedThreads.keySet().size()
-                    + " | " + Helper.collection2String(this.connectedThreads.keySet()));
+            if(Log.isDebugEnabled()) {
+                Log.debug(this.getLogStart()
+                        + "#online peers: " + this.connectedThreads.keySet().size()
+                        + " | " + Helper.collection2String(this.connectedThreads.keySet()));
+            }
         } else {
-            System.out.println(this.getLogStart() + "no (more) peers: ");
+            if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "no (more) peers: ");
         }
 
         if(this.onlinePeersChangedListeners != null) {
@@ -293,37 +563,41 @@ public class MultiASAPEngineFS_Impl implements
 
     public Set<CharSequence> getOnlinePeers() {
         if(!this.connectedThreads.isEmpty()) {
-            System.out.println(this.getLogStart()
-                    + "getOnlinePeers called | #online peers: " + this.connectedThreads.keySet().size()
-                    + " | " + Helper.collection2String(this.connectedThreads.keySet()));
+            if(Log.isDebugEnabled()) {
+                Log.debug(this.getLogStart()
+                        + "getOnlinePeers called | #online peers: " + this.connectedThreads.keySet().size()
+                        + " | " + Helper.collection2String(this.connectedThreads.keySet()));
+            }
         } else {
-            System.out.println(this.getLogStart() + "getOnlinePeers called | no (more) peers: ");
+            if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "getOnlinePeers called | no (more) peers: ");
         }
 
         return this.connectedThreads.keySet();
     }
 
     @Override
-    public void asapConnectionStarted(String peerName, ASAPConnection thread) {
+    public synchronized void asapConnectionStarted(String peerName, ASAPConnection thread) {
         if(thread == null) {
             StringBuilder sb = new StringBuilder();
             sb.append(this.getLogStart());
             sb.append("asap connection started but thread terminated cannot be null - do nothing");
-            System.err.println(sb.toString());
+            Log.error(sb.toString());
             return;
         }
 
         try {
-            this.announceNewEra();
+            this.announceNewEra(ASAPEraPolicy.Trigger.CONNECTION_STARTED);
         } catch (IOException | ASAPException e) {
-            System.err.println(this.getLogStart() + "could not announce new era: " + e.getLocalizedMessage());
+            Log.error(this.getLogStart() + "could not announce new era: " + e.getLocalizedMessage());
         }
 
-        StringBuilder sb = new StringBuilder();
-        sb.append(this.getLogStart());
-        sb.append("asap connection started, got a peername: ");
-        sb.append(peerName);
-        System.out.println(sb.toString());
+        if(Log.isDebugEnabled()) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(this.getLogStart());
+            sb.append("asap connection started, got a peername: ");
+            sb.append(peerName);
+            Log.debug(sb);
+        }
 
         this.connectedThreads.put(peerName, thread);
         this.threadPeerNames.put(thread, peerName);
@@ -336,7 +610,7 @@ public class MultiASAPEngineFS_Impl implements
             StringBuilder sb = new StringBuilder();
             sb.append(this.getLogStart());
             sb.append("terminated connection cannot be null - do nothing");
-            System.err.println(sb.toString());
+            Log.error(sb.toString());
             return;
         }
 
@@ -344,29 +618,42 @@ public class MultiASAPEngineFS_Impl implements
         CharSequence peerName = this.threadPeerNames.remove(thread);
         this.connectedThreads.remove(peerName);
 
-        StringBuilder sb = new StringBuilder();
-        sb.append(this.getLogStart());
-        sb.append("thread terminated connected to: ");
+        if(Log.isDebugEnabled()) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(this.getLogStart());
+            sb.append("thread terminated connected to: ");
 
-        if(peerName != null) {
-            sb.append(peerName);
-        } else {
-            sb.append("null");
-        }
+            if(peerName != null) {
+                sb.append(peerName);
+            } else {
+                sb.append("null");
+            }
 
-        System.out.println(sb.toString());
+            Log.debug(sb.toString());
+        }
 
         if(peerName != null) {
+            // session over - peer is allowed to start a new one
+            for(EngineSetting setting : this.folderMap.values()) {
+                if(setting.engine != null) {
+                    setting.engine.peerDisconnected(peerName);
+                }
+            }
+
             try {
-                this.announceNewEra();
+                this.announceNewEra(ASAPEraPolicy.Trigger.CONNECTION_TERMINATED);
             } catch (IOException | ASAPException e) {
-                System.err.println(this.getLogStart() + "error when announcing new era: " + e.getLocalizedMessage());
+                Log.error(this.getLogStart() + "error when announcing new era: " + e.getLocalizedMessage());
             }
 
+            if(this.isMemoryLow()) this.unloadIdleEngines(this.maxEngineIdleTime);
+
             this.notifyOnlinePeersChangedListener();
         } else {
-            System.out.println(this.getLogStart()
-                    + "asap connection terminated connected to nobody: don't change era / don't notify listeners");
+            if(Log.isDebugEnabled()) {
+                Log.debug(this.getLogStart()
+                        + "asap connection terminated connected to nobody: don't change era / don't notify listeners");
+            }
         }
     }
 
@@ -384,34 +671,46 @@ public class MultiASAPEngineFS_Impl implements
     //                                              ASAP management                                           //
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
+    /**
+     * Send a single handshake - it carries an interest for each format. Management format comes first.
+     * Channel subscriptions of engines are sent along - if any.
+     */
     public void pushInterests(OutputStream os) throws IOException, ASAPException {
-        ASAP_1_0 protocol = new ASAP_Modem_Impl();
-/*
-        // in any case: issue an interest for management information first
-        System.out.println(this.getLogStart() + "send interest on " + ASAP_1_0.ASAP_MANAGEMENT_FORMAT);
-        protocol.interest(this.owner, null, ASAP_1_0.ASAP_MANAGEMENT_FORMAT,null, -1, -1, os, false);
-*/
-        if(this.folderMap.size() > 0) {
-            System.out.println(this.getLogStart() + "start sending interest for apps/formats");
-        } else {
-            System.out.println(this.getLogStart() + "no more apps/formats on that engine - no interests to be sent");
-        }
+        ASAP_1_0 protocol = this.createProtocol();
+
+        List<CharSequence> formats = new ArrayList<>();
+        List<List<CharSequence>> channelPatterns = new ArrayList<>();
+        boolean subscribed = false;
 
         // management messages must be sent first - if any
-        try {
-            ASAPEngine managementEngine = this.getEngineByFormat(ASAP_1_0.ASAP_MANAGEMENT_FORMAT);
-            System.out.println(this.getLogStart() + "send interest for app/format: " + ASAP_1_0.ASAP_MANAGEMENT_FORMAT);
-            protocol.interest(this.owner, null, ASAP_1_0.ASAP_MANAGEMENT_FORMAT,null, -1, -1, os, false);
-        }
-        catch(Exception e) {
-            // ignore - engine does not exist
+        if(this.isASAPManagementEngineRunning()) {
+            formats.add(ASAP_1_0.ASAP_MANAGEMENT_FORMAT);
+            channelPatterns.add(null);
         }
+
         // issue an interest for each owner / format combination
-        for(CharSequence format : this.folderMap.keySet()) {
-            if(format.toString().equalsIgnoreCase(ASAP_1_0.ASAP_MANAGEMENT_FORMAT)) continue; // already sent
-            System.out.println(this.getLogStart() + "send interest for app/format: " + format);
-            protocol.interest(this.owner, null, format,null, -1, -1, os, false);
+        for(Map.Entry<CharSequence, EngineSetting> entry : this.folderMap.entrySet()) {
+            CharSequence format = entry.getKey();
+            if(format.toString().equalsIgnoreCase(ASAP_1_0.ASAP_MANAGEMENT_FORMAT)) continue; // already added
+            formats.add(format);
+
+            // subscriptions are kept with settings - engine need not be loaded
+            List<CharSequence> patterns = new ArrayList<CharSequence>(entry.getValue().channelSubscriptions);
+            channelPatterns.add(patterns);
+            if(!patterns.isEmpty()) subscribed = true;
+        }
+
+        if(Log.isDebugEnabled()) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(this.getLogStart());
+            sb.append("send handshake with interest for apps/formats: ");
+            sb.append(Helper.collection2String(formats));
+            Log.debug(sb);
         }
+
+        // no subscriptions - handshake as before
+        protocol.handshake(this.owner, ASAP_Modem_Impl.SUPPORTED_FEATURES, formats, null, null,
+                subscribed ? channelPatterns : null, os, false);
     }
 
     private String getLogStart() {
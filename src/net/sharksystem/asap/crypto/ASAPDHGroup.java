@@ -0,0 +1,107 @@
+package net.sharksystem.asap.crypto;
+
+import net.sharksystem.asap.ASAPException;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Diffie-Hellman group of group key agreement - RFC 3526 4096-bit MODP group, generator 2. Same as
+ * bigNumbersDrafts.
+ *
+ * Exponents are 512 bits. Keys agreed on are group elements - they are hashed (SHA-512) to be
+ * used as exponent in turn. Exponents of full group size would make any exponentiation some eight
+ * times more expensive - and would not be any more secure. Powers of g are precomputed, see
+ * {@link ASAPFixedBaseExponentiation}.
+ *
+ * @author thsc
+ */
+public class ASAPDHGroup {
+    /** RFC 3526, 4096-bit MODP group */
+    public static final BigInteger P = new BigInteger(
+            "104438888141315250667960271984652954583126906099213500902258875644433" +
+            "817202232269071044404666980978393011158573789036269186012707927049545" +
+            "451721867301692842745914600186688577976298222932119236830334623520436" +
+            "805101030915567415569746034717694639407653515728499489528482163370092" +
+            "181171673897245183497945589701030633346859075135836513878225037226911" +
+            "796898519432244453568741552200715163863814145617842062127782267499502" +
+            "799027867345862954439173691976629900551150544617766815444623488266596" +
+            "168079657690319911608934763494718777890652800800475669257166692296412" +
+            "256617458277670733245237100127216377684122931832490312574071357414100" +
+            "512456196591388889975346173534797001169325631675166067895083002751025" +
+            "580484610558346505544661509044430958305077580850929704003968005743534" +
+            "225392656624089819586363158888893636412992005930845566945403401039147" +
+            "823878418988859467233624276379513817635322284552464404009425896243361" +
+            "335403610464388192523848922401019419308891166616558422942466816544168" +
+            "892779046060826486420423771700205474433798894197466121469968970652154" +
+            "300626260453589099812575227594260877217437610731421774923304821790494" +
+            "440983623823577230674987439676046337648021513346133347839568274660824" +
+            "2585133953883882226786118030184028136755970045385534758453247");
+    public static final BigInteger G = BigInteger.valueOf(2);
+    public static final int EXPONENT_BITS = 512;
+
+    private static final String EXPONENT_DIGEST_ALGORITHM = "SHA-512";
+    private static final BigInteger P_MINUS_ONE = P.subtract(BigInteger.ONE);
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * @return random secret exponent
+     */
+    public static BigInteger createSecret() {
+        BigInteger secret;
+        do {
+            secret = new BigInteger(EXPONENT_BITS, random);
+        } while(secret.signum() == 0);
+
+        return secret;
+    }
+
+    /**
+     * @return g^exponent mod p - public
+     */
+    public static BigInteger blind(BigInteger exponent) {
+        return ASAPDHGroup.getGenerator().modPow(exponent);
+    }
+
+    /**
+     * @return g^exponent mod p of each exponent - computed in parallel
+     */
+    public static BigInteger[] blind(BigInteger[] exponents) {
+        return ASAPDHGroup.getGenerator().modPow(exponents);
+    }
+
+    /**
+     * @return precomputed powers of g - exponents are secrets or hashed keys, both no longer than
+     * EXPONENT_BITS
+     */
+    private static ASAPFixedBaseExponentiation getGenerator() {
+        return ASAPFixedBaseExponentiation.getInstance(G, P, EXPONENT_BITS);
+    }
+
+    /**
+     * @param blindedKey blinded key of other side
+     * @return exponent both sides agree on
+     */
+    public static BigInteger agree(BigInteger blindedKey, BigInteger exponent) throws ASAPException {
+        // 1 and p-1 would reveal key
+        if(blindedKey.compareTo(BigInteger.ONE) <= 0 || blindedKey.compareTo(P_MINUS_ONE) >= 0) {
+            throw new ASAPException("invalid blinded key");
+        }
+
+        return ASAPDHGroup.toExponent(blindedKey.modPow(exponent, P));
+    }
+
+    /**
+     * @return exponent made of a group element
+     */
+    public static BigInteger toExponent(BigInteger key) throws ASAPException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(EXPONENT_DIGEST_ALGORITHM);
+            return new BigInteger(1, digest.digest(key.toByteArray()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new ASAPException("no digest algorithm: " + EXPONENT_DIGEST_ALGORITHM);
+        }
+    }
+}
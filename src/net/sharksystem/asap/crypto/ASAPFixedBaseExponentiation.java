@@ -0,0 +1,210 @@
+package net.sharksystem.asap.crypto;
+
+import java.math.BigInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Exponentiation with a fixed base - g^e mod p. Powers of g are computed once: row i of table holds
+ * g^(j * 2^(w*i)) for any digit j of window width w. g^e is a product of one table entry per window of e -
+ * no squaring at all. Products are reduced with Barrett reduction: two multiplications instead of a division.
+ *
+ * Table is built with first exponentiation and kept with its engine - one engine per (g, p) and exponent size,
+ * see {@link #getInstance(BigInteger, BigInteger, int)}. Table takes (2^w - 1) * exponent bits / w numbers of p's
+ * size - some 1.7 MByte with a 4096-bit p, 512-bit exponents and default width. Larger exponents are computed
+ * with {@link BigInteger#modPow(BigInteger, BigInteger)}.
+ *
+ * Batches are computed on a fork-join pool shared by all engines.
+ *
+ * @author thsc
+ */
+public class ASAPFixedBaseExponentiation {
+    public static final int DEFAULT_WINDOW_BITS = 5;
+    /** batches are split down to this size */
+    static final int MIN_BATCH_SIZE = 2;
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private static final ConcurrentHashMap<EngineKey, ASAPFixedBaseExponentiation> engines =
+            new ConcurrentHashMap<>();
+
+    private final BigInteger base;
+    private final BigInteger modulus;
+    private final int maxExponentBits;
+    private final int windowBits;
+    private final int windows;
+    /** Barrett reduction: floor(2^(2k) / p), k bit length of p */
+    private final int k;
+    private final BigInteger mu;
+
+    private volatile BigInteger[][] table = null;
+
+    private static class EngineKey {
+        private final BigInteger base;
+        private final BigInteger modulus;
+        private final int maxExponentBits;
+
+        EngineKey(BigInteger base, BigInteger modulus, int maxExponentBits) {
+            this.base = base;
+            this.modulus = modulus;
+            this.maxExponentBits = maxExponentBits;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof EngineKey)) return false;
+            EngineKey other = (EngineKey) o;
+
+            return this.maxExponentBits == other.maxExponentBits
+                    && this.base.equals(other.base) && this.modulus.equals(other.modulus);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * this.base.hashCode() + this.modulus.hashCode()) + this.maxExponentBits;
+        }
+    }
+
+    /**
+     * @return engine of that base and modulus - created once, table is built with first use
+     */
+    public static ASAPFixedBaseExponentiation getInstance(BigInteger base, BigInteger modulus,
+                                                          int maxExponentBits) {
+
+        EngineKey key = new EngineKey(base, modulus, maxExponentBits);
+        ASAPFixedBaseExponentiation engine = engines.get(key);
+        if(engine == null) {
+            engine = new ASAPFixedBaseExponentiation(base, modulus, maxExponentBits, DEFAULT_WINDOW_BITS);
+            ASAPFixedBaseExponentiation existing = engines.putIfAbsent(key, engine);
+            if(existing != null) engine = existing;
+        }
+
+        return engine;
+    }
+
+    /**
+     * @param maxExponentBits larger exponents are not taken from table
+     * @param windowBits table rows have 2^windowBits - 1 entries
+     */
+    public ASAPFixedBaseExponentiation(BigInteger base, BigInteger modulus, int maxExponentBits, int windowBits) {
+        if(modulus.compareTo(BigInteger.ONE) <= 0) throw new ArithmeticException("modulus not positive");
+        if(windowBits < 1 || windowBits > 16) throw new IllegalArgumentException("window bits: " + windowBits);
+
+        this.base = base.mod(modulus);
+        this.modulus = modulus;
+        this.maxExponentBits = maxExponentBits;
+        this.windowBits = windowBits;
+        this.windows = (maxExponentBits + windowBits - 1) / windowBits;
+        this.k = modulus.bitLength();
+        this.mu = BigInteger.ONE.shiftLeft(2 * this.k).divide(modulus);
+    }
+
+    public BigInteger getBase() {
+        return this.base;
+    }
+
+    public BigInteger getModulus() {
+        return this.modulus;
+    }
+
+    /**
+     * @return x mod p - x must be less than p^2
+     */
+    private BigInteger reduce(BigInteger x) {
+        BigInteger q = x.shiftRight(this.k - 1).multiply(this.mu).shiftRight(this.k + 1);
+        BigInteger r = x.subtract(q.multiply(this.modulus));
+        while(r.compareTo(this.modulus) >= 0) r = r.subtract(this.modulus);
+
+        return r;
+    }
+
+    private BigInteger[][] getTable() {
+        BigInteger[][] table = this.table;
+        if(table != null) return table;
+
+        synchronized(this) {
+            if(this.table == null) {
+                int digits = 1 << this.windowBits;
+                table = new BigInteger[this.windows][digits];
+                BigInteger power = this.base; // g^(2^(w*i))
+                for(int i = 0; i < this.windows; i++) {
+                    table[i][1] = power;
+                    for(int j = 2; j < digits; j++) {
+                        table[i][j] = this.reduce(table[i][j - 1].multiply(power));
+                    }
+                    power = this.reduce(table[i][digits - 1].multiply(power));
+                }
+                this.table = table;
+            }
+
+            return this.table;
+        }
+    }
+
+    /**
+     * @return base^exponent mod p - same as base.modPow(exponent, p)
+     */
+    public BigInteger modPow(BigInteger exponent) {
+        if(exponent.signum() < 0 || exponent.bitLength() > this.maxExponentBits) {
+            return this.base.modPow(exponent, this.modulus);
+        }
+
+        BigInteger[][] table = this.getTable();
+        BigInteger result = null;
+        for(int i = 0; i < this.windows; i++) {
+            int digit = 0;
+            int offset = i * this.windowBits;
+            for(int bit = 0; bit < this.windowBits; bit++) {
+                if(exponent.testBit(offset + bit)) digit |= 1 << bit;
+            }
+
+            if(digit != 0) {
+                result = result == null ? table[i][digit] : this.reduce(result.multiply(table[i][digit]));
+            }
+        }
+
+        return result != null ? result : BigInteger.ONE.mod(this.modulus);
+    }
+
+    /**
+     * @return base^exponent mod p of each exponent - computed in parallel
+     */
+    public BigInteger[] modPow(BigInteger[] exponents) {
+        BigInteger[] results = new BigInteger[exponents.length];
+        if(exponents.length == 0) return results;
+
+        this.getTable(); // built once - not by each worker
+        POOL.invoke(new BatchAction(exponents, results, 0, exponents.length));
+
+        return results;
+    }
+
+    private class BatchAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final BigInteger[] exponents;
+        private final BigInteger[] results;
+        private final int from;
+        private final int to;
+
+        BatchAction(BigInteger[] exponents, BigInteger[] results, int from, int to) {
+            this.exponents = exponents;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(this.to - this.from <= MIN_BATCH_SIZE) {
+                for(int i = this.from; i < this.to; i++) {
+                    this.results[i] = ASAPFixedBaseExponentiation.this.modPow(this.exponents[i]);
+                }
+            } else {
+                int middle = (this.from + this.to) >>> 1;
+                invokeAll(new BatchAction(this.exponents, this.results, this.from, middle),
+                        new BatchAction(this.exponents, this.results, middle, this.to));
+            }
+        }
+    }
+}
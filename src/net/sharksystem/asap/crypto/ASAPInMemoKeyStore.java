@@ -0,0 +1,55 @@
+package net.sharksystem.asap.crypto;
+
+import net.sharksystem.asap.ASAPException;
+
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Key store kept in memory. A key pair is created with the store - public keys of other peers
+ * are to be added, e.g. after meeting them.
+ *
+ * @author thsc
+ */
+public class ASAPInMemoKeyStore implements ASAPKeyStore {
+    private final CharSequence owner;
+    private final KeyPair keyPair;
+    private final Map<String, byte[]> publicKeys = new ConcurrentHashMap<>();
+
+    public ASAPInMemoKeyStore(CharSequence owner) throws ASAPException {
+        this.owner = owner;
+        this.keyPair = ASAPSignatures.generateKeyPair();
+        this.publicKeys.put(owner.toString(), this.getPublicKey());
+    }
+
+    /**
+     * @return own public key - X.509 encoded
+     */
+    public byte[] getPublicKey() {
+        return this.keyPair.getPublic().getEncoded();
+    }
+
+    /**
+     * @param publicKey X.509 encoded - replaces a key known before
+     */
+    public void addPublicKey(CharSequence peer, byte[] publicKey) {
+        this.publicKeys.put(peer.toString(), publicKey);
+    }
+
+    @Override
+    public CharSequence getOwner() {
+        return this.owner;
+    }
+
+    @Override
+    public PrivateKey getPrivateKey() {
+        return this.keyPair.getPrivate();
+    }
+
+    @Override
+    public byte[] getPublicKey(CharSequence peer) {
+        return this.publicKeys.get(peer.toString());
+    }
+}
@@ -0,0 +1,24 @@
+package net.sharksystem.asap.crypto;
+
+import net.sharksystem.asap.ASAPException;
+
+import java.security.PrivateKey;
+
+/**
+ * Keys to sign pdus with and to verify signatures of other peers.
+ *
+ * @author thsc
+ */
+public interface ASAPKeyStore {
+    /**
+     * @return peer owning the private key - pdus are signed in its name
+     */
+    CharSequence getOwner();
+
+    PrivateKey getPrivateKey() throws ASAPException;
+
+    /**
+     * @return X.509 encoded public key of that peer - null if unknown
+     */
+    byte[] getPublicKey(CharSequence peer);
+}
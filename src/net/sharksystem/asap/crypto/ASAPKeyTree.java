@@ -0,0 +1,419 @@
+package net.sharksystem.asap.crypto;
+
+import net.sharksystem.asap.ASAPException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Key tree of a group - TGDH (Kim, Perrig, Tsudik: Tree-based Group Key Agreement). Members are leaves.
+ * A leaf key is a secret of its member. Both children of an inner node agree on its key - Diffie-Hellman
+ * with their blinded keys (g^key). Key of root is group key.
+ *
+ * Blinded keys are public. A member computes keys on its path to root - it needs blinded keys of
+ * siblings on that path. Adding or removing a member changes one path only: O(log n) exponentiations
+ * for any member.
+ *
+ * A node gets a blinded key from its sponsor - member of its rightmost leaf - or from sponsor of a
+ * membership change. That member sends it to all others. Any member computes same keys, merging trees of
+ * other members is conflict free.
+ *
+ * @author thsc
+ */
+public class ASAPKeyTree {
+    /** sanity check when reading a tree */
+    static final int MAX_MEMBERS = 4096;
+    static final int MAX_BLINDED_KEY_LENGTH = 1024;
+    private static final byte LEAF = 0;
+    private static final byte INNER = 1;
+
+    private Node root;
+    private final Map<String, Node> leaves = new HashMap<>();
+
+    private static class Node {
+        private final String member; // null: inner node
+        private Node parent = null;
+        private Node left = null;
+        private Node right = null;
+        private BigInteger blindedKey = null;
+        /** blinded key was set here - not sent yet */
+        private boolean changed = false;
+
+        Node(String member) {
+            this.member = member;
+        }
+
+        Node(Node left, Node right) {
+            this.member = null;
+            this.setChildren(left, right);
+        }
+
+        void setChildren(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+            left.parent = this;
+            right.parent = this;
+        }
+
+        boolean isLeaf() {
+            return this.member != null;
+        }
+
+        Node getSibling() {
+            return this.parent.left == this ? this.parent.right : this.parent.left;
+        }
+
+        Node getRightmostLeaf() {
+            Node node = this;
+            while(!node.isLeaf()) node = node.right;
+            return node;
+        }
+
+        int getHeight() {
+            return this.isLeaf() ? 0 : 1 + Math.max(this.left.getHeight(), this.right.getHeight());
+        }
+    }
+
+    /**
+     * Balanced tree - members sorted by name. Any member creates the very same tree of same members.
+     */
+    public ASAPKeyTree(Collection<? extends CharSequence> members) throws ASAPException {
+        if(members == null || members.isEmpty()) throw new ASAPException("key tree needs members");
+
+        Set<String> sorted = new TreeSet<>();
+        for(CharSequence member : members) sorted.add(member.toString());
+
+        List<Node> leaves = new ArrayList<>();
+        for(String member : sorted) {
+            Node leaf = new Node(member);
+            leaves.add(leaf);
+            this.leaves.put(member, leaf);
+        }
+
+        this.root = ASAPKeyTree.build(leaves, 0, leaves.size());
+    }
+
+    private ASAPKeyTree(Node root) throws ASAPException {
+        this.root = root;
+        this.addLeaves(root);
+    }
+
+    private void addLeaves(Node node) throws ASAPException {
+        if(node.isLeaf()) {
+            if(this.leaves.put(node.member, node) != null) {
+                throw new ASAPException("member twice in key tree: " + node.member);
+            }
+        } else {
+            this.addLeaves(node.left);
+            this.addLeaves(node.right);
+        }
+    }
+
+    private static Node build(List<Node> leaves, int from, int to) {
+        if(to - from == 1) return leaves.get(from);
+
+        int middle = from + (to - from + 1) / 2;
+        return new Node(ASAPKeyTree.build(leaves, from, middle), ASAPKeyTree.build(leaves, middle, to));
+    }
+
+    public Set<String> getMembers() {
+        return Collections.unmodifiableSet(new TreeSet<>(this.leaves.keySet()));
+    }
+
+    public boolean isMember(CharSequence member) {
+        return this.leaves.containsKey(member.toString());
+    }
+
+    public int getHeight() {
+        return this.root.getHeight();
+    }
+
+    /**
+     * Add a member - new leaf takes place of shallowest (rightmost) leaf which becomes its sibling. Tree
+     * stays balanced. Blinded keys on path of new member are gone - new member is to send them.
+     */
+    public void join(CharSequence member) throws ASAPException {
+        String name = member.toString();
+        if(this.leaves.containsKey(name)) throw new ASAPException("already member of key tree: " + member);
+
+        // level order - last leaf of first level with leaves
+        Node insertion = null;
+        List<Node> level = Collections.singletonList(this.root);
+        while(insertion == null) {
+            List<Node> nextLevel = new ArrayList<>();
+            for(Node node : level) {
+                if(node.isLeaf()) {
+                    insertion = node;
+                } else {
+                    nextLevel.add(node.left);
+                    nextLevel.add(node.right);
+                }
+            }
+            level = nextLevel;
+        }
+
+        Node parent = insertion.parent;
+        Node leaf = new Node(name);
+        Node inner = new Node(insertion, leaf);
+        this.replace(parent, insertion, inner);
+        this.leaves.put(name, leaf);
+
+        ASAPKeyTree.invalidatePath(leaf);
+    }
+
+    /**
+     * Remove a member - its sibling takes place of their parent. Blinded keys on path of sponsor are gone.
+     * Sponsor chooses a new secret - removed member cannot compute any key on that path.
+     *
+     * @return sponsor - member of rightmost leaf below sibling
+     */
+    public String leave(CharSequence member) throws ASAPException {
+        Node leaf = this.leaves.get(member.toString());
+        if(leaf == null) throw new ASAPException("not member of key tree: " + member);
+        if(leaf == this.root) throw new ASAPException("last member cannot leave key tree: " + member);
+
+        Node sibling = leaf.getSibling();
+        this.replace(leaf.parent.parent, leaf.parent, sibling);
+        this.leaves.remove(member.toString());
+
+        Node sponsor = sibling.getRightmostLeaf();
+        ASAPKeyTree.invalidatePath(sponsor);
+
+        return sponsor.member;
+    }
+
+    private void replace(Node parent, Node oldChild, Node newChild) {
+        if(parent == null) {
+            this.root = newChild;
+            newChild.parent = null;
+        } else if(parent.left == oldChild) {
+            parent.setChildren(newChild, parent.right);
+        } else {
+            parent.setChildren(parent.left, newChild);
+        }
+    }
+
+    private static void invalidatePath(Node node) {
+        for(; node != null; node = node.parent) {
+            node.blindedKey = null;
+            node.changed = false;
+        }
+    }
+
+    /**
+     * Compute keys on path of that member up to root. Blinded keys are set on the way - if not known yet and
+     * member is sponsor of that node or of membership change. Stops at first sibling without blinded key.
+     *
+     * @param secret secret of member leaf
+     * @param sponsor sponsor of last membership change - can be null
+     * @return key of root - null if it cannot be computed yet
+     */
+    public BigInteger computeKey(CharSequence member, BigInteger secret, CharSequence sponsor)
+            throws ASAPException {
+
+        Node leaf = this.leaves.get(member.toString());
+        if(leaf == null) throw new ASAPException("not member of key tree: " + member);
+        boolean changeSponsor = sponsor != null && leaf.member.equals(sponsor.toString());
+
+        Node node = leaf;
+        BigInteger key = secret;
+        while(true) {
+            // root blinded key is of no use
+            if(node.blindedKey == null && node.parent != null
+                    && (changeSponsor || node.getRightmostLeaf() == leaf)) {
+                node.blindedKey = ASAPDHGroup.blind(key);
+                node.changed = true;
+            }
+
+            if(node.parent == null) return key;
+
+            Node sibling = node.getSibling();
+            if(sibling.blindedKey == null) return null;
+
+            key = ASAPDHGroup.agree(sibling.blindedKey, key);
+            node = node.parent;
+        }
+    }
+
+    /**
+     * @return group key made of root key - e.g. to encrypt payloads with, see {@link ASAPPayloadKeys}
+     */
+    public static byte[] getGroupKey(BigInteger rootKey) throws ASAPException {
+        return ASAPSignatures.createMessageDigest().digest(rootKey.toByteArray());
+    }
+
+    /**
+     * Take blinded keys not known yet from tree of another member - those it is sponsor of only: nodes
+     * with its rightmost leaf or, if it is sponsor of membership change, nodes on its path.
+     *
+     * @param sender member that sent other tree
+     * @param sponsor sponsor of last membership change - can be null
+     * @return true if a blinded key was added
+     * @throws ASAPException if trees differ or sender is not sponsor of a blinded key
+     */
+    public boolean merge(ASAPKeyTree other, CharSequence sender, CharSequence sponsor) throws ASAPException {
+        if(!ASAPKeyTree.sameStructure(this.root, other.root)) throw new ASAPException("key trees differ");
+
+        Node leaf = this.leaves.get(sender.toString());
+        if(leaf == null) throw new ASAPException("not member of key tree: " + sender);
+        boolean changeSponsor = sponsor != null && leaf.member.equals(sponsor.toString());
+
+        ASAPKeyTree.checkSponsor(this.root, other.root, leaf, changeSponsor);
+
+        return ASAPKeyTree.merge(this.root, other.root);
+    }
+
+    private static void checkSponsor(Node node, Node other, Node leaf, boolean changeSponsor)
+            throws ASAPException {
+
+        if(node.blindedKey == null && other.blindedKey != null && node.getRightmostLeaf() != leaf
+                && !(changeSponsor && ASAPKeyTree.isBelow(leaf, node))) {
+            throw new ASAPException("blinded key not sent by sponsor of its node: " + leaf.member);
+        }
+
+        if(!node.isLeaf()) {
+            checkSponsor(node.left, other.left, leaf, changeSponsor);
+            checkSponsor(node.right, other.right, leaf, changeSponsor);
+        }
+    }
+
+    private static boolean isBelow(Node leaf, Node node) {
+        for(Node n = leaf; n != null; n = n.parent) {
+            if(n == node) return true;
+        }
+
+        return false;
+    }
+
+    private static boolean sameStructure(Node a, Node b) {
+        if(a.isLeaf() || b.isLeaf()) return a.isLeaf() && b.isLeaf() && a.member.equals(b.member);
+
+        return sameStructure(a.left, b.left) && sameStructure(a.right, b.right);
+    }
+
+    private static boolean merge(Node node, Node other) {
+        boolean added = false;
+        if(node.blindedKey == null && other.blindedKey != null) {
+            node.blindedKey = other.blindedKey;
+            added = true;
+        }
+
+        if(!node.isLeaf()) {
+            added |= merge(node.left, other.left);
+            added |= merge(node.right, other.right);
+        }
+
+        return added;
+    }
+
+    /**
+     * @return true if blinded keys were set by {@link #computeKey(CharSequence, BigInteger, CharSequence)}
+     * since last call of {@link #clearChanges()}
+     */
+    public boolean hasChanges() {
+        return ASAPKeyTree.hasChanges(this.root);
+    }
+
+    private static boolean hasChanges(Node node) {
+        if(node.changed) return true;
+
+        return !node.isLeaf() && (hasChanges(node.left) || hasChanges(node.right));
+    }
+
+    public void clearChanges() {
+        ASAPKeyTree.clearChanges(this.root);
+    }
+
+    private static void clearChanges(Node node) {
+        node.changed = false;
+        if(!node.isLeaf()) {
+            clearChanges(node.left);
+            clearChanges(node.right);
+        }
+    }
+
+    /**
+     * Nodes in pre-order: LEAF | member (UTF) | blinded key or INNER | blinded key. Blinded key: length
+     * (short) | bytes - length 0: unknown.
+     *
+     * @param changesOnly blinded keys set since last {@link #clearChanges()} only - tree structure is
+     *                    written anyway
+     */
+    public void write(DataOutputStream dos, boolean changesOnly) throws IOException {
+        ASAPKeyTree.write(this.root, dos, changesOnly);
+    }
+
+    private static void write(Node node, DataOutputStream dos, boolean changesOnly) throws IOException {
+        dos.writeByte(node.isLeaf() ? LEAF : INNER);
+        if(node.isLeaf()) dos.writeUTF(node.member);
+
+        BigInteger blindedKey = changesOnly && !node.changed ? null : node.blindedKey;
+        if(blindedKey == null) {
+            dos.writeShort(0);
+        } else {
+            byte[] bytes = blindedKey.toByteArray();
+            dos.writeShort(bytes.length);
+            dos.write(bytes);
+        }
+
+        if(!node.isLeaf()) {
+            write(node.left, dos, changesOnly);
+            write(node.right, dos, changesOnly);
+        }
+    }
+
+    public static ASAPKeyTree read(DataInputStream dis) throws IOException, ASAPException {
+        return new ASAPKeyTree(ASAPKeyTree.read(dis, new int[1]));
+    }
+
+    /**
+     * @param leaves number of leaves read so far
+     */
+    private static Node read(DataInputStream dis, int[] leaves) throws IOException, ASAPException {
+        byte type = dis.readByte();
+        Node node;
+        switch(type) {
+            case LEAF:
+                if(++leaves[0] > MAX_MEMBERS) throw new ASAPException("too many members in key tree");
+                node = new Node(dis.readUTF());
+                break;
+            case INNER:
+                node = new Node(null);
+                break;
+            default: throw new ASAPException("malformed key tree - unknown node type: " + type);
+        }
+
+        int length = dis.readUnsignedShort();
+        if(length > MAX_BLINDED_KEY_LENGTH) throw new ASAPException("blinded key too long: " + length);
+        if(length > 0) {
+            byte[] bytes = new byte[length];
+            dis.readFully(bytes);
+            node.blindedKey = new BigInteger(1, bytes);
+        }
+
+        if(type == INNER) {
+            Node left = read(dis, leaves);
+            Node right = read(dis, leaves);
+            node = ASAPKeyTree.withChildren(node, left, right);
+        }
+
+        return node;
+    }
+
+    private static Node withChildren(Node node, Node left, Node right) {
+        Node inner = new Node(left, right);
+        inner.blindedKey = node.blindedKey;
+
+        return inner;
+    }
+}
@@ -0,0 +1,191 @@
+package net.sharksystem.asap.crypto;
+
+import net.sharksystem.asap.ASAPException;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keys to encrypt assimilate payloads with. Each (channel, era) has a key of its own - derived from a
+ * group key shared by all members (HKDF with SHA-256, RFC 5869). Derived keys are kept - streaming
+ * a chunk takes a map lookup, no derivation.
+ *
+ * There is a group key for any channel or none. Closed channels can have a group key of their own,
+ * see ASAPGroupKeyService. Payloads of channels without a group key are sent in clear. A new group key
+ * replaces the old one. Old one is kept to decrypt payloads sent before other side got new key - it is gone
+ * with next one.
+ *
+ * @author thsc
+ */
+public class ASAPPayloadKeys {
+    public static final String CIPHER_ALGORITHM = "AES";
+    public static final int KEY_LENGTH = 16;
+    /** group key id - receivers tell a payload encrypted with another group key from a broken one */
+    public static final int KEY_ID_LENGTH = 4;
+    static final int MIN_GROUP_KEY_LENGTH = 16;
+    static final int MAX_KEYS = 1024;
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final byte[] SALT = "asap payload key".getBytes(StandardCharsets.UTF_8);
+
+    private volatile GroupKey defaultKey = null;
+    private volatile GroupKey previousDefaultKey = null;
+    private final Map<String, GroupKey> channelKeys = new ConcurrentHashMap<>();
+    private final Map<String, GroupKey> previousChannelKeys = new ConcurrentHashMap<>();
+
+    /**
+     * Group key and keys derived from it.
+     */
+    public static class GroupKey {
+        private final byte[] pseudoRandomKey;
+        private final byte[] keyID;
+        private final Map<String, SecretKey> keys = new LinkedHashMap<String, SecretKey>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SecretKey> eldest) {
+                return this.size() > MAX_KEYS;
+            }
+        };
+
+        GroupKey(byte[] groupKey) throws ASAPException {
+            if(groupKey == null || groupKey.length < MIN_GROUP_KEY_LENGTH) {
+                throw new ASAPException("group key must have at least " + MIN_GROUP_KEY_LENGTH + " bytes");
+            }
+
+            // HKDF extract
+            this.pseudoRandomKey = ASAPPayloadKeys.hmac(SALT, groupKey);
+            this.keyID = Arrays.copyOf(
+                    ASAPSignatures.createMessageDigest().digest(this.pseudoRandomKey), KEY_ID_LENGTH);
+        }
+
+        public byte[] getKeyID() {
+            return this.keyID.clone();
+        }
+
+        boolean hasKeyID(byte[] keyID) {
+            return MessageDigest.isEqual(this.keyID, keyID);
+        }
+
+        /**
+         * @param channel can be null
+         * @return key of that channel and era - derived when used first
+         */
+        public SecretKey getKey(CharSequence channel, int era) throws ASAPException {
+            String info = (channel != null ? channel.toString() : "") + '|' + era;
+
+            synchronized(this.keys) {
+                SecretKey key = this.keys.get(info);
+                if(key != null) return key;
+            }
+
+            // HKDF expand - first block is long enough
+            byte[] t = info.getBytes(StandardCharsets.UTF_8);
+            t = Arrays.copyOf(t, t.length + 1);
+            t[t.length - 1] = 1;
+            SecretKey key = new SecretKeySpec(ASAPPayloadKeys.hmac(this.pseudoRandomKey, t), 0, KEY_LENGTH,
+                    CIPHER_ALGORITHM);
+
+            synchronized(this.keys) {
+                this.keys.put(info, key);
+            }
+
+            return key;
+        }
+    }
+
+    /**
+     * No group key yet - payloads are sent in clear.
+     */
+    public ASAPPayloadKeys() {
+    }
+
+    /**
+     * @param groupKey group key of any channel - at least 16 bytes
+     */
+    public ASAPPayloadKeys(byte[] groupKey) throws ASAPException {
+        this.setGroupKey(groupKey);
+    }
+
+    private static byte[] hmac(byte[] key, byte[] data) throws ASAPException {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+            return mac.doFinal(data);
+        } catch (GeneralSecurityException e) {
+            throw new ASAPException("cannot derive payload key: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * @param groupKey group key of any channel without a key of its own - null: none
+     */
+    public synchronized void setGroupKey(byte[] groupKey) throws ASAPException {
+        GroupKey newKey = groupKey != null ? new GroupKey(groupKey) : null;
+        this.previousDefaultKey = newKey != null ? this.defaultKey : null;
+        this.defaultKey = newKey;
+    }
+
+    /**
+     * @param groupKey group key of that channel only - null: channel has no key of its own
+     */
+    public synchronized void setChannelGroupKey(CharSequence channel, byte[] groupKey) throws ASAPException {
+        if(groupKey == null) {
+            this.channelKeys.remove(channel.toString());
+            this.previousChannelKeys.remove(channel.toString());
+        } else {
+            GroupKey previousKey = this.channelKeys.put(channel.toString(), new GroupKey(groupKey));
+            if(previousKey != null) this.previousChannelKeys.put(channel.toString(), previousKey);
+        }
+    }
+
+    /**
+     * @param channel can be null
+     * @return group key of that channel - null if there is none
+     */
+    public GroupKey getGroupKey(CharSequence channel) {
+        GroupKey groupKey = channel != null ? this.channelKeys.get(channel.toString()) : null;
+
+        return groupKey != null ? groupKey : this.defaultKey;
+    }
+
+    /**
+     * @param channel can be null
+     * @param keyID id of group key a payload was encrypted with
+     * @return group key of that channel with that id - current or previous one, null if there is none
+     */
+    public GroupKey getGroupKey(CharSequence channel, byte[] keyID) {
+        GroupKey groupKey = this.getGroupKey(channel);
+        if(groupKey != null && groupKey.hasKeyID(keyID)) return groupKey;
+
+        groupKey = channel != null ? this.previousChannelKeys.get(channel.toString()) : null;
+        if(groupKey != null && groupKey.hasKeyID(keyID)) return groupKey;
+
+        groupKey = this.previousDefaultKey;
+        return groupKey != null && groupKey.hasKeyID(keyID) ? groupKey : null;
+    }
+
+    /**
+     * @return true if payloads of that channel are encrypted
+     */
+    public boolean hasKey(CharSequence channel) {
+        return this.getGroupKey(channel) != null;
+    }
+
+    /**
+     * @return key of that channel and era
+     * @throws ASAPException if channel has no group key
+     */
+    public SecretKey getKey(CharSequence channel, int era) throws ASAPException {
+        GroupKey groupKey = this.getGroupKey(channel);
+        if(groupKey == null) throw new ASAPException("no group key of channel: " + channel);
+
+        return groupKey.getKey(channel, era);
+    }
+}
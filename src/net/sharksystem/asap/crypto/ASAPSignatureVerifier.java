@@ -0,0 +1,178 @@
+package net.sharksystem.asap.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifies signatures of received pdus. Readers digest a pdu while reading it - payload is written to
+ * disk meanwhile. Signature check itself is queued - a worker pool shared by all verifiers does it.
+ * Readers go ahead, a pdu is checked before it is executed.
+ *
+ * Public keys are decoded once per peer. Pdus already verified are remembered by digest of signed content,
+ * signature and signer - same content is not checked again. Chunks are signed by their origin - same chunk
+ * relayed by another peer comes with same content digest and signature and is not checked again.
+ * Anything is kept in memory - bounded, least recently used entries are dropped.
+ *
+ * @author thsc
+ */
+public class ASAPSignatureVerifier {
+    static final int MAX_PUBLIC_KEYS = 1024;
+    static final int MAX_VERIFIED = 4096;
+
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ASAPSignatureVerifier");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final ASAPKeyStore keyStore;
+    private final Map<String, DecodedKey> publicKeys = ASAPSignatureVerifier.createLRUMap(MAX_PUBLIC_KEYS);
+    private final Map<String, Boolean> verified = ASAPSignatureVerifier.createLRUMap(MAX_VERIFIED);
+    private final AtomicLong verifications = new AtomicLong();
+
+    private static class DecodedKey {
+        private final byte[] encoded;
+        private final PublicKey key;
+
+        DecodedKey(byte[] encoded, PublicKey key) {
+            this.encoded = encoded;
+            this.key = key;
+        }
+    }
+
+    public ASAPSignatureVerifier(ASAPKeyStore keyStore) {
+        this.keyStore = keyStore;
+    }
+
+    private static <V> Map<String, V> createLRUMap(final int maxEntries) {
+        return new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return this.size() > maxEntries;
+            }
+        };
+    }
+
+    private static void appendHex(StringBuilder sb, byte[] bytes) {
+        for(byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+    }
+
+    public ASAPKeyStore getKeyStore() {
+        return this.keyStore;
+    }
+
+    /**
+     * @return number of signatures actually checked - remembered ones are not counted
+     */
+    public long getVerifications() {
+        return this.verifications.get();
+    }
+
+    /**
+     * @return public key of that peer - null if unknown. Decoded when used first or changed in key store.
+     */
+    PublicKey getPublicKey(CharSequence peer) throws GeneralSecurityException {
+        byte[] encoded = this.keyStore.getPublicKey(peer);
+        if(encoded == null) return null;
+
+        synchronized(this.publicKeys) {
+            DecodedKey decodedKey = this.publicKeys.get(peer.toString());
+            if(decodedKey != null && Arrays.equals(decodedKey.encoded, encoded)) return decodedKey.key;
+        }
+
+        PublicKey key = KeyFactory.getInstance(ASAPSignatures.KEY_ALGORITHM)
+                .generatePublic(new X509EncodedKeySpec(encoded));
+
+        synchronized(this.publicKeys) {
+            this.publicKeys.put(peer.toString(), new DecodedKey(encoded, key));
+        }
+
+        return key;
+    }
+
+    /**
+     * Queue a signature check.
+     * @param digest digest of signed content
+     * @return true if signature is valid - false if invalid or signer is unknown
+     */
+    public Future<Boolean> verify(final CharSequence signer, final byte[] digest, final byte[] signature) {
+        // signature is valid for key of that signer only
+        StringBuilder sb = new StringBuilder();
+        ASAPSignatureVerifier.appendHex(sb, digest);
+        sb.append('|');
+        ASAPSignatureVerifier.appendHex(sb, signature);
+        sb.append('|');
+        sb.append(signer);
+        final String key = sb.toString();
+
+        boolean known;
+        synchronized(this.verified) {
+            known = this.verified.containsKey(key);
+        }
+
+        FutureTask<Boolean> task = new FutureTask<>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return ASAPSignatureVerifier.this.check(key, signer, digest, signature);
+            }
+        });
+
+        if(known) {
+            // nothing to wait for
+            task.run();
+        } else {
+            WORKERS.execute(task);
+        }
+
+        return task;
+    }
+
+    private boolean check(String key, CharSequence signer, byte[] digest, byte[] signature) {
+        synchronized(this.verified) {
+            if(this.verified.containsKey(key)) return true;
+        }
+
+        this.verifications.incrementAndGet();
+        boolean valid;
+        try {
+            PublicKey publicKey = this.getPublicKey(signer);
+            if(publicKey == null) return false;
+
+            Signature verifier = Signature.getInstance(ASAPSignatures.SIGNATURE_ALGORITHM);
+            verifier.initVerify(publicKey);
+            verifier.update(digest);
+            valid = verifier.verify(signature);
+        } catch (GeneralSecurityException e) {
+            // malformed key or signature
+            return false;
+        }
+
+        if(valid) {
+            synchronized(this.verified) {
+                this.verified.put(key, Boolean.TRUE);
+            }
+        }
+
+        return valid;
+    }
+}
@@ -0,0 +1,68 @@
+package net.sharksystem.asap.crypto;
+
+import net.sharksystem.asap.ASAPException;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+
+/**
+ * Algorithms used with signed pdus. Senders digest a pdu while writing it and sign that digest -
+ * ECDSA on curve P-256 with SHA-256. Receivers digest while reading and verify later, see
+ * {@link ASAPSignatureVerifier}.
+ *
+ * @author thsc
+ */
+public class ASAPSignatures {
+    public static final String KEY_ALGORITHM = "EC";
+    public static final int KEY_SIZE = 256;
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+    /** digest is calculated beforehand - same as SHA256withECDSA */
+    public static final String SIGNATURE_ALGORITHM = "NONEwithECDSA";
+
+    static {
+        // first lookup of a provider takes a while - better when class is loaded than in an encounter
+        try {
+            MessageDigest.getInstance(DIGEST_ALGORITHM).digest();
+            Signature.getInstance(SIGNATURE_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // reported when used
+        }
+    }
+
+    public static KeyPair generateKeyPair() throws ASAPException {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+            generator.initialize(KEY_SIZE);
+            return generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new ASAPException("cannot create key pair: " + e.getLocalizedMessage());
+        }
+    }
+
+    public static MessageDigest createMessageDigest() throws ASAPException {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new ASAPException("no digest algorithm: " + DIGEST_ALGORITHM);
+        }
+    }
+
+    /**
+     * @param digest digest of signed content
+     */
+    public static byte[] sign(PrivateKey privateKey, byte[] digest) throws ASAPException {
+        try {
+            Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+            signature.initSign(privateKey);
+            signature.update(digest);
+            return signature.sign();
+        } catch (GeneralSecurityException e) {
+            throw new ASAPException("cannot sign: " + e.getLocalizedMessage());
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package net.sharksystem.asap.jfr;
+
+/**
+ * A traced operation. It starts when created by ASAPTracing and ends with end().
+ * All ASAP events carry the same attributes - unknown ones are null or -1.
+ */
+public interface ASAPTrace {
+    /**
+     * @param peer remote peer or sender
+     * @param format asap format / app
+     * @param uri channel
+     * @param era era
+     * @param bytes number of transferred / written bytes
+     */
+    void end(CharSequence peer, CharSequence format, CharSequence uri, int era, long bytes);
+}
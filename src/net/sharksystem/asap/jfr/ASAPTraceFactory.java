@@ -0,0 +1,19 @@
+package net.sharksystem.asap.jfr;
+
+/**
+ * Hands out traces of a tracing backend - flight recorder events live in source folder jfr,
+ * see ASAPTracing.
+ */
+interface ASAPTraceFactory {
+    ASAPTrace pduRead();
+
+    ASAPTrace pduSend();
+
+    ASAPTrace chunkAppend();
+
+    ASAPTrace eraChange();
+
+    ASAPTrace chunkSend();
+
+    ASAPTrace streamLockWait();
+}
@@ -0,0 +1,82 @@
+package net.sharksystem.asap.jfr;
+
+/**
+ * Emits JDK Flight Recorder events. Events cost next to nothing if no recording is running,
+ * they can be left on in production. Start a recording e.g. with
+ *
+ * <pre>
+ * java -XX:StartFlightRecording=filename=asap.jfr ...
+ * jfr print --categories ASAP asap.jfr
+ * </pre>
+ *
+ * There is no flight recorder on Android and older JVMs. Events live in source folder jfr - it is
+ * compiled with JDKs having jdk.jfr only. That class binds them reflectively, once. Without
+ * flight recorder or without those events, it hands out a trace which does nothing at all.
+ * Tracing can also be switched off with system property asap.jfr=false.
+ *
+ * <pre>
+ * ASAPTrace trace = ASAPTracing.chunkAppend();
+ * ... work ...
+ * trace.end(peer, format, uri, era, bytes);
+ * </pre>
+ */
+public class ASAPTracing {
+    public static final String JFR_PROPERTY = "asap.jfr";
+
+    private static final ASAPTrace NO_TRACE = new ASAPTrace() {
+        @Override
+        public void end(CharSequence peer, CharSequence format, CharSequence uri, int era, long bytes) { }
+    };
+
+    private static final String EVENT_FACTORY = "net.sharksystem.asap.jfr.ASAPEvent$Factory";
+
+    /** null: no tracing */
+    private static final ASAPTraceFactory FACTORY = ASAPTracing.loadFactory();
+    private static final boolean ENABLED = FACTORY != null;
+
+    private static ASAPTraceFactory loadFactory() {
+        try {
+            if("false".equalsIgnoreCase(System.getProperty(JFR_PROPERTY))) return null;
+            Class.forName("jdk.jfr.Event");
+            return (ASAPTraceFactory) Class.forName(EVENT_FACTORY).getDeclaredConstructor().newInstance();
+        }
+        catch(Throwable t) {
+            // no flight recorder on this platform - or events not compiled
+            return null;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /** decoding a PDU - starts after command byte arrived, waiting for data is not included */
+    public static ASAPTrace pduRead() {
+        return ENABLED ? FACTORY.pduRead() : NO_TRACE;
+    }
+
+    /** encoding and sending an assimilate PDU including its data */
+    public static ASAPTrace pduSend() {
+        return ENABLED ? FACTORY.pduSend() : NO_TRACE;
+    }
+
+    /** writing a message into a chunk */
+    public static ASAPTrace chunkAppend() {
+        return ENABLED ? FACTORY.chunkAppend() : NO_TRACE;
+    }
+
+    /** engine changes its era */
+    public static ASAPTrace eraChange() {
+        return ENABLED ? FACTORY.eraChange() : NO_TRACE;
+    }
+
+    /** engine sends chunks to a peer */
+    public static ASAPTrace chunkSend() {
+        return ENABLED ? FACTORY.chunkSend() : NO_TRACE;
+    }
+
+    /** thread waits for exclusive access to connection streams */
+    public static ASAPTrace streamLockWait() {
+        return ENABLED ? FACTORY.streamLockWait() : NO_TRACE;
+    }
+}
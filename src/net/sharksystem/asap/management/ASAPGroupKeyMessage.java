@@ -0,0 +1,80 @@
+package net.sharksystem.asap.management;
+
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.crypto.ASAPKeyTree;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Key tree of a closed channel - sent with asap management format, see {@link ASAPGroupKeyService}.
+ *
+ * format | channel uri | owner | epoch | sponsor | key tree
+ *
+ * Epoch is incremented by owner with any membership change. Sponsor of that change is empty if there is none.
+ */
+public class ASAPGroupKeyMessage {
+    private final CharSequence format;
+    private final CharSequence channelUri;
+    private final CharSequence owner;
+    private final int epoch;
+    private final CharSequence sponsor;
+    private final ASAPKeyTree keyTree;
+
+    public static byte[] getGroupKeyMessage(CharSequence format, CharSequence channelUri, CharSequence owner,
+                int epoch, CharSequence sponsor, ASAPKeyTree keyTree, boolean changesOnly) throws IOException {
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+
+        dos.writeUTF(format.toString());
+        dos.writeUTF(channelUri.toString());
+        dos.writeUTF(owner.toString());
+        dos.writeInt(epoch);
+        dos.writeUTF(sponsor != null ? sponsor.toString() : "");
+        keyTree.write(dos, changesOnly);
+
+        return baos.toByteArray();
+    }
+
+    public ASAPGroupKeyMessage(byte[] message) throws IOException, ASAPException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(message));
+        this.format = dis.readUTF();
+        this.channelUri = dis.readUTF();
+        this.owner = dis.readUTF();
+        this.epoch = dis.readInt();
+        String sponsor = dis.readUTF();
+        this.sponsor = sponsor.length() > 0 ? sponsor : null;
+        this.keyTree = ASAPKeyTree.read(dis);
+    }
+
+    public CharSequence getFormat() {
+        return this.format;
+    }
+
+    public CharSequence getChannelUri() {
+        return this.channelUri;
+    }
+
+    public CharSequence getOwner() {
+        return this.owner;
+    }
+
+    public int getEpoch() {
+        return this.epoch;
+    }
+
+    /**
+     * @return sponsor of last membership change - null if there is none
+     */
+    public CharSequence getSponsor() {
+        return this.sponsor;
+    }
+
+    public ASAPKeyTree getKeyTree() {
+        return this.keyTree;
+    }
+}
@@ -0,0 +1,354 @@
+package net.sharksystem.asap.management;
+
+import net.sharksystem.asap.ASAPEngine;
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.MultiASAPEngineFS;
+import net.sharksystem.asap.crypto.ASAPDHGroup;
+import net.sharksystem.asap.crypto.ASAPKeyTree;
+import net.sharksystem.asap.protocol.ASAP_1_0;
+import net.sharksystem.asap.util.Log;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Members of a closed channel agree on a group key - TGDH, see {@link ASAPKeyTree}. Key trees are sent
+ * as asap management messages to all other members. Agreed key becomes group key of channel payloads,
+ * see {@link net.sharksystem.asap.crypto.ASAPPayloadKeys#setChannelGroupKey(CharSequence, byte[])}.
+ *
+ * Group is set up when a closed channel is created - on owner side and on any recipient side. It takes
+ * some log(n) rounds until each member knows its key. Owner adds and removes members. Each change is a new
+ * epoch. Owner sends whole tree of new epoch - its sponsor (new member or a member close to the one that left)
+ * sends new blinded keys on its path. Any member needs a single message and O(log n) exponentiations to
+ * get new key.
+ *
+ * Messages are delivered like any other message of a closed channel - on encounter of sender and
+ * recipient. They are signed - sender is known. Trees of a new epoch are taken from channel owner only,
+ * blinded keys from sponsors of their nodes only. Messages of members arriving before owner's tree are
+ * kept until it is there. Groups are kept in memory only - a restarted peer takes part again with next epoch.
+ *
+ * @author thsc
+ */
+public class ASAPGroupKeyService {
+    public static final String GROUP_KEY_URI_PREFIX = "sn2://asapManagement/groupKey/";
+    private static final AtomicLong uriCounter = new AtomicLong();
+    /** messages of a group kept until owner's tree is there - more are dropped */
+    static final int MAX_PENDING_MESSAGES = 64;
+
+    private final MultiASAPEngineFS multiASAPEngine;
+    private final Map<String, Group> groups = new HashMap<>();
+    private final Map<String, List<PendingMessage>> pendingMessages = new HashMap<>();
+
+    private static class PendingMessage {
+        private final String sender;
+        private final ASAPGroupKeyMessage message;
+
+        PendingMessage(String sender, ASAPGroupKeyMessage message) {
+            this.sender = sender;
+            this.message = message;
+        }
+    }
+
+    private static class Group {
+        private final CharSequence format;
+        private final CharSequence channelUri;
+        private final CharSequence owner;
+        private int epoch;
+        private ASAPKeyTree keyTree;
+        private BigInteger secret;
+        private CharSequence sponsor;
+        private byte[] groupKey = null;
+
+        Group(CharSequence format, CharSequence channelUri, CharSequence owner, int epoch,
+              ASAPKeyTree keyTree, BigInteger secret, CharSequence sponsor) {
+            this.format = format;
+            this.channelUri = channelUri;
+            this.owner = owner;
+            this.epoch = epoch;
+            this.keyTree = keyTree;
+            this.secret = secret;
+            this.sponsor = sponsor;
+        }
+    }
+
+    public ASAPGroupKeyService(MultiASAPEngineFS multiASAPEngine) {
+        this.multiASAPEngine = multiASAPEngine;
+    }
+
+    public static boolean isGroupKeyUri(CharSequence uri) {
+        return uri.toString().startsWith(GROUP_KEY_URI_PREFIX);
+    }
+
+    private static String getGroupName(CharSequence format, CharSequence channelUri) {
+        return format + "|" + channelUri;
+    }
+
+    private String getMe() {
+        return this.multiASAPEngine.getOwner().toString();
+    }
+
+    /**
+     * Set up group of a closed channel - nothing happens if there is already one or if this peer is no member.
+     *
+     * @param recipients members - owner is member anyway
+     */
+    public synchronized void createGroup(CharSequence format, CharSequence channelUri, CharSequence owner,
+                                          Set<CharSequence> recipients) throws IOException, ASAPException {
+
+        String name = ASAPGroupKeyService.getGroupName(format, channelUri);
+        if(this.groups.containsKey(name)) return;
+
+        Set<CharSequence> members = new HashSet<>();
+        for(CharSequence recipient : recipients) members.add(recipient.toString());
+        members.add(owner.toString());
+        if(!members.contains(this.getMe())) return;
+
+        Group group = new Group(format, channelUri, owner, 1, new ASAPKeyTree(members),
+                ASAPDHGroup.createSecret(), null);
+        this.groups.put(name, group);
+
+        this.update(group, false);
+        this.handlePendingMessages(name);
+    }
+
+    /**
+     * Owner adds a member - new member is sponsor.
+     */
+    public synchronized void addMember(CharSequence format, CharSequence channelUri, CharSequence member)
+            throws IOException, ASAPException {
+
+        Group group = this.getOwnGroup(format, channelUri);
+
+        group.keyTree.join(member);
+        group.epoch++;
+        group.sponsor = member.toString();
+
+        this.update(group, true);
+    }
+
+    /**
+     * Owner removes a member - sponsor chooses a new secret. Removed member cannot compute new key.
+     */
+    public synchronized void removeMember(CharSequence format, CharSequence channelUri, CharSequence member)
+            throws IOException, ASAPException {
+
+        Group group = this.getOwnGroup(format, channelUri);
+        if(group.owner.toString().equals(member.toString())) {
+            throw new ASAPException("owner cannot be removed from group: " + channelUri);
+        }
+
+        group.sponsor = group.keyTree.leave(member);
+        group.epoch++;
+        if(group.sponsor.toString().equals(this.getMe())) group.secret = ASAPDHGroup.createSecret();
+
+        this.update(group, true);
+    }
+
+    private Group getOwnGroup(CharSequence format, CharSequence channelUri) throws ASAPException {
+        Group group = this.groups.get(ASAPGroupKeyService.getGroupName(format, channelUri));
+        if(group == null) throw new ASAPException("no group of channel: " + channelUri);
+
+        if(!group.owner.toString().equals(this.getMe())) {
+            throw new ASAPException("only owner changes members of group: " + channelUri);
+        }
+
+        return group;
+    }
+
+    /**
+     * @return group key of that channel - null if not agreed on yet
+     */
+    public synchronized byte[] getGroupKey(CharSequence format, CharSequence channelUri) {
+        Group group = this.groups.get(ASAPGroupKeyService.getGroupName(format, channelUri));
+
+        return group != null && group.groupKey != null ? group.groupKey.clone() : null;
+    }
+
+    /**
+     * @return epoch of that group - 0 if there is none
+     */
+    public synchronized int getEpoch(CharSequence format, CharSequence channelUri) {
+        Group group = this.groups.get(ASAPGroupKeyService.getGroupName(format, channelUri));
+
+        return group != null ? group.epoch : 0;
+    }
+
+    /**
+     * Handle key tree of another member - blinded keys are taken. Tree of a newer epoch replaces ours.
+     *
+     * @param sender signer of message
+     * @throws ASAPException if message is not taken from that sender
+     */
+    public synchronized void handleMessage(CharSequence sender, byte[] message) throws IOException, ASAPException {
+        this.handleMessage(sender.toString(), new ASAPGroupKeyMessage(message));
+    }
+
+    private void handleMessage(String sender, ASAPGroupKeyMessage groupKeyMessage)
+            throws IOException, ASAPException {
+
+        String name = ASAPGroupKeyService.getGroupName(
+                groupKeyMessage.getFormat(), groupKeyMessage.getChannelUri());
+        String owner = groupKeyMessage.getOwner().toString();
+
+        Group group = this.groups.get(name);
+        // group is set up with local channel - owner of channel is known then
+        Boolean channelOwner = group != null ? Boolean.valueOf(group.owner.toString().equals(owner))
+                : this.isChannelOwner(groupKeyMessage.getFormat(), groupKeyMessage.getChannelUri(), owner);
+        if(Boolean.FALSE.equals(channelOwner)) {
+            throw new ASAPException("group key message of another owner: " + groupKeyMessage.getChannelUri());
+        }
+        if(group != null && groupKeyMessage.getEpoch() < group.epoch) return; // outdated
+
+        if(Log.isDebugEnabled()) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(this.getLogStart());
+            sb.append("group key message (sender|channel|epoch|sponsor): ");
+            sb.append(sender);
+            sb.append("|");
+            sb.append(groupKeyMessage.getChannelUri());
+            sb.append("|");
+            sb.append(groupKeyMessage.getEpoch());
+            sb.append("|");
+            sb.append(groupKeyMessage.getSponsor());
+            Log.debug(sb.toString());
+        }
+
+        ASAPKeyTree keyTree = groupKeyMessage.getKeyTree();
+        if(group == null || groupKeyMessage.getEpoch() > group.epoch) {
+            // a new epoch comes from owner - members can send their keys of it before we got it
+            if(!sender.equals(owner) || channelOwner == null) {
+                this.keepPending(name, sender, groupKeyMessage);
+                return;
+            }
+
+            if(!keyTree.isMember(this.getMe())) {
+                // removed
+                if(group != null) {
+                    this.groups.remove(name);
+                    this.multiASAPEngine.getPayloadKeys().setChannelGroupKey(group.channelUri, null);
+                }
+                return;
+            }
+
+            CharSequence sponsor = groupKeyMessage.getSponsor();
+            BigInteger secret = group != null ? group.secret : null;
+            if(secret == null || (sponsor != null && sponsor.toString().equals(this.getMe()))) {
+                secret = ASAPDHGroup.createSecret();
+            }
+
+            Group newGroup = new Group(groupKeyMessage.getFormat(), groupKeyMessage.getChannelUri(),
+                    groupKeyMessage.getOwner(), groupKeyMessage.getEpoch(), keyTree, secret, sponsor);
+            // old key is used until new one is agreed on
+            if(group != null) newGroup.groupKey = group.groupKey;
+            this.groups.put(name, newGroup);
+
+            this.update(newGroup, false);
+            this.handlePendingMessages(name);
+        } else if(group.keyTree.merge(keyTree, sender, group.sponsor)) {
+            this.update(group, false);
+        }
+    }
+
+    /**
+     * @return true if owner is owner of that local channel - null if there is no such channel
+     */
+    private Boolean isChannelOwner(CharSequence format, CharSequence channelUri, CharSequence owner)
+            throws IOException, ASAPException {
+
+        ASAPEngine engine = this.multiASAPEngine.useEngineByFormat(format);
+        if(!engine.channelExists(channelUri)) return null;
+
+        CharSequence channelOwner = engine.getChannel(channelUri).getOwner();
+        return channelOwner != null && channelOwner.toString().equals(owner.toString());
+    }
+
+    private void keepPending(String name, String sender, ASAPGroupKeyMessage groupKeyMessage) {
+        List<PendingMessage> messages = this.pendingMessages.get(name);
+        if(messages == null) {
+            messages = new ArrayList<>();
+            this.pendingMessages.put(name, messages);
+        }
+
+        if(messages.size() < MAX_PENDING_MESSAGES) {
+            messages.add(new PendingMessage(sender, groupKeyMessage));
+        } else if(Log.isDebugEnabled()) {
+            Log.debug(this.getLogStart() + "too many pending group key messages - dropped: " + name);
+        }
+    }
+
+    /**
+     * Handle messages that came before owner's tree - those of a later epoch are kept again.
+     */
+    private void handlePendingMessages(String name) throws IOException {
+        List<PendingMessage> messages = this.pendingMessages.remove(name);
+        if(messages == null) return;
+
+        for(PendingMessage pending : messages) {
+            try {
+                this.handleMessage(pending.sender, pending.message);
+            } catch (ASAPException e) {
+                Log.warn(this.getLogStart() + "pending group key message rejected: " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * Compute keys on our path, send new blinded keys and install group key if there is one.
+     * @param wholeTree send whole tree - new epoch
+     */
+    private void update(Group group, boolean wholeTree) throws IOException, ASAPException {
+        BigInteger rootKey = group.keyTree.computeKey(this.getMe(), group.secret, group.sponsor);
+
+        if(wholeTree || group.keyTree.hasChanges()) {
+            this.send(group, !wholeTree);
+            group.keyTree.clearChanges();
+        }
+
+        if(rootKey != null) {
+            byte[] groupKey = ASAPKeyTree.getGroupKey(rootKey);
+            if(!Arrays.equals(groupKey, group.groupKey)) {
+                group.groupKey = groupKey;
+                this.multiASAPEngine.getPayloadKeys().setChannelGroupKey(group.channelUri, groupKey);
+
+                if(Log.isDebugEnabled()) {
+                    StringBuilder sb = new StringBuilder();
+                    sb.append(this.getLogStart());
+                    sb.append("new group key (channel|epoch): ");
+                    sb.append(group.channelUri);
+                    sb.append("|");
+                    sb.append(group.epoch);
+                    Log.debug(sb.toString());
+                }
+            }
+        }
+    }
+
+    private void send(Group group, boolean changesOnly) throws IOException, ASAPException {
+        Set<CharSequence> recipients = new HashSet<>();
+        for(String member : group.keyTree.getMembers()) {
+            if(!member.equals(this.getMe())) recipients.add(member);
+        }
+        if(recipients.isEmpty()) return;
+
+        byte[] message = ASAPGroupKeyMessage.getGroupKeyMessage(group.format, group.channelUri, group.owner,
+                group.epoch, group.sponsor, group.keyTree, changesOnly);
+
+        ASAPEngine asapManagementEngine =
+                this.multiASAPEngine.useEngineByFormat(ASAP_1_0.ASAP_MANAGEMENT_FORMAT);
+        CharSequence uri = GROUP_KEY_URI_PREFIX + System.currentTimeMillis() + "/" + uriCounter.incrementAndGet();
+        asapManagementEngine.add(uri, message);
+        asapManagementEngine.setRecipients(uri, recipients);
+    }
+
+    private String getLogStart() {
+        return this.getClass().getSimpleName() + "(" + this.multiASAPEngine.getOwner() + "): ";
+    }
+}
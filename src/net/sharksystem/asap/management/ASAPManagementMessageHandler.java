@@ -2,6 +2,7 @@ package net.sharksystem.asap.management;
 
 import net.sharksystem.asap.*;
 import net.sharksystem.asap.protocol.ASAP_1_0;
+import net.sharksystem.asap.util.Log;
 
 import java.io.IOException;
 import java.util.*;
@@ -41,11 +42,26 @@ public class ASAPManagementMessageHandler implements ASAPChunkReceivedListener {
         System.out.println(this.getLogStart()
                 + "handle received chunk (sender|uri|era) " + sender + "|" + uri + "|" + era);
         try {
-            ASAPEngine asapManagementEngine = multiASAPEngine.getEngineByFormat(ASAP_1_0.ASAP_MANAGEMENT_FORMAT);
+            ASAPEngine asapManagementEngine = multiASAPEngine.useEngineByFormat(ASAP_1_0.ASAP_MANAGEMENT_FORMAT);
 
             ASAPChunkStorage incomingChunkStorage = asapManagementEngine.getIncomingChunkStorage(sender);
             ASAPChunk chunk = incomingChunkStorage.getChunk(uri, era);
             Iterator<byte[]> messageIter = chunk.getMessagesAsBytes();
+
+            if(ASAPGroupKeyService.isGroupKeyUri(uri)) {
+                // key trees are not relayed - each member sends its own
+                while(messageIter.hasNext()) {
+                    try {
+                        this.multiASAPEngine.getGroupKeyService().handleMessage(sender, messageIter.next());
+                    } catch (ASAPException e) {
+                        Log.warn(this.getLogStart() + "cannot handle group key message: "
+                                + e.getLocalizedMessage());
+                    }
+                }
+                incomingChunkStorage.dropChunks(era);
+                return;
+            }
+
             System.out.println(this.getLogStart() + "iterate management messages");
             while(messageIter.hasNext()) {
                 byte[] message = messageIter.next();
@@ -112,7 +128,7 @@ public class ASAPManagementMessageHandler implements ASAPChunkReceivedListener {
         b.append(recipients.size());
 
         // find storage / app - can throw an exception - that's ok
-        ASAPStorage asapStorage = this.multiASAPEngine.getEngineByFormat(format);
+        ASAPStorage asapStorage = this.multiASAPEngine.useEngineByFormat(format);
 
         if(asapStorage.channelExists(channelUri)) {
             Set<CharSequence> existingChannelRecipientsList = asapStorage.getRecipients(channelUri);
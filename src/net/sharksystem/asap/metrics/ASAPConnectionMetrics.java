@@ -0,0 +1,197 @@
+package net.sharksystem.asap.metrics;
+
+import net.sharksystem.asap.protocol.ASAP_1_0;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of ASAP connections. Connections of an owner share one object.
+ */
+public class ASAPConnectionMetrics implements ASAPConnectionMetricsMBean {
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong connectionsClosed = new AtomicLong();
+    private final AtomicLong offerPDUs = new AtomicLong();
+    private final AtomicLong interestPDUs = new AtomicLong();
+    private final AtomicLong assimilatePDUs = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong streamLockWaitNanos = new AtomicLong();
+    private final AtomicLong readTimeouts = new AtomicLong();
+    private final AtomicLong executionTimeouts = new AtomicLong();
+    private final ASAPLatencyHistogram streamLockWait = new ASAPLatencyHistogram();
+
+    public void connectionOpened() {
+        this.connectionsOpened.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        this.connectionsClosed.incrementAndGet();
+    }
+
+    public void pduReceived(byte command) {
+        switch(command) {
+            case ASAP_1_0.OFFER_CMD: this.offerPDUs.incrementAndGet(); break;
+            case ASAP_1_0.INTEREST_CMD: this.interestPDUs.incrementAndGet(); break;
+            case ASAP_1_0.ASSIMILATE_CMD: this.assimilatePDUs.incrementAndGet(); break;
+            default: // unknown - not counted
+        }
+    }
+
+    public void streamLockWaited(long nanos) {
+        this.streamLockWaitNanos.addAndGet(nanos);
+        this.streamLockWait.record(nanos);
+    }
+
+    public void readTimeout() {
+        this.readTimeouts.incrementAndGet();
+    }
+
+    public void executionTimeout() {
+        this.executionTimeouts.incrementAndGet();
+    }
+
+    /**
+     * @return stream counting anything read from is
+     */
+    public InputStream countInput(InputStream is) {
+        return new CountingInputStream(is, this.bytesIn);
+    }
+
+    /**
+     * @return stream counting anything written to os
+     */
+    public OutputStream countOutput(OutputStream os) {
+        return new CountingOutputStream(os, this.bytesOut);
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return this.connectionsOpened.get();
+    }
+
+    @Override
+    public long getConnectionsClosed() {
+        return this.connectionsClosed.get();
+    }
+
+    @Override
+    public long getOfferPDUsReceived() {
+        return this.offerPDUs.get();
+    }
+
+    @Override
+    public long getInterestPDUsReceived() {
+        return this.interestPDUs.get();
+    }
+
+    @Override
+    public long getAssimilatePDUsReceived() {
+        return this.assimilatePDUs.get();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return this.bytesIn.get();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return this.bytesOut.get();
+    }
+
+    @Override
+    public long getStreamLockWaitMillis() {
+        return this.streamLockWaitNanos.get() / 1000000;
+    }
+
+    @Override
+    public long getStreamLockWaitMeanMicros() {
+        return this.streamLockWait.getMeanMicros();
+    }
+
+    @Override
+    public long getStreamLockWaitP99Micros() {
+        return this.streamLockWait.getPercentileMicros(0.99);
+    }
+
+    @Override
+    public long getReadTimeouts() {
+        return this.readTimeouts.get();
+    }
+
+    @Override
+    public long getExecutionTimeouts() {
+        return this.executionTimeouts.get();
+    }
+
+    @Override
+    public void reset() {
+        this.connectionsOpened.set(0);
+        this.connectionsClosed.set(0);
+        this.offerPDUs.set(0);
+        this.interestPDUs.set(0);
+        this.assimilatePDUs.set(0);
+        this.bytesIn.set(0);
+        this.bytesOut.set(0);
+        this.streamLockWaitNanos.set(0);
+        this.readTimeouts.set(0);
+        this.executionTimeouts.set(0);
+        this.streamLockWait.reset();
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong counter;
+
+        CountingInputStream(InputStream is, AtomicLong counter) {
+            super(is);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = this.in.read();
+            if(b >= 0) this.counter.incrementAndGet();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = this.in.read(b, off, len);
+            if(n > 0) this.counter.addAndGet(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = this.in.skip(n);
+            if(skipped > 0) this.counter.addAndGet(skipped);
+            return skipped;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final AtomicLong counter;
+
+        CountingOutputStream(OutputStream os, AtomicLong counter) {
+            super(os);
+            this.counter = counter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.counter.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            this.counter.addAndGet(len);
+        }
+    }
+}
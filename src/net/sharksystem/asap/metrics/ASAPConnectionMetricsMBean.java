@@ -0,0 +1,32 @@
+package net.sharksystem.asap.metrics;
+
+/**
+ * Connection level metrics - summed up over all connections of an owner.
+ */
+public interface ASAPConnectionMetricsMBean {
+    long getConnectionsOpened();
+
+    long getConnectionsClosed();
+
+    long getOfferPDUsReceived();
+
+    long getInterestPDUsReceived();
+
+    long getAssimilatePDUsReceived();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getStreamLockWaitMillis();
+
+    long getStreamLockWaitMeanMicros();
+
+    long getStreamLockWaitP99Micros();
+
+    long getReadTimeouts();
+
+    long getExecutionTimeouts();
+
+    void reset();
+}
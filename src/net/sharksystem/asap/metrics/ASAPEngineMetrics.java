@@ -0,0 +1,143 @@
+package net.sharksystem.asap.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of an ASAPEngine. Engines update them, JMX reads them.
+ */
+public class ASAPEngineMetrics implements ASAPEngineMetricsMBean {
+    private final AtomicLong messagesAdded = new AtomicLong();
+    private final AtomicLong chunksSent = new AtomicLong();
+    private final AtomicLong chunksReceived = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong eraRollovers = new AtomicLong();
+    private final AtomicLong mementoSaves = new AtomicLong();
+    private final AtomicLong eraPolicyAdvances = new AtomicLong();
+    private final AtomicLong eraPolicySkips = new AtomicLong();
+    private final ASAPLatencyHistogram addLatency = new ASAPLatencyHistogram();
+    private final ASAPLatencyHistogram mementoSaveLatency = new ASAPLatencyHistogram();
+
+    public void messageAdded(long nanos) {
+        this.messagesAdded.incrementAndGet();
+        this.addLatency.record(nanos);
+    }
+
+    public void chunkSent(long bytes) {
+        this.chunksSent.incrementAndGet();
+        this.bytesOut.addAndGet(bytes);
+    }
+
+    public void chunkReceived(long bytes) {
+        this.chunksReceived.incrementAndGet();
+        this.bytesIn.addAndGet(bytes);
+    }
+
+    public void eraRollover() {
+        this.eraRollovers.incrementAndGet();
+    }
+
+    /**
+     * @param advance era policy decided to start a new era - or to stay in current one
+     */
+    public void eraPolicyDecision(boolean advance) {
+        if(advance) {
+            this.eraPolicyAdvances.incrementAndGet();
+        } else {
+            this.eraPolicySkips.incrementAndGet();
+        }
+    }
+
+    public void mementoSaved(long nanos) {
+        this.mementoSaves.incrementAndGet();
+        this.mementoSaveLatency.record(nanos);
+    }
+
+    public ASAPLatencyHistogram getAddLatency() {
+        return this.addLatency;
+    }
+
+    public ASAPLatencyHistogram getMementoSaveLatency() {
+        return this.mementoSaveLatency;
+    }
+
+    @Override
+    public long getMessagesAdded() {
+        return this.messagesAdded.get();
+    }
+
+    @Override
+    public long getChunksSent() {
+        return this.chunksSent.get();
+    }
+
+    @Override
+    public long getChunksReceived() {
+        return this.chunksReceived.get();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return this.bytesIn.get();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return this.bytesOut.get();
+    }
+
+    @Override
+    public long getEraRollovers() {
+        return this.eraRollovers.get();
+    }
+
+    @Override
+    public long getEraPolicyAdvances() {
+        return this.eraPolicyAdvances.get();
+    }
+
+    @Override
+    public long getEraPolicySkips() {
+        return this.eraPolicySkips.get();
+    }
+
+    @Override
+    public long getMementoSaves() {
+        return this.mementoSaves.get();
+    }
+
+    @Override
+    public long getAddLatencyMeanMicros() {
+        return this.addLatency.getMeanMicros();
+    }
+
+    @Override
+    public long getAddLatencyP99Micros() {
+        return this.addLatency.getPercentileMicros(0.99);
+    }
+
+    @Override
+    public long getMementoSaveLatencyMeanMicros() {
+        return this.mementoSaveLatency.getMeanMicros();
+    }
+
+    @Override
+    public long getMementoSaveLatencyP99Micros() {
+        return this.mementoSaveLatency.getPercentileMicros(0.99);
+    }
+
+    @Override
+    public void reset() {
+        this.messagesAdded.set(0);
+        this.chunksSent.set(0);
+        this.chunksReceived.set(0);
+        this.bytesIn.set(0);
+        this.bytesOut.set(0);
+        this.eraRollovers.set(0);
+        this.mementoSaves.set(0);
+        this.eraPolicyAdvances.set(0);
+        this.eraPolicySkips.set(0);
+        this.addLatency.reset();
+        this.mementoSaveLatency.reset();
+    }
+}
@@ -0,0 +1,36 @@
+package net.sharksystem.asap.metrics;
+
+/**
+ * Engine level metrics - one per owner and format.
+ */
+public interface ASAPEngineMetricsMBean {
+    long getMessagesAdded();
+
+    long getChunksSent();
+
+    long getChunksReceived();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getEraRollovers();
+
+    /** era policy decided to start a new era on a connection event */
+    long getEraPolicyAdvances();
+
+    /** era policy decided to stay in current era on a connection event */
+    long getEraPolicySkips();
+
+    long getMementoSaves();
+
+    long getAddLatencyMeanMicros();
+
+    long getAddLatencyP99Micros();
+
+    long getMementoSaveLatencyMeanMicros();
+
+    long getMementoSaveLatencyP99Micros();
+
+    void reset();
+}
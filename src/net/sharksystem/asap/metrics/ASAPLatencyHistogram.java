@@ -0,0 +1,102 @@
+package net.sharksystem.asap.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with logarithmic buckets (powers of two microseconds).
+ * Bucket i holds durations d with 2^(i-1) <= d < 2^i microseconds, bucket 0 anything below 1 microsecond.
+ *
+ * Recording is lock free and does not allocate. Percentiles are upper bounds of the bucket
+ * they fall into - precise enough to find out where time is spent.
+ */
+public class ASAPLatencyHistogram {
+    public static final int NUMBER_BUCKETS = 40; // 2^39 micros - about 6 days
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUMBER_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * @param nanos duration, e.g. difference of two System.nanoTime() calls
+     */
+    public void record(long nanos) {
+        long micros = nanos < 0 ? 0 : nanos / 1000;
+
+        this.buckets.incrementAndGet(bucketIndex(micros));
+        this.count.incrementAndGet();
+        this.totalMicros.addAndGet(micros);
+
+        long max = this.maxMicros.get();
+        while(micros > max) {
+            if(this.maxMicros.compareAndSet(max, micros)) break;
+            max = this.maxMicros.get();
+        }
+    }
+
+    static int bucketIndex(long micros) {
+        int index = 64 - Long.numberOfLeadingZeros(micros);
+        return index < NUMBER_BUCKETS ? index : NUMBER_BUCKETS - 1;
+    }
+
+    public long getCount() {
+        return this.count.get();
+    }
+
+    public long getMeanMicros() {
+        long n = this.count.get();
+        return n == 0 ? 0 : this.totalMicros.get() / n;
+    }
+
+    public long getMaxMicros() {
+        return this.maxMicros.get();
+    }
+
+    /**
+     * @param percentile e.g. 0.99
+     * @return upper bound (micros) of the bucket containing that percentile - 0 if nothing recorded
+     */
+    public long getPercentileMicros(double percentile) {
+        long n = 0;
+        long[] snapshot = new long[NUMBER_BUCKETS];
+        for(int i = 0; i < NUMBER_BUCKETS; i++) {
+            snapshot[i] = this.buckets.get(i);
+            n += snapshot[i];
+        }
+
+        if(n == 0) return 0;
+
+        long threshold = (long) Math.ceil(n * percentile);
+        long sum = 0;
+        for(int i = 0; i < NUMBER_BUCKETS; i++) {
+            sum += snapshot[i];
+            if(sum >= threshold) {
+                return Math.min(1L << i, this.maxMicros.get());
+            }
+        }
+
+        return this.maxMicros.get();
+    }
+
+    /**
+     * @return number of recorded durations per bucket
+     */
+    public long[] getBuckets() {
+        long[] snapshot = new long[NUMBER_BUCKETS];
+        for(int i = 0; i < NUMBER_BUCKETS; i++) {
+            snapshot[i] = this.buckets.get(i);
+        }
+
+        return snapshot;
+    }
+
+    public void reset() {
+        for(int i = 0; i < NUMBER_BUCKETS; i++) {
+            this.buckets.set(i, 0);
+        }
+        this.count.set(0);
+        this.totalMicros.set(0);
+        this.maxMicros.set(0);
+    }
+}
@@ -0,0 +1,125 @@
+package net.sharksystem.asap.metrics;
+
+import net.sharksystem.asap.util.Log;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registers metrics as MBeans with the platform MBean server. Names look like
+ * <pre>
+ * net.sharksystem.asap:type=Engine,owner="alice",format="application/x-chat"
+ * net.sharksystem.asap:type=Connection,owner="alice"
+ * </pre>
+ *
+ * There is no JMX on Android. Registration fails silently and is not tried again.
+ * Registration can also be switched off with system property asap.jmx=false.
+ *
+ * MBeans stay registered until unregistered - owners of metrics unregister them when they are closed.
+ */
+public class ASAPMetricsRegistry {
+    public static final String DOMAIN = "net.sharksystem.asap";
+    public static final String TYPE_ENGINE = "Engine";
+    public static final String TYPE_STORAGE = "Storage";
+    public static final String TYPE_CONNECTION = "Connection";
+    public static final String JMX_PROPERTY = "asap.jmx";
+
+    private static volatile boolean available = ASAPMetricsRegistry.initialAvailability();
+    /** registered mbeans by name - another object of the same name can replace an mbean */
+    private static final ConcurrentHashMap<ObjectName, Object> registered = new ConcurrentHashMap<>();
+
+    private static boolean initialAvailability() {
+        try {
+            return !"false".equalsIgnoreCase(System.getProperty(JMX_PROPERTY));
+        }
+        catch(RuntimeException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Register mbean. An mbean already registered with that name is replaced.
+     * @param format can be null - e.g. connection metrics are per owner
+     * @return true if registered
+     */
+    public static boolean register(Object mbean, String type, CharSequence owner, CharSequence format) {
+        if(!available) return false;
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = ASAPMetricsRegistry.getObjectName(type, owner, format);
+            if(server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(mbean, name);
+            registered.put(name, mbean);
+            return true;
+        }
+        catch(LinkageError e) {
+            // no jmx on this platform
+            available = false;
+        }
+        catch(Exception e) {
+            Log.warn("ASAPMetricsRegistry: cannot register metrics: " + e.getLocalizedMessage());
+        }
+
+        return false;
+    }
+
+    public static void unregister(String type, CharSequence owner, CharSequence format) {
+        if(!available) return;
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = ASAPMetricsRegistry.getObjectName(type, owner, format);
+            registered.remove(name);
+            if(server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        }
+        catch(LinkageError e) {
+            available = false;
+        }
+        catch(Exception e) {
+            // not registered - ok
+        }
+    }
+
+    /**
+     * Unregister that mbean - nothing happens if it was replaced by another one meanwhile.
+     */
+    public static void unregister(Object mbean, String type, CharSequence owner, CharSequence format) {
+        if(!available) return;
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = ASAPMetricsRegistry.getObjectName(type, owner, format);
+            if(registered.remove(name, mbean) && server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        }
+        catch(LinkageError e) {
+            available = false;
+        }
+        catch(Exception e) {
+            // not registered - ok
+        }
+    }
+
+    static ObjectName getObjectName(String type, CharSequence owner, CharSequence format) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        sb.append(DOMAIN);
+        sb.append(":type=");
+        sb.append(type);
+        sb.append(",owner=");
+        sb.append(ObjectName.quote(String.valueOf(owner)));
+        if(format != null) {
+            sb.append(",format=");
+            sb.append(ObjectName.quote(format.toString()));
+        }
+
+        return new ObjectName(sb.toString());
+    }
+}
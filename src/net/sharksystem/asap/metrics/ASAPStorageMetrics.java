@@ -0,0 +1,75 @@
+package net.sharksystem.asap.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of a chunk storage.
+ */
+public class ASAPStorageMetrics implements ASAPStorageMetricsMBean {
+    private final AtomicLong filesOpened = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    public void fileOpened() {
+        this.filesOpened.incrementAndGet();
+    }
+
+    public void bytesRead(long number) {
+        if(number > 0) this.bytesRead.addAndGet(number);
+    }
+
+    public void bytesWritten(long number) {
+        if(number > 0) this.bytesWritten.addAndGet(number);
+    }
+
+    public void cacheHit() {
+        this.cacheHits.incrementAndGet();
+    }
+
+    public void cacheMiss() {
+        this.cacheMisses.incrementAndGet();
+    }
+
+    @Override
+    public long getFilesOpened() {
+        return this.filesOpened.get();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return this.bytesRead.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return this.bytesWritten.get();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return this.cacheHits.get();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return this.cacheMisses.get();
+    }
+
+    @Override
+    public double getCacheHitRate() {
+        long hits = this.cacheHits.get();
+        long total = hits + this.cacheMisses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public void reset() {
+        this.filesOpened.set(0);
+        this.bytesRead.set(0);
+        this.bytesWritten.set(0);
+        this.cacheHits.set(0);
+        this.cacheMisses.set(0);
+    }
+}
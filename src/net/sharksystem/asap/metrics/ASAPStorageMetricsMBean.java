@@ -0,0 +1,23 @@
+package net.sharksystem.asap.metrics;
+
+/**
+ * Storage level metrics - one per owner and format (incoming chunks included).
+ */
+public interface ASAPStorageMetricsMBean {
+    long getFilesOpened();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    /**
+     * @return hits / (hits + misses) - 0 if cache was not used yet
+     */
+    double getCacheHitRate();
+
+    void reset();
+}
@@ -0,0 +1,126 @@
+package net.sharksystem.asap.protocol;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Measures throughput of a stream while data flow.
+ *
+ * Only busy periods are measured. A period ends when no data were written for
+ * IDLE_GAP_MILLIS. Each period long enough produces a sample. Samples are smoothed
+ * (exponentially weighted moving average) - links change their speed when peers move.
+ */
+public class ASAPBandwidthEstimator {
+    public static final long DEFAULT_INITIAL_BYTES_PER_SECOND = 10 * 1024;
+    public static final long IDLE_GAP_MILLIS = 50;
+    public static final long MIN_SAMPLE_BYTES = 4 * 1024;
+    public static final long MIN_SAMPLE_MILLIS = 10;
+    private static final double SMOOTHING_FACTOR = 0.3;
+
+    private double bytesPerMilli;
+    private boolean measured = false;
+
+    private long periodStart = -1;
+    private long lastActivity = -1;
+    private long periodBytes = 0;
+    private long totalBytes = 0;
+
+    public ASAPBandwidthEstimator() {
+        this(DEFAULT_INITIAL_BYTES_PER_SECOND);
+    }
+
+    public ASAPBandwidthEstimator(long initialBytesPerSecond) {
+        this.bytesPerMilli = (double) initialBytesPerSecond / 1000;
+    }
+
+    public synchronized void bytesTransferred(long number) {
+        if(number <= 0) return;
+
+        long now = System.currentTimeMillis();
+        if(this.periodStart < 0 || now - this.lastActivity > IDLE_GAP_MILLIS) {
+            // last period over - new one starts
+            this.takeSample();
+            this.periodStart = now;
+            this.periodBytes = 0;
+        }
+
+        this.periodBytes += number;
+        this.totalBytes += number;
+        this.lastActivity = now;
+
+        // long periods produce samples on their way - link speed can change
+        if(this.periodBytes >= MIN_SAMPLE_BYTES * 16) {
+            this.takeSample();
+            this.periodStart = now;
+            this.periodBytes = 0;
+        }
+    }
+
+    private void takeSample() {
+        if(this.periodStart < 0) return;
+
+        long duration = this.lastActivity - this.periodStart;
+        if(this.periodBytes < MIN_SAMPLE_BYTES || duration < MIN_SAMPLE_MILLIS) return; // too short to tell
+
+        double sample = (double) this.periodBytes / duration;
+        if(!this.measured) {
+            this.bytesPerMilli = sample;
+            this.measured = true;
+        } else {
+            this.bytesPerMilli = SMOOTHING_FACTOR * sample + (1 - SMOOTHING_FACTOR) * this.bytesPerMilli;
+        }
+    }
+
+    /**
+     * @return estimated throughput - initial value as long as there are no measurements
+     */
+    public synchronized double getBytesPerMilli() {
+        return this.bytesPerMilli;
+    }
+
+    public synchronized boolean isMeasured() {
+        return this.measured;
+    }
+
+    public synchronized long getTotalBytes() {
+        return this.totalBytes;
+    }
+
+    /**
+     * @return number of bytes that can presumably be transmitted in that time span
+     */
+    public long estimateBytes(long millis) {
+        if(millis <= 0) return 0;
+        return (long) (millis * this.getBytesPerMilli());
+    }
+
+    /**
+     * @return stream which reports any written byte to this estimator
+     */
+    public OutputStream meter(OutputStream os) {
+        return new MeteredOutputStream(os, this);
+    }
+
+    private static class MeteredOutputStream extends FilterOutputStream {
+        private final ASAPBandwidthEstimator estimator;
+
+        MeteredOutputStream(OutputStream os, ASAPBandwidthEstimator estimator) {
+            super(os);
+            this.estimator = estimator;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.estimator.bytesTransferred(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // do not use FilterOutputStream default - it would write byte by byte
+            this.out.write(b, off, len);
+            this.estimator.bytesTransferred(len);
+        }
+    }
+}
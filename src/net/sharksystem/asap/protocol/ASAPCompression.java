@@ -0,0 +1,56 @@
+package net.sharksystem.asap.protocol;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compression of assimilate payloads - used if both peers announce FEATURE_COMPRESSION in handshake.
+ * Any format is compressed by default. Formats with already compressed content (images, archives..)
+ * should be excluded - it costs time and saves nothing.
+ *
+ * A format can have a dictionary: bytes likely to be found in messages, e.g. field names, common
+ * phrases. It helps a lot with short messages. Both sides must register the very same dictionary.
+ *
+ * Settings belong to a multi engine - see {@link net.sharksystem.asap.MultiASAPEngineFS#getCompression()}.
+ *
+ * @author thsc
+ */
+public class ASAPCompression {
+    /** shorter payloads are sent as they are */
+    public static final int MIN_COMPRESSED_LENGTH = 64;
+
+    private final Map<String, byte[]> dictionaries = new HashMap<>();
+    private final Set<String> uncompressedFormats = new HashSet<>();
+
+    /**
+     * @param dictionary null removes a dictionary
+     */
+    public synchronized void setDictionary(CharSequence format, byte[] dictionary) {
+        if(dictionary == null) {
+            this.dictionaries.remove(format.toString());
+        } else {
+            this.dictionaries.put(format.toString(), dictionary.clone());
+        }
+    }
+
+    /**
+     * @return dictionary or null
+     */
+    synchronized byte[] getDictionary(CharSequence format) {
+        return format == null ? null : this.dictionaries.get(format.toString());
+    }
+
+    public synchronized void setCompressed(CharSequence format, boolean compressed) {
+        if(compressed) {
+            this.uncompressedFormats.remove(format.toString());
+        } else {
+            this.uncompressedFormats.add(format.toString());
+        }
+    }
+
+    public synchronized boolean isCompressed(CharSequence format) {
+        return !this.uncompressedFormats.contains(format.toString());
+    }
+}
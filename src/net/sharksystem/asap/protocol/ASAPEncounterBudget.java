@@ -0,0 +1,16 @@
+package net.sharksystem.asap.protocol;
+
+/**
+ * A PDU is processed within a limited time (see MultiASAPEngineFS.DEFAULT_MAX_PROCESSING_TIME).
+ * Engines can ask how many bytes can presumably be sent in the remaining time and plan
+ * their transmissions accordingly.
+ */
+public interface ASAPEncounterBudget {
+    long UNLIMITED = Long.MAX_VALUE;
+
+    /**
+     * @return estimated number of bytes that can be transmitted before processing is cut off -
+     * UNLIMITED if there is no limit at all.
+     */
+    long getRemainingBytes();
+}
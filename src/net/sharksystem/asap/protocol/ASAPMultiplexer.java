@@ -0,0 +1,325 @@
+package net.sharksystem.asap.protocol;
+
+import net.sharksystem.asap.ASAPException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sending side of a multiplexed connection. Several logical streams share a single output stream.
+ * Anything written into a logical stream is sent in frames:
+ *
+ * stream id (varint) | length (varint) | bytes
+ *
+ * Frames are bounded. Writers take turns after each frame - first come first served. Writers of
+ * the priority stream are served before any other waiting writer. A large transmission delays
+ * others for one frame at most.
+ *
+ * Flow control: a stream must not send more than the receiver allows - its credit. Each stream
+ * starts with STREAM_WINDOW bytes, the whole connection with CONNECTION_WINDOW bytes. Receiver grants
+ * more as it drains its buffers. A stream without credit waits - without holding up the others.
+ * Part of connection credit is kept for the priority stream - stalled streams cannot use it up.
+ * Grants are sent on control stream which is not flow controlled itself:
+ *
+ * stream id (varint) | increment (varint) [ | stream id | increment ...]
+ *
+ * Stream id 0 (control stream) in a grant stands for the whole connection.
+ *
+ * Used after both peers announced FEATURE_MULTIPLEXING in their handshakes.
+ *
+ * @author thsc
+ */
+class ASAPMultiplexer {
+    /** flow control - credit grants */
+    static final int CONTROL_STREAM = 0;
+    /** online messages - never wait behind bulk data */
+    static final int PRIORITY_STREAM = 1;
+    private static final int FIRST_FORMAT_STREAM = 2;
+
+    static final int MAX_FRAME_SIZE = 16 * 1024;
+    /** stream id and length - two varints */
+    private static final int MAX_FRAME_HEADER_SIZE = 10;
+
+    /** initial credit of a stream - receiver buffers at most that much per stream */
+    static final int STREAM_WINDOW = 64 * 1024;
+    /** connection credit only priority stream can take - control stream is not flow controlled anyway */
+    static final int PRIORITY_RESERVE = STREAM_WINDOW;
+    /** initial credit of connection - receiver buffers at most that much over all streams */
+    static final int CONNECTION_WINDOW = 4 * STREAM_WINDOW + PRIORITY_RESERVE;
+    /** sanity check - credit cannot grow that large with a well behaving receiver */
+    private static final long MAX_CREDIT = Integer.MAX_VALUE;
+
+    private final OutputStream os;
+    private final byte[] frame = new byte[MAX_FRAME_HEADER_SIZE + MAX_FRAME_SIZE];
+
+    private final Map<String, LogicalOutputStream> formatStreams = new HashMap<>();
+    private final Map<String, LogicalOutputStream> requestStreams = new HashMap<>();
+    private final Map<Integer, LogicalOutputStream> streams = new HashMap<>();
+    private final LogicalOutputStream controlStream = new LogicalOutputStream(CONTROL_STREAM);
+    private final LogicalOutputStream priorityStream = new LogicalOutputStream(PRIORITY_STREAM);
+    private int nextStreamID = FIRST_FORMAT_STREAM;
+    private long connectionCredit = CONNECTION_WINDOW;
+
+    // turns - ticket numbers
+    private long nextTicket = 0;
+    private long servedTicket = 0;
+    private int priorityWaiting = 0;
+    private boolean writing = false;
+    private boolean closed = false;
+
+    ASAPMultiplexer(OutputStream os) {
+        this.os = os;
+        this.streams.put(PRIORITY_STREAM, this.priorityStream);
+    }
+
+    LogicalOutputStream getPriorityStream() {
+        return this.priorityStream;
+    }
+
+    /**
+     * @return stream for data of that format - created with first call
+     */
+    synchronized LogicalOutputStream getFormatStream(CharSequence format) {
+        return this.getStream(this.formatStreams, format);
+    }
+
+    /**
+     * Answers to offers are sent on a stream of their own. They must not wait for offers or chunks
+     * we send ourselves - both sides could wait for each other otherwise.
+     * @return stream for requests of that format - created with first call
+     */
+    synchronized LogicalOutputStream getRequestStream(CharSequence format) {
+        return this.getStream(this.requestStreams, format);
+    }
+
+    private LogicalOutputStream getStream(Map<String, LogicalOutputStream> streams, CharSequence format) {
+        LogicalOutputStream stream = streams.get(format.toString());
+        if(stream == null) {
+            stream = new LogicalOutputStream(this.nextStreamID++);
+            streams.put(format.toString(), stream);
+            this.streams.put(stream.streamID, stream);
+        }
+
+        return stream;
+    }
+
+    synchronized void close() {
+        this.closed = true;
+        this.notifyAll();
+    }
+
+    /**
+     * Grant credit to other side - it can send more bytes on that stream.
+     * @param streamID CONTROL_STREAM grants credit for the whole connection
+     */
+    void grantCredit(int streamID, long increment) throws IOException {
+        byte[] grant = new byte[MAX_FRAME_HEADER_SIZE];
+        int length = ASAPMultiplexer.putUnsignedVarInt(streamID, grant, 0);
+        length = ASAPMultiplexer.putUnsignedVarInt((int) increment, grant, length);
+        this.controlStream.write(grant, 0, length);
+    }
+
+    /**
+     * Handle credit grants - content of a control stream frame.
+     */
+    synchronized void readCreditGrants(byte[] frame, int length) throws ASAPException {
+        InputStream is = new ByteArrayInputStream(frame, 0, length);
+        try {
+            while(is.available() > 0) {
+                long streamID = PDU_Impl.readUnsignedVarLong(is);
+                long increment = PDU_Impl.readUnsignedVarLong(is);
+
+                if(streamID == CONTROL_STREAM) {
+                    this.connectionCredit += increment;
+                    if(this.connectionCredit > MAX_CREDIT) {
+                        throw new ASAPException("connection credit too large: " + this.connectionCredit);
+                    }
+                } else {
+                    LogicalOutputStream stream = this.streams.get((int) streamID);
+                    if(stream == null || streamID > Integer.MAX_VALUE) {
+                        throw new ASAPException("credit granted for unknown stream: " + streamID);
+                    }
+                    stream.credit += increment;
+                    if(stream.credit > MAX_CREDIT) {
+                        throw new ASAPException("stream credit too large: " + stream.credit);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new ASAPException("malformed credit grant: " + e.getLocalizedMessage());
+        }
+
+        this.notifyAll();
+    }
+
+    /**
+     * @return connection credit that stream can take
+     */
+    private long getConnectionCredit(LogicalOutputStream stream) {
+        return stream.streamID == PRIORITY_STREAM ?
+                this.connectionCredit : this.connectionCredit - PRIORITY_RESERVE;
+    }
+
+    /**
+     * Wait for credit of stream and connection and use it.
+     * @return number of bytes allowed to be sent - at most wanted
+     */
+    private synchronized int takeCredit(LogicalOutputStream stream, int wanted) throws IOException {
+        while(!this.closed && (stream.credit == 0 || this.getConnectionCredit(stream) <= 0)) {
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                // check again
+            }
+        }
+
+        if(this.closed) throw new IOException("multiplexed connection closed");
+
+        int granted = (int) Math.min(wanted, Math.min(stream.credit, this.getConnectionCredit(stream)));
+        stream.credit -= granted;
+        this.connectionCredit -= granted;
+
+        return granted;
+    }
+
+    private synchronized void waitForTurn(boolean priority) throws IOException {
+        long ticket = -1;
+        if(priority) {
+            this.priorityWaiting++;
+        } else {
+            ticket = this.nextTicket++;
+        }
+
+        try {
+            while(!this.closed && (this.writing
+                    || (!priority && (this.priorityWaiting > 0 || ticket != this.servedTicket)))) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    // check again
+                }
+            }
+        }
+        finally {
+            if(priority) {
+                this.priorityWaiting--;
+            } else {
+                // served or given up - next one
+                this.servedTicket = ticket + 1;
+            }
+        }
+
+        if(this.closed) {
+            this.notifyAll();
+            throw new IOException("multiplexed connection closed");
+        }
+
+        this.writing = true;
+    }
+
+    private synchronized void endTurn() {
+        this.writing = false;
+        this.notifyAll();
+    }
+
+    private void writeFrame(int streamID, byte[] b, int off, int len, boolean priority) throws IOException {
+        this.waitForTurn(priority);
+        try {
+            // a single write for the whole frame
+            int index = ASAPMultiplexer.putUnsignedVarInt(streamID, this.frame, 0);
+            index = ASAPMultiplexer.putUnsignedVarInt(len, this.frame, index);
+            System.arraycopy(b, off, this.frame, index, len);
+            this.os.write(this.frame, 0, index + len);
+        }
+        finally {
+            this.endTurn();
+        }
+    }
+
+    static int putUnsignedVarInt(int value, byte[] bytes, int index) {
+        while((value & ~0x7F) != 0) {
+            bytes[index++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[index++] = (byte) value;
+        return index;
+    }
+
+    /**
+     * Lock logical stream while a pdu is sent with several writes - a pdu must not be interrupted by
+     * another one in the same stream. Nothing happens with other streams.
+     */
+    static void lockPDU(OutputStream os) {
+        if(os instanceof LogicalOutputStream) ((LogicalOutputStream) os).lock();
+    }
+
+    static void unlockPDU(OutputStream os) {
+        if(os instanceof LogicalOutputStream) ((LogicalOutputStream) os).unlock();
+    }
+
+    /**
+     * A logical stream. A pdu must not be interrupted by another one in the same stream - a single
+     * write is never interrupted, writers lock a stream while sending a pdu with several writes.
+     * Lock is held for a single pdu - never while waiting for data of other side.
+     */
+    class LogicalOutputStream extends OutputStream {
+        private final int streamID;
+        private final ReentrantLock lock = new ReentrantLock();
+        private long credit = STREAM_WINDOW;
+
+        private LogicalOutputStream(int streamID) {
+            this.streamID = streamID;
+        }
+
+        int getStreamID() {
+            return this.streamID;
+        }
+
+        void lock() {
+            this.lock.lock();
+        }
+
+        void unlock() {
+            this.lock.unlock();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            boolean control = this.streamID == CONTROL_STREAM;
+            boolean priority = control || this.streamID == PRIORITY_STREAM;
+            this.lock.lock();
+            try {
+                while(len > 0) {
+                    int frameLength = Math.min(len, MAX_FRAME_SIZE);
+                    // wait for credit before queuing - other streams go ahead meanwhile
+                    if(!control) frameLength = takeCredit(this, frameLength);
+                    writeFrame(this.streamID, b, off, frameLength, priority);
+                    off += frameLength;
+                    len -= frameLength;
+                }
+            }
+            finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * Closes underlying stream - like closing a not multiplexed connection.
+         */
+        @Override
+        public void close() throws IOException {
+            ASAPMultiplexer.this.close();
+            ASAPMultiplexer.this.os.close();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package net.sharksystem.asap.protocol;
+
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.crypto.ASAPPayloadKeys;
+import net.sharksystem.asap.crypto.ASAPSignatureVerifier;
+import net.sharksystem.asap.jfr.ASAPTrace;
+import net.sharksystem.asap.jfr.ASAPTracing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+
+/**
+ * Reads pdus of a single connection. Offer, interest and assimilate pdus are decoded into the same
+ * objects over and over again, strings are taken from a cache. A pdu is valid until the next one
+ * is read - it must not be kept. Handshakes are rare and always new objects.
+ *
+ * Stream should be buffered - parameters are read byte by byte. Signatures are read as well and
+ * checked in background. Encrypted payloads are decrypted while read.
+ *
+ * @author thsc
+ */
+class ASAPPDUDecoder {
+    private final PDUStringCache strings = new PDUStringCache();
+    private final OfferPDU_Impl offerPDU = new OfferPDU_Impl(this.strings);
+    private final InterestPDU_Impl interestPDU = new InterestPDU_Impl(this.strings);
+    private final AssimilationPDU_Impl assimilationPDU = new AssimilationPDU_Impl(this.strings);
+    private final ASAPSignatureVerifier signatureVerifier;
+
+    ASAPPDUDecoder() {
+        this(null, null, new ASAPCompression());
+    }
+
+    /**
+     * @param signatureVerifier null - signatures are not checked
+     * @param payloadKeys null - encrypted payloads cannot be read
+     */
+    ASAPPDUDecoder(ASAPSignatureVerifier signatureVerifier, ASAPPayloadKeys payloadKeys,
+                   ASAPCompression compression) {
+        this.signatureVerifier = signatureVerifier;
+        this.assimilationPDU.setPayloadKeys(payloadKeys);
+        this.assimilationPDU.setCompression(compression);
+    }
+
+    /**
+     * Decoder of pdus sent with that protocol - same keys.
+     */
+    ASAPPDUDecoder(ASAP_1_0 protocol) {
+        this(protocol.getSignatureVerifier(), protocol.getPayloadKeys(), protocol.getCompression());
+    }
+
+    /**
+     * Release native memory of decompression - call when connection is gone. Decoder must not be used afterwards.
+     */
+    void close() {
+        this.assimilationPDU.end();
+    }
+
+    /**
+     * @return next pdu - same object can be returned by next call
+     */
+    synchronized ASAP_PDU_1_0 readPDU(InputStream is) throws IOException, ASAPException {
+        byte cmd = PDU_Impl.readByte(is);
+        // trace decoding - not waiting for data
+        ASAPTrace trace = ASAPTracing.pduRead();
+
+        // signed pdu: anything up to signature is digested while read - assimilate pdus sign chunk content
+        boolean signed = PDUSignature.isSigned(cmd);
+        MessageDigest digest = PDUSignature.startDigest(cmd);
+        cmd = PDUSignature.removeSignedFlag(cmd);
+        if(cmd == ASAP_1_0.ASSIMILATE_CMD) digest = null;
+        InputStream pduIS = digest != null ? new DigestInputStream(is, digest) : is;
+
+        int flagsInt = PDU_Impl.readByte(pduIS);
+
+        PDU_Impl pdu = null;
+        long dataLength = 0;
+
+        switch(cmd) {
+            case ASAP_1_0.OFFER_CMD:
+                this.offerPDU.readFrom(flagsInt, pduIS);
+                pdu = this.offerPDU;
+                break;
+            case ASAP_1_0.INTEREST_CMD:
+                this.interestPDU.readFrom(flagsInt, pduIS);
+                pdu = this.interestPDU;
+                break;
+            case ASAP_1_0.ASSIMILATE_CMD:
+                this.assimilationPDU.readFrom(flagsInt, pduIS);
+                dataLength = this.assimilationPDU.getLength();
+                pdu = this.assimilationPDU;
+                break;
+            case ASAP_1_0.HANDSHAKE_CMD: pdu = new HandshakePDU_Impl(flagsInt, pduIS); break;
+            default: throw new ASAPException("unknown command: " + cmd);
+        }
+
+        if(signed) pdu.readSignature(is, digest, this.signatureVerifier);
+
+        trace.end(pdu.getPeer(), pdu.getFormat(), pdu.getChannelUri(), pdu.getEra(), dataLength);
+
+        return pdu;
+    }
+}
@@ -1,12 +1,25 @@
 package net.sharksystem.asap.protocol;
 
 import net.sharksystem.asap.*;
-
+import net.sharksystem.asap.jfr.ASAPTrace;
+import net.sharksystem.asap.jfr.ASAPTracing;
+import net.sharksystem.asap.management.ASAPGroupKeyService;
+import net.sharksystem.asap.metrics.ASAPConnectionMetrics;
+import net.sharksystem.asap.util.Helper;
+import net.sharksystem.asap.util.Log;
+import net.sharksystem.util.localloop.LocalPipe;
+
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class ASAPPersistentConnection extends ASAPProtocolEngine
         implements ASAPConnection, Runnable, ThreadFinishedListener {
@@ -19,16 +32,70 @@ public class ASAPPersistentConnection extends ASAPProtocolEngine
     private String remotePeer;
 
     private List<ASAPOnlineMessageSource> onlineMessageSources = new ArrayList<>();
-    private Thread threadWaiting4StreamsLock;
+    /** a thread holding streams can die without releasing them - check now and then */
+    private static final long STREAMS_LOCK_CHECK_INTERVAL = 1000;
     private boolean terminated = false;
+    private final ASAPBandwidthEstimator bandwidthEstimator;
+    private final ASAPConnectionMetrics metrics;
+    /** received pdus are decoded into reused objects - a pdu is processed before next one is read */
+    private final ASAPPDUDecoder decoder = new ASAPPDUDecoder(this.protocol);
+    private static final int INPUT_BUFFER_SIZE = 8 * 1024;
+
+    /** set if both sides multiplex - anything after handshakes is sent in frames then */
+    private volatile ASAPMultiplexer multiplexer = null;
+    /** nothing but handshake is sent before we know if frames are to be used */
+    private boolean outputModeSet = false;
+    private final Map<Integer, InboundStream> inboundStreams = new ConcurrentHashMap<>();
+    private static final int MAX_INBOUND_STREAMS = 256;
+    /** interests of a handshake are executed side by side - by that many threads at most */
+    static final int MAX_PARALLEL_INTERESTS = 4;
+    private ExecutorService interestExecutor = null;
+    private static final int INBOUND_PIPE_CAPACITY = 16 * 1024;
+    /** flow control: bytes other side is allowed to send (connection) and drained but not granted again */
+    private final Object flowControlLock = new Object();
+    private long receiveWindow = ASAPMultiplexer.CONNECTION_WINDOW;
+    private long connectionDrained = 0;
+
+    /** time fraction of max execution time kept in reserve when planning transmissions */
+    public static final double EXECUTION_TIME_SAFETY_MARGIN = 0.1;
 
     public ASAPPersistentConnection(InputStream is, OutputStream os, MultiASAPEngineFS multiASAPEngineFS,
                                     ASAP_1_0 protocol,
                                     long maxExecutionTime, ASAPConnectionListener asapConnectionListener,
                                     ThreadFinishedListener threadFinishedListener) {
 
-        super(is, os, protocol);
+        this(is, os, multiASAPEngineFS, protocol, maxExecutionTime, asapConnectionListener,
+                threadFinishedListener, new ASAPConnectionMetrics());
+    }
+
+    /**
+     * @param metrics connection counters - can be shared by several connections
+     */
+    public ASAPPersistentConnection(InputStream is, OutputStream os, MultiASAPEngineFS multiASAPEngineFS,
+                                    ASAP_1_0 protocol,
+                                    long maxExecutionTime, ASAPConnectionListener asapConnectionListener,
+                                    ThreadFinishedListener threadFinishedListener,
+                                    ASAPConnectionMetrics metrics) {
+
+        this(is, os, multiASAPEngineFS, protocol, maxExecutionTime, asapConnectionListener,
+                threadFinishedListener, new ASAPBandwidthEstimator(), metrics);
+    }
 
+    private ASAPPersistentConnection(InputStream is, OutputStream os, MultiASAPEngineFS multiASAPEngineFS,
+                                    ASAP_1_0 protocol,
+                                    long maxExecutionTime, ASAPConnectionListener asapConnectionListener,
+                                    ThreadFinishedListener threadFinishedListener,
+                                    ASAPBandwidthEstimator bandwidthEstimator,
+                                    ASAPConnectionMetrics metrics) {
+
+        // count anything we read and write, measure throughput of anything we write. PDUs are decoded
+        // byte by byte and payload is read by engines - all of them read from that single buffer
+        super(new BufferedInputStream(metrics.countInput(is), INPUT_BUFFER_SIZE),
+                bandwidthEstimator.meter(metrics.countOutput(os)), protocol);
+
+        this.bandwidthEstimator = bandwidthEstimator;
+        this.metrics = metrics;
+        this.metrics.connectionOpened();
         this.multiASAPEngineFS = multiASAPEngineFS;
         this.maxExecutionTime = maxExecutionTime;
         this.asapConnectionListener = asapConnectionListener;
@@ -39,16 +106,18 @@ public class ASAPPersistentConnection extends ASAPProtocolEngine
         return this.getClass().getSimpleName() + "(to: " + this.remotePeer + "): ";
     }
 
-    private void setRemotePeer(String remotePeerName) {
+    private synchronized void setRemotePeer(String remotePeerName) {
         if(this.remotePeer == null) {
 
             this.remotePeer = remotePeerName;
 
-            StringBuilder sb = new StringBuilder();
-            sb.append(this.getLogStart());
-            sb.append("set remotePeerName after reading first asap message: ");
-            sb.append(remotePeerName);
-            System.out.println(sb.toString());
+            if(Log.isDebugEnabled()) {
+                StringBuilder sb = new StringBuilder();
+                sb.append(this.getLogStart());
+                sb.append("set remotePeerName after reading first verified asap message: ");
+                sb.append(remotePeerName);
+                Log.debug(sb);
+            }
 
             if(this.asapConnectionListener != null) {
                 this.asapConnectionListener.asapConnectionStarted(remotePeerName, this);
@@ -56,6 +125,14 @@ public class ASAPPersistentConnection extends ASAPProtocolEngine
         }
     }
 
+    public ASAPBandwidthEstimator getBandwidthEstimator() {
+        return this.bandwidthEstimator;
+    }
+
+    public ASAPConnectionMetrics getMetrics() {
+        return this.metrics;
+    }
+
     @Override
     public CharSequence getRemotePeer() {
         return this.remotePeer;
@@ -67,6 +144,68 @@ public class ASAPPersistentConnection extends ASAPProtocolEngine
     }
 
     public boolean isSigned() {
+        return this.protocol.isSigning();
+    }
+
+    /**
+     * A connection signing its pdus accepts signed pdus only. Signature of an assimilate pdu follows its
+     * payload - engine checks it after reading payload.
+     */
+    private void checkSignature(ASAP_PDU_1_0 asappdu) throws IOException, ASAPException {
+        if(!asappdu.isSigned()) {
+            if(this.protocol.isSigning()) throw new ASAPException("pdu not signed: " + asappdu);
+            return;
+        }
+
+        // signature and signer follow payload - engine checks both before chunk is stored
+        if(asappdu.getCommand() == ASAP_1_0.ASSIMILATE_CMD) return;
+
+        if(!asappdu.verify()) {
+            throw new ASAPException("invalid signature of pdu signed by " + asappdu.getSigner());
+        }
+        if(!asappdu.getSigner().equals(asappdu.getPeer())) {
+            throw new ASAPException("pdu of " + asappdu.getPeer() + " signed by " + asappdu.getSigner());
+        }
+    }
+
+    /**
+     * Group key messages are taken from their sender only - they must be signed. Unsigned ones are skipped.
+     * @return false if chunk was skipped
+     */
+    private boolean checkGroupKeySignature(ASAP_PDU_1_0 asappdu) throws IOException {
+        if(asappdu.getCommand() != ASAP_1_0.ASSIMILATE_CMD || asappdu.isSigned()) return true;
+        if(!ASAP_1_0.ASAP_MANAGEMENT_FORMAT.contentEquals(asappdu.getFormat()) || asappdu.getChannelUri() == null
+                || !ASAPGroupKeyService.isGroupKeyUri(asappdu.getChannelUri())) return true;
+
+        ((ASAP_AssimilationPDU_1_0) asappdu).skipPayload();
+        Log.warn(this.getLogStart() + "group key message skipped - not signed: " + asappdu);
+
+        return false;
+    }
+
+    /**
+     * Payloads of channels with a group key must be encrypted - management format aside. Chunks not
+     * encrypted or encrypted with an unknown group key are skipped - connection goes on.
+     * @return false if chunk was skipped
+     */
+    private boolean checkEncryption(ASAP_PDU_1_0 asappdu) throws IOException {
+        if(asappdu.getCommand() != ASAP_1_0.ASSIMILATE_CMD) return true;
+
+        ASAP_AssimilationPDU_1_0 assimilationPDU = (ASAP_AssimilationPDU_1_0) asappdu;
+        String problem = null;
+        if(!assimilationPDU.canDecrypt()) {
+            problem = "encrypted with unknown group key";
+        } else if(assimilationPDU.getLength() > 0
+                && (assimilationPDU.getEncoding() & ASAP_1_0.ENCODING_AES_GCM) == 0
+                && ASAP_Modem_Impl.isEncrypted(this.protocol.getPayloadKeys(), asappdu.getFormat(),
+                        asappdu.getChannelUri())) {
+            problem = "not encrypted";
+        }
+        if(problem == null) return true;
+
+        assimilationPDU.skipPayload();
+        Log.warn(this.getLogStart() + "chunk skipped - payload " + problem + ": " + asappdu);
+
         return false;
     }
 
@@ -78,6 +217,10 @@ public class ASAPPersistentConnection extends ASAPProtocolEngine
     public void kill(Exception e) {
         if(!this.terminated) {
             this.terminated = true;
+            this.metrics.connectionClosed();
+            // release threads waiting for output or multiplexed streams
+            synchronized(this) { this.notifyAll(); }
+            this.closeMultiplexedStreams();
             // kill reader - proofed to be useful in a bluetooth environment
             if(this.pduReader != null && this.pduReader.isAlive()) {
                 this.pduReader.interrupt();
@@ -113,33 +256,49 @@ public class ASAPPersistentConnection extends ASAPProtocolEngine
         }
 
         sb.append(" | ");
-        System.out.println(sb.toString());
+        Log.info(sb);
 
         this.kill();
     }
 
-    private void sendOnlineMessages() throws IOException {
+    private void sendOnlineMessages(OutputStream os) throws IOException {
         List<ASAPOnlineMessageSource> copy = onlineMessageSources;
         this.onlineMessageSources = new ArrayList<>();
         while(!copy.isEmpty()) {
             ASAPOnlineMessageSource asapOnline = copy.remove(0);
-            StringBuilder sb = new StringBuilder();
-            sb.append(this.getLogStart());
-            sb.append("going to send online message");
-            System.out.println(sb.toString());
-            asapOnline.sendMessages(this, this.os);
+            if(Log.isDebugEnabled()) {
+                StringBuilder sb = new StringBuilder();
+                sb.append(this.getLogStart());
+                sb.append("going to send online message");
+                Log.debug(sb);
+            }
+            asapOnline.sendMessages(this, os);
         }
     }
 
     private class OnlineMessageSenderThread extends Thread {
         public Exception caughtException = null;
         public void run() {
+            waitForOutputMode();
+            ASAPMultiplexer multiplexer = ASAPPersistentConnection.this.multiplexer;
+            if(multiplexer != null) {
+                // own stream - no need to wait for others
+                try {
+                    sendOnlineMessages(multiplexer.getPriorityStream());
+                    onlineMessageSenderThread = null;
+                    checkRunningOnlineMessageSender();
+                } catch (IOException e) {
+                    terminate("could not write data into stream", e);
+                }
+                return;
+            }
+
             try {
                 // get exclusive access to streams
-                System.out.println(getLogStart() + "online sender is going to wait for stream access");
+                if(Log.isDebugEnabled()) Log.debug(getLogStart() + "online sender is going to wait for stream access");
                 wait4ExclusiveStreamsAccess();
-                System.out.println(getLogStart() + "online sender got stream access");
-                sendOnlineMessages();
+                if(Log.isDebugEnabled()) Log.debug(getLogStart() + "online sender got stream access");
+                sendOnlineMessages(os);
                 // prepare a graceful death
                 onlineMessageSenderThread = null;
                 // are new message waiting in the meantime?
@@ -148,7 +307,7 @@ public class ASAPPersistentConnection extends ASAPProtocolEngine
                 terminate("could not write data into stream", e);
             }
             finally {
-                System.out.println(getLogStart() + "online sender releases lock");
+                if(Log.isDebugEnabled()) Log.debug(getLogStart() + "online sender releases lock");
                 releaseStreamsLock();
             }
         }
@@ -173,7 +332,8 @@ public class ASAPPersistentConnection extends ASAPProtocolEngine
     }
 
     public void run() {
-        ASAP_1_0 protocol = new ASAP_Modem_Impl();
+        // modem keeps features negotiated with other side
+        ASAP_1_0 protocol = this.protocol;
 
         try {
             // let engine write their interest - at least management interest is sent which als introduces
@@ -186,15 +346,16 @@ public class ASAPPersistentConnection extends ASAPProtocolEngine
 
         /////////////////////////////// read
         while (!this.terminated) {
-            this.pduReader = new ASAPPDUReader(protocol, is, this);
+            this.pduReader = new ASAPPDUReader(this.decoder, is, this);
             try {
-                System.out.println(this.getLogStart() + "start reading");
+                if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "start reading");
                 this.runObservedThread(pduReader, this.maxExecutionTime);
             } catch (ASAPExecTimeExceededException e) {
-                System.out.println(this.getLogStart() + "reading on stream took longer than allowed");
+                this.metrics.readTimeout();
+                if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "reading on stream took longer than allowed");
             }
 
-            System.out.println(this.getLogStart() + "back from reading");
+            if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "back from reading");
             if(terminated) break; // thread could be killed in the meantime
 
             if (pduReader.getIoException() != null || pduReader.getAsapException() != null) {
@@ -208,118 +369,326 @@ public class ASAPPersistentConnection extends ASAPProtocolEngine
             ASAP_PDU_1_0 asappdu = pduReader.getASAPPDU();
             /////////////////////////////// process
             if(asappdu != null) {
-                System.out.println(this.getLogStart() + "read valid pdu");
-                this.setRemotePeer(asappdu.getPeer());
-
-                // process received pdu
-                boolean pduExecuted = false;
-                /*
-                if(asappdu.getFormat().equalsIgnoreCase(ASAP_1_0.ASAP_MANAGEMENT_FORMAT)) {
-                    System.out.println(this.getLogStart()
-                            + "got asap management message - let multi-engine handle this one");
+                if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "read valid pdu");
+                this.metrics.pduReceived(asappdu.getCommand());
 
+                if(asappdu.getCommand() == ASAP_1_0.HANDSHAKE_CMD) {
                     try {
-                        // if return true - message was handled. No further actions required
-                        pduExecuted = this.multiASAPEngineFS.handleASAPManagementPDU(asappdu, protocol, is);
-                    } catch (ASAPException e) {
-                        System.err.println("asap management pdu processing failed - go ahead in read/process loop: "
-                                + e.getLocalizedMessage());
-                        pduExecuted = false; // failed to execute - forget and go ahead
-                    } catch (IOException e) {
-                        this.terminate("asap management pdu processing failed", e);
+                        this.checkSignature(asappdu);
+                    } catch (IOException | ASAPException e) {
+                        this.terminate("handshake rejected: ", e);
                         break;
                     }
-                }
-                */
-                if(!pduExecuted) { // not (completely executed by multi engine
-                    try {
-                        this.executor = new ASAPPDUExecutor(asappdu,
-                                            this.is, this.os,
-                                            this.multiASAPEngineFS.getEngineSettings(asappdu.getFormat()),
-                                            protocol,this);
-
-                        // get exclusive access to streams
-                        System.out.println(this.getLogStart() + "asap pdu executor going to wait for stream access");
-                        this.wait4ExclusiveStreamsAccess();
-                        try {
-                            System.out.println(this.getLogStart() + "asap pdu executor got stream access - process pdu");
-                            this.runObservedThread(executor, maxExecutionTime);
-                        } catch (ASAPExecTimeExceededException e) {
-                            System.out.println(this.getLogStart() + "asap pdu processing took longer than allowed");
-                            this.terminate("asap pdu processing took longer than allowed", e);
-                            break;
-                        } finally {
-                            // wake waiting thread if any
-                            this.releaseStreamsLock();
-                            System.out.println(this.getLogStart() + "asap pdu executor release locks");
+                    this.setRemotePeer(asappdu.getPeer());
+
+                    // a single handshake carries interests for any format of the other side
+                    ASAP_HandshakePDU_1_0 handshakePDU = (ASAP_HandshakePDU_1_0) asappdu;
+                    int features = protocol.negotiateFeatures(handshakePDU.getFeatures());
+                    if(Log.isDebugEnabled()) {
+                        StringBuilder sb = new StringBuilder();
+                        sb.append(this.getLogStart());
+                        sb.append("handshake | version: ");
+                        sb.append(handshakePDU.getVersion());
+                        sb.append(" | negotiated features: ");
+                        sb.append(features);
+                        sb.append(" | #formats: ");
+                        sb.append(handshakePDU.getInterests().size());
+                        Log.debug(sb);
+                    }
+
+                    if(protocol.isFeatureNegotiated(ASAP_1_0.FEATURE_MULTIPLEXING)) {
+                        this.multiplexer = new ASAPMultiplexer(this.os);
+                        this.setOutputMode();
+                        // formats are synchronized side by side
+                        this.createInterestExecutor();
+                        for(ASAP_Interest_PDU_1_0 interestPDU : handshakePDU.getInterests()) {
+                            this.executeMultiplexedInBackground(interestPDU);
                         }
-                    } catch (ASAPException e) {
-                        System.out.println(this.getLogStart() + " problem when executing asap received pdu: " + e);
+                        this.readFrames();
+                        break;
+                    }
+
+                    this.setOutputMode();
+                    for(ASAP_Interest_PDU_1_0 interestPDU : handshakePDU.getInterests()) {
+                        if(!this.executePDU(interestPDU, protocol)) break;
                     }
+                } else {
+                    // no handshake - other side does not multiplex
+                    this.setOutputMode();
+                    this.executePDU(asappdu, protocol);
                 }
+
+                if(this.terminated) break;
             }
         }
+
+        // pdus were read by this thread only - or threads it waited for
+        this.decoder.close();
     }
 
-    private Thread threadUsingStreams = null;
-    private synchronized Thread getThreadUsingStreams(Thread t) {
-        if(this.threadUsingStreams == null) {
-            this.threadUsingStreams = t;
-            return null;
+    private synchronized void setOutputMode() {
+        this.outputModeSet = true;
+        this.notifyAll();
+    }
+
+    /**
+     * Wait until handshake of other side was received - or connection is gone.
+     */
+    private synchronized void waitForOutputMode() {
+        while(!this.outputModeSet && !this.terminated) {
+            try {
+                this.wait(STREAMS_LOCK_CHECK_INTERVAL);
+            } catch (InterruptedException e) {
+                // check again
+            }
         }
+    }
+
+    /**
+     * Demultiplex - read frames and pass their content to a stream per id. Each stream has its own
+     * thread reading and executing pdus. Returns when connection is gone.
+     */
+    private void readFrames() {
+        // no observed threads from now on - reader that delivered handshake could have left an interrupt
+        this.managementThread = null;
+        Thread.interrupted();
 
-        return this.threadUsingStreams;
+        byte[] controlFrame = new byte[ASAPMultiplexer.MAX_FRAME_SIZE];
+        try {
+            while(!this.terminated) {
+                long streamID = PDU_Impl.readUnsignedVarLong(this.is);
+                long length = PDU_Impl.readUnsignedVarLong(this.is);
+                if(length > ASAPMultiplexer.MAX_FRAME_SIZE) {
+                    throw new ASAPException("frame too large: " + length);
+                }
+
+                if(streamID == ASAPMultiplexer.CONTROL_STREAM) {
+                    PDU_Impl.readFully(this.is, controlFrame, (int) length);
+                    this.multiplexer.readCreditGrants(controlFrame, (int) length);
+                    continue;
+                }
+
+                InboundStream inboundStream = this.inboundStreams.get((int) streamID);
+                if(inboundStream == null) {
+                    if(streamID > Integer.MAX_VALUE || this.inboundStreams.size() >= MAX_INBOUND_STREAMS) {
+                        throw new ASAPException("too many streams - stream id: " + streamID);
+                    }
+                    inboundStream = new InboundStream((int) streamID);
+                    this.inboundStreams.put((int) streamID, inboundStream);
+                    inboundStream.start();
+                }
+
+                // never blocks: pipe can take anything we allowed to send
+                this.useCredit(inboundStream, length);
+                Helper.copy(this.is, inboundStream.pipe.getOutputStream(), length);
+            }
+        } catch (IOException | ASAPException e) {
+            this.terminate("exception when reading frames (stop asap session): ", e);
+        }
+        finally {
+            this.closeMultiplexedStreams();
+        }
     }
 
-    private void wait4ExclusiveStreamsAccess() {
-        // synchronize with other thread using streams
-        Thread threadUsingStreams = this.getThreadUsingStreams(Thread.currentThread());
+    private void useCredit(InboundStream inboundStream, long length) throws ASAPException {
+        synchronized(this.flowControlLock) {
+            if(length > inboundStream.window || length > this.receiveWindow) {
+                throw new ASAPException("flow control violated - more data than granted on stream: "
+                        + inboundStream.streamID);
+            }
+            inboundStream.window -= length;
+            this.receiveWindow -= length;
+        }
+    }
 
-        // got lock - go ahead
-        if(threadUsingStreams == null) {
-            return;
+    /**
+     * Data left pipe of a stream - grant credit again after half a window was drained.
+     */
+    private void drained(InboundStream inboundStream, int number) throws IOException {
+        long streamGrant = 0, connectionGrant = 0;
+        synchronized(this.flowControlLock) {
+            inboundStream.drained += number;
+            if(inboundStream.drained >= ASAPMultiplexer.STREAM_WINDOW / 2) {
+                streamGrant = inboundStream.drained;
+                inboundStream.window += streamGrant;
+                inboundStream.drained = 0;
+            }
+
+            this.connectionDrained += number;
+            if(this.connectionDrained >= ASAPMultiplexer.CONNECTION_WINDOW / 2) {
+                connectionGrant = this.connectionDrained;
+                this.receiveWindow += connectionGrant;
+                this.connectionDrained = 0;
+            }
         }
 
-        // there is another stream - wait until it dies
-        do {
-            System.out.println(this.getLogStart() + "enter waiting loop for exclusive stream access");
-            // wait
+        if(streamGrant > 0) this.multiplexer.grantCredit(inboundStream.streamID, streamGrant);
+        if(connectionGrant > 0) this.multiplexer.grantCredit(ASAPMultiplexer.CONTROL_STREAM, connectionGrant);
+    }
+
+    private synchronized void createInterestExecutor() {
+        if(this.terminated) return;
+
+        this.interestExecutor = Executors.newFixedThreadPool(MAX_PARALLEL_INTERESTS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ASAPInterestExecutor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private void closeMultiplexedStreams() {
+        synchronized(this) {
+            if(this.interestExecutor != null) this.interestExecutor.shutdownNow();
+        }
+        if(this.multiplexer != null) this.multiplexer.close();
+        for(InboundStream inboundStream : this.inboundStreams.values()) {
+            inboundStream.pipe.close();
+        }
+    }
+
+    /**
+     * Execute a pdu. Output is written in stream of its format - other formats are not blocked. Answers
+     * to offers have their own stream. Execution is observed like any other - connection is terminated
+     * if it takes longer than max execution time.
+     * @param is pdu payload is read from that stream
+     * @return false if processing took too long - connection is terminated
+     */
+    private boolean executeMultiplexed(ASAP_PDU_1_0 asappdu, InputStream is) {
+        try {
+            ASAPEngine engine = this.multiASAPEngineFS.useEngineByFormat(asappdu.getFormat());
+            ASAPMultiplexer.LogicalOutputStream formatStream = asappdu.getCommand() == ASAP_1_0.OFFER_CMD ?
+                    this.multiplexer.getRequestStream(asappdu.getFormat())
+                    : this.multiplexer.getFormatStream(asappdu.getFormat());
+
+            // pdus are locked in stream while written, not while payload is read
+            ASAPPDUExecutor executor = new ASAPPDUExecutor(asappdu, is, formatStream,
+                    this.multiASAPEngineFS.getEngineSettings(asappdu.getFormat()), engine, this.protocol, null);
+
+            // streams are observed side by side - not by management thread
+            executor.start();
+            this.awaitObservedThread(executor, this.maxExecutionTime);
+        } catch (ASAPExecTimeExceededException e) {
+            this.metrics.executionTimeout();
+            Log.warn(this.getLogStart() + "asap pdu processing took longer than allowed");
+            this.terminate("asap pdu processing took longer than allowed", e);
+            return false;
+        } catch (ASAPException | IOException e) {
+            Log.warn(this.getLogStart() + " problem when executing asap received pdu: " + e);
+        }
+
+        return true;
+    }
+
+    private synchronized void executeMultiplexedInBackground(final ASAP_PDU_1_0 asappdu) {
+        if(this.interestExecutor == null || this.interestExecutor.isShutdown()) return;
+
+        this.interestExecutor.execute(new Runnable() {
+            public void run() {
+                executeMultiplexed(asappdu, is);
+            }
+        });
+    }
+
+    /**
+     * @return false if processing took too long - connection is terminated
+     */
+    private boolean executePDU(ASAP_PDU_1_0 asappdu, ASAP_1_0 protocol) {
+        try {
+            // engines are loaded on first use
+            ASAPEngine engine = this.multiASAPEngineFS.useEngineByFormat(asappdu.getFormat());
+            this.executor = new ASAPPDUExecutor(asappdu,
+                                this.is, this.os,
+                                this.multiASAPEngineFS.getEngineSettings(asappdu.getFormat()),
+                                engine, protocol,this);
+
+            // get exclusive access to streams
+            if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "asap pdu executor going to wait for stream access");
+            this.wait4ExclusiveStreamsAccess();
             try {
-                this.threadWaiting4StreamsLock = Thread.currentThread();
-                threadUsingStreams.join();
-            } catch (InterruptedException e) {
-                System.out.println(this.getLogStart() + "woke up from join");
+                if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "asap pdu executor got stream access - process pdu");
+                this.runObservedThread(executor, maxExecutionTime);
+            } catch (ASAPExecTimeExceededException e) {
+                this.metrics.executionTimeout();
+                Log.warn(this.getLogStart() + "asap pdu processing took longer than allowed");
+                this.terminate("asap pdu processing took longer than allowed", e);
+                return false;
+            } finally {
+                // wake waiting thread if any
+                this.releaseStreamsLock();
+                if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "asap pdu executor release locks");
             }
-            finally {
-                this.threadWaiting4StreamsLock = null;
+        } catch (ASAPException | IOException e) {
+            Log.warn(this.getLogStart() + " problem when executing asap received pdu: " + e);
+        }
+
+        return true;
+    }
+
+    private Thread threadUsingStreams = null;
+    private final Object streamsLock = new Object();
+
+    private void wait4ExclusiveStreamsAccess() {
+        synchronized(this.streamsLock) {
+            // got lock - go ahead
+            if(this.threadUsingStreams == null) {
+                this.threadUsingStreams = Thread.currentThread();
+                return;
             }
-            // try again
-            System.out.println(this.getLogStart() + "try to get streams access again");
-            threadUsingStreams = this.getThreadUsingStreams(Thread.currentThread());
-        } while(threadUsingStreams != null);
-        System.out.println(this.getLogStart() + "leave waiting loop for exclusive stream access");
+
+            // there is another thread using streams - wait until it releases them (or dies)
+            long waitStart = System.nanoTime();
+            ASAPTrace trace = ASAPTracing.streamLockWait();
+            if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "enter waiting loop for exclusive stream access");
+            while(this.threadUsingStreams != null && this.threadUsingStreams.isAlive()) {
+                try {
+                    this.streamsLock.wait(STREAMS_LOCK_CHECK_INTERVAL);
+                } catch (InterruptedException e) {
+                    if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "woke up while waiting for streams");
+                }
+            }
+            this.threadUsingStreams = Thread.currentThread();
+
+            this.metrics.streamLockWaited(System.nanoTime() - waitStart);
+            trace.end(this.remotePeer, null, null, -1, 0);
+            if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "leave waiting loop for exclusive stream access");
+        }
     }
 
     private void releaseStreamsLock() {
-        this.threadUsingStreams = null; // take me out
-        if(this.threadWaiting4StreamsLock != null) {
-            System.out.println(this.getLogStart() + "wake waiting thread");
-            this.threadWaiting4StreamsLock.interrupt();
+        synchronized(this.streamsLock) {
+            this.threadUsingStreams = null; // take me out
+            this.streamsLock.notifyAll();
         }
     }
 
     private void runObservedThread(Thread t, long maxExecutionTime) throws ASAPExecTimeExceededException {
         this.managementThread = Thread.currentThread();
         t.start();
+        this.awaitObservedThread(t, maxExecutionTime);
+    }
 
-        // wait for reader
-        try {
-            Thread.sleep(maxExecutionTime);
-        } catch (InterruptedException e) {
-            // was woken up by thread - that's good
-            return;
+    private void awaitObservedThread(Thread t, long maxExecutionTime) throws ASAPExecTimeExceededException {
+        // wait for reader / executor. Interrupts are no proof it is done - a released stream lock wakes
+        // this thread as well, sometimes after it already got the lock.
+        long deadline = System.currentTimeMillis() + maxExecutionTime;
+        if(deadline < 0) deadline = Long.MAX_VALUE; // overflow
+
+        while(t.isAlive() && !this.terminated) {
+            long remaining = deadline - System.currentTimeMillis();
+            if(remaining <= 0) break;
+
+            try {
+                t.join(remaining);
+            } catch (InterruptedException e) {
+                // woken up - check again
+            }
         }
 
+        if(!t.isAlive() || this.terminated) return;
+
         StringBuilder sb = new StringBuilder();
         sb.append("thread (");
         sb.append(t.getClass().getSimpleName());
@@ -330,34 +699,38 @@ public class ASAPPersistentConnection extends ASAPProtocolEngine
         throw new ASAPExecTimeExceededException(sb.toString());
     }
 
-    private class ASAPPDUExecutor extends Thread {
+    private class ASAPPDUExecutor extends Thread implements ASAPEncounterBudget {
         private final ASAP_PDU_1_0 asapPDU;
         private final InputStream is;
         private final OutputStream os;
         private final EngineSetting engineSetting;
+        private final ASAPEngine engine;
         private final ASAP_1_0 protocol;
         private final ThreadFinishedListener threadFinishedListener;
+        private long executionStart = -1;
 
         public ASAPPDUExecutor(ASAP_PDU_1_0 asapPDU, InputStream is, OutputStream os,
-                               EngineSetting engineSetting, ASAP_1_0 protocol,
+                               EngineSetting engineSetting, ASAPEngine engine, ASAP_1_0 protocol,
                                ThreadFinishedListener threadFinishedListener) {
             this.asapPDU = asapPDU;
             this.is = is;
             this.os = os;
             this.engineSetting = engineSetting;
+            this.engine = engine;
             this.protocol = protocol;
             this.threadFinishedListener = threadFinishedListener;
 
-            StringBuilder sb = new StringBuilder();
-            sb.append(getLogStart());
-            sb.append("ASAPPDUExecutor: ");
-            sb.append("engine: " + engineSetting.engine.getClass().getSimpleName() + " | ");
-            if(engineSetting.listener != null) {
-                sb.append("listener: " + engineSetting.listener.getClass().getSimpleName() + " | ");
+            if(Log.isDebugEnabled()) {
+                StringBuilder sb = new StringBuilder();
+                sb.append(getLogStart());
+                sb.append("ASAPPDUExecutor: ");
+                sb.append("engine: " + engine.getClass().getSimpleName() + " | ");
+                if(engineSetting.listener != null) {
+                    sb.append("listener: " + engineSetting.listener.getClass().getSimpleName() + " | ");
+                }
+                sb.append("folder: " + engineSetting.folder);
+                Log.debug(sb.toString());
             }
-            sb.append("folder: " + engineSetting.folder);
-
-            System.out.println(sb.toString());
         }
 
         private void finish() {
@@ -366,38 +739,64 @@ public class ASAPPersistentConnection extends ASAPProtocolEngine
             }
         }
 
+        /**
+         * Watchdog kills processing after max execution time. Remaining time (minus a safety margin)
+         * is converted into a number of bytes by means of measured throughput.
+         */
+        @Override
+        public long getRemainingBytes() {
+            if(maxExecutionTime <= 0 || maxExecutionTime == Long.MAX_VALUE) return UNLIMITED;
+
+            long start = this.executionStart < 0 ? System.currentTimeMillis() : this.executionStart;
+            long elapsed = System.currentTimeMillis() - start;
+            long reserve = (long) (maxExecutionTime * EXECUTION_TIME_SAFETY_MARGIN);
+            long remainingMillis = maxExecutionTime - elapsed - reserve;
+
+            return bandwidthEstimator.estimateBytes(remainingMillis);
+        }
+
         public void run() {
-            if(engineSetting.engine == null) {
-                System.err.println(getLogStart() + "ASAPPDUExecutor called without engine set - fatal");
+            this.executionStart = System.currentTimeMillis();
+            if(engine == null) {
+                Log.error(getLogStart() + "ASAPPDUExecutor called without engine set - fatal");
                 this.finish();
                 return;
             }
 
-            System.out.println(getLogStart() + "ASAPPDUExecutor calls engine: "
-                    + engineSetting.engine.getClass().getSimpleName());
+            if(Log.isDebugEnabled()) {
+                Log.debug(getLogStart() + "ASAPPDUExecutor calls engine: "
+                        + engine.getClass().getSimpleName());
+            }
 
+            // engine is not unloaded while in use
+            engineSetting.executionStarted();
             try {
+                checkSignature(asapPDU);
+                // sender of an assimilate pdu is origin of that chunk - other side could be a relay
+                if(asapPDU.getCommand() != ASAP_1_0.ASSIMILATE_CMD) setRemotePeer(asapPDU.getPeer());
+                if(!checkGroupKeySignature(asapPDU) || !checkEncryption(asapPDU)) return;
+
                 switch (asapPDU.getCommand()) {
                     case ASAP_1_0.INTEREST_CMD:
-                        System.out.println(getLogStart() + "ASAPPDUExecutor call handleASAPInterest");
-                        engineSetting.engine.handleASAPInterest((ASAP_Interest_PDU_1_0) asapPDU, protocol, os);
+                        if(Log.isDebugEnabled()) Log.debug(getLogStart() + "ASAPPDUExecutor call handleASAPInterest");
+                        engine.handleASAPInterest((ASAP_Interest_PDU_1_0) asapPDU, protocol, os, this);
                         break;
                     case ASAP_1_0.OFFER_CMD:
-                        System.out.println(getLogStart() + "ASAPPDUExecutor call handleASAPOffer");
-                        engineSetting.engine.handleASAPOffer((ASAP_OfferPDU_1_0) asapPDU, protocol, os);
+                        if(Log.isDebugEnabled()) Log.debug(getLogStart() + "ASAPPDUExecutor call handleASAPOffer");
+                        engine.handleASAPOffer((ASAP_OfferPDU_1_0) asapPDU, protocol, os);
                         break;
                     case ASAP_1_0.ASSIMILATE_CMD:
-                        System.out.println(getLogStart() + "ASAPPDUExecutor call handleASAPAssimilate");
-                        engineSetting.engine.handleASAPAssimilate((ASAP_AssimilationPDU_1_0) asapPDU, protocol, is, os,
+                        if(Log.isDebugEnabled()) Log.debug(getLogStart() + "ASAPPDUExecutor call handleASAPAssimilate");
+                        engine.handleASAPAssimilate((ASAP_AssimilationPDU_1_0) asapPDU, protocol, is, os,
                                 engineSetting.listener);
                         break;
 
                     default:
-                        System.err.println(getLogStart() + ": " + "unknown ASAP command: " + asapPDU.getCommand());
+                        Log.error(getLogStart() + ": " + "unknown ASAP command: " + asapPDU.getCommand());
                 }
             }
             catch(IOException | ASAPException e) {
-                System.err.println(getLogStart()
+                Log.error(getLogStart()
                         + "Exception while processing ASAP PDU - close streams" + e.getLocalizedMessage());
                 try {
                     os.close(); // more important to close than input stream - do it first
@@ -407,21 +806,97 @@ public class ASAPPersistentConnection extends ASAPProtocolEngine
                 }
             }
             finally {
+                engineSetting.executionFinished();
                 this.finish();
             }
         }
     }
 
+    /**
+     * Logical stream from other side - pdus are read and executed one after the other. Executing
+     * assimilate pdus writes to disk - a slow stream pauses sender of that stream only.
+     */
+    private class InboundStream extends Thread {
+        private final int streamID;
+        // never holds more than other side is allowed to send
+        private final LocalPipe pipe = new LocalPipe(INBOUND_PIPE_CAPACITY, ASAPMultiplexer.STREAM_WINDOW);
+        private final ASAPPDUDecoder decoder = new ASAPPDUDecoder(protocol);
+        // guarded by flowControlLock
+        private long window = ASAPMultiplexer.STREAM_WINDOW;
+        private long drained = 0;
+
+        InboundStream(int streamID) {
+            this.streamID = streamID;
+        }
+
+        public void run() {
+            // pdus are decoded byte by byte
+            InputStream is = new BufferedInputStream(new DrainingInputStream(this), INPUT_BUFFER_SIZE);
+            try {
+                while(!terminated) {
+                    ASAP_PDU_1_0 asappdu = this.decoder.readPDU(is);
+                    // remote peer is set when pdu was verified - see ASAPPDUExecutor
+                    metrics.pduReceived(asappdu.getCommand());
+
+                    if(Log.isDebugEnabled()) {
+                        StringBuilder sb = new StringBuilder();
+                        sb.append(getLogStart());
+                        sb.append("read pdu from stream ");
+                        sb.append(this.streamID);
+                        sb.append(": ");
+                        sb.append(asappdu);
+                        Log.debug(sb);
+                    }
+
+                    if(!executeMultiplexed(asappdu, is)) break;
+                }
+            } catch (IOException | ASAPException e) {
+                // pipe is closed if connection is gone - no reason to complain
+                if(!terminated) terminate("exception when reading stream " + this.streamID + ": ", e);
+            }
+            finally {
+                this.decoder.close();
+            }
+        }
+    }
+
+    /**
+     * Reads pipe of an inbound stream and reports drained bytes.
+     */
+    private class DrainingInputStream extends InputStream {
+        private final InboundStream inboundStream;
+        private final InputStream is;
+
+        DrainingInputStream(InboundStream inboundStream) {
+            this.inboundStream = inboundStream;
+            this.is = inboundStream.pipe.getInputStream();
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = this.is.read();
+            if(b >= 0) drained(this.inboundStream, 1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = this.is.read(b, off, len);
+            if(read > 0) drained(this.inboundStream, read);
+            return read;
+        }
+    }
+
     private class ASAPPDUReader extends Thread {
-        private final ASAP_1_0 protocol;
+        private final ASAPPDUDecoder decoder;
         private final InputStream is;
         private final ThreadFinishedListener pduReaderListener;
         private ASAP_PDU_1_0 asapPDU = null;
         private IOException ioException = null;
         private ASAPException asapException = null;
 
-        ASAPPDUReader(ASAP_1_0 protocol, InputStream is, ThreadFinishedListener listener) {
-            this.protocol = protocol;
+        ASAPPDUReader(ASAPPDUDecoder decoder, InputStream is, ThreadFinishedListener listener) {
+            this.decoder = decoder;
             this.is = is;
             this.pduReaderListener = listener;
         }
@@ -440,7 +915,7 @@ public class ASAPPersistentConnection extends ASAPProtocolEngine
 
         public void run() {
             try {
-                this.asapPDU = protocol.readPDU(is);
+                this.asapPDU = this.decoder.readPDU(is);
             } catch (IOException e) {
                 this.ioException = e;
             } catch (ASAPException e) {
@@ -1,6 +1,7 @@
 package net.sharksystem.asap.protocol;
 
 import net.sharksystem.asap.*;
+import net.sharksystem.asap.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -68,7 +69,7 @@ public abstract class ASAPSession extends Thread implements ThreadFinishedListen
     }
 
     protected void runASAPExecutor(ASAP_PDU_1_0 asappdu, long maxExecutionTime) throws IOException, ASAPException {
-        ASAPEngine engine = this.multiASAPEngineFS.getEngineByFormat(asappdu.getFormat());
+        ASAPEngine engine = this.multiASAPEngineFS.useEngineByFormat(asappdu.getFormat());
         ASAPChunkReceivedListener listener = this.multiASAPEngineFS.getListenerByFormat(asappdu.getFormat());
 
         Thread executor = new ASAPPDUProcessor(asappdu, this.is, this.os,
@@ -115,14 +116,13 @@ public abstract class ASAPSession extends Thread implements ThreadFinishedListen
             this.listener = listener;
             this.threadFinishedListener = threadFinishedListener;
 
-            if(listener != null) {
-                System.out.println("ASAPPDUExecutor created: "
-                        + "engine: " + engine.getClass().getSimpleName() + " | "
-                        + "listener: " + listener.getClass().getSimpleName());
-            } else {
-                System.out.println("ASAPPDUExecutor created: "
-                        + "engine: " + engine.getClass().getSimpleName() + " | "
-                        + "no chunk received listener: ");
+            if(Log.isDebugEnabled()) {
+                StringBuilder sb = new StringBuilder();
+                sb.append("ASAPPDUExecutor created: engine: ");
+                sb.append(engine.getClass().getSimpleName());
+                sb.append(" | listener: ");
+                sb.append(listener != null ? listener.getClass().getSimpleName() : "none");
+                Log.debug(sb);
             }
         }
 
@@ -135,29 +135,35 @@ public abstract class ASAPSession extends Thread implements ThreadFinishedListen
                 String engineClass = engine.getClass().getSimpleName();
                 switch (asapPDU.getCommand()) {
                     case ASAP_1_0.INTEREST_CMD:
-                        System.out.println(this.getLogStart() + "call " + engineClass + ".handleASAPInterest()");
+                        if(Log.isDebugEnabled()) Log.debug(this.getLogStart()
+                                + "call " + engineClass + ".handleASAPInterest()");
                         engine.handleASAPInterest((ASAP_Interest_PDU_1_0) asapPDU, protocol, os);
-                        System.out.println(this.getLogStart() + "done " + engineClass + ".handleASAPInterest()");
+                        if(Log.isDebugEnabled()) Log.debug(this.getLogStart()
+                                + "done " + engineClass + ".handleASAPInterest()");
                         break;
                     case ASAP_1_0.OFFER_CMD:
-                        System.out.println(this.getLogStart() + "call " + engineClass + ".handleASAPOffer()");
+                        if(Log.isDebugEnabled()) Log.debug(this.getLogStart()
+                                + "call " + engineClass + ".handleASAPOffer()");
                         engine.handleASAPOffer((ASAP_OfferPDU_1_0) asapPDU, protocol, os);
-                        System.out.println(this.getLogStart() + "done " + engineClass + ".handleASAPOffer()");
+                        if(Log.isDebugEnabled()) Log.debug(this.getLogStart()
+                                + "done " + engineClass + ".handleASAPOffer()");
                         break;
                     case ASAP_1_0.ASSIMILATE_CMD:
-                        System.out.println(this.getLogStart() + "call " + engineClass + ".handleASAPAssimilate()");
+                        if(Log.isDebugEnabled()) Log.debug(this.getLogStart()
+                                + "call " + engineClass + ".handleASAPAssimilate()");
                         engine.handleASAPAssimilate((ASAP_AssimilationPDU_1_0) asapPDU, protocol, is, os,
                                 listener);
-                        System.out.println(this.getLogStart() + "done " + engineClass + ".handleASAPAssimilate()");
+                        if(Log.isDebugEnabled()) Log.debug(this.getLogStart()
+                                + "done " + engineClass + ".handleASAPAssimilate()");
                         break;
 
                     default:
-                        System.err.println(
-                                this.getClass().getSimpleName() + ": " + "unknown ASAP command: " + asapPDU.getCommand());
+                        Log.warn(this.getLogStart() + "unknown ASAP command: " + asapPDU.getCommand());
                 }
             }
             catch(IOException | ASAPException e) {
-                System.err.println("Exception while processing ASAP PDU - close streams" + e.getLocalizedMessage());
+                Log.warn(this.getLogStart() + "exception while processing ASAP PDU - close streams: "
+                        + e.getLocalizedMessage());
             }
 
             if(this.threadFinishedListener != null) {
@@ -1,6 +1,8 @@
 package net.sharksystem.asap.protocol;
 
 import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.crypto.ASAPPayloadKeys;
+import net.sharksystem.asap.crypto.ASAPSignatureVerifier;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -14,9 +16,30 @@ public interface ASAP_1_0 {
     byte OFFER_CMD = 'O';
     byte INTEREST_CMD = 'I';
     byte ASSIMILATE_CMD = 'A';
+    byte HANDSHAKE_CMD = 'H';
     String ANY_FORMAT = "any_asap";
     String ASAP_MANAGEMENT_FORMAT = "asap/control";
     int ERA_NOT_DEFINED = -1;
+    int PROTOCOL_VERSION = 1;
+
+    // features - bits in handshake feature set
+    int FEATURE_COMPRESSION = 0x01;
+    int FEATURE_BATCHING = 0x02;
+    int FEATURE_RESUME = 0x04;
+    int FEATURE_DIGEST_SYNC = 0x08;
+    int FEATURE_BINARY_OFFSETS = 0x10;
+    /** anything after handshakes is sent in frames of logical streams - see ASAPMultiplexer */
+    int FEATURE_MULTIPLEXING = 0x20;
+    /** chunks are offered with length and digest first - receiver asks for those it wants */
+    int FEATURE_OFFERS = 0x40;
+
+    // encodings - bits in (optional) encoding parameter of assimilate pdus
+    /** message offsets: number of offsets and differences to previous offset - as variable length integers */
+    int ENCODING_BINARY_OFFSETS = 0x01;
+    /** payload: zlib stream in frames (length varint | bytes), empty frame ends it - see ASAPCompression */
+    int ENCODING_DEFLATE = 0x02;
+    /** payload: AES-GCM in authenticated records - key of pdu channel and era, see ASAPPayloadKeys */
+    int ENCODING_AES_GCM = 0x04;
 
     /*
     OFFER: An peer (optional) in an range of era (optional) offers data for
@@ -25,7 +48,8 @@ public interface ASAP_1_0 {
 
     /**
      * @param peer identifies a peer - can be null
-     * @param era - current era of this peer (range 0..2^8) (-1 indicates: no information about era to be transmitted)
+     * @param era - current era of this peer (range 0..Integer.MAX_VALUE, sent as variable length integer)
+     *            (-1 indicates: no information about era to be transmitted)
      * @param channel describes a channel (can be null)
      * @param format describes format - used to describe an application that can deal with transmitted data format.
      * @param os stream that PDU is to be sent
@@ -48,6 +72,22 @@ public interface ASAP_1_0 {
     void offer(CharSequence peer, CharSequence format, CharSequence channel, OutputStream os, boolean signed)
             throws IOException, ASAPException;
 
+    /**
+     * Offer a chunk - receiver answers with an interest for that channel and era if it wants it.
+     *
+     * @param peer offering peer - can be null
+     * @param sourcePeer original sender of chunk - can be null
+     * @param era era of chunk
+     * @param length chunk length
+     * @param digest SHA-256 of chunk content
+     * @param os stream that PDU is to be sent
+     * @param signed message is signed
+     * @throws IOException exception during writing on stream
+     * @throws ASAPException protocol exception: mandatory parameter missing, invalid combination of parameters, ..
+     */
+    void offer(CharSequence peer, CharSequence sourcePeer, CharSequence format, CharSequence channel, int era,
+               long length, byte[] digest, OutputStream os, boolean signed) throws IOException, ASAPException;
+
     /*
     INTEREST: Sender declares an interest for data from a peer (optional) within a range of era (optional) of a
     channel (optional) in a format (mandatory)
@@ -83,7 +123,7 @@ public interface ASAP_1_0 {
 
     /*
     ASSIMILATE: Peer (optional) issues data (mandatory) to a channel (mandatory) in a format (mandatory) of a
-    era (optional)
+    era (optional). Message offsets are sent as text unless binary offsets were negotiated in handshake.
     */
 
     /**
@@ -104,6 +144,21 @@ public interface ASAP_1_0 {
                     long length, List<Long> offsets, InputStream dataIS, OutputStream os, boolean signed)
             throws IOException, ASAPException;
 
+    /**
+     * Relay a chunk - it is sent with signature of its origin. That signature covers chunk content, see
+     * ASAP_PDU_1_0#getSignature(). Content must be exactly what origin sent.
+     *
+     * @param peer origin of that chunk (mandatory)
+     * @param signer peer who signed that chunk
+     * @param signature signature of chunk origin
+     * @throws IOException exception during writing on stream
+     * @throws ASAPException protocol exception: mandatory parameter missing, invalid combination of parameters, ..
+     */
+    void assimilate(CharSequence peer, CharSequence recipientPeer, CharSequence format, CharSequence channelUri,
+                    int era, long length, List<Long> offsets, InputStream dataIS, OutputStream os,
+                    CharSequence signer, byte[] signature)
+            throws IOException, ASAPException;
+
     /**
      *
      * @param peer sender (optional, can be null)
@@ -122,6 +177,61 @@ public interface ASAP_1_0 {
                     List<Long> offsets, byte[] data, OutputStream os, boolean signed)
             throws IOException, ASAPException;
 
+    /*
+    HANDSHAKE: Peer (optional) sends its protocol version, features and formats it is interested in - each
+    with an (optional) era range and (optional) channel subscriptions. Sent once per connection. Receiver treats
+    each format as an interest. A handshake of another protocol version is rejected - connection ends.
+    */
+
+    /**
+     * @param peer identifies a peer - can be null
+     * @param features supported features - FEATURE_* bits
+     * @param formats formats sender is interested in - none must be empty
+     * @param erasFrom lower limit of era range per format (-1 means undefined) - list can be null
+     * @param erasTo upper limit of era range per format (-1 means undefined) - list can be null
+     * @param channelPatterns channel subscriptions per format, e.g. sn2://region/north/* - list can be null,
+     *                        a format without patterns stands for any channel
+     * @param os stream that PDU is to be sent
+     * @param signed message is signed
+     * @throws IOException exception during writing on stream
+     * @throws ASAPException protocol exception: mandatory parameter missing, invalid combination of parameters, ..
+     */
+    void handshake(CharSequence peer, int features, List<CharSequence> formats,
+                   List<Integer> erasFrom, List<Integer> erasTo, List<List<CharSequence>> channelPatterns,
+                   OutputStream os, boolean signed)
+            throws IOException, ASAPException;
+
+    /**
+     * Remember features of remote peer.
+     * @param remoteFeatures features announced by other side in its handshake
+     * @return features both sides support
+     */
+    int negotiateFeatures(int remoteFeatures);
+
+    /**
+     * @return true if both sides support that feature - false before a handshake was received
+     */
+    boolean isFeatureNegotiated(int feature);
+
+    /**
+     * @return true if pdus are signed - see ASAP_Modem_Impl
+     */
+    boolean isSigning();
+
+    /**
+     * @return checks signatures of received pdus - null if signatures cannot be checked
+     */
+    ASAPSignatureVerifier getSignatureVerifier();
+
+    /**
+     * @return keys assimilate payloads are encrypted with - null if any payload is sent in clear
+     */
+    ASAPPayloadKeys getPayloadKeys();
+
+    /**
+     * @return dictionaries and formats not to be compressed - used when sending and reading payloads
+     */
+    ASAPCompression getCompression();
 
     ASAP_PDU_1_0 readPDU(InputStream is) throws IOException, ASAPException;
 
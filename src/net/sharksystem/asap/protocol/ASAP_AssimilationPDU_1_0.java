@@ -30,9 +30,21 @@ public interface ASAP_AssimilationPDU_1_0 extends ASAP_PDU_1_0 {
      *
      * @return list of numbers. Each number states the position of the first byte
      * of each message. There is no number 0: First message starts - of course - at the beginning.
+     * @deprecated offsets beyond 2 GB do not fit - use {@link #getMessageOffsetArray()}
      */
+    @Deprecated
     List<Integer> getMessageOffsets();
 
+    /**
+     * @return same offsets as {@link #getMessageOffsets()} - ascending, empty if there is just one message
+     */
+    long[] getMessageOffsetArray();
+
+    /**
+     * @return ENCODING_* bits from {@link ASAP_1_0} this pdu was sent with - 0 if none
+     */
+    int getEncoding();
+
     /**
      * Streams data into a storage. That method should be used instead of getData() when possible.
      * Data can directly be passed from network to its final destination without allocation memory
@@ -42,6 +54,17 @@ public interface ASAP_AssimilationPDU_1_0 extends ASAP_PDU_1_0 {
      */
     void streamData(OutputStream os, long length) throws IOException;
 
+    /**
+     * @return false if payload is encrypted with a group key that is not known (anymore) - it can only be
+     * skipped
+     */
+    boolean canDecrypt();
+
+    /**
+     * Read payload without handing it out - next pdu can be read afterwards.
+     */
+    void skipPayload() throws IOException;
+
     /**
      * return row input stream from protocol - handle with care!
      * @return
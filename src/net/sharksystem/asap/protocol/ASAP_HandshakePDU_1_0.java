@@ -0,0 +1,20 @@
+package net.sharksystem.asap.protocol;
+
+import java.util.List;
+
+public interface ASAP_HandshakePDU_1_0 extends ASAP_PDU_1_0 {
+    /**
+     * @return protocol version of sender
+     */
+    int getVersion();
+
+    /**
+     * @return features supported by sender - see ASAP_1_0.FEATURE_*
+     */
+    int getFeatures();
+
+    /**
+     * @return one interest per format announced in that handshake - in the order they were sent
+     */
+    List<ASAP_Interest_PDU_1_0> getInterests();
+}
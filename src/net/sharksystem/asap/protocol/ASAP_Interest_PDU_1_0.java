@@ -1,5 +1,7 @@
 package net.sharksystem.asap.protocol;
 
+import java.util.List;
+
 public interface ASAP_Interest_PDU_1_0 extends ASAP_PDU_1_0 {
     boolean sourcePeerSet();
     boolean eraFromSet();
@@ -8,4 +10,9 @@ public interface ASAP_Interest_PDU_1_0 extends ASAP_PDU_1_0 {
     String getSourcePeer();
     int getEraFrom();
     int getEraTo();
+
+    /**
+     * @return channels sender subscribed to - patterns like sn2://region/north/* - empty list: any channel
+     */
+    List<String> getChannelPatterns();
 }
@@ -1,14 +1,112 @@
 package net.sharksystem.asap.protocol;
 
 import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.crypto.ASAPKeyStore;
+import net.sharksystem.asap.crypto.ASAPPayloadKeys;
+import net.sharksystem.asap.crypto.ASAPSignatureVerifier;
+import net.sharksystem.asap.jfr.ASAPTrace;
+import net.sharksystem.asap.jfr.ASAPTracing;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.List;
+import java.util.zip.Deflater;
 
 public class ASAP_Modem_Impl implements ASAP_1_0 {
+    /** features this implementation supports */
+    public static final int SUPPORTED_FEATURES = FEATURE_COMPRESSION | FEATURE_BATCHING | FEATURE_BINARY_OFFSETS
+            | FEATURE_MULTIPLEXING | FEATURE_OFFERS;
+
+    private volatile int negotiatedFeatures = 0;
+
+    private final ASAPKeyStore keyStore;
+    private final ASAPSignatureVerifier signatureVerifier;
+    private final ASAPPayloadKeys payloadKeys;
+    private final ASAPCompression compression;
+
+    public ASAP_Modem_Impl() {
+        this(null, null);
+    }
+
+    /**
+     * Any pdu is signed with a key store set.
+     * @param keyStore can be null - pdus are neither signed nor can signatures be checked
+     */
+    public ASAP_Modem_Impl(ASAPKeyStore keyStore) {
+        this(keyStore, keyStore != null ? new ASAPSignatureVerifier(keyStore) : null);
+    }
+
+    /**
+     * @param signatureVerifier can be shared by modems of several connections - it keeps decoded keys
+     *                          and verified signatures
+     */
+    public ASAP_Modem_Impl(ASAPKeyStore keyStore, ASAPSignatureVerifier signatureVerifier) {
+        this(keyStore, signatureVerifier, null);
+    }
+
+    /**
+     * Assimilate payloads of channels with a group key are encrypted - except management format. Group keys
+     * are negotiated with it.
+     * @param payloadKeys can be null - payloads are neither encrypted nor can encrypted payloads be read
+     */
+    public ASAP_Modem_Impl(ASAPKeyStore keyStore, ASAPSignatureVerifier signatureVerifier,
+                           ASAPPayloadKeys payloadKeys) {
+        this(keyStore, signatureVerifier, payloadKeys, null);
+    }
+
+    /**
+     * @param compression dictionaries and formats not to be compressed - null: defaults
+     */
+    public ASAP_Modem_Impl(ASAPKeyStore keyStore, ASAPSignatureVerifier signatureVerifier,
+                           ASAPPayloadKeys payloadKeys, ASAPCompression compression) {
+        this.keyStore = keyStore;
+        this.signatureVerifier = signatureVerifier;
+        this.payloadKeys = payloadKeys;
+        this.compression = compression != null ? compression : new ASAPCompression();
+    }
+
+    /**
+     * @return null if pdu is not to be signed
+     */
+    private PDUSignature getSignature(boolean signed) throws ASAPException {
+        if(this.keyStore != null) return new PDUSignature(this.keyStore);
+        if(signed) throw new ASAPException("cannot sign without key store");
+
+        return null;
+    }
+
+    @Override
+    public boolean isSigning() {
+        return this.keyStore != null;
+    }
+
+    @Override
+    public ASAPSignatureVerifier getSignatureVerifier() {
+        return this.signatureVerifier;
+    }
+
+    @Override
+    public ASAPPayloadKeys getPayloadKeys() {
+        return this.payloadKeys;
+    }
+
+    @Override
+    public ASAPCompression getCompression() {
+        return this.compression;
+    }
+
+    /**
+     * @return true if payloads of that format and channel are to be encrypted
+     */
+    static boolean isEncrypted(ASAPPayloadKeys payloadKeys, CharSequence format, CharSequence channel) {
+        return payloadKeys != null && format != null && !ASAP_MANAGEMENT_FORMAT.contentEquals(format)
+                && payloadKeys.hasKey(channel);
+    }
+
     // Character are transmitted as bytes: number of bytes (first byte), content following, 0 mean no content
 
     /*
@@ -20,7 +118,7 @@ public class ASAP_Modem_Impl implements ASAP_1_0 {
     public void offer(CharSequence peer, CharSequence format, CharSequence channel, int era,
                       OutputStream os, boolean signed) throws IOException, ASAPException {
 
-        OfferPDU_Impl.sendPDU(peer, format, channel, era, os, signed);
+        OfferPDU_Impl.sendPDU(peer, null, format, channel, era, -1, null, os, this.getSignature(signed));
     }
 
     @Override
@@ -29,12 +127,22 @@ public class ASAP_Modem_Impl implements ASAP_1_0 {
         this.offer(peer, format, channel, -1, os, signed);
     }
 
+    @Override
+    public void offer(CharSequence peer, CharSequence sourcePeer, CharSequence format, CharSequence channel,
+                      int era, long length, byte[] digest, OutputStream os, boolean signed)
+            throws IOException, ASAPException {
+
+        OfferPDU_Impl.sendPDU(peer, sourcePeer, format, channel, era, length, digest, os,
+                this.getSignature(signed));
+    }
+
     @Override
     public void interest(CharSequence peer, CharSequence sourcePeer, CharSequence format,
                          CharSequence channel, int eraFrom, int eraTo, OutputStream os, boolean signed)
             throws IOException, ASAPException {
 
-        InterestPDU_Impl.sendPDU(peer, sourcePeer, format, channel, eraFrom, eraTo, os, signed);
+        InterestPDU_Impl.sendPDU(peer, sourcePeer, format, channel, eraFrom, eraTo, os,
+                this.getSignature(signed));
     }
 
     @Override
@@ -49,7 +157,49 @@ public class ASAP_Modem_Impl implements ASAP_1_0 {
                            CharSequence channel, int era, long length, List<Long> offsets, InputStream dataIS,
                            OutputStream os, boolean signed) throws IOException, ASAPException {
 
-        AssimilationPDU_Impl.sendPDU(peer, recipientPeer, format, channel, era, length, offsets, dataIS, os, signed);
+        this.assimilate(peer, recipientPeer, format, channel, era, length, offsets, dataIS, os,
+                this.getSignature(signed));
+    }
+
+    @Override
+    public void assimilate(CharSequence peer, CharSequence recipientPeer, CharSequence format,
+                           CharSequence channel, int era, long length, List<Long> offsets, InputStream dataIS,
+                           OutputStream os, CharSequence signer, byte[] signature)
+            throws IOException, ASAPException {
+
+        this.assimilate(peer, recipientPeer, format, channel, era, length, offsets, dataIS, os,
+                new PDUSignature(signer, signature));
+    }
+
+    private void assimilate(CharSequence peer, CharSequence recipientPeer, CharSequence format,
+                            CharSequence channel, int era, long length, List<Long> offsets, InputStream dataIS,
+                            OutputStream os, PDUSignature signature) throws IOException, ASAPException {
+
+        // other side understands binary offsets - text otherwise
+        int encoding = this.isFeatureNegotiated(FEATURE_BINARY_OFFSETS) ? ENCODING_BINARY_OFFSETS : 0;
+
+        boolean deflate = this.isFeatureNegotiated(FEATURE_COMPRESSION) && format != null
+                && length >= ASAPCompression.MIN_COMPRESSED_LENGTH && this.compression.isCompressed(format);
+        boolean encrypt = isEncrypted(this.payloadKeys, format, channel) && length > 0;
+
+        // native memory of a deflater is not kept beyond this pdu
+        Deflater deflater = deflate ? new Deflater(Deflater.BEST_COMPRESSION) : null;
+        // pdu is written with several writes - no other pdu in between
+        ASAPMultiplexer.lockPDU(os);
+        try {
+            if(deflate) encoding |= ENCODING_DEFLATE;
+            byte[] dictionary = deflate ? this.compression.getDictionary(format) : null;
+
+            // streams of a connection send in parallel - nothing of an encryption is shared
+            PayloadEncryption encryption = encrypt ? new PayloadEncryption(this.payloadKeys) : null;
+
+            AssimilationPDU_Impl.sendPDU(peer, recipientPeer, format, channel, era, length, offsets, encoding,
+                    deflater, dictionary, encryption, dataIS, os, signature);
+        }
+        finally {
+            ASAPMultiplexer.unlockPDU(os);
+            if(deflater != null) deflater.end();
+        }
     }
 
     @Override
@@ -63,20 +213,62 @@ public class ASAP_Modem_Impl implements ASAP_1_0 {
                 new ByteArrayInputStream(data), os, signed);
     }
 
+    @Override
+    public void handshake(CharSequence peer, int features, List<CharSequence> formats,
+                          List<Integer> erasFrom, List<Integer> erasTo, List<List<CharSequence>> channelPatterns,
+                          OutputStream os, boolean signed)
+            throws IOException, ASAPException {
+
+        HandshakePDU_Impl.sendPDU(peer, features, formats, erasFrom, erasTo, channelPatterns, os,
+                this.getSignature(signed));
+    }
+
+    @Override
+    public int negotiateFeatures(int remoteFeatures) {
+        this.negotiatedFeatures = remoteFeatures & SUPPORTED_FEATURES;
+        return this.negotiatedFeatures;
+    }
+
+    @Override
+    public boolean isFeatureNegotiated(int feature) {
+        return (this.negotiatedFeatures & feature) != 0;
+    }
+
     @Override
     public ASAP_PDU_1_0 readPDU(InputStream is) throws IOException, ASAPException {
         byte cmd = PDU_Impl.readByte(is);
-        int flagsInt = PDU_Impl.readByte(is);
+        // trace decoding - not waiting for data
+        ASAPTrace trace = ASAPTracing.pduRead();
 
-        ASAP_PDU_1_0 pdu = null;
+        // signed pdu: anything up to signature is digested while read - assimilate pdus sign chunk content
+        boolean signed = PDUSignature.isSigned(cmd);
+        MessageDigest digest = PDUSignature.startDigest(cmd);
+        cmd = PDUSignature.removeSignedFlag(cmd);
+        if(cmd == ASAP_1_0.ASSIMILATE_CMD) digest = null;
+        InputStream pduIS = digest != null ? new DigestInputStream(is, digest) : is;
+
+        int flagsInt = PDU_Impl.readByte(pduIS);
+
+        PDU_Impl pdu = null;
+        long dataLength = 0;
 
         switch(cmd) {
-            case ASAP_1_0.OFFER_CMD: pdu = new OfferPDU_Impl(flagsInt, is); break;
-            case ASAP_1_0.INTEREST_CMD: pdu = new InterestPDU_Impl(flagsInt, is); break;
-            case ASAP_1_0.ASSIMILATE_CMD: pdu = new AssimilationPDU_Impl(flagsInt, is); break;
+            case ASAP_1_0.OFFER_CMD: pdu = new OfferPDU_Impl(flagsInt, pduIS); break;
+            case ASAP_1_0.INTEREST_CMD: pdu = new InterestPDU_Impl(flagsInt, pduIS); break;
+            case ASAP_1_0.ASSIMILATE_CMD:
+                AssimilationPDU_Impl assimilationPDU = new AssimilationPDU_Impl(flagsInt, pduIS, this.payloadKeys,
+                        this.compression);
+                dataLength = assimilationPDU.getLength();
+                pdu = assimilationPDU;
+                break;
+            case ASAP_1_0.HANDSHAKE_CMD: pdu = new HandshakePDU_Impl(flagsInt, pduIS); break;
             default: throw new ASAPException("unknown command: " + cmd);
         }
 
+        if(signed) pdu.readSignature(is, digest, this.signatureVerifier);
+
+        trace.end(pdu.getPeer(), pdu.getFormat(), pdu.getChannelUri(), pdu.getEra(), dataLength);
+
         return pdu;
     }
 }
@@ -1,4 +1,23 @@
 package net.sharksystem.asap.protocol;
 
 public interface ASAP_OfferPDU_1_0 extends ASAP_PDU_1_0 {
+    /**
+     * @return original sender of offered chunk - null if not set
+     */
+    String getSourcePeer();
+
+    /**
+     * @return true if a chunk is offered - with length and digest
+     */
+    boolean inventorySet();
+
+    /**
+     * @return length of offered chunk - -1 if not set
+     */
+    long getLength();
+
+    /**
+     * @return SHA-256 of offered chunk content - null if not set
+     */
+    byte[] getDigest();
 }
@@ -1,5 +1,7 @@
 package net.sharksystem.asap.protocol;
 
+import java.io.IOException;
+
 public interface ASAP_PDU_1_0 {
     /**
      * @return ASAP command. Version 1 know three alternatives: interest, offer, assimilate
@@ -44,4 +46,27 @@ public interface ASAP_PDU_1_0 {
      * @return a flag that indicates whether the optional era parameter was transmitted
      */
     boolean eraSet();
+
+    /**
+     * @return true if sender signed that pdu
+     */
+    boolean isSigned();
+
+    /**
+     * @return peer who signed that pdu - null if not signed. Assimilate pdus: known after payload was read
+     */
+    String getSigner();
+
+    /**
+     * @return signature as received - null if not signed. Relays forward signature of an assimilate pdu
+     * with that chunk. Assimilate pdus: known after payload was read
+     */
+    byte[] getSignature();
+
+    /**
+     * Signatures are checked in background - wait for result.
+     * @return true if pdu is signed and signature is valid
+     * @throws IOException payload of a signed assimilate pdu was not read yet
+     */
+    boolean verify() throws IOException;
 }
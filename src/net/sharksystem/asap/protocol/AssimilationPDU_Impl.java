@@ -1,29 +1,122 @@
 package net.sharksystem.asap.protocol;
 
 import net.sharksystem.asap.ASAPException;
-
+import net.sharksystem.asap.crypto.ASAPPayloadKeys;
+import net.sharksystem.asap.crypto.ASAPSignatureVerifier;
+import net.sharksystem.asap.jfr.ASAPTrace;
+import net.sharksystem.asap.jfr.ASAPTracing;
+import net.sharksystem.asap.util.Helper;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.StringTokenizer;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 class AssimilationPDU_Impl extends PDU_Impl implements ASAP_AssimilationPDU_1_0 {
-    private final long dataLength;
-    private final InputStream is;
+    private static final long[] NO_OFFSETS = new long[0];
+
+    private long dataLength;
+    private InputStream is;
     private String recipientPeer;
     public static final String OFFSET_DELIMITER = ",";
-    private List<Integer> offsets = new ArrayList<>();
-
-    // PDU: CMD | FLAGS | PEER | RECIPIENT | FORMAT | CHANNEL | ERA | OFFSETS | LENGTH | DATA
+    private static final byte OFFSET_DELIMITER_BYTE = ',';
+    private long[] offsets = NO_OFFSETS;
+    private int encoding = 0;
+    /** payload as seen by applications - decompressed if required */
+    private InputStream payloadIS = null;
+    /** kept if pdu object is reused - ended with end of payload otherwise */
+    private Inflater inflater = null;
+    private final boolean reused;
+    private ASAPCompression compression = null;
+    /** signed pdu - signature is read after payload */
+    private InputStream signatureIS = null;
+    private MessageDigest digest = null;
+    private ASAPSignatureVerifier verifier = null;
+    /** decrypts payloads - kept if pdu object is reused */
+    private ASAPPayloadKeys payloadKeys = null;
+    private Cipher cipher = null;
+    private SecretKey payloadKey = null;
+    private byte[] noncePrefix = null;
+    private byte[] payloadAAD = null;
+    private PayloadEncryption.DecryptingInputStream decryptingIS = null;
+
+    /** payloads up to that size are written together with pdu header */
+    static final int INLINE_PAYLOAD_LIMIT = 8 * 1024;
+
+    /** known ENCODING_* bits */
+    private static final int SUPPORTED_ENCODINGS = ASAP_1_0.ENCODING_BINARY_OFFSETS | ASAP_1_0.ENCODING_DEFLATE
+            | ASAP_1_0.ENCODING_AES_GCM;
+    /** upper limit of binary offsets - offsets array must fit into an array */
+    private static final long MAX_OFFSETS = Integer.MAX_VALUE - 8;
+    /** initial size of offset array when reading - declared number is not trusted */
+    private static final int INITIAL_OFFSETS_SIZE = 1024;
+
+    // PDU: CMD | FLAGS | ENCODING | PEER | RECIPIENT | FORMAT | CHANNEL | ERA | OFFSETS | LENGTH | DATA
 
     public AssimilationPDU_Impl(int flagsInt, InputStream is) throws IOException, ASAPException {
+        this(flagsInt, is, null, null);
+    }
+
+    /**
+     * @param payloadKeys null - encrypted payloads cannot be read
+     * @param compression dictionaries of compressed payloads - null: no dictionaries
+     */
+    AssimilationPDU_Impl(int flagsInt, InputStream is, ASAPPayloadKeys payloadKeys, ASAPCompression compression)
+            throws IOException, ASAPException {
+
         super(ASAP_1_0.ASSIMILATE_CMD);
+        this.reused = false;
+        this.payloadKeys = payloadKeys;
+        this.compression = compression;
+        this.readFrom(flagsInt, is);
+    }
 
+    /**
+     * Empty pdu - filled by {@link #readFrom(int, InputStream)}
+     */
+    AssimilationPDU_Impl(PDUStringCache strings) {
+        super(ASAP_1_0.ASSIMILATE_CMD, strings);
+        this.reused = true;
+    }
+
+    /**
+     * @param payloadKeys used to decrypt payloads read afterwards - null: encrypted payloads cannot be read
+     */
+    void setPayloadKeys(ASAPPayloadKeys payloadKeys) {
+        this.payloadKeys = payloadKeys;
+    }
+
+    /**
+     * @param compression dictionaries of payloads read afterwards - null: no dictionaries
+     */
+    void setCompression(ASAPCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Release native memory of decompression - a reused pdu keeps it otherwise.
+     */
+    void end() {
+        if(this.inflater != null) {
+            this.inflater.end();
+            this.inflater = null;
+        }
+    }
+
+    void readFrom(int flagsInt, InputStream is) throws IOException, ASAPException {
+        this.reset();
         evaluateFlags(flagsInt);
 
+        if(this.encodingSet()) { this.readEncoding(is); }
         if(this.peerSet()) { this.readPeer(is); }
         if(this.recipientPeerSet()) { this.readRecipientPeer(is); }
         this.readFormat(is);
@@ -33,11 +126,175 @@ class AssimilationPDU_Impl extends PDU_Impl implements ASAP_AssimilationPDU_1_0
 
         this.dataLength = this.readLongParameter(is);
 
+        if(this.offsets.length > 0 && this.offsets[this.offsets.length - 1] > this.dataLength) {
+            throw new ASAPException("message offset beyond data length: "
+                    + this.offsets[this.offsets.length - 1] + " > " + this.dataLength);
+        }
+
+        if((this.encoding & ASAP_1_0.ENCODING_DEFLATE) != 0 && this.dataLength == 0) {
+            throw new ASAPException("compressed payload must not be empty");
+        }
+
+        if((this.encoding & ASAP_1_0.ENCODING_AES_GCM) != 0) {
+            if(this.dataLength == 0) throw new ASAPException("encrypted payload must not be empty");
+
+            // key id and nonce prefix lead payload - payload of an unknown group key can be skipped
+            byte[] keyID = new byte[ASAPPayloadKeys.KEY_ID_LENGTH];
+            this.noncePrefix = new byte[PayloadEncryption.NONCE_PREFIX_LENGTH];
+            PDU_Impl.readFully(is, keyID, keyID.length);
+            PDU_Impl.readFully(is, this.noncePrefix, this.noncePrefix.length);
+
+            // current or previous group key - derived keys are cached, no derivation per pdu
+            ASAPPayloadKeys.GroupKey groupKey =
+                    this.payloadKeys != null ? this.payloadKeys.getGroupKey(this.getChannelUri(), keyID) : null;
+            if(groupKey != null) {
+                this.payloadKey = groupKey.getKey(this.getChannelUri(),
+                        this.eraSet() ? this.getEra() : ASAP_1_0.ERA_NOT_DEFINED);
+            }
+            this.payloadAAD = this.getAAD();
+            if(this.cipher == null) this.cipher = PayloadEncryption.createCipher();
+        }
+
         this.is = is;
     }
 
+    /**
+     * Signature follows payload - it is read when payload was read completely. It covers chunk content,
+     * see {@link PDUSignature#startContentDigest} - received bytes are not digested.
+     *
+     * @param digest not used
+     */
+    @Override
+    void readSignature(InputStream is, MessageDigest digest, ASAPSignatureVerifier verifier)
+            throws IOException, ASAPException {
+
+        this.setSigned();
+        MessageDigest contentDigest = PDUSignature.startContentDigest(this.getPeer(), this.getFormat(),
+                this.getChannelUri(), this.eraSet() ? this.getEra() : ASAP_1_0.ERA_NOT_DEFINED, this.offsets,
+                this.dataLength);
+
+        if(this.dataLength == 0) {
+            this.readSignatureTrailer(is, contentDigest, verifier);
+        } else {
+            this.signatureIS = is;
+            this.digest = contentDigest;
+            this.verifier = verifier;
+        }
+    }
+
+    /**
+     * Payload of a signed or encrypted pdu. Last encrypted record and signature are read right after
+     * last payload byte.
+     */
+    private class PayloadEndInputStream extends InputStream {
+        private final InputStream payloadIS;
+        private final PayloadEncryption.DecryptingInputStream decryptingIS;
+        private final InputStream signatureIS;
+        private final MessageDigest digest;
+        private final ASAPSignatureVerifier verifier;
+        // decompressed payload ends after last frame - last record and signature follow
+        private long remaining = AssimilationPDU_Impl.this.dataLength;
+
+        /**
+         * @param decryptingIS can be null
+         * @param signatureIS null if pdu is not signed
+         */
+        PayloadEndInputStream(InputStream payloadIS, PayloadEncryption.DecryptingInputStream decryptingIS,
+                              InputStream signatureIS, MessageDigest digest, ASAPSignatureVerifier verifier) {
+            this.payloadIS = payloadIS;
+            this.decryptingIS = decryptingIS;
+            this.signatureIS = signatureIS;
+            this.digest = digest;
+            this.verifier = verifier;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(this.remaining == 0) return -1;
+
+            int read = this.payloadIS.read(b, off, (int) Math.min(len, this.remaining));
+            if(read < 0) throw new IOException("stream ended before payload was read");
+
+            this.remaining -= read;
+            if(this.remaining == 0) {
+                if(this.decryptingIS != null) this.decryptingIS.finish();
+
+                if(this.signatureIS != null) {
+                    try {
+                        readSignatureTrailer(this.signatureIS, this.digest, this.verifier);
+                    } catch (ASAPException e) {
+                        throw new IOException(e.getLocalizedMessage());
+                    }
+                }
+            }
+
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(this.payloadIS.available(), this.remaining);
+        }
+    }
+
+    @Override
+    protected void reset() {
+        super.reset();
+        this.recipientPeer = null;
+        this.offsets = NO_OFFSETS;
+        this.encoding = 0;
+        this.dataLength = 0;
+        this.is = null;
+        this.payloadIS = null;
+        this.signatureIS = null;
+        this.digest = null;
+        this.verifier = null;
+        this.payloadKey = null;
+        this.noncePrefix = null;
+        this.payloadAAD = null;
+        this.decryptingIS = null;
+    }
+
+    private void readEncoding(InputStream is) throws IOException, ASAPException {
+        long encoding = this.readUnsignedVarLongParameter(is);
+        if((encoding & ~SUPPORTED_ENCODINGS) != 0) {
+            throw new ASAPException("unsupported encoding: " + encoding);
+        }
+        this.encoding = (int) encoding;
+    }
+
     private void readOffsets(InputStream is) throws IOException, ASAPException {
-        this.offsets = string2list(this.readCharSequenceParameter(is));
+        if((this.encoding & ASAP_1_0.ENCODING_BINARY_OFFSETS) != 0) {
+            this.offsets = this.readBinaryOffsets(is);
+        } else {
+            this.offsets = this.readTextOffsets(is);
+        }
+    }
+
+    private long[] readBinaryOffsets(InputStream is) throws IOException, ASAPException {
+        long number = this.readUnsignedVarLongParameter(is);
+        if(number > MAX_OFFSETS) throw new ASAPException("too many message offsets: " + number);
+
+        // grow with offsets actually received
+        long[] offsets = new long[(int) Math.min(number, INITIAL_OFFSETS_SIZE)];
+        long offset = 0;
+        for(int i = 0; i < number; i++) {
+            offset += this.readUnsignedVarLongParameter(is);
+            if(offset < 0) throw new ASAPException("message offset overflow");
+
+            if(i == offsets.length) {
+                offsets = Arrays.copyOf(offsets, (int) Math.min(number, (long) offsets.length << 1));
+            }
+            offsets[i] = offset;
+        }
+
+        return offsets;
     }
 
     private void readRecipientPeer(InputStream is) throws IOException, ASAPException {
@@ -45,15 +302,19 @@ class AssimilationPDU_Impl extends PDU_Impl implements ASAP_AssimilationPDU_1_0
     }
 
     static void sendPDU(CharSequence peer, CharSequence recipientPeer, CharSequence format, CharSequence channel,
-                        int era, long length, List<Long> offsets, InputStream is, OutputStream os, boolean signed)
+                        int era, long length, List<Long> offsets, int encoding, Deflater deflater, byte[] dictionary,
+                        PayloadEncryption encryption, InputStream is, OutputStream os, PDUSignature signature)
             throws IOException, ASAPException {
 
         // first: check protocol errors
         PDU_Impl.checkValidEra(era);
         PDU_Impl.checkValidFormat(format);
-        PDU_Impl.checkValidSign(peer, signed);
+        PDU_Impl.checkValidSign(peer, signature != null);
         PDU_Impl.checkValidStream(os);
 
+        ASAPTrace trace = ASAPTracing.pduSend();
+        long dataLength = length;
+
         // create parameter bytes
         int flags = 0;
         flags = PDU_Impl.setFlag(peer, flags, PEER_BIT_POSITION);
@@ -62,23 +323,121 @@ class AssimilationPDU_Impl extends PDU_Impl implements ASAP_AssimilationPDU_1_0
         flags = PDU_Impl.setFlag(era, flags, ERA_BIT_POSITION);
         flags = PDU_Impl.setFlag(offsets, flags, OFFSETS_BIT_POSITION);
 
-        PDU_Impl.sendHeader(ASAP_1_0.ASSIMILATE_CMD, flags, os);
+        // binary offsets make no sense without offsets
+        if(offsets == null || offsets.isEmpty()) encoding &= ~ASAP_1_0.ENCODING_BINARY_OFFSETS;
+        if(deflater == null || length < ASAPCompression.MIN_COMPRESSED_LENGTH) encoding &= ~ASAP_1_0.ENCODING_DEFLATE;
+        boolean deflate = (encoding & ASAP_1_0.ENCODING_DEFLATE) != 0;
+        if(encryption != null && length > 0) {
+            encoding |= ASAP_1_0.ENCODING_AES_GCM;
+        } else {
+            encoding &= ~ASAP_1_0.ENCODING_AES_GCM;
+        }
+        boolean encrypt = (encoding & ASAP_1_0.ENCODING_AES_GCM) != 0;
+        if(encoding != 0) flags = PDU_Impl.setFlag(1, flags, ENCODING_BIT_POSITION);
+
+        PDUHeaderBuffer pdu = PDUHeaderBuffer.get();
+        PDU_Impl.sendHeader(ASAP_1_0.ASSIMILATE_CMD, flags, signature, pdu);
+
+        if(encoding != 0) PDU_Impl.sendUnsignedVarLongParameter(encoding, pdu); // opt
+
+        PDU_Impl.sendCharSequenceParameter(peer, pdu); // opt
+        PDU_Impl.sendCharSequenceParameter(recipientPeer, pdu); // opt
+        PDU_Impl.sendCharSequenceParameter(format, pdu); // mand
+        PDU_Impl.sendCharSequenceParameter(channel, pdu); // opt
+        PDU_Impl.sendEraParameter(era, pdu); // opt
+        if((encoding & ASAP_1_0.ENCODING_BINARY_OFFSETS) != 0) {
+            sendBinaryOffsets(offsets, pdu); // opt
+        } else {
+            PDU_Impl.sendCharSequenceParameter(list2string(offsets), pdu); // opt
+        }
+
+        PDU_Impl.sendNonNegativeLongParameter(length, pdu); // mand
+
+        // header is authenticated with each encrypted record
+        long[] offsetArray = list2array(offsets);
+        byte[] aad = encrypt ? PayloadEncryption.createAAD(encoding, peer, recipientPeer, format, channel, era,
+                offsetArray, length) : null;
 
-        PDU_Impl.sendCharSequenceParameter(peer, os); // opt
-        PDU_Impl.sendCharSequenceParameter(recipientPeer, os); // opt
-        PDU_Impl.sendCharSequenceParameter(format, os); // mand
-        PDU_Impl.sendCharSequenceParameter(channel, os); // opt
-        PDU_Impl.sendNonNegativeIntegerParameter(era, os); // opt
-        PDU_Impl.sendCharSequenceParameter(list2string(offsets), os); // opt
+        // chunk content is signed - not its encoding on that hop
+        if(signature != null) is = signature.wrapContent(peer, format, channel, era, offsetArray, length, is);
 
-        PDU_Impl.sendNonNegativeLongParameter(length, os); // mand
+        // small payload goes along with header - a single write for the whole pdu
+        if(length <= INLINE_PAYLOAD_LIMIT) {
+            if(deflate || encrypt) {
+                sendPayload(is, length, channel, era, deflate ? deflater : null, dictionary, encryption, aad, pdu);
+            } else {
+                pdu.readFrom(is, (int) length);
+            }
+            if(signature != null) signature.sendSignature(pdu);
+            pdu.sendTo(os);
+        } else {
+            pdu.sendTo(os);
+            sendPayload(is, length, channel, era, deflate ? deflater : null, dictionary, encryption, aad, os);
+
+            if(signature != null) {
+                PDUHeaderBuffer trailer = PDUHeaderBuffer.get();
+                signature.sendSignature(trailer);
+                trailer.sendTo(os);
+            }
+        }
+
+        trace.end(recipientPeer, format, channel, era, dataLength);
+    }
+
+    /**
+     * Payload is streamed - compressed first if deflater is set, encrypted afterwards if encryption is set.
+     */
+    private static void sendPayload(InputStream is, long length, CharSequence channel, int era,
+                                    Deflater deflater, byte[] dictionary, PayloadEncryption encryption,
+                                    byte[] aad, OutputStream os)
+            throws IOException, ASAPException {
+
+        PayloadEncryption.EncryptingOutputStream encryptingOS = null;
+        if(encryption != null) {
+            encryptingOS = encryption.encrypt(os, channel, era, aad);
+            os = encryptingOS;
+        }
 
-        // stream data
-        while(length-- > 0) {
-            os.write(is.read());
+        if(deflater != null) {
+            PayloadCompression.deflate(is, length, os, deflater, dictionary);
+        } else {
+            Helper.copy(is, os, length);
         }
 
-        // TODO: signature
+        if(encryptingOS != null) encryptingOS.finish();
+    }
+
+    /**
+     * Number of offsets followed by differences to previous offset (first one to 0). Most messages
+     * are small - most differences take one or two bytes.
+     */
+    private static void sendBinaryOffsets(List<Long> offsets, OutputStream os) throws IOException, ASAPException {
+        PDU_Impl.sendUnsignedVarLongParameter(offsets.size(), os);
+
+        long previous = 0;
+        for(long offset : offsets) {
+            if(offset < previous) throw new ASAPException("message offsets must be ascending: " + offset);
+            PDU_Impl.sendUnsignedVarLongParameter(offset - previous, os);
+            previous = offset;
+        }
+    }
+
+    private static long[] list2array(List<Long> list) {
+        if(list == null) return NO_OFFSETS;
+
+        long[] array = new long[list.size()];
+        for(int i = 0; i < array.length; i++) array[i] = list.get(i);
+
+        return array;
+    }
+
+    /**
+     * @return header as authenticated by sender of encrypted payload
+     */
+    private byte[] getAAD() throws IOException {
+        return PayloadEncryption.createAAD(this.encoding, this.getPeer(), this.recipientPeer, this.getFormat(),
+                this.getChannelUri(), this.eraSet() ? this.getEra() : ASAP_1_0.ERA_NOT_DEFINED, this.offsets,
+                this.dataLength);
     }
 
     static String list2string(List<Long> list) {
@@ -99,22 +458,42 @@ class AssimilationPDU_Impl extends PDU_Impl implements ASAP_AssimilationPDU_1_0
         return  sb.toString();
     }
 
-    private List<Integer> string2list(String s) throws ASAPException {
-        List<Integer> l = new ArrayList<>();
+    /**
+     * Parse comma separated decimal numbers without creating any string.
+     */
+    private long[] readTextOffsets(InputStream is) throws IOException, ASAPException {
+        int length = this.readParameterLength(is);
+        byte[] bytes = this.getParameterBuffer(length);
+        PDU_Impl.readFully(is, bytes, length);
+
+        // count numbers - empty entries are ignored
+        int number = 0;
+        boolean inNumber = false;
+        for(int i = 0; i < length; i++) {
+            boolean delimiter = bytes[i] == OFFSET_DELIMITER_BYTE;
+            if(!delimiter && !inNumber) number++;
+            inNumber = !delimiter;
+        }
 
-        StringTokenizer st = new StringTokenizer(s, OFFSET_DELIMITER);
+        long[] l = new long[number];
+        int index = 0;
+        long value = -1; // no digit yet
+        for(int i = 0; i <= length; i++) {
+            if(i == length || bytes[i] == OFFSET_DELIMITER_BYTE) {
+                if(value >= 0) l[index++] = value;
+                value = -1;
+                continue;
+            }
 
-        try {
-            while (st.hasMoreTokens()) {
-                l.add(Integer.parseInt(st.nextToken()));
+            int digit = bytes[i] - '0';
+            if(digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                throw new ASAPException("malformed offset parameter in received data: "
+                        + new String(bytes, 0, length));
             }
-        }
-        catch(RuntimeException re) {
-            throw new ASAPException("malformed offset parameter in received data: " + s);
+            value = value < 0 ? digit : value * 10 + digit;
         }
 
         return l;
-
     }
 
     @Override
@@ -124,26 +503,96 @@ class AssimilationPDU_Impl extends PDU_Impl implements ASAP_AssimilationPDU_1_0
     public long getLength() { return this.dataLength; }
 
     @Override
+    @Deprecated
     public List<Integer> getMessageOffsets() {
+        List<Integer> l = new ArrayList<>(this.offsets.length);
+        for(long offset : this.offsets) {
+            l.add((int) offset);
+        }
+        return l;
+    }
+
+    @Override
+    public long[] getMessageOffsetArray() {
         return this.offsets;
     }
 
+    @Override
+    public int getEncoding() {
+        return this.encoding;
+    }
+
     @Override
     public byte[] getData() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream((int) Math.min(this.dataLength, Integer.MAX_VALUE));
         this.streamData(baos, this.dataLength);
 
         return baos.toByteArray();
     }
 
     public InputStream getInputStream() {
-        return this.is;
+        if(this.payloadIS == null) {
+            this.payloadIS = this.is;
+
+            if((this.encoding & ASAP_1_0.ENCODING_AES_GCM) != 0) {
+                this.decryptingIS = new PayloadEncryption.DecryptingInputStream(
+                        this.payloadIS, this.cipher, this.payloadKey, this.noncePrefix, this.payloadAAD);
+                this.payloadIS = this.decryptingIS;
+            }
+
+            if((this.encoding & ASAP_1_0.ENCODING_DEFLATE) != 0) {
+                if(this.inflater == null) this.inflater = new Inflater();
+                byte[] dictionary = this.compression != null ? this.compression.getDictionary(this.getFormat()) : null;
+                this.payloadIS = new PayloadCompression.InflatingInputStream(
+                        this.payloadIS, this.dataLength, this.inflater, !this.reused, dictionary, this.getFormat());
+                if(!this.reused) this.inflater = null;
+            }
+
+            // payload is signed as seen by applications
+            if(this.signatureIS != null) this.payloadIS = new DigestInputStream(this.payloadIS, this.digest);
+
+            if(this.decryptingIS != null || this.signatureIS != null) {
+                this.payloadIS = new PayloadEndInputStream(this.payloadIS, this.decryptingIS, this.signatureIS,
+                        this.digest, this.verifier);
+            }
+        }
+
+        return this.payloadIS;
     }
 
     @Override
     public void streamData(OutputStream os, long length) throws IOException {
-        for(int i = 0; i < length; i++) {
-            os.write(this.is.read());
+        Helper.copy(this.getInputStream(), os, length);
+    }
+
+    @Override
+    public boolean canDecrypt() {
+        return (this.encoding & ASAP_1_0.ENCODING_AES_GCM) == 0 || this.payloadKey != null;
+    }
+
+    @Override
+    public void skipPayload() throws IOException {
+        if(this.canDecrypt()) {
+            // signature is checked with last byte
+            InputStream is = this.getInputStream();
+            byte[] buffer = new byte[PayloadEncryption.RECORD_SIZE];
+            for(long remaining = this.dataLength; remaining > 0; ) {
+                int read = is.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if(read < 0) throw new IOException("stream ended before payload was read");
+                remaining -= read;
+            }
+            return;
+        }
+
+        new PayloadEncryption.DecryptingInputStream(this.is, this.cipher, null, this.noncePrefix, this.payloadAAD)
+                .skipRecords();
+        if(this.signatureIS != null) {
+            // content unknown - signature cannot be checked
+            try {
+                this.readSignatureTrailer(this.signatureIS, null, this.verifier);
+            } catch (ASAPException e) {
+                throw new IOException(e.getLocalizedMessage());
+            }
         }
     }
 }
@@ -0,0 +1,160 @@
+package net.sharksystem.asap.protocol;
+
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.crypto.ASAPSignatureVerifier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * CMD | FLAGS | peer (opt) | version (byte) | features (varint) | number of formats (varint) |
+ * formats: format | era from + 1 (varint) | era to + 1 (varint) [| number of patterns (varint) | patterns]
+ *
+ * Era windows are sent increased by one - 0 means undefined. Channel flag is set if formats are followed by
+ * channel subscription patterns - no pattern means any channel.
+ */
+public class HandshakePDU_Impl extends PDU_Impl implements ASAP_HandshakePDU_1_0 {
+    /** sanity check - we allocate a list of that size */
+    public static final int MAX_FORMATS = 4096;
+    public static final int MAX_CHANNEL_PATTERNS = 1024;
+
+    private int version;
+    private int features;
+    private List<ASAP_Interest_PDU_1_0> interests;
+
+    public HandshakePDU_Impl(int flagsInt, InputStream is) throws IOException, ASAPException {
+        super(ASAP_1_0.HANDSHAKE_CMD);
+
+        evaluateFlags(flagsInt);
+
+        if(this.peerSet()) { this.readPeer(is); }
+        this.version = this.readByteParameter(is) & 0xFF;
+        // anything after version could have another layout
+        if(this.version != ASAP_1_0.PROTOCOL_VERSION) {
+            throw new ASAPException("unsupported protocol version: " + this.version);
+        }
+        this.features = (int) this.readUnsignedVarLongParameter(is);
+
+        long number = this.readUnsignedVarLongParameter(is);
+        if(number > MAX_FORMATS) throw new ASAPException("too many formats in handshake: " + number);
+
+        this.interests = new ArrayList<>((int) number);
+        for(int i = 0; i < number; i++) {
+            String format = this.readCharSequenceParameter(is);
+            int eraFrom = this.readEraWindowParameter(is);
+            int eraTo = this.readEraWindowParameter(is);
+            List<String> channelPatterns = Collections.emptyList();
+            if(this.channelSet()) channelPatterns = this.readChannelPatterns(is);
+
+            this.interests.add(new InterestPDU_Impl(this.getPeer(), format, eraFrom, eraTo, channelPatterns));
+        }
+    }
+
+    /**
+     * Interests are signed along with handshake.
+     */
+    @Override
+    void readSignature(InputStream is, MessageDigest digest, ASAPSignatureVerifier verifier)
+            throws IOException, ASAPException {
+
+        super.readSignature(is, digest, verifier);
+        for(ASAP_Interest_PDU_1_0 interest : this.interests) {
+            ((InterestPDU_Impl) interest).setSignature(this);
+        }
+    }
+
+    private int readEraWindowParameter(InputStream is) throws IOException, ASAPException {
+        long value = this.readUnsignedVarLongParameter(is);
+        if(value > (long) Integer.MAX_VALUE + 1) throw new ASAPException("era out of range: " + (value - 1));
+
+        return (int) (value - 1);
+    }
+
+    private List<String> readChannelPatterns(InputStream is) throws IOException, ASAPException {
+        long number = this.readUnsignedVarLongParameter(is);
+        if(number > MAX_CHANNEL_PATTERNS) throw new ASAPException("too many channel patterns: " + number);
+
+        List<String> channelPatterns = new ArrayList<>((int) number);
+        for(int i = 0; i < number; i++) {
+            channelPatterns.add(this.readCharSequenceParameter(is));
+        }
+
+        return channelPatterns;
+    }
+
+    static void sendPDU(CharSequence peer, int features, List<CharSequence> formats,
+                        List<Integer> erasFrom, List<Integer> erasTo, List<List<CharSequence>> channelPatterns,
+                        OutputStream os, PDUSignature signature)
+            throws IOException, ASAPException {
+
+        // first: check protocol errors
+        if(formats == null) formats = Collections.emptyList();
+        if(formats.size() > MAX_FORMATS) throw new ASAPException("too many formats in handshake: " + formats.size());
+        if(erasFrom != null && erasFrom.size() != formats.size())
+            throw new ASAPException("need an era from for each format");
+        if(erasTo != null && erasTo.size() != formats.size())
+            throw new ASAPException("need an era to for each format");
+        if(channelPatterns != null && channelPatterns.size() != formats.size())
+            throw new ASAPException("need channel patterns for each format");
+        for(int i = 0; i < formats.size(); i++) {
+            CharSequence format = formats.get(i);
+            if(format == null || format.length() < 1) throw new ASAPException("format must not be empty");
+            if(erasFrom != null) PDU_Impl.checkValidEra(erasFrom.get(i));
+            if(erasTo != null) PDU_Impl.checkValidEra(erasTo.get(i));
+            if(channelPatterns != null) {
+                List<CharSequence> patterns = channelPatterns.get(i);
+                if(patterns != null && patterns.size() > MAX_CHANNEL_PATTERNS)
+                    throw new ASAPException("too many channel patterns: " + patterns.size());
+            }
+        }
+        PDU_Impl.checkValidSign(peer, signature != null);
+        PDU_Impl.checkValidStream(os);
+
+        // create parameter bytes
+        int flags = 0;
+        flags = PDU_Impl.setFlag(peer, flags, PEER_BIT_POSITION);
+        if(channelPatterns != null) flags = PDU_Impl.setFlag(1, flags, CHANNEL_BIT_POSITION);
+
+        PDUHeaderBuffer pdu = PDUHeaderBuffer.get();
+        PDU_Impl.sendHeader(ASAP_1_0.HANDSHAKE_CMD, flags, signature, pdu);
+
+        PDU_Impl.sendCharSequenceParameter(peer, pdu); // opt
+        PDU_Impl.sendByteParameter((byte) ASAP_1_0.PROTOCOL_VERSION, pdu); // mand
+        PDU_Impl.sendUnsignedVarLongParameter(features, pdu); // mand
+        PDU_Impl.sendUnsignedVarLongParameter(formats.size(), pdu); // mand
+        for(int i = 0; i < formats.size(); i++) {
+            int eraFrom = erasFrom != null ? erasFrom.get(i) : ASAP_1_0.ERA_NOT_DEFINED;
+            int eraTo = erasTo != null ? erasTo.get(i) : ASAP_1_0.ERA_NOT_DEFINED;
+
+            PDU_Impl.sendCharSequenceParameter(formats.get(i), pdu);
+            PDU_Impl.sendUnsignedVarLongParameter((long) eraFrom + 1, pdu);
+            PDU_Impl.sendUnsignedVarLongParameter((long) eraTo + 1, pdu);
+
+            if(channelPatterns != null) {
+                List<CharSequence> patterns = channelPatterns.get(i);
+                if(patterns == null) patterns = Collections.emptyList();
+                PDU_Impl.sendUnsignedVarLongParameter(patterns.size(), pdu);
+                for(CharSequence pattern : patterns) {
+                    PDU_Impl.sendCharSequenceParameter(pattern, pdu);
+                }
+            }
+        }
+
+        if(signature != null) signature.sign(pdu);
+        pdu.sendTo(os);
+    }
+
+    @Override
+    public int getVersion() { return this.version; }
+
+    @Override
+    public int getFeatures() { return this.features; }
+
+    @Override
+    public List<ASAP_Interest_PDU_1_0> getInterests() { return this.interests; }
+}
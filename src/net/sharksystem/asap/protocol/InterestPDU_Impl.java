@@ -5,15 +5,29 @@ import net.sharksystem.asap.ASAPException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
 
 public class InterestPDU_Impl extends PDU_Impl implements ASAP_Interest_PDU_1_0 {
     private String sourcePeer;
     private int eraFrom;
     private int eraTo;
+    private List<String> channelPatterns = Collections.emptyList();
 
     public InterestPDU_Impl(int flagsInt, InputStream is) throws IOException, ASAPException {
         super(ASAP_1_0.INTEREST_CMD);
+        this.readFrom(flagsInt, is);
+    }
+
+    /**
+     * Empty pdu - filled by {@link #readFrom(int, InputStream)}
+     */
+    InterestPDU_Impl(PDUStringCache strings) {
+        super(ASAP_1_0.INTEREST_CMD, strings);
+    }
 
+    void readFrom(int flagsInt, InputStream is) throws IOException, ASAPException {
+        this.reset();
         evaluateFlags(flagsInt);
 
         if(this.peerSet()) { this.readPeer(is); }
@@ -24,12 +38,40 @@ public class InterestPDU_Impl extends PDU_Impl implements ASAP_Interest_PDU_1_0
         if(this.eraToSet()) { this.readToEra(is); }
     }
 
+    /**
+     * Interest not read from a stream but carried by another PDU - e.g. a handshake
+     */
+    InterestPDU_Impl(String peer, String format, int eraFrom, int eraTo, List<String> channelPatterns) {
+        super(ASAP_1_0.INTEREST_CMD);
+
+        int flags = 0;
+        flags = PDU_Impl.setFlag(peer, flags, PEER_BIT_POSITION);
+        flags = PDU_Impl.setFlag(eraFrom, flags, ERA_FROM_BIT_POSITION);
+        flags = PDU_Impl.setFlag(eraTo, flags, ERA_TO_BIT_POSITION);
+        evaluateFlags(flags);
+
+        this.setPeer(peer);
+        this.setFormat(format);
+        this.eraFrom = eraFrom;
+        this.eraTo = eraTo;
+        this.channelPatterns = channelPatterns;
+    }
+
+    @Override
+    protected void reset() {
+        super.reset();
+        this.sourcePeer = null;
+        this.eraFrom = 0;
+        this.eraTo = 0;
+        this.channelPatterns = Collections.emptyList();
+    }
+
     private void readToEra(InputStream is) throws IOException, ASAPException {
-        this.eraTo = this.readIntegerParameter(is);
+        this.eraTo = this.readEraParameter(is);
     }
 
     private void readFromEra(InputStream is) throws IOException, ASAPException {
-        this.eraFrom = this.readIntegerParameter(is);
+        this.eraFrom = this.readEraParameter(is);
     }
 
     private void readSourcePeer(InputStream is) throws IOException, ASAPException {
@@ -37,7 +79,7 @@ public class InterestPDU_Impl extends PDU_Impl implements ASAP_Interest_PDU_1_0
     }
 
     static void sendPDU(CharSequence peer, CharSequence sourcePeer, CharSequence format,
-                        CharSequence channel, int eraFrom, int eraTo, OutputStream os, boolean signed)
+                        CharSequence channel, int eraFrom, int eraTo, OutputStream os, PDUSignature signature)
             throws IOException, ASAPException {
 
         if(format == null || format.length() < 1) format = ASAP_1_0.ANY_FORMAT;
@@ -46,7 +88,7 @@ public class InterestPDU_Impl extends PDU_Impl implements ASAP_Interest_PDU_1_0
         PDU_Impl.checkValidEra(eraFrom);
         PDU_Impl.checkValidEra(eraTo);
         PDU_Impl.checkValidFormat(format);
-        PDU_Impl.checkValidSign(peer, signed);
+        PDU_Impl.checkValidSign(peer, signature != null);
         PDU_Impl.checkValidStream(os);
 
         // create parameter bytes
@@ -57,16 +99,18 @@ public class InterestPDU_Impl extends PDU_Impl implements ASAP_Interest_PDU_1_0
         flags = PDU_Impl.setFlag(eraFrom, flags, ERA_FROM_BIT_POSITION);
         flags = PDU_Impl.setFlag(eraTo, flags, ERA_TO_BIT_POSITION);
 
-        PDU_Impl.sendHeader(ASAP_1_0.INTEREST_CMD, flags, os);
+        PDUHeaderBuffer pdu = PDUHeaderBuffer.get();
+        PDU_Impl.sendHeader(ASAP_1_0.INTEREST_CMD, flags, signature, pdu);
 
-        PDU_Impl.sendCharSequenceParameter(peer, os); // opt
-        PDU_Impl.sendCharSequenceParameter(sourcePeer, os); // opt
-        PDU_Impl.sendCharSequenceParameter(format, os); // mand
-        PDU_Impl.sendCharSequenceParameter(channel, os); // opt
-        PDU_Impl.sendNonNegativeIntegerParameter(eraFrom, os); // opt
-        PDU_Impl.sendNonNegativeIntegerParameter(eraTo, os); // opt
+        PDU_Impl.sendCharSequenceParameter(peer, pdu); // opt
+        PDU_Impl.sendCharSequenceParameter(sourcePeer, pdu); // opt
+        PDU_Impl.sendCharSequenceParameter(format, pdu); // mand
+        PDU_Impl.sendCharSequenceParameter(channel, pdu); // opt
+        PDU_Impl.sendEraParameter(eraFrom, pdu); // opt
+        PDU_Impl.sendEraParameter(eraTo, pdu); // opt
 
-        // TODO: signature
+        if(signature != null) signature.sign(pdu);
+        pdu.sendTo(os);
     }
 
     @Override
@@ -77,4 +121,7 @@ public class InterestPDU_Impl extends PDU_Impl implements ASAP_Interest_PDU_1_0
 
     @Override
     public int getEraTo() { return this.eraTo; }
+
+    @Override
+    public List<String> getChannelPatterns() { return this.channelPatterns; }
 }
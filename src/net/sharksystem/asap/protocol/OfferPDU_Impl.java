@@ -7,40 +7,103 @@ import java.io.InputStream;
 import java.io.OutputStream;
 
 class OfferPDU_Impl extends PDU_Impl implements ASAP_OfferPDU_1_0 {
+    /** SHA-256 has 32 bytes - anything beyond is no digest */
+    static final int MAX_DIGEST_LENGTH = 64;
+
+    private String sourcePeer;
+    private long length;
+    private byte[] digest;
 
     public OfferPDU_Impl(int flagsInt, InputStream is) throws IOException, ASAPException {
         super(ASAP_1_0.OFFER_CMD);
+        this.readFrom(flagsInt, is);
+    }
+
+    /**
+     * Empty pdu - filled by {@link #readFrom(int, InputStream)}
+     */
+    OfferPDU_Impl(PDUStringCache strings) {
+        super(ASAP_1_0.OFFER_CMD, strings);
+    }
+
+    @Override
+    protected void reset() {
+        super.reset();
+        this.sourcePeer = null;
+        this.length = -1;
+        this.digest = null;
+    }
+
+    void readFrom(int flagsInt, InputStream is) throws IOException, ASAPException {
+        this.reset();
         evaluateFlags(flagsInt);
 
         if(this.peerSet()) { this.readPeer(is); }
+        if(this.sourcePeerSet()) { this.sourcePeer = this.readCharSequenceParameter(is); }
         this.readFormat(is);
         if(this.channelSet()) { this.readChannel(is); }
         if(this.eraSet()) { this.readEra(is); }
+        if(this.inventorySet()) { this.readInventory(is); }
     }
 
-    static void sendPDU(CharSequence peer, CharSequence format, CharSequence channel, int era,
-                        OutputStream os, boolean signed) throws IOException, ASAPException {
+    private void readInventory(InputStream is) throws IOException, ASAPException {
+        this.length = this.readUnsignedVarLongParameter(is);
+
+        long digestLength = this.readUnsignedVarLongParameter(is);
+        if(digestLength > MAX_DIGEST_LENGTH) throw new ASAPException("digest too long: " + digestLength);
+        this.digest = new byte[(int) digestLength];
+        PDU_Impl.readFully(is, this.digest, this.digest.length);
+    }
+
+    static void sendPDU(CharSequence peer, CharSequence sourcePeer, CharSequence format, CharSequence channel,
+                        int era, long length, byte[] digest, OutputStream os, PDUSignature signature)
+            throws IOException, ASAPException {
 
         // first: check protocol errors
         PDU_Impl.checkValidEra(era);
         PDU_Impl.checkValidFormat(format);
-        PDU_Impl.checkValidSign(peer, signed);
+        PDU_Impl.checkValidSign(peer, signature != null);
         PDU_Impl.checkValidStream(os);
 
+        boolean inventory = digest != null;
+        if(inventory) {
+            if(length < 0) throw new ASAPException("offered chunk must have a length: " + length);
+            if(digest.length > MAX_DIGEST_LENGTH) throw new ASAPException("digest too long: " + digest.length);
+        }
+
         // create parameter bytes
         int flags = 0;
         flags = PDU_Impl.setFlag(peer, flags, PEER_BIT_POSITION);
+        flags = PDU_Impl.setFlag(sourcePeer, flags, SOURCE_PEER_BIT_POSITION);
         flags = PDU_Impl.setFlag(channel, flags, CHANNEL_BIT_POSITION);
         flags = PDU_Impl.setFlag(era, flags, ERA_BIT_POSITION);
+        if(inventory) flags = PDU_Impl.setFlag(1, flags, INVENTORY_BIT_POSITION);
 
-        // PDU: CMD | FLAGS | PEER | FORMAT | CHANNEL | ERA
-        PDU_Impl.sendHeader(ASAP_1_0.OFFER_CMD, flags, os);
+        // PDU: CMD | FLAGS | PEER | SOURCE_PEER | FORMAT | CHANNEL | ERA | LENGTH | DIGEST
+        PDUHeaderBuffer pdu = PDUHeaderBuffer.get();
+        PDU_Impl.sendHeader(ASAP_1_0.OFFER_CMD, flags, signature, pdu);
 
-        PDU_Impl.sendCharSequenceParameter(peer, os); // opt
-        PDU_Impl.sendCharSequenceParameter(format, os); // mand
-        PDU_Impl.sendCharSequenceParameter(channel, os); // opt
-        PDU_Impl.sendNonNegativeIntegerParameter(era, os); // opt
+        PDU_Impl.sendCharSequenceParameter(peer, pdu); // opt
+        PDU_Impl.sendCharSequenceParameter(sourcePeer, pdu); // opt
+        PDU_Impl.sendCharSequenceParameter(format, pdu); // mand
+        PDU_Impl.sendCharSequenceParameter(channel, pdu); // opt
+        PDU_Impl.sendEraParameter(era, pdu); // opt
+        if(inventory) {
+            PDU_Impl.sendUnsignedVarLongParameter(length, pdu);
+            PDU_Impl.sendUnsignedVarLongParameter(digest.length, pdu);
+            pdu.write(digest);
+        }
 
-        // TODO: signature
+        if(signature != null) signature.sign(pdu);
+        pdu.sendTo(os);
     }
+
+    @Override
+    public String getSourcePeer() { return this.sourcePeer; }
+
+    @Override
+    public long getLength() { return this.length; }
+
+    @Override
+    public byte[] getDigest() { return this.digest; }
 }
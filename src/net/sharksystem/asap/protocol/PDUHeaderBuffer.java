@@ -0,0 +1,88 @@
+package net.sharksystem.asap.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * A PDU is encoded into memory and handed over to the stream with a single write. One buffer
+ * per thread is kept and reused. Encoding does not synchronize - a buffer is never shared.
+ */
+class PDUHeaderBuffer extends ByteArrayOutputStream {
+    private static final int INITIAL_SIZE = 256;
+    /** larger buffers are dropped after use instead of being kept */
+    private static final int MAX_POOLED_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<PDUHeaderBuffer> BUFFERS = new ThreadLocal<PDUHeaderBuffer>() {
+        @Override
+        protected PDUHeaderBuffer initialValue() {
+            return new PDUHeaderBuffer();
+        }
+    };
+
+    private PDUHeaderBuffer() {
+        super(INITIAL_SIZE);
+    }
+
+    /**
+     * @return empty buffer of calling thread
+     */
+    static PDUHeaderBuffer get() {
+        PDUHeaderBuffer buffer = BUFFERS.get();
+        buffer.reset();
+        return buffer;
+    }
+
+    @Override
+    public void write(int b) {
+        this.ensureCapacity(1);
+        this.buf[this.count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        this.ensureCapacity(len);
+        System.arraycopy(b, off, this.buf, this.count, len);
+        this.count += len;
+    }
+
+    /**
+     * Append exactly length bytes from a stream
+     * @throws IOException stream ended before
+     */
+    void readFrom(InputStream is, int length) throws IOException {
+        this.ensureCapacity(length);
+        while(length > 0) {
+            int read = is.read(this.buf, this.count, length);
+            if(read < 0) throw new IOException("stream ended before payload was read");
+            this.count += read;
+            length -= read;
+        }
+    }
+
+    void updateDigest(MessageDigest digest) {
+        digest.update(this.buf, 0, this.count);
+    }
+
+    /**
+     * Write buffer content with a single call and release buffer.
+     */
+    void sendTo(OutputStream os) throws IOException {
+        try {
+            os.write(this.buf, 0, this.count);
+        }
+        finally {
+            this.reset();
+            if(this.buf.length > MAX_POOLED_SIZE) BUFFERS.remove();
+        }
+    }
+
+    private void ensureCapacity(int len) {
+        if(this.count + len > this.buf.length) {
+            this.buf = Arrays.copyOf(this.buf, Math.max(this.buf.length << 1, this.count + len));
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package net.sharksystem.asap.protocol;
+
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.crypto.ASAPKeyStore;
+import net.sharksystem.asap.crypto.ASAPSignatures;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Signs a pdu while it is written. Signed pdus have highest bit of command byte set and are followed
+ * by a signature:
+ *
+ * signer | signature length (varint) | signature
+ *
+ * Signature covers anything from command byte to the end of payload. Assimilate pdus are an exception:
+ * Signature covers chunk content, see {@link #startContentDigest}. It does not change from hop to hop -
+ * relays forward signature of chunk origin.
+ *
+ * @author thsc
+ */
+class PDUSignature {
+    static final byte SIGNED_CMD_FLAG = (byte) 0x80;
+    /** sanity check - an ECDSA signature takes some 72 bytes */
+    static final int MAX_SIGNATURE_LENGTH = 1024;
+
+    private static final OutputStream NO_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int b) { }
+    };
+
+    private final ASAPKeyStore keyStore;
+    private final MessageDigest digest;
+    /** forwarded signature - null if signed with own key */
+    private final CharSequence signer;
+    private final byte[] signature;
+
+    PDUSignature(ASAPKeyStore keyStore) throws ASAPException {
+        this.keyStore = keyStore;
+        this.digest = ASAPSignatures.createMessageDigest();
+        this.signer = null;
+        this.signature = null;
+    }
+
+    /**
+     * Forward signature of chunk origin - nothing is signed.
+     */
+    PDUSignature(CharSequence signer, byte[] signature) throws ASAPException {
+        if(signer == null || signature == null) throw new ASAPException("signer and signature must not be null");
+        if(signature.length > MAX_SIGNATURE_LENGTH) throw new ASAPException("signature too long: " + signature.length);
+
+        this.keyStore = null;
+        this.digest = null;
+        this.signer = signer;
+        this.signature = signature;
+    }
+
+    static byte getCommand(byte cmd, PDUSignature signature) {
+        return signature != null ? (byte) (cmd | SIGNED_CMD_FLAG) : cmd;
+    }
+
+    static boolean isSigned(byte cmd) {
+        return (cmd & SIGNED_CMD_FLAG) != 0;
+    }
+
+    static byte removeSignedFlag(byte cmd) {
+        return (byte) (cmd & ~SIGNED_CMD_FLAG);
+    }
+
+    /**
+     * @param cmd command byte as received
+     * @return digest of received bytes - command byte added. null if pdu is not signed
+     */
+    static MessageDigest startDigest(byte cmd) throws ASAPException {
+        if(!PDUSignature.isSigned(cmd)) return null;
+
+        MessageDigest digest = ASAPSignatures.createMessageDigest();
+        digest.update(cmd);
+        return digest;
+    }
+
+    /**
+     * Chunk content as signed by its origin: sender, format, channel, era, offsets, length and payload as
+     * seen by applications. Parameters which change from hop to hop are not signed - recipient, encoding.
+     * @param era ERA_NOT_DEFINED if not set
+     * @return digest of parameters - payload is to be added
+     */
+    static MessageDigest startContentDigest(CharSequence peer, CharSequence format, CharSequence channel, int era,
+                                            long[] offsets, long length) throws IOException, ASAPException {
+
+        MessageDigest digest = ASAPSignatures.createMessageDigest();
+        PDUSignature.updateContent(digest, peer, format, channel, era, offsets, length);
+
+        return digest;
+    }
+
+    private static void updateContent(MessageDigest digest, CharSequence peer, CharSequence format,
+                                      CharSequence channel, int era, long[] offsets, long length) throws IOException {
+
+        DataOutputStream dos = new DataOutputStream(new DigestOutputStream(NO_OUTPUT, digest));
+        dos.writeByte(ASAP_1_0.ASSIMILATE_CMD);
+        PDUSignature.writeOptional(peer, dos);
+        dos.writeUTF(format.toString());
+        PDUSignature.writeOptional(channel, dos);
+        dos.writeInt(era);
+        dos.writeInt(offsets.length);
+        for(long offset : offsets) dos.writeLong(offset);
+        dos.writeLong(length);
+        dos.flush();
+    }
+
+    private static void writeOptional(CharSequence parameter, DataOutputStream dos) throws IOException {
+        dos.writeBoolean(parameter != null);
+        if(parameter != null) dos.writeUTF(parameter.toString());
+    }
+
+    /**
+     * Sign chunk content - payload is added while read. Forwarded signatures cover it already.
+     * @return stream payload is to be read from
+     */
+    InputStream wrapContent(CharSequence peer, CharSequence format, CharSequence channel, int era,
+                            long[] offsets, long length, InputStream is) throws IOException {
+
+        if(this.signature != null) return is;
+
+        PDUSignature.updateContent(this.digest, peer, format, channel, era, offsets, length);
+
+        return new DigestInputStream(is, this.digest);
+    }
+
+    /**
+     * Add content of pdu buffer to signed bytes.
+     */
+    void update(PDUHeaderBuffer pdu) {
+        pdu.updateDigest(this.digest);
+    }
+
+    /**
+     * Sign buffer content and append signature - pdu and signature are sent with a single write.
+     */
+    void sign(PDUHeaderBuffer pdu) throws IOException, ASAPException {
+        this.update(pdu);
+        this.sendSignature(pdu);
+    }
+
+    /**
+     * Write signature of anything signed so far.
+     */
+    void sendSignature(OutputStream os) throws IOException, ASAPException {
+        if(this.signature != null) {
+            PDU_Impl.sendCharSequenceParameter(this.signer, os);
+            PDU_Impl.sendUnsignedVarLongParameter(this.signature.length, os);
+            os.write(this.signature);
+            return;
+        }
+
+        byte[] signature = ASAPSignatures.sign(this.keyStore.getPrivateKey(), this.digest.digest());
+
+        PDU_Impl.sendCharSequenceParameter(this.keyStore.getOwner(), os);
+        PDU_Impl.sendUnsignedVarLongParameter(signature.length, os);
+        os.write(signature);
+    }
+}
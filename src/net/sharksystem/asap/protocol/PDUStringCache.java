@@ -0,0 +1,50 @@
+package net.sharksystem.asap.protocol;
+
+import java.util.Arrays;
+
+/**
+ * Peer names, formats and channels are received over and over again. Decoded strings are kept
+ * in a small table - same bytes produce the same string object without any allocation.
+ * Not thread safe - a cache belongs to a single decoder.
+ */
+class PDUStringCache {
+    /** must be a power of two */
+    private static final int SIZE = 256;
+    /** longer strings are not cached */
+    static final int MAX_CACHED_LENGTH = 256;
+
+    private final byte[][] keys = new byte[SIZE][];
+    private final String[] values = new String[SIZE];
+
+    String get(byte[] bytes, int length) {
+        if(length > MAX_CACHED_LENGTH) return new String(bytes, 0, length);
+
+        int hash = 1;
+        for(int i = 0; i < length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        int index = (hash ^ (hash >>> 16)) & (SIZE - 1);
+
+        byte[] key = this.keys[index];
+        if(key != null && PDUStringCache.equals(key, bytes, length)) {
+            return this.values[index];
+        }
+
+        // miss - replace entry
+        String value = new String(bytes, 0, length);
+        this.keys[index] = Arrays.copyOf(bytes, length);
+        this.values[index] = value;
+
+        return value;
+    }
+
+    private static boolean equals(byte[] key, byte[] bytes, int length) {
+        if(key.length != length) return false;
+
+        for(int i = 0; i < length; i++) {
+            if(key[i] != bytes[i]) return false;
+        }
+
+        return true;
+    }
+}
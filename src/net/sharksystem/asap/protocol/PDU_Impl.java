@@ -1,11 +1,15 @@
 package net.sharksystem.asap.protocol;
 
 import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.crypto.ASAPSignatureVerifier;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.MessageDigest;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import static net.sharksystem.asap.protocol.ASAP_1_0.ERA_NOT_DEFINED;
 
@@ -18,6 +22,10 @@ abstract class PDU_Impl implements ASAP_PDU_1_0{
     public static final int ERA_TO_BIT_POSITION = 5;
     public static final int RECIPIENT_PEER_BIT_POSITION = 6;
     public static final int OFFSETS_BIT_POSITION = 7;
+    /** assimilate pdus have no era range - that bit marks an encoding parameter */
+    public static final int ENCODING_BIT_POSITION = ERA_FROM_BIT_POSITION;
+    /** offers have no offsets - that bit marks length and digest of an offered chunk */
+    public static final int INVENTORY_BIT_POSITION = OFFSETS_BIT_POSITION;
 
     private boolean peerSet = false;
     private boolean channelSet = false;
@@ -34,8 +42,42 @@ abstract class PDU_Impl implements ASAP_PDU_1_0{
     private int era;
     private final byte cmd;
 
+    /** decoding buffers larger than that are not kept */
+    private static final int MAX_KEPT_PARAMETER_BUFFER_SIZE = 64 * 1024;
+    private static final int MIN_PARAMETER_BUFFER_SIZE = 64;
+    private byte[] parameterBuffer = null;
+    private final PDUStringCache strings;
+
+    private boolean signed = false;
+    private String signer = null;
+    private byte[] signature = null;
+    /** null: not checked - no verifier or signature not read yet */
+    private Future<Boolean> verification = null;
+
     PDU_Impl(byte cmd) {
+        this(cmd, null);
+    }
+
+    /**
+     * @param strings decoded strings are taken from that cache - can be null
+     */
+    PDU_Impl(byte cmd, PDUStringCache strings) {
         this.cmd = cmd;
+        this.strings = strings;
+    }
+
+    /**
+     * Forget anything read before - pdu objects can be reused to decode another pdu.
+     */
+    protected void reset() {
+        this.peer = null;
+        this.format = null;
+        this.channel = null;
+        this.era = 0;
+        this.signed = false;
+        this.signer = null;
+        this.signature = null;
+        this.verification = null;
     }
 
     public String toString() {
@@ -46,6 +88,7 @@ abstract class PDU_Impl implements ASAP_PDU_1_0{
             case ASAP_1_0.INTEREST_CMD: sb.append("I"); break;
             case ASAP_1_0.OFFER_CMD: sb.append("O"); break;
             case ASAP_1_0.ASSIMILATE_CMD: sb.append("A"); break;
+            case ASAP_1_0.HANDSHAKE_CMD: sb.append("H"); break;
         }
         sb.append(" | sender: "); if(peerSet) sb.append(this.peer); else sb.append("X");
         sb.append(" | format: "); sb.append(format);
@@ -60,6 +103,83 @@ abstract class PDU_Impl implements ASAP_PDU_1_0{
         PDU_Impl.sendByteParameter((byte)flags, os); // mand
     }
 
+    protected static void sendHeader(byte cmd, int flags, PDUSignature signature, OutputStream os)
+            throws IOException {
+        PDU_Impl.sendHeader(PDUSignature.getCommand(cmd, signature), flags, os);
+    }
+
+    /**
+     * Read signature following that pdu - checked in background.
+     * @param is stream signature is read from - not digested
+     * @param digest digest of signed bytes - null if it cannot be calculated
+     * @param verifier null - signature cannot be checked
+     */
+    void readSignature(InputStream is, MessageDigest digest, ASAPSignatureVerifier verifier)
+            throws IOException, ASAPException {
+
+        this.readSignatureTrailer(is, digest, verifier);
+    }
+
+    protected final void readSignatureTrailer(InputStream is, MessageDigest digest, ASAPSignatureVerifier verifier)
+            throws IOException, ASAPException {
+
+        this.signed = true;
+        this.signer = this.readCharSequenceParameter(is);
+        long length = this.readUnsignedVarLongParameter(is);
+        if(length > PDUSignature.MAX_SIGNATURE_LENGTH) throw new ASAPException("signature too long: " + length);
+
+        this.signature = new byte[(int) length];
+        PDU_Impl.readFully(is, this.signature, this.signature.length);
+
+        if(verifier != null && digest != null) {
+            this.verification = verifier.verify(this.signer, digest.digest(), this.signature);
+        }
+    }
+
+    /**
+     * Pdu is part of another one - it is covered by its signature.
+     */
+    protected void setSignature(PDU_Impl pdu) {
+        this.signed = pdu.signed;
+        this.signer = pdu.signer;
+        this.signature = pdu.signature;
+        this.verification = pdu.verification;
+    }
+
+    protected void setSigned() {
+        this.signed = true;
+    }
+
+    @Override
+    public boolean isSigned() {
+        return this.signed;
+    }
+
+    @Override
+    public String getSigner() {
+        return this.signer;
+    }
+
+    @Override
+    public byte[] getSignature() {
+        return this.signature;
+    }
+
+    @Override
+    public boolean verify() throws IOException {
+        if(!this.signed) return false;
+        if(this.signer == null) throw new IOException("signature not read yet - read payload first");
+        if(this.verification == null) return false;
+
+        try {
+            return this.verification.get();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while waiting for signature check");
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
     protected void evaluateFlags(int flag) {
         // peer parameter set ?
         int testFlag = 1;
@@ -125,10 +245,14 @@ abstract class PDU_Impl implements ASAP_PDU_1_0{
 
     public boolean eraToSet() { return this.eraTo; }
 
+    public boolean encodingSet() { return this.eraFrom; }
+
     public boolean recipientPeerSet() { return this.recipientPeerSet; }
 
     public boolean offsetsSet() { return this.offsetsSet; }
 
+    public boolean inventorySet() { return this.offsetsSet; }
+
     @Override
     public String getPeer() { return this.peer; }
 
@@ -154,7 +278,7 @@ abstract class PDU_Impl implements ASAP_PDU_1_0{
     }
 
     static void sendByteParameter(byte parameter, OutputStream os) throws IOException {
-        os.write(new byte[] { parameter} );
+        os.write(parameter);
     }
 
 
@@ -169,6 +293,10 @@ abstract class PDU_Impl implements ASAP_PDU_1_0{
     static void sendNonNegativeIntegerParameter(int parameter, OutputStream os) throws IOException {
         if(parameter < 0) return; // non negative!
 
+        sendIntegerParameter(parameter, os);
+    }
+
+    private static void sendIntegerParameter(int parameter, OutputStream os) throws IOException {
         // Integer == 32 bit == 4 Byte
         int left = parameter >> 16;
         sendShortParameter((short) left, os);
@@ -178,10 +306,32 @@ abstract class PDU_Impl implements ASAP_PDU_1_0{
     protected static void sendNonNegativeLongParameter(long longValue, OutputStream os) throws IOException {
         if(longValue < 0) return;
 
-        // Long = 64 bit = 2 Integer
+        // Long = 64 bit = 2 Integer - right part can look negative as int
         long left = longValue >> 32;
-        sendNonNegativeIntegerParameter((int) left, os);
-        sendNonNegativeIntegerParameter((int) longValue, os);
+        sendIntegerParameter((int) left, os);
+        sendIntegerParameter((int) longValue, os);
+    }
+
+    /**
+     * Unsigned variable length integer: 7 bit per byte, least significant group first. Highest bit
+     * is set if another byte follows. Values below 128 take a single byte.
+     */
+    static void sendUnsignedVarLongParameter(long value, OutputStream os) throws IOException {
+        if(value < 0) return; // non negative!
+
+        while((value & ~0x7FL) != 0) {
+            os.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        os.write((int) value);
+    }
+
+    /**
+     * Eras are non negative integers - sent as variable length integer. Nothing is sent if era is
+     * not defined.
+     */
+    static void sendEraParameter(int era, OutputStream os) throws IOException {
+        sendUnsignedVarLongParameter(era, os);
     }
 
     protected byte readByteParameter(InputStream is) throws IOException, ASAPException {
@@ -199,36 +349,96 @@ abstract class PDU_Impl implements ASAP_PDU_1_0{
     protected short readShortParameter(InputStream is) throws IOException, ASAPException {
         int value = this.readByteParameter(is);
         value = value << 8;
-        int right = this.readByteParameter(is);
-        value += right;
+        int right = this.readByteParameter(is) & 0xFF; // right part is unsigned
+        value |= right;
         return (short) value;
     }
 
     protected int readIntegerParameter(InputStream is) throws IOException, ASAPException {
         int value = this.readShortParameter(is);
         value = value << 16;
-        int right = this.readShortParameter(is);
-        value += right;
+        int right = this.readShortParameter(is) & 0xFFFF; // right part is unsigned
+        value |= right;
         return value;
     }
 
     protected long readLongParameter(InputStream is) throws IOException, ASAPException {
         long value = this.readIntegerParameter(is);
         value = value << 32;
-        long right = this.readIntegerParameter(is);
-        value += right;
+        long right = this.readIntegerParameter(is) & 0xFFFFFFFFL; // right part is unsigned
+        value |= right;
         return value;
     }
 
+    protected long readUnsignedVarLongParameter(InputStream is) throws IOException, ASAPException {
+        return PDU_Impl.readUnsignedVarLong(is);
+    }
+
+    static long readUnsignedVarLong(InputStream is) throws IOException, ASAPException {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            int b = PDU_Impl.readByte(is) & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) return value;
+        }
+
+        throw new ASAPException("malformed variable length integer: more than 64 bit");
+    }
+
+    protected int readEraParameter(InputStream is) throws IOException, ASAPException {
+        long era = this.readUnsignedVarLongParameter(is);
+        if(era > Integer.MAX_VALUE) throw new ASAPException("era out of range: " + era);
+
+        return (int) era;
+    }
+
     protected String readCharSequenceParameter(InputStream is) throws IOException, ASAPException {
+        int length = this.readParameterLength(is);
+        byte[] parameterBytes = this.getParameterBuffer(length);
+        PDU_Impl.readFully(is, parameterBytes, length);
+
+        return this.strings != null ?
+                this.strings.get(parameterBytes, length) : new String(parameterBytes, 0, length);
+    }
+
+    protected int readParameterLength(InputStream is) throws IOException, ASAPException {
         int length = this.readIntegerParameter(is);
-        byte[] parameterBytes = new byte[length];
+        if(length < 0) throw new ASAPException("negative parameter length: " + length);
+
+        return length;
+    }
+
+    /**
+     * @return buffer of at least that length - content is overwritten with next call
+     */
+    protected byte[] getParameterBuffer(int length) {
+        if(this.parameterBuffer != null && this.parameterBuffer.length >= length) return this.parameterBuffer;
+        if(length > MAX_KEPT_PARAMETER_BUFFER_SIZE) return new byte[length];
+
+        this.parameterBuffer = new byte[Math.max(length, MIN_PARAMETER_BUFFER_SIZE)];
+        return this.parameterBuffer;
+    }
+
+    /**
+     * A single read can return less bytes than requested - e.g. from a socket. Read until done.
+     */
+    static void readFully(InputStream is, byte[] bytes, int length) throws IOException, ASAPException {
+        int offset = 0;
+        while(offset < length) {
+            int read = is.read(bytes, offset, length - offset);
+            if(read < 0) throw new ASAPException("read -1: no more data in stream");
+            offset += read;
+        }
+    }
 
-        is.read(parameterBytes);
 
-        return new String(parameterBytes);
+    protected void setPeer(String peer) {
+        this.peer = peer;
     }
 
+    protected void setFormat(String format) {
+        this.format = format;
+    }
 
     protected void readPeer(InputStream is) throws IOException, ASAPException {
         this.peer = this.readCharSequenceParameter(is);
@@ -245,7 +455,7 @@ abstract class PDU_Impl implements ASAP_PDU_1_0{
     }
 
     protected void readEra(InputStream is) throws IOException, ASAPException {
-        this.era = this.readIntegerParameter(is);
+        this.era = this.readEraParameter(is);
     }
 
 
@@ -290,17 +500,18 @@ abstract class PDU_Impl implements ASAP_PDU_1_0{
     }
 
     static void checkValidSign(CharSequence peer, boolean signed) throws ASAPException {
-        if(peer == null || signed) throw new ASAPException("cannot sign with peer == null");
+        if(peer == null) throw new ASAPException("cannot sign with peer == null");
     }
 
     static void checkValidFormat(CharSequence format) throws ASAPException {
         if(format == null) throw new ASAPException("format must not be null");
     }
 
+    /**
+     * Eras are in range 0..Integer.MAX_VALUE - ERA_NOT_DEFINED (-1) means no era.
+     */
     static void checkValidEra(int era) throws ASAPException {
-        if(era < -1) throw new ASAPException("era cannot be smaller than -1");
-        int maxEra = 2^8-1;
-        if(era > maxEra) throw new ASAPException("era exceeded max limit of 2^8-1");
+        if(era < ERA_NOT_DEFINED) throw new ASAPException("era cannot be smaller than " + ERA_NOT_DEFINED);
     }
 
 }
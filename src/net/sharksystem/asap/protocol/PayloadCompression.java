@@ -0,0 +1,181 @@
+package net.sharksystem.asap.protocol;
+
+import net.sharksystem.asap.ASAPException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflated payload of assimilate pdus. Each payload is a zlib stream of its own - with the dictionary
+ * of its format if any. It is sent in frames: length (varint) | bytes. An empty frame ends payload.
+ * Compressed length is not known before - data are streamed and never buffered as a whole.
+ *
+ * Sender flushes after each block of input (sync flush). Receiver can hand out data while the
+ * rest is still on its way.
+ */
+class PayloadCompression {
+    private static final int BLOCK_SIZE = 8 * 1024;
+    /** sanity check - sender frames are never larger than a block */
+    static final int MAX_FRAME_SIZE = 64 * 1024;
+
+    /**
+     * Compress exactly length bytes from is.
+     * @param deflater reset before use
+     */
+    static void deflate(InputStream is, long length, OutputStream os, Deflater deflater, byte[] dictionary)
+            throws IOException {
+
+        deflater.reset();
+        if(dictionary != null) deflater.setDictionary(dictionary);
+
+        byte[] in = new byte[BLOCK_SIZE];
+        byte[] out = new byte[BLOCK_SIZE];
+
+        while(length > 0) {
+            int read = is.read(in, 0, (int) Math.min(in.length, length));
+            if(read < 0) throw new IOException("stream ended, " + length + " bytes missing");
+            length -= read;
+
+            deflater.setInput(in, 0, read);
+            if(length == 0) deflater.finish();
+
+            int mode = length == 0 ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH;
+            int written;
+            do {
+                written = deflater.deflate(out, 0, out.length, mode);
+                PayloadCompression.writeFrame(out, written, os);
+            } while(written == out.length || (length == 0 && !deflater.finished()));
+        }
+
+        // end of payload
+        PDU_Impl.sendUnsignedVarLongParameter(0, os);
+    }
+
+    private static void writeFrame(byte[] bytes, int length, OutputStream os) throws IOException {
+        if(length == 0) return; // would end payload
+        PDU_Impl.sendUnsignedVarLongParameter(length, os);
+        os.write(bytes, 0, length);
+    }
+
+    /**
+     * Decompressed payload - ends after announced (uncompressed) length. Any remaining frame is read
+     * then - stream is positioned at next pdu.
+     */
+    static class InflatingInputStream extends InputStream {
+        private final InputStream is;
+        private final Inflater inflater;
+        private final boolean endInflater;
+        private final byte[] dictionary;
+        private final CharSequence format;
+        private long remaining;
+        private byte[] frame = new byte[BLOCK_SIZE];
+
+        /**
+         * @param inflater reset before use
+         * @param endInflater inflater is ended with end of payload - it is not used again
+         * @param dictionary dictionary of that format - null if there is none
+         */
+        InflatingInputStream(InputStream is, long length, Inflater inflater, boolean endInflater,
+                             byte[] dictionary, CharSequence format) {
+            this.is = is;
+            this.remaining = length;
+            this.inflater = inflater;
+            this.endInflater = endInflater;
+            this.dictionary = dictionary;
+            this.format = format;
+            this.inflater.reset();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(this.remaining <= 0) return -1;
+            if(len == 0) return 0;
+            len = (int) Math.min(len, this.remaining);
+
+            try {
+                while(true) {
+                    int inflated = this.inflater.inflate(b, off, len);
+                    if(inflated > 0) {
+                        this.remaining -= inflated;
+                        if(this.remaining == 0) this.skipRemainingFrames();
+                        return inflated;
+                    }
+
+                    if(this.inflater.needsDictionary()) {
+                        this.setDictionary();
+                    } else if(this.inflater.finished()) {
+                        throw new IOException("compressed payload shorter than announced: "
+                                + this.remaining + " bytes missing");
+                    } else if(this.inflater.needsInput()) {
+                        if(!this.readFrame()) {
+                            throw new IOException("compressed payload ended early: "
+                                    + this.remaining + " bytes missing");
+                        }
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("malformed compressed payload: " + e.getLocalizedMessage());
+            }
+        }
+
+        private void setDictionary() throws IOException {
+            byte[] dictionary = this.dictionary;
+            if(dictionary == null) {
+                throw new IOException("payload compressed with dictionary - none for format: " + this.format);
+            }
+
+            Adler32 adler = new Adler32();
+            adler.update(dictionary);
+            if((int) adler.getValue() != this.inflater.getAdler()) {
+                throw new IOException("payload compressed with other dictionary - format: " + this.format);
+            }
+
+            this.inflater.setDictionary(dictionary);
+        }
+
+        /**
+         * @return false if end of payload was reached
+         */
+        private boolean readFrame() throws IOException {
+            long length;
+            try {
+                length = PDU_Impl.readUnsignedVarLong(this.is);
+            } catch (ASAPException e) {
+                throw new IOException(e.getLocalizedMessage());
+            }
+
+            if(length == 0) return false;
+            if(length > MAX_FRAME_SIZE) throw new IOException("compressed frame too large: " + length);
+
+            if(this.frame.length < length) this.frame = new byte[(int) length];
+            try {
+                PDU_Impl.readFully(this.is, this.frame, (int) length);
+            } catch (ASAPException e) {
+                throw new IOException(e.getLocalizedMessage());
+            }
+
+            this.inflater.setInput(this.frame, 0, (int) length);
+            return true;
+        }
+
+        /**
+         * all data read - last frames can still be in stream: remaining compressed bytes
+         * and end of payload
+         */
+        private void skipRemainingFrames() throws IOException {
+            while(this.readFrame());
+            if(this.endInflater) this.inflater.end();
+        }
+    }
+}
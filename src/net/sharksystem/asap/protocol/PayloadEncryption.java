@@ -0,0 +1,309 @@
+package net.sharksystem.asap.protocol;
+
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.crypto.ASAPPayloadKeys;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * Encrypted payload of assimilate pdus - AES-GCM with the key of pdu channel and era, see
+ * {@link ASAPPayloadKeys}. GCM hands out nothing before the tag of all ciphertext was checked - payload
+ * is split into records of fixed size, each one authenticated on its own. Neither side holds more than
+ * a record.
+ *
+ * key id | nonce prefix | record | .. | record
+ *
+ * record: plaintext length (varint) | ciphertext with tag. A record shorter than RECORD_SIZE is the last one -
+ * it can be empty. Nonce: prefix (random, per payload) | record number. Records cannot be dropped,
+ * reordered or taken from another payload unnoticed. Pdu header fields are authenticated with each record
+ * (additional data) - payload cannot be sent with another header, e.g. of another sender, era or offsets.
+ *
+ * Payload is encrypted after compression - record content are compression frames then.
+ */
+class PayloadEncryption {
+    static final int RECORD_SIZE = 16 * 1024;
+    static final int TAG_LENGTH = 16;
+    static final int NONCE_PREFIX_LENGTH = 8;
+    private static final int NONCE_LENGTH = NONCE_PREFIX_LENGTH + 4;
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final SecureRandom random = new SecureRandom();
+    /** cipher is initialized with each record - a thread encrypts one payload after the other */
+    private static final ThreadLocal<Cipher> CIPHERS = new ThreadLocal<>();
+
+    private final ASAPPayloadKeys keys;
+    private final Cipher cipher;
+
+    /**
+     * Created per payload - encrypting threads share nothing but keys.
+     */
+    PayloadEncryption(ASAPPayloadKeys keys) throws ASAPException {
+        this.keys = keys;
+        this.cipher = PayloadEncryption.getCipher();
+    }
+
+    private static Cipher getCipher() throws ASAPException {
+        Cipher cipher = CIPHERS.get();
+        if(cipher == null) {
+            cipher = PayloadEncryption.createCipher();
+            CIPHERS.set(cipher);
+        }
+
+        return cipher;
+    }
+
+    static Cipher createCipher() throws ASAPException {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new ASAPException("no cipher: " + TRANSFORMATION);
+        }
+    }
+
+    /**
+     * @return header fields authenticated with each record - missing and empty parameters are the same
+     */
+    static byte[] createAAD(int encoding, CharSequence peer, CharSequence recipientPeer, CharSequence format,
+                            CharSequence channel, int era, long[] offsets, long length) throws IOException {
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeByte(ASAP_1_0.ASSIMILATE_CMD);
+        dos.writeInt(encoding);
+        dos.writeUTF(peer != null ? peer.toString() : "");
+        dos.writeUTF(recipientPeer != null ? recipientPeer.toString() : "");
+        dos.writeUTF(format != null ? format.toString() : "");
+        dos.writeUTF(channel != null ? channel.toString() : "");
+        dos.writeInt(era);
+        dos.writeInt(offsets.length);
+        for(long offset : offsets) dos.writeLong(offset);
+        dos.writeLong(length);
+
+        return baos.toByteArray();
+    }
+
+    /**
+     * @param aad pdu header, see {@link #createAAD(int, CharSequence, CharSequence, CharSequence, CharSequence,
+     *            int, long[], long)}
+     * @return stream encrypting anything written - {@link EncryptingOutputStream#finish()} must be called
+     * after last byte. Key id and nonce prefix are already written.
+     */
+    EncryptingOutputStream encrypt(OutputStream os, CharSequence channel, int era, byte[] aad)
+            throws IOException, ASAPException {
+
+        ASAPPayloadKeys.GroupKey groupKey = this.keys.getGroupKey(channel);
+        if(groupKey == null) throw new ASAPException("no group key of channel: " + channel);
+        SecretKey key = groupKey.getKey(channel, era);
+
+        byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        random.nextBytes(noncePrefix);
+
+        os.write(groupKey.getKeyID());
+        os.write(noncePrefix);
+
+        return new EncryptingOutputStream(os, this.cipher, key, noncePrefix, aad);
+    }
+
+    private static byte[] createNonce(byte[] noncePrefix, int record) {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        System.arraycopy(noncePrefix, 0, nonce, 0, NONCE_PREFIX_LENGTH);
+        nonce[NONCE_PREFIX_LENGTH] = (byte) (record >>> 24);
+        nonce[NONCE_PREFIX_LENGTH + 1] = (byte) (record >>> 16);
+        nonce[NONCE_PREFIX_LENGTH + 2] = (byte) (record >>> 8);
+        nonce[NONCE_PREFIX_LENGTH + 3] = (byte) record;
+
+        return nonce;
+    }
+
+    static class EncryptingOutputStream extends OutputStream {
+        private final OutputStream os;
+        private final Cipher cipher;
+        private final SecretKey key;
+        private final byte[] noncePrefix;
+        private final byte[] aad;
+        private final byte[] plaintext = new byte[RECORD_SIZE];
+        private final byte[] ciphertext = new byte[RECORD_SIZE + TAG_LENGTH];
+        private int length = 0;
+        private int record = 0;
+
+        EncryptingOutputStream(OutputStream os, Cipher cipher, SecretKey key, byte[] noncePrefix, byte[] aad) {
+            this.os = os;
+            this.cipher = cipher;
+            this.key = key;
+            this.noncePrefix = noncePrefix;
+            this.aad = aad;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while(len > 0) {
+                int n = Math.min(len, RECORD_SIZE - this.length);
+                System.arraycopy(b, off, this.plaintext, this.length, n);
+                this.length += n;
+                off += n;
+                len -= n;
+
+                if(this.length == RECORD_SIZE) this.writeRecord();
+            }
+        }
+
+        /**
+         * Write last record - underlying stream stays open.
+         */
+        void finish() throws IOException {
+            this.writeRecord();
+        }
+
+        private void writeRecord() throws IOException {
+            if(this.record < 0) throw new IOException("too many records in encrypted payload");
+
+            int written;
+            try {
+                this.cipher.init(Cipher.ENCRYPT_MODE, this.key,
+                        new GCMParameterSpec(TAG_LENGTH * 8, createNonce(this.noncePrefix, this.record)));
+                this.cipher.updateAAD(this.aad);
+                written = this.cipher.doFinal(this.plaintext, 0, this.length, this.ciphertext, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("cannot encrypt payload: " + e.getLocalizedMessage());
+            }
+
+            PDU_Impl.sendUnsignedVarLongParameter(this.length, this.os);
+            this.os.write(this.ciphertext, 0, written);
+
+            this.length = 0;
+            this.record++;
+        }
+    }
+
+    /**
+     * Decrypted payload. A record is handed out after it was authenticated.
+     */
+    static class DecryptingInputStream extends InputStream {
+        private final InputStream is;
+        private final Cipher cipher;
+        private final SecretKey key;
+        private final byte[] aad;
+        private final byte[] noncePrefix;
+        private final byte[] ciphertext = new byte[RECORD_SIZE + TAG_LENGTH];
+        private final byte[] plaintext = new byte[RECORD_SIZE];
+        private int position = 0;
+        private int length = 0;
+        private int record = 0;
+        private boolean last = false;
+
+        /**
+         * @param is positioned after key id and nonce prefix
+         * @param key key of pdu channel and era - null: group key is unknown, records can only be skipped
+         * @param aad pdu header as read
+         */
+        DecryptingInputStream(InputStream is, Cipher cipher, SecretKey key, byte[] noncePrefix, byte[] aad) {
+            this.is = is;
+            this.cipher = cipher;
+            this.key = key;
+            this.noncePrefix = noncePrefix;
+            this.aad = aad;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) return 0;
+
+            while(this.position == this.length) {
+                if(this.last) return -1;
+                this.readRecord();
+            }
+
+            int n = Math.min(len, this.length - this.position);
+            System.arraycopy(this.plaintext, this.position, b, off, n);
+            this.position += n;
+
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return this.length - this.position;
+        }
+
+        /**
+         * Read up to last record - stream is positioned after payload.
+         * @throws IOException if there is plaintext left
+         */
+        void finish() throws IOException {
+            while(this.position == this.length && !this.last) this.readRecord();
+
+            if(this.position < this.length) {
+                throw new IOException("encrypted payload longer than announced");
+            }
+        }
+
+        /**
+         * Read remaining records without decrypting them - stream is positioned after payload.
+         */
+        void skipRecords() throws IOException {
+            while(!this.last) {
+                this.last = this.readCiphertext() < RECORD_SIZE + TAG_LENGTH;
+                this.record++;
+            }
+            this.position = this.length = 0;
+        }
+
+        /**
+         * @return length of ciphertext with tag
+         */
+        private int readCiphertext() throws IOException {
+            try {
+                long length = PDU_Impl.readUnsignedVarLong(this.is);
+                if(length > RECORD_SIZE) throw new IOException("encrypted record too large: " + length);
+
+                int ciphertextLength = (int) length + TAG_LENGTH;
+                PDU_Impl.readFully(this.is, this.ciphertext, ciphertextLength);
+
+                return ciphertextLength;
+            } catch (ASAPException e) {
+                throw new IOException(e.getLocalizedMessage());
+            }
+        }
+
+        private void readRecord() throws IOException {
+            if(this.key == null) throw new IOException("payload encrypted with unknown group key");
+
+            int ciphertextLength = this.readCiphertext();
+
+            try {
+                this.cipher.init(Cipher.DECRYPT_MODE, this.key,
+                        new GCMParameterSpec(TAG_LENGTH * 8, createNonce(this.noncePrefix, this.record)));
+                this.cipher.updateAAD(this.aad);
+                this.length = this.cipher.doFinal(this.ciphertext, 0, ciphertextLength, this.plaintext, 0);
+            } catch (AEADBadTagException e) {
+                throw new IOException("encrypted payload failed authentication - record " + this.record);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("cannot decrypt payload: " + e.getLocalizedMessage());
+            }
+
+            this.position = 0;
+            this.last = this.length < RECORD_SIZE;
+            this.record++;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package net.sharksystem.asap.sim;
+
+import net.sharksystem.asap.ASAPException;
+
+import java.util.StringTokenizer;
+
+/**
+ * Two peers meet at a virtual time for a while.
+ *
+ * Textual representation (one line in a trace file): time peerA peerB duration - times in milliseconds.
+ *
+ * @author thsc
+ */
+public class ASAPEncounter implements Comparable<ASAPEncounter> {
+    private final long time;
+    private final String peerA;
+    private final String peerB;
+    private final long duration;
+
+    public ASAPEncounter(long time, String peerA, String peerB, long duration) {
+        this.time = time;
+        this.peerA = peerA;
+        this.peerB = peerB;
+        this.duration = duration;
+    }
+
+    /**
+     * @param line time peerA peerB duration
+     * @throws ASAPException malformed line
+     */
+    public static ASAPEncounter parse(String line) throws ASAPException {
+        StringTokenizer st = new StringTokenizer(line);
+        if(st.countTokens() != 4) {
+            throw new ASAPException("encounter must be: time peerA peerB duration - got: " + line);
+        }
+
+        try {
+            long time = Long.parseLong(st.nextToken());
+            String peerA = st.nextToken();
+            String peerB = st.nextToken();
+            long duration = Long.parseLong(st.nextToken());
+
+            if(time < 0 || duration < 0) {
+                throw new ASAPException("negative time or duration: " + line);
+            }
+
+            if(peerA.equals(peerB)) {
+                throw new ASAPException("peer cannot meet itself: " + line);
+            }
+
+            return new ASAPEncounter(time, peerA, peerB, duration);
+        }
+        catch(NumberFormatException e) {
+            throw new ASAPException("time and duration must be numbers: " + line);
+        }
+    }
+
+    public long getTime() {
+        return this.time;
+    }
+
+    public String getPeerA() {
+        return this.peerA;
+    }
+
+    public String getPeerB() {
+        return this.peerB;
+    }
+
+    public long getDuration() {
+        return this.duration;
+    }
+
+    public long getEndTime() {
+        return this.time + this.duration;
+    }
+
+    @Override
+    public int compareTo(ASAPEncounter other) {
+        return Long.compare(this.time, other.time);
+    }
+
+    @Override
+    public String toString() {
+        return this.time + " " + this.peerA + " " + this.peerB + " " + this.duration;
+    }
+}
@@ -0,0 +1,130 @@
+package net.sharksystem.asap.sim;
+
+import net.sharksystem.asap.ASAPException;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Encounters ordered by time. Schedules are read from mobility traces or created randomly.
+ *
+ * Trace format: one encounter per line (time peerA peerB duration), empty lines and
+ * lines starting with # are ignored.
+ *
+ * @author thsc
+ */
+public class ASAPEncounterSchedule {
+    private final List<ASAPEncounter> encounters = new ArrayList<>();
+    private boolean sorted = true;
+
+    public void add(ASAPEncounter encounter) {
+        if(!this.encounters.isEmpty()
+                && this.encounters.get(this.encounters.size() - 1).getTime() > encounter.getTime()) {
+            this.sorted = false;
+        }
+
+        this.encounters.add(encounter);
+    }
+
+    /**
+     * @return encounters ordered by time
+     */
+    public List<ASAPEncounter> getEncounters() {
+        if(!this.sorted) {
+            // stable - encounters at same time keep trace order
+            Collections.sort(this.encounters);
+            this.sorted = true;
+        }
+
+        return Collections.unmodifiableList(this.encounters);
+    }
+
+    /**
+     * @return all peers taking part in any encounter
+     */
+    public Set<String> getPeers() {
+        Set<String> peers = new LinkedHashSet<>();
+        for(ASAPEncounter encounter : this.encounters) {
+            peers.add(encounter.getPeerA());
+            peers.add(encounter.getPeerB());
+        }
+
+        return peers;
+    }
+
+    public int size() {
+        return this.encounters.size();
+    }
+
+    public static ASAPEncounterSchedule readTraceFile(String fileName) throws IOException, ASAPException {
+        FileReader reader = new FileReader(fileName);
+        try {
+            return ASAPEncounterSchedule.read(reader);
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    public static ASAPEncounterSchedule read(Reader reader) throws IOException, ASAPException {
+        ASAPEncounterSchedule schedule = new ASAPEncounterSchedule();
+        BufferedReader lineReader = new BufferedReader(reader);
+
+        String line;
+        int lineNumber = 0;
+        while((line = lineReader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if(line.length() == 0 || line.startsWith("#")) continue;
+
+            try {
+                schedule.add(ASAPEncounter.parse(line));
+            }
+            catch(ASAPException e) {
+                throw new ASAPException("line " + lineNumber + ": " + e.getLocalizedMessage());
+            }
+        }
+
+        return schedule;
+    }
+
+    /**
+     * Random encounters: uniformly distributed start times and peer pairs, exponentially
+     * distributed durations.
+     *
+     * @param peers peers that can meet - at least two
+     * @param number number of encounters
+     * @param horizon encounters start in [0, horizon)
+     * @param meanDuration mean encounter duration
+     * @param seed same seed - same schedule
+     */
+    public static ASAPEncounterSchedule createRandom(List<String> peers, int number, long horizon,
+                                                     long meanDuration, long seed) throws ASAPException {
+        if(peers.size() < 2) throw new ASAPException("at least two peers required");
+        if(horizon <= 0) throw new ASAPException("horizon must be positive");
+
+        Random random = new Random(seed);
+        ASAPEncounterSchedule schedule = new ASAPEncounterSchedule();
+        for(int i = 0; i < number; i++) {
+            long time = (long) (random.nextDouble() * horizon);
+
+            int a = random.nextInt(peers.size());
+            int b = random.nextInt(peers.size() - 1);
+            if(b >= a) b++; // no self encounter
+
+            long duration = (long) (-Math.log(1 - random.nextDouble()) * meanDuration);
+
+            schedule.add(new ASAPEncounter(time, peers.get(a), peers.get(b), duration));
+        }
+
+        return schedule;
+    }
+}
@@ -0,0 +1,141 @@
+package net.sharksystem.asap.sim;
+
+import net.sharksystem.util.localloop.LocalPipe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Bidirectional in-memory connection between two simulated peers. Both directions share a byte budget
+ * (encounter duration times bandwidth). The link is cut when the budget is used up - like peers
+ * moving out of range.
+ *
+ * @author thsc
+ */
+class ASAPSimulatedLink {
+    private static final long POLL_INTERVAL = 5;
+    /** peers send without reading - small buffers would block them, see LocalPipe */
+    private static final int MAX_BUFFER_SIZE = 256 * 1024 * 1024;
+
+    private final LocalPipe aToB = new LocalPipe(LocalPipe.DEFAULT_CAPACITY, MAX_BUFFER_SIZE);
+    private final LocalPipe bToA = new LocalPipe(LocalPipe.DEFAULT_CAPACITY, MAX_BUFFER_SIZE);
+    private final long budget;
+    private long written = 0;
+    private boolean cut = false;
+
+    /**
+     * @param budget maximum number of bytes on that link - both directions
+     */
+    ASAPSimulatedLink(long budget) {
+        this.budget = budget;
+    }
+
+    InputStream getInputStreamA() {
+        return this.bToA.getInputStream();
+    }
+
+    OutputStream getOutputStreamA() {
+        return new BudgetOutputStream(this.aToB.getOutputStream());
+    }
+
+    InputStream getInputStreamB() {
+        return this.aToB.getInputStream();
+    }
+
+    OutputStream getOutputStreamB() {
+        return new BudgetOutputStream(this.bToA.getOutputStream());
+    }
+
+    long getBytesSentByA() {
+        return this.aToB.getBytesTransferred();
+    }
+
+    long getBytesSentByB() {
+        return this.bToA.getBytesTransferred();
+    }
+
+    long getBytesTransferred() {
+        return this.getBytesSentByA() + this.getBytesSentByB();
+    }
+
+    synchronized boolean isCut() {
+        return this.cut;
+    }
+
+    void close() {
+        this.aToB.close();
+        this.bToA.close();
+    }
+
+    /**
+     * Wait until peers have nothing more to say: no bytes in transit and no transfer for a quiet period.
+     *
+     * @param quietPeriod real milliseconds without any transfer
+     * @param maxTime real milliseconds - give up afterwards
+     */
+    void awaitQuiescence(long quietPeriod, long maxTime) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long lastTransferred = -1;
+        long quietSince = start;
+
+        while(!this.isCut() && System.currentTimeMillis() - start < maxTime) {
+            Thread.sleep(POLL_INTERVAL);
+
+            long transferred = this.getBytesTransferred();
+            long now = System.currentTimeMillis();
+            if(transferred != lastTransferred || !this.aToB.isEmpty() || !this.bToA.isEmpty()) {
+                lastTransferred = transferred;
+                quietSince = now;
+            }
+            else if(now - quietSince >= quietPeriod) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return number of bytes that can be written - less than requested if budget runs out
+     */
+    private synchronized int reserve(int len) {
+        long granted = Math.min(len, this.budget - this.written);
+        if(granted < len) this.cut = true;
+
+        this.written += granted;
+        return (int) granted;
+    }
+
+    private class BudgetOutputStream extends OutputStream {
+        private final OutputStream os;
+
+        BudgetOutputStream(OutputStream os) {
+            this.os = os;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if(reserve(1) < 1) {
+                close();
+                throw new IOException("encounter over - link cut");
+            }
+
+            this.os.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int granted = reserve(len);
+            if(granted > 0) this.os.write(b, off, granted);
+
+            if(granted < len) {
+                ASAPSimulatedLink.this.close();
+                throw new IOException("encounter over - link cut");
+            }
+        }
+
+        @Override
+        public void close() {
+            ASAPSimulatedLink.this.close();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package net.sharksystem.asap.sim;
+
+import net.sharksystem.asap.*;
+import net.sharksystem.asap.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * A peer in a simulation: a multi engine with its own root folder and a single application engine.
+ * It is its own chunk received listener and reports any simulation message to the simulator.
+ *
+ * @author thsc
+ */
+class ASAPSimulatedPeer implements ASAPChunkReceivedListener {
+    private final ASAPSimulator simulator;
+    private final String name;
+    private final String rootFolder;
+    private final MultiASAPEngineFS_Impl multiEngine;
+    private final ASAPEngine engine;
+
+    private long bytesSent = 0;
+    private long bytesReceived = 0;
+    private int encounters = 0;
+
+    ASAPSimulatedPeer(ASAPSimulator simulator, String name, String rootFolder, CharSequence format,
+                      boolean sendReceivedChunks, boolean dropDeliveredChunks, ASAPEraPolicy eraPolicy)
+            throws IOException, ASAPException {
+        this.simulator = simulator;
+        this.name = name;
+        this.rootFolder = rootFolder;
+
+        // set up application folder first - multi engine finds it
+        String appFolder = rootFolder + "/" + format.toString().replaceAll("[^A-Za-z0-9]", "_");
+        ASAPEngineFS.getASAPStorage(name, appFolder, format);
+
+        this.multiEngine = (MultiASAPEngineFS_Impl) MultiASAPEngineFS_Impl.createMultiEngine(
+                name, rootFolder, MultiASAPEngineFS.DEFAULT_MAX_PROCESSING_TIME, this);
+
+        // peer keeps its engine object - must not be unloaded meanwhile
+        this.multiEngine.setMaxEngineIdleTime(Long.MAX_VALUE);
+        this.engine = this.multiEngine.getEngineByFormat(format);
+        this.engine.setSendReceivedChunks(sendReceivedChunks);
+        this.engine.setDropDeliveredChunks(dropDeliveredChunks);
+        this.multiEngine.setEraPolicy(eraPolicy);
+    }
+
+    String getName() {
+        return this.name;
+    }
+
+    MultiASAPEngineFS_Impl getMultiEngine() {
+        return this.multiEngine;
+    }
+
+    void add(CharSequence uri, CharSequence message) throws IOException {
+        this.engine.add(uri, message);
+    }
+
+    void encountered(long sent, long received) {
+        this.encounters++;
+        this.bytesSent += sent;
+        this.bytesReceived += received;
+    }
+
+    int getEncounters() {
+        return this.encounters;
+    }
+
+    long getBytesSent() {
+        return this.bytesSent;
+    }
+
+    long getBytesReceived() {
+        return this.bytesReceived;
+    }
+
+    long getChunksReceived() {
+        return this.engine.getEngineMetrics().getChunksReceived();
+    }
+
+    long getEraRollovers() {
+        return this.engine.getEngineMetrics().getEraRollovers();
+    }
+
+    long getEraPolicySkips() {
+        return this.engine.getEngineMetrics().getEraPolicySkips();
+    }
+
+    int getEra() {
+        return this.engine.getEra();
+    }
+
+    /**
+     * @return bytes in files below root folder - payload and meta data
+     */
+    long getStorageSize() {
+        return ASAPSimulatedPeer.size(new File(this.rootFolder));
+    }
+
+    private static long size(File file) {
+        if(!file.isDirectory()) return file.length();
+
+        long size = 0;
+        File[] files = file.listFiles();
+        if(files != null) {
+            for(File child : files) {
+                size += ASAPSimulatedPeer.size(child);
+            }
+        }
+
+        return size;
+    }
+
+    @Override
+    public void chunkReceived(String sender, String uri, int era) {
+        try {
+            ASAPChunk chunk = this.engine.getIncomingChunkStorage(sender).getChunk(uri, era);
+            Iterator<CharSequence> messages = chunk.getMessages();
+            while(messages.hasNext()) {
+                this.simulator.messageReceived(this, messages.next());
+            }
+        }
+        catch(IOException e) {
+            Log.error(this.name + ": cannot read received chunk: " + e.getLocalizedMessage());
+        }
+    }
+}
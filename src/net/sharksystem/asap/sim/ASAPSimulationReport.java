@@ -0,0 +1,179 @@
+package net.sharksystem.asap.sim;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a simulation run. Times are virtual milliseconds.
+ *
+ * @author thsc
+ */
+public class ASAPSimulationReport {
+    private final int encounters;
+    private final int encountersCut;
+    private final int messages;
+    private final int expectedDeliveries;
+    private final long[] latencies; // sorted
+    private final List<PeerReport> peerReports;
+
+    ASAPSimulationReport(int encounters, int encountersCut, int messages, int expectedDeliveries,
+                         long[] latencies, List<PeerReport> peerReports) {
+        this.encounters = encounters;
+        this.encountersCut = encountersCut;
+        this.messages = messages;
+        this.expectedDeliveries = expectedDeliveries;
+        this.latencies = latencies.clone();
+        Arrays.sort(this.latencies);
+        this.peerReports = Collections.unmodifiableList(new ArrayList<>(peerReports));
+    }
+
+    /**
+     * Numbers of a single peer
+     */
+    public static class PeerReport {
+        private final String name;
+        private final int encounters;
+        private final long bytesSent;
+        private final long bytesReceived;
+        private final long chunksReceived;
+        private final long storageSize;
+        private final int era;
+        private final long eraRollovers;
+        private final long eraPolicySkips;
+
+        PeerReport(String name, int encounters, long bytesSent, long bytesReceived,
+                   long chunksReceived, long storageSize, int era, long eraRollovers, long eraPolicySkips) {
+            this.name = name;
+            this.encounters = encounters;
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+            this.chunksReceived = chunksReceived;
+            this.storageSize = storageSize;
+            this.era = era;
+            this.eraRollovers = eraRollovers;
+            this.eraPolicySkips = eraPolicySkips;
+        }
+
+        public String getName() { return this.name; }
+        public int getEncounters() { return this.encounters; }
+        public long getBytesSent() { return this.bytesSent; }
+        public long getBytesReceived() { return this.bytesReceived; }
+        public long getChunksReceived() { return this.chunksReceived; }
+        public long getStorageSize() { return this.storageSize; }
+        public int getEra() { return this.era; }
+        public long getEraRollovers() { return this.eraRollovers; }
+        public long getEraPolicySkips() { return this.eraPolicySkips; }
+    }
+
+    public int getEncounters() {
+        return this.encounters;
+    }
+
+    /**
+     * @return number of encounters which ended before peers were done - too short for all data
+     */
+    public int getEncountersCut() {
+        return this.encountersCut;
+    }
+
+    public int getMessages() {
+        return this.messages;
+    }
+
+    /**
+     * @return sum of intended recipients over all messages
+     */
+    public int getExpectedDeliveries() {
+        return this.expectedDeliveries;
+    }
+
+    public int getDeliveries() {
+        return this.latencies.length;
+    }
+
+    public double getDeliveryRatio() {
+        return this.expectedDeliveries == 0 ? 0 : (double) this.latencies.length / this.expectedDeliveries;
+    }
+
+    public long getMeanLatency() {
+        if(this.latencies.length == 0) return 0;
+
+        long sum = 0;
+        for(long latency : this.latencies) sum += latency;
+        return sum / this.latencies.length;
+    }
+
+    /**
+     * @param percentile e.g. 0.5 for median
+     * @return latency of delivered messages - 0 if nothing was delivered
+     */
+    public long getLatencyPercentile(double percentile) {
+        if(this.latencies.length == 0) return 0;
+
+        int index = (int) Math.ceil(percentile * this.latencies.length) - 1;
+        index = Math.max(0, Math.min(index, this.latencies.length - 1));
+        return this.latencies[index];
+    }
+
+    public long getMaxLatency() {
+        return this.latencies.length == 0 ? 0 : this.latencies[this.latencies.length - 1];
+    }
+
+    public long getBytesTransferred() {
+        long sum = 0;
+        for(PeerReport peerReport : this.peerReports) sum += peerReport.bytesSent;
+        return sum;
+    }
+
+    public long getStorageSize() {
+        long sum = 0;
+        for(PeerReport peerReport : this.peerReports) sum += peerReport.storageSize;
+        return sum;
+    }
+
+    public long getEraRollovers() {
+        long sum = 0;
+        for(PeerReport peerReport : this.peerReports) sum += peerReport.eraRollovers;
+        return sum;
+    }
+
+    public long getEraPolicySkips() {
+        long sum = 0;
+        for(PeerReport peerReport : this.peerReports) sum += peerReport.eraPolicySkips;
+        return sum;
+    }
+
+    public List<PeerReport> getPeerReports() {
+        return this.peerReports;
+    }
+
+    public void print(PrintStream ps, boolean perPeer) {
+        ps.println("encounters:        " + this.encounters + " (cut: " + this.encountersCut + ")");
+        ps.println("messages:          " + this.messages);
+        ps.println("deliveries:        " + this.getDeliveries() + " / " + this.expectedDeliveries
+                + String.format(" (ratio %.3f)", this.getDeliveryRatio()));
+        ps.println("latency (ms):      mean " + this.getMeanLatency()
+                + " | p50 " + this.getLatencyPercentile(0.5)
+                + " | p90 " + this.getLatencyPercentile(0.9)
+                + " | max " + this.getMaxLatency());
+        ps.println("bytes transferred: " + this.getBytesTransferred());
+        ps.println("storage (bytes):   " + this.getStorageSize()
+                + " | mean per peer " + (this.peerReports.isEmpty() ? 0 : this.getStorageSize() / this.peerReports.size()));
+
+        ps.println("new eras:          " + this.getEraRollovers()
+                + " | skipped by era policy " + this.getEraPolicySkips());
+
+        if(!perPeer) return;
+
+        ps.println("peer\tencounters\tsent\treceived\tchunksReceived\tstorage\tera\tnewEras");
+        for(PeerReport peerReport : this.peerReports) {
+            ps.println(peerReport.name + "\t" + peerReport.encounters
+                    + "\t" + peerReport.bytesSent + "\t" + peerReport.bytesReceived
+                    + "\t" + peerReport.chunksReceived + "\t" + peerReport.storageSize
+                    + "\t" + peerReport.era + "\t" + peerReport.eraRollovers);
+        }
+    }
+}
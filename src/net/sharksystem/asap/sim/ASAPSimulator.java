@@ -0,0 +1,479 @@
+package net.sharksystem.asap.sim;
+
+import net.sharksystem.asap.ASAPEngine;
+import net.sharksystem.asap.ASAPEngineFS;
+import net.sharksystem.asap.ASAPEraPolicies;
+import net.sharksystem.asap.ASAPEraPolicy;
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.protocol.ASAPConnection;
+import net.sharksystem.asap.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.StringTokenizer;
+
+/**
+ * Replays an encounter schedule with lots of peers on a single machine. Each peer is a multi engine
+ * with its own folder, peers are connected with in-memory pipes.
+ *
+ * Time is virtual. Messages are issued and encounters start at their virtual time. Encounters
+ * are processed one after another in order of their start time (a peer in overlapping encounters
+ * processes them one by one). An encounter lasts until peers have nothing more to exchange or
+ * until the bandwidth budget of the encounter (duration * bandwidth) is used up. Delivery time
+ * is encounter start plus time needed to transfer bytes so far.
+ *
+ * <pre>
+ * ASAPSimulator simulator = new ASAPSimulator("simulation");
+ * simulator.setBandwidth(10000);
+ * simulator.addMessage(0, "Alice", "Clara", 100);
+ * ASAPSimulationReport report = simulator.run(ASAPEncounterSchedule.readTraceFile("trace.txt"));
+ * report.print(System.out, true);
+ * </pre>
+ *
+ * @author thsc
+ */
+public class ASAPSimulator {
+    public static final String DEFAULT_FORMAT = "application/x-asap-simulation";
+    public static final String DEFAULT_URI = "sim://messages";
+    /** real milliseconds without traffic - peers are done */
+    public static final long DEFAULT_QUIET_PERIOD = 100;
+    /** real milliseconds - longest encounter */
+    public static final long DEFAULT_MAX_ENCOUNTER_TIME = 10000;
+    public static final long UNLIMITED_BANDWIDTH = 0;
+
+    private static final String MESSAGE_PREFIX = "asapsim:";
+    private static final char MESSAGE_ID_END = ':';
+
+    private final String rootFolder;
+    private CharSequence format = DEFAULT_FORMAT;
+    private CharSequence uri = DEFAULT_URI;
+    private long bandwidth = UNLIMITED_BANDWIDTH;
+    private boolean sendReceivedChunks = true;
+    private boolean dropDeliveredChunks = false;
+    private long quietPeriod = DEFAULT_QUIET_PERIOD;
+    private long maxEncounterTime = DEFAULT_MAX_ENCOUNTER_TIME;
+    private String eraPolicy = ASAPEraPolicies.PER_CONNECTION;
+
+    private final Map<String, ASAPSimulatedPeer> peers = new LinkedHashMap<>();
+    private final List<SimulatedMessage> messages = new ArrayList<>();
+    private boolean done = false;
+
+    // virtual clock
+    private volatile long time = 0;
+    private volatile ASAPSimulatedLink currentLink = null;
+
+    /**
+     * @param rootFolder peers are created in sub folders - <b>folder is removed</b>
+     */
+    public ASAPSimulator(String rootFolder) {
+        this.rootFolder = rootFolder;
+        ASAPEngineFS.removeFolder(rootFolder);
+    }
+
+    private class SimulatedMessage {
+        final int id;
+        final long time;
+        final String sender;
+        final String recipient; // null: any peer
+        final int size;
+        final Map<String, Long> deliveries = new HashMap<>();
+
+        SimulatedMessage(int id, long time, String sender, String recipient, int size) {
+            this.id = id;
+            this.time = time;
+            this.sender = sender;
+            this.recipient = recipient;
+            this.size = size;
+        }
+
+        boolean isRecipient(String peerName) {
+            if(this.recipient == null) return !this.sender.equals(peerName);
+            return this.recipient.equals(peerName);
+        }
+
+        String getContent() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(MESSAGE_PREFIX);
+            sb.append(this.id);
+            sb.append(MESSAGE_ID_END);
+            while(sb.length() < this.size) sb.append('x');
+            return sb.toString();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                              settings                                                  //
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    public void setFormat(CharSequence format) {
+        this.format = format;
+    }
+
+    public void setURI(CharSequence uri) {
+        this.uri = uri;
+    }
+
+    /**
+     * @param bytesPerSecond bytes per virtual second on a link, UNLIMITED_BANDWIDTH: encounters are never cut
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        this.bandwidth = bytesPerSecond;
+    }
+
+    /**
+     * @param on peers forward received chunks (multihop)
+     */
+    public void setSendReceivedChunks(boolean on) {
+        this.sendReceivedChunks = on;
+    }
+
+    /**
+     * @param on peers drop chunks after delivery
+     */
+    public void setDropDeliveredChunks(boolean on) {
+        this.dropDeliveredChunks = on;
+    }
+
+    /**
+     * @param description era policy of each peer, see ASAPEraPolicies.parse
+     */
+    public void setEraPolicy(String description) throws ASAPException {
+        ASAPEraPolicies.parse(description); // fail early
+        this.eraPolicy = description;
+    }
+
+    public void setQuietPeriod(long realMillis) {
+        this.quietPeriod = realMillis;
+    }
+
+    public void setMaxEncounterTime(long realMillis) {
+        this.maxEncounterTime = realMillis;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                              traffic                                                   //
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param time virtual time of creation
+     * @param recipient null: message is meant for any other peer
+     * @param size message size in bytes
+     */
+    public void addMessage(long time, String sender, String recipient, int size) {
+        this.messages.add(new SimulatedMessage(this.messages.size(), time, sender, recipient, size));
+    }
+
+    /**
+     * Add messages between random pairs of peers at random times.
+     */
+    public void addRandomMessages(List<String> peerNames, int number, long horizon, int size, long seed)
+            throws ASAPException {
+
+        if(peerNames.size() < 2) throw new ASAPException("at least two peers required");
+
+        Random random = new Random(seed);
+        for(int i = 0; i < number; i++) {
+            int sender = random.nextInt(peerNames.size());
+            int recipient = random.nextInt(peerNames.size() - 1);
+            if(recipient >= sender) recipient++;
+
+            this.addMessage((long) (random.nextDouble() * horizon),
+                    peerNames.get(sender), peerNames.get(recipient), size);
+        }
+    }
+
+    /**
+     * @return virtual time - advances during an encounter with transferred bytes
+     */
+    public long getCurrentTime() {
+        ASAPSimulatedLink link = this.currentLink;
+        if(link == null || this.bandwidth <= 0) return this.time;
+
+        return this.time + link.getBytesTransferred() * 1000 / this.bandwidth;
+    }
+
+    synchronized void messageReceived(ASAPSimulatedPeer peer, CharSequence content) {
+        String contentString = content.toString();
+        if(!contentString.startsWith(MESSAGE_PREFIX)) return;
+
+        int end = contentString.indexOf(MESSAGE_ID_END, MESSAGE_PREFIX.length());
+        if(end < 0) return;
+
+        int id;
+        try {
+            id = Integer.parseInt(contentString.substring(MESSAGE_PREFIX.length(), end));
+        }
+        catch(NumberFormatException e) {
+            return;
+        }
+
+        if(id < 0 || id >= this.messages.size()) return;
+
+        SimulatedMessage message = this.messages.get(id);
+        if(message.isRecipient(peer.getName()) && !message.deliveries.containsKey(peer.getName())) {
+            message.deliveries.put(peer.getName(), this.getCurrentTime());
+        }
+    }
+
+    /**
+     * Era policies work with virtual time
+     */
+    private class VirtualTimeEraPolicy implements ASAPEraPolicy {
+        private final ASAPEraPolicy policy;
+
+        VirtualTimeEraPolicy(ASAPEraPolicy policy) {
+            this.policy = policy;
+        }
+
+        @Override
+        public boolean isNewEraRequired(ASAPEngine engine, Trigger trigger, long now) {
+            return this.policy.isNewEraRequired(engine, trigger, getCurrentTime());
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                              simulation                                                //
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private ASAPSimulatedPeer getPeer(String name) throws IOException, ASAPException {
+        ASAPSimulatedPeer peer = this.peers.get(name);
+        if(peer == null) {
+            // policies have state - one per peer
+            ASAPEraPolicy policy = new VirtualTimeEraPolicy(ASAPEraPolicies.parse(this.eraPolicy));
+            peer = new ASAPSimulatedPeer(this, name, this.rootFolder + "/" + name, this.format,
+                    this.sendReceivedChunks, this.dropDeliveredChunks, policy);
+            this.peers.put(name, peer);
+        }
+
+        return peer;
+    }
+
+    /**
+     * Run a simulation - can only be called once.
+     */
+    public ASAPSimulationReport run(ASAPEncounterSchedule schedule)
+            throws IOException, ASAPException, InterruptedException {
+
+        if(this.done) throw new ASAPException("simulator can only run once");
+        this.done = true;
+
+        // set up peers
+        for(String peerName : schedule.getPeers()) {
+            this.getPeer(peerName);
+        }
+        for(SimulatedMessage message : this.messages) {
+            this.getPeer(message.sender);
+            if(message.recipient != null) this.getPeer(message.recipient);
+        }
+
+        List<SimulatedMessage> byTime = new ArrayList<>(this.messages);
+        Collections.sort(byTime, new Comparator<SimulatedMessage>() {
+            @Override
+            public int compare(SimulatedMessage a, SimulatedMessage b) {
+                return Long.compare(a.time, b.time);
+            }
+        });
+
+        int nextMessage = 0;
+        int encountersCut = 0;
+        List<ASAPEncounter> encounters = schedule.getEncounters();
+        try {
+            for(ASAPEncounter encounter : encounters) {
+                // issue messages created before that encounter
+                while(nextMessage < byTime.size() && byTime.get(nextMessage).time <= encounter.getTime()) {
+                    SimulatedMessage message = byTime.get(nextMessage++);
+                    this.time = message.time;
+                    this.getPeer(message.sender).add(this.uri, message.getContent());
+                }
+
+                if(this.meet(encounter)) encountersCut++;
+            }
+
+            return this.createReport(encounters.size(), encountersCut);
+        }
+        finally {
+            // metrics of hundreds of peers must not stay registered
+            for(ASAPSimulatedPeer peer : this.peers.values()) {
+                peer.getMultiEngine().close();
+            }
+        }
+    }
+
+    /**
+     * @return true if encounter was too short for all data
+     */
+    private boolean meet(ASAPEncounter encounter) throws IOException, ASAPException, InterruptedException {
+        ASAPSimulatedPeer peerA = this.getPeer(encounter.getPeerA());
+        ASAPSimulatedPeer peerB = this.getPeer(encounter.getPeerB());
+
+        long budget = Long.MAX_VALUE;
+        if(this.bandwidth > 0) budget = encounter.getDuration() * this.bandwidth / 1000;
+
+        if(Log.isDebugEnabled()) Log.debug(this.getLogStart() + "encounter: " + encounter);
+
+        ASAPSimulatedLink link = new ASAPSimulatedLink(budget);
+        this.time = encounter.getTime();
+        this.currentLink = link;
+
+        ASAPConnection connectionA = peerA.getMultiEngine().handleConnection(
+                link.getInputStreamA(), link.getOutputStreamA());
+        ASAPConnection connectionB = peerB.getMultiEngine().handleConnection(
+                link.getInputStreamB(), link.getOutputStreamB());
+
+        try {
+            link.awaitQuiescence(this.quietPeriod, this.maxEncounterTime);
+        }
+        finally {
+            connectionA.kill();
+            connectionB.kill();
+            link.close();
+            this.currentLink = null;
+        }
+
+        peerA.encountered(link.getBytesSentByA(), link.getBytesSentByB());
+        peerB.encountered(link.getBytesSentByB(), link.getBytesSentByA());
+
+        return link.isCut();
+    }
+
+    private ASAPSimulationReport createReport(int encounters, int encountersCut) {
+        int expectedDeliveries = 0;
+        List<Long> latencyList = new ArrayList<>();
+        for(SimulatedMessage message : this.messages) {
+            expectedDeliveries += message.recipient != null ? 1 : this.peers.size() - 1;
+            for(Long deliveryTime : message.deliveries.values()) {
+                latencyList.add(deliveryTime - message.time);
+            }
+        }
+
+        long[] latencies = new long[latencyList.size()];
+        for(int i = 0; i < latencies.length; i++) latencies[i] = latencyList.get(i);
+
+        List<ASAPSimulationReport.PeerReport> peerReports = new ArrayList<>();
+        for(ASAPSimulatedPeer peer : this.peers.values()) {
+            peerReports.add(new ASAPSimulationReport.PeerReport(peer.getName(), peer.getEncounters(),
+                    peer.getBytesSent(), peer.getBytesReceived(), peer.getChunksReceived(),
+                    peer.getStorageSize(), peer.getEra(), peer.getEraRollovers(), peer.getEraPolicySkips()));
+        }
+
+        return new ASAPSimulationReport(encounters, encountersCut, this.messages.size(), expectedDeliveries,
+                latencies, peerReports);
+    }
+
+    private String getLogStart() {
+        return this.getClass().getSimpleName() + ": ";
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                              command line                                              //
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static void printUsage() {
+        System.out.println("usage: ASAPSimulator [key=value]*");
+        System.out.println("  root=folder          simulation folder - removed first (default: asapSimulation)");
+        System.out.println("  trace=file           encounters: lines 'time peerA peerB duration' (ms)");
+        System.out.println("  peers=n              random encounters among n peers if no trace (default: 100)");
+        System.out.println("  encounters=n         number of random encounters (default: 1000)");
+        System.out.println("  horizon=ms           random encounters and messages start before");
+        System.out.println("                       (default: 86400000 - last encounter with a trace)");
+        System.out.println("  duration=ms          mean random encounter duration (default: 60000)");
+        System.out.println("  messages=n           random messages between peer pairs (default: 100)");
+        System.out.println("  size=bytes           message size (default: 256)");
+        System.out.println("  bandwidth=bytes/s    0: unlimited (default: 0)");
+        System.out.println("  sendReceived=on|off  forward received chunks (default: on)");
+        System.out.println("  dropDelivered=on|off drop delivered chunks (default: off)");
+        System.out.println("  era=policy           connection | window:ms | size:bytes[:maxAgeMs]");
+        System.out.println("                       | coalesce:ms[:maxAgeMs]");
+        System.out.println("                       (default: connection)");
+        System.out.println("  quiet=ms             real time without traffic ending an encounter (default: 100)");
+        System.out.println("  seed=n               random seed (default: 42)");
+        System.out.println("  perPeer=on|off       print table with a line per peer (default: off)");
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> parameters = new HashMap<>();
+        for(String arg : args) {
+            int index = arg.indexOf('=');
+            if(index < 1) {
+                ASAPSimulator.printUsage();
+                return;
+            }
+            parameters.put(arg.substring(0, index), arg.substring(index + 1));
+        }
+
+        // each encounter ends with killed connections - don't report that
+        if(System.getProperty(Log.LEVEL_PROPERTY) == null) Log.setLevel(Log.WARN);
+
+        try {
+            long seed = Long.parseLong(getParameter(parameters, "seed", "42"));
+            long horizon = Long.parseLong(getParameter(parameters, "horizon", "86400000"));
+
+            ASAPEncounterSchedule schedule;
+            String traceFile = parameters.get("trace");
+            if(traceFile != null) {
+                schedule = ASAPEncounterSchedule.readTraceFile(traceFile);
+                if(!parameters.containsKey("horizon") && schedule.size() > 0) {
+                    List<ASAPEncounter> encounters = schedule.getEncounters();
+                    horizon = encounters.get(encounters.size() - 1).getTime() + 1;
+                }
+            } else {
+                int peerNumber = Integer.parseInt(getParameter(parameters, "peers", "100"));
+                List<String> peerNames = new ArrayList<>();
+                for(int i = 0; i < peerNumber; i++) peerNames.add("peer" + i);
+
+                schedule = ASAPEncounterSchedule.createRandom(peerNames,
+                        Integer.parseInt(getParameter(parameters, "encounters", "1000")),
+                        horizon, Long.parseLong(getParameter(parameters, "duration", "60000")), seed);
+            }
+
+            ASAPSimulator simulator = new ASAPSimulator(getParameter(parameters, "root", "asapSimulation"));
+            simulator.setBandwidth(Long.parseLong(getParameter(parameters, "bandwidth", "0")));
+            simulator.setQuietPeriod(Long.parseLong(getParameter(parameters, "quiet", "100")));
+            simulator.setSendReceivedChunks(parseOnOff(getParameter(parameters, "sendReceived", "on")));
+            simulator.setDropDeliveredChunks(parseOnOff(getParameter(parameters, "dropDelivered", "off")));
+            simulator.setEraPolicy(getParameter(parameters, "era", ASAPEraPolicies.PER_CONNECTION));
+            simulator.addRandomMessages(new ArrayList<>(schedule.getPeers()),
+                    Integer.parseInt(getParameter(parameters, "messages", "100")), horizon,
+                    Integer.parseInt(getParameter(parameters, "size", "256")), seed);
+
+            System.out.println("simulate " + schedule.size() + " encounters of "
+                    + schedule.getPeers().size() + " peers");
+
+            ASAPSimulationReport report = simulator.run(schedule);
+            report.print(System.out, parseOnOff(getParameter(parameters, "perPeer", "off")));
+        }
+        catch(NumberFormatException | ASAPException e) {
+            System.err.println("wrong parameter: " + e.getLocalizedMessage());
+            ASAPSimulator.printUsage();
+        }
+        catch(IOException | InterruptedException e) {
+            System.err.println("simulation failed: " + e.getLocalizedMessage());
+        }
+
+        // connection threads are gone - but make sure nothing keeps us alive
+        System.exit(0);
+    }
+
+    private static String getParameter(Map<String, String> parameters, String key, String defaultValue) {
+        String value = parameters.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    private static boolean parseOnOff(String value) throws ASAPException {
+        StringTokenizer st = new StringTokenizer(value);
+        if(!st.hasMoreTokens()) throw new ASAPException("on or off expected");
+
+        String token = st.nextToken();
+        if(token.equalsIgnoreCase("on") || token.equalsIgnoreCase("true")) return true;
+        if(token.equalsIgnoreCase("off") || token.equalsIgnoreCase("false")) return false;
+
+        throw new ASAPException("on or off expected: " + value);
+    }
+}
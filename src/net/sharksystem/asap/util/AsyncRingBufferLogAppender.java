@@ -0,0 +1,114 @@
+package net.sharksystem.asap.util;
+
+/**
+ * Takes log output off the calling threads. Messages are put into a fixed size ring buffer
+ * and written by a daemon thread to another appender (console by default).
+ *
+ * Logging threads never wait for I/O. If the buffer is full, messages are dropped and counted.
+ * The number of dropped messages is reported with the next written message.
+ */
+public class AsyncRingBufferLogAppender implements LogAppender, Runnable {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final LogAppender target;
+    private final String[] messages;
+    private final int[] levels;
+    private int head = 0; // next to read
+    private int size = 0;
+    private long dropped = 0;
+    private boolean closed = false;
+    private final Thread writer;
+
+    public AsyncRingBufferLogAppender() {
+        this(new ConsoleLogAppender(), DEFAULT_CAPACITY);
+    }
+
+    public AsyncRingBufferLogAppender(LogAppender target, int capacity) {
+        if(capacity < 1) capacity = DEFAULT_CAPACITY;
+        this.target = target;
+        this.messages = new String[capacity];
+        this.levels = new int[capacity];
+
+        this.writer = new Thread(this, "asap log writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    public synchronized void append(int level, String message) {
+        if(this.closed) return;
+
+        if(this.size == this.messages.length) {
+            this.dropped++;
+            return;
+        }
+
+        int tail = (this.head + this.size) % this.messages.length;
+        this.messages[tail] = message;
+        this.levels[tail] = level;
+        this.size++;
+
+        if(this.size == 1) {
+            this.notify(); // writer could sleep
+        }
+    }
+
+    public synchronized long getDroppedMessages() {
+        return this.dropped;
+    }
+
+    @Override
+    public void run() {
+        String message;
+        int level;
+        long droppedMeanwhile;
+
+        for(;;) {
+            synchronized(this) {
+                while(this.size == 0 && !this.closed) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException e) {
+                        // check again
+                    }
+                }
+
+                if(this.size == 0) return; // closed and nothing left
+
+                message = this.messages[this.head];
+                level = this.levels[this.head];
+                this.messages[this.head] = null; // let gc do its job
+                this.head = (this.head + 1) % this.messages.length;
+                this.size--;
+
+                droppedMeanwhile = this.dropped;
+                this.dropped = 0;
+            }
+
+            // write outside lock - logging threads can go ahead
+            if(droppedMeanwhile > 0) {
+                this.target.append(Log.WARN, "log buffer full - dropped messages: " + droppedMeanwhile);
+            }
+            this.target.append(level, message);
+        }
+    }
+
+    /**
+     * Writes remaining messages and stops writer thread.
+     */
+    @Override
+    public void close() {
+        synchronized(this) {
+            this.closed = true;
+            this.notify();
+        }
+
+        try {
+            this.writer.join();
+        } catch (InterruptedException e) {
+            // give up waiting
+        }
+
+        this.target.close();
+    }
+}
@@ -0,0 +1,20 @@
+package net.sharksystem.asap.util;
+
+import java.io.PrintStream;
+
+/**
+ * Writes warnings and errors to System.err, anything else to System.out.
+ */
+public class ConsoleLogAppender implements LogAppender {
+    @Override
+    public void append(int level, String message) {
+        PrintStream ps = level >= Log.WARN ? System.err : System.out;
+        ps.println(message);
+    }
+
+    @Override
+    public void close() {
+        System.out.flush();
+        System.err.flush();
+    }
+}
@@ -1,10 +1,37 @@
 package net.sharksystem.asap.util;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.*;
 
 public class Helper {
     public static final String SERIALIZATION_DELIMITER = "|||";
 
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+    private static final ThreadLocal<byte[]> COPY_BUFFERS = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[COPY_BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * Copy exactly length bytes in blocks. Never reads beyond length - input stream can be
+     * a protocol stream with further data.
+     *
+     * @throws IOException stream ended before length bytes were read
+     */
+    public static void copy(InputStream is, OutputStream os, long length) throws IOException {
+        byte[] buffer = COPY_BUFFERS.get();
+        while(length > 0) {
+            int read = is.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if(read < 0) throw new IOException("stream ended, " + length + " bytes missing");
+            os.write(buffer, 0, read);
+            length -= read;
+        }
+    }
+
     public static String collection2String(Collection<CharSequence> stringList) {
         StringBuilder sb = new StringBuilder();
 
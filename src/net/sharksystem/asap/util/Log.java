@@ -1,10 +1,160 @@
 package net.sharksystem.asap.util;
 
+/**
+ * Logging facade. Messages are passed to an appender if their level is enabled.
+ *
+ * Debug messages are produced on hot paths (protocol, engine, streams). Build
+ * them only when required - no allocation at all if disabled:
+ *
+ * <pre>
+ * if(Log.isDebugEnabled()) {
+ *     StringBuilder sb = Log.startLog(this);
+ *     sb.append("era: ");
+ *     sb.append(era);
+ *     Log.debug(sb);
+ * }
+ * </pre>
+ *
+ * Default level is INFO and can be set with system property asap.log.level (e.g. -Dasap.log.level=DEBUG).
+ * Default appender writes to console. Use an AsyncRingBufferLogAppender to take console I/O off
+ * the calling threads.
+ */
 public class Log {
+    public static final int TRACE = 0;
+    public static final int DEBUG = 1;
+    public static final int INFO = 2;
+    public static final int WARN = 3;
+    public static final int ERROR = 4;
+    public static final int OFF = 5;
+
+    public static final String LEVEL_PROPERTY = "asap.log.level";
+    private static final String[] LEVEL_NAMES = {"TRACE", "DEBUG", "INFO", "WARN", "ERROR", "OFF"};
+
+    private static volatile int level = Log.initialLevel();
+    private static volatile LogAppender appender = new ConsoleLogAppender();
+
     public static StringBuilder startLog(Object o) {
         StringBuilder sb = new StringBuilder();
         sb.append(o.getClass().getSimpleName());
         sb.append(": ");
         return sb;
     }
+
+    private static int initialLevel() {
+        try {
+            String levelString = System.getProperty(LEVEL_PROPERTY);
+            if(levelString != null) {
+                return Log.levelByName(levelString);
+            }
+        }
+        catch(RuntimeException e) {
+            // no access to system properties - use default
+        }
+
+        return INFO;
+    }
+
+    /**
+     * @param name level name like DEBUG or a number
+     * @return level - INFO if unknown
+     */
+    public static int levelByName(String name) {
+        for(int i = 0; i < LEVEL_NAMES.length; i++) {
+            if(LEVEL_NAMES[i].equalsIgnoreCase(name.trim())) return i;
+        }
+
+        try {
+            int i = Integer.parseInt(name.trim());
+            if(i >= TRACE && i <= OFF) return i;
+        }
+        catch(NumberFormatException e) {
+            // fall through
+        }
+
+        return INFO;
+    }
+
+    public static String getLevelName(int level) {
+        if(level < TRACE || level > OFF) return "?";
+        return LEVEL_NAMES[level];
+    }
+
+    public static void setLevel(int newLevel) {
+        level = newLevel;
+    }
+
+    public static int getLevel() {
+        return level;
+    }
+
+    /**
+     * @param newAppender appender - null switches off logging
+     */
+    public static void setAppender(LogAppender newAppender) {
+        LogAppender oldAppender = appender;
+        appender = newAppender != null ? newAppender : new NullLogAppender();
+
+        if(oldAppender != null && oldAppender != appender) {
+            oldAppender.close();
+        }
+    }
+
+    public static LogAppender getAppender() {
+        return appender;
+    }
+
+    public static boolean isEnabled(int messageLevel) {
+        return messageLevel >= level;
+    }
+
+    public static boolean isTraceEnabled() { return TRACE >= level; }
+
+    public static boolean isDebugEnabled() { return DEBUG >= level; }
+
+    public static boolean isInfoEnabled() { return INFO >= level; }
+
+    public static void log(int messageLevel, CharSequence message) {
+        if(messageLevel >= level) {
+            appender.append(messageLevel, message.toString());
+        }
+    }
+
+    public static void trace(CharSequence message) { log(TRACE, message); }
+
+    public static void debug(CharSequence message) { log(DEBUG, message); }
+
+    public static void info(CharSequence message) { log(INFO, message); }
+
+    public static void warn(CharSequence message) { log(WARN, message); }
+
+    public static void error(CharSequence message) { log(ERROR, message); }
+
+    /**
+     * Writes message prefixed by class name of source. Message is only built if level is enabled.
+     * Take care: Arguments are still evaluated by the caller - guard expensive arguments with isEnabled.
+     */
+    public static void log(int messageLevel, Object source, String message) {
+        if(messageLevel >= level) {
+            StringBuilder sb = Log.startLog(source);
+            sb.append(message);
+            appender.append(messageLevel, sb.toString());
+        }
+    }
+
+    public static void log(int messageLevel, Object source, String message, Object argument) {
+        if(messageLevel >= level) {
+            StringBuilder sb = Log.startLog(source);
+            sb.append(message);
+            sb.append(argument);
+            appender.append(messageLevel, sb.toString());
+        }
+    }
+
+    private static class NullLogAppender implements LogAppender {
+        @Override
+        public void append(int level, String message) { }
+
+        @Override
+        public void close() { }
+    }
 }
@@ -0,0 +1,13 @@
+package net.sharksystem.asap.util;
+
+/**
+ * Receives log messages which passed the level check of Log.
+ */
+public interface LogAppender {
+    void append(int level, String message);
+
+    /**
+     * release resources - appender is not used any longer
+     */
+    void close();
+}
@@ -535,6 +535,7 @@ public class CmdLineUI {
                     this.printChannelInfo(asapStorage, uri, format);
                 }
             }
+            multiEngine.close();
         }
         catch(RuntimeException | IOException | ASAPException e) {
             this.printUsage(PRINT_ALL_INFORMATION, e.getLocalizedMessage());
@@ -1,5 +1,7 @@
 package net.sharksystem.util.localloop;
 
+import net.sharksystem.asap.util.Log;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -38,13 +40,13 @@ public class BufferedStream {
      * @param nextByte byte to write
      */
     private synchronized void writeToBuffer(int nextByte) throws IOException {
-        //<<<<<<<<<<<<<<<<<<<<<<debug
-        StringBuilder b = new StringBuilder();
-        b.append("Log (");  b.append(this.debugName); b.append("): ");
-        b.append("entered write with next byte: ");
-        b.append(nextByte);
-        System.out.println(b.toString());
-        //>>>>>>>>>>>>>>>>>>>>>>debug
+        if(Log.isDebugEnabled()) {
+            StringBuilder b = new StringBuilder();
+            b.append("Log (");  b.append(this.debugName); b.append("): ");
+            b.append("entered write with next byte: ");
+            b.append(nextByte);
+            Log.debug(b.toString());
+        }
         
         this.checkConnection();
         
@@ -62,33 +64,33 @@ public class BufferedStream {
         if buffer full or empty.
         */
         
-        //<<<<<<<<<<<<<<<<<<<<<<debug
-        b = new StringBuilder();
-        b.append("Log (");  b.append(this.debugName); b.append("): ");
-        b.append("have to wait? ");
-        System.out.println(b.toString());
-        //>>>>>>>>>>>>>>>>>>>>>>debug
+        if(Log.isDebugEnabled()) {
+            StringBuilder b = new StringBuilder();
+            b.append("Log (");  b.append(this.debugName); b.append("): ");
+            b.append("have to wait? ");
+            Log.debug(b.toString());
+        }
         
         if(!this.bufferEmpty && this.writeIndex == this.readIndex) {
             // buffer full - wait until data read
             this.writerThread = Thread.currentThread();
-            //<<<<<<<<<<<<<<<<<<<<<<debug
-            b = new StringBuilder();
-            b.append("Log (");  b.append(this.debugName); b.append("): ");
-            b.append("wait in write");
-            System.out.println(b.toString());
-            //>>>>>>>>>>>>>>>>>>>>>>debug
+            if(Log.isDebugEnabled()) {
+                StringBuilder b = new StringBuilder();
+                b.append("Log (");  b.append(this.debugName); b.append("): ");
+                b.append("wait in write");
+                Log.debug(b.toString());
+            }
             while(!this.bufferEmpty && this.writeIndex == this.readIndex) {
                 try {
                     Thread.sleep(Integer.MAX_VALUE);
                 } catch (InterruptedException ex) {
                     // woke up - very good - try again
-                    //<<<<<<<<<<<<<<<<<<<<<<debug
-                    b = new StringBuilder();
-                    b.append("Log (");  b.append(this.debugName); b.append("): ");
-                    b.append("woke up by interrupt ");
-                    System.out.println(b.toString());
-                    //>>>>>>>>>>>>>>>>>>>>>>debug
+                    if(Log.isDebugEnabled()) {
+                        StringBuilder b = new StringBuilder();
+                        b.append("Log (");  b.append(this.debugName); b.append("): ");
+                        b.append("woke up by interrupt ");
+                        Log.debug(b.toString());
+                    }
                 }
             }
             this.writerThread = null;
@@ -109,8 +111,6 @@ public class BufferedStream {
     }
 
     private synchronized void incIndexSyncThreads(boolean writer) {
-        StringBuilder b;
-        
         if(writer) {
             this.writeIndex = this.nextIndex(this.writeIndex);
             
@@ -121,12 +121,14 @@ public class BufferedStream {
             if(this.readerThread != null) {
                 this.readerThread.interrupt();
                 
-                b = new StringBuilder();
-                b.append("Log (");
-                b.append(this.debugName);
-                b.append("):");
-                b.append("interrupted waiting reader");
-                System.out.println(b.toString());
+                if(Log.isDebugEnabled()) {
+                    StringBuilder b = new StringBuilder();
+                    b.append("Log (");
+                    b.append(this.debugName);
+                    b.append("):");
+                    b.append("interrupted waiting reader");
+                    Log.debug(b);
+                }
             }
             
         } else {
@@ -140,26 +142,29 @@ public class BufferedStream {
             // wake up writer - if any
             if(this.writerThread != null) {
                 this.writerThread.interrupt();
-                b = new StringBuilder();
-                b.append("Log (");
-                b.append(this.debugName);
-                b.append("):");
-                b.append("interrupted waiting writer");
-                System.out.println(b.toString());
+                if(Log.isDebugEnabled()) {
+                    StringBuilder b = new StringBuilder();
+                    b.append("Log (");
+                    b.append(this.debugName);
+                    b.append("):");
+                    b.append("interrupted waiting writer");
+                    Log.debug(b);
+                }
             }
         }
         
-        b = new StringBuilder();
-        b.append("Log (");
-        b.append(this.debugName);
-        b.append("): read/write/empty: ");
-        b.append(this.readIndex);
-        b.append(" / ");
-        b.append(this.writeIndex);
-        b.append(" / ");
-        b.append(this.bufferEmpty);
-        
-        System.out.println(b.toString());
+        if(Log.isDebugEnabled()) {
+            StringBuilder b = new StringBuilder();
+            b.append("Log (");
+            b.append(this.debugName);
+            b.append("): read/write/empty: ");
+            b.append(this.readIndex);
+            b.append(" / ");
+            b.append(this.writeIndex);
+            b.append(" / ");
+            b.append(this.bufferEmpty);
+            Log.debug(b);
+        }
     }
     
     private void checkConnection() throws IOException {
@@ -178,12 +183,12 @@ public class BufferedStream {
      * @throws IOException if connection was closed or broken
      */
     private synchronized int readFromBuffer() throws IOException {
-        //<<<<<<<<<<<<<<<<<<<<<<debug
-        StringBuilder b = new StringBuilder();
-        b.append("Log (");  b.append(this.debugName); b.append("): ");
-        b.append("entered read");
-        System.out.println(b.toString());
-        //>>>>>>>>>>>>>>>>>>>>>>debug
+        if(Log.isDebugEnabled()) {
+            StringBuilder b = new StringBuilder();
+            b.append("Log (");  b.append(this.debugName); b.append("): ");
+            b.append("entered read");
+            Log.debug(b.toString());
+        }
         
         this.checkConnection();
         
@@ -194,34 +199,34 @@ public class BufferedStream {
         
         // Read index equals write index: buffer is empty
         if(this.bufferEmpty) {
-            //<<<<<<<<<<<<<<<<<<<<<<debug
-            b = new StringBuilder();
-            b.append("Log (");  b.append(this.debugName); b.append("): ");
-            b.append("buffer empty");
-            System.out.println(b.toString());
-            //>>>>>>>>>>>>>>>>>>>>>>debug
+            if(Log.isDebugEnabled()) {
+                StringBuilder b = new StringBuilder();
+                b.append("Log (");  b.append(this.debugName); b.append("): ");
+                b.append("buffer empty");
+                Log.debug(b.toString());
+            }
 
             // queue in wake up slot
             this.readerThread = Thread.currentThread();
             
             // sleep until at least a single byte in buffer
             while(this.bufferEmpty) {
-                //<<<<<<<<<<<<<<<<<<<<<<debug
-                b = new StringBuilder();
-                b.append("Log (");  b.append(this.debugName); b.append("): ");
-                b.append("wait in read");
-                System.out.println(b.toString());
-                //>>>>>>>>>>>>>>>>>>>>>>debug
+                if(Log.isDebugEnabled()) {
+                    StringBuilder b = new StringBuilder();
+                    b.append("Log (");  b.append(this.debugName); b.append("): ");
+                    b.append("wait in read");
+                    Log.debug(b.toString());
+                }
                 try {
                     Thread.sleep(Integer.MAX_VALUE);
                 } catch (InterruptedException ex) {
                     // woke up - very good - try again
-                    //<<<<<<<<<<<<<<<<<<<<<<debug
-                    b = new StringBuilder();
-                    b.append("Log (");  b.append(this.debugName); b.append("): ");
-                    b.append("woke up");
-                    System.out.println(b.toString());
-                    //>>>>>>>>>>>>>>>>>>>>>>debug
+                    if(Log.isDebugEnabled()) {
+                        StringBuilder b = new StringBuilder();
+                        b.append("Log (");  b.append(this.debugName); b.append("): ");
+                        b.append("woke up");
+                        Log.debug(b.toString());
+                    }
                 }
             }
             
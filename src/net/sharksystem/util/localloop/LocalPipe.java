@@ -0,0 +1,230 @@
+package net.sharksystem.util.localloop;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * One-directional in-memory pipe. Bytes written into the output stream can be read from the input stream.
+ *
+ * Other than java.io.Piped*Stream it does not care about writer threads - ASAP writes from
+ * different short living threads. Other than BufferedStream it works on blocks and does not hold
+ * its lock while waiting. Closing either side ends the pipe: readers get remaining bytes
+ * and EOF afterwards, writers get an IOException.
+ *
+ * Buffer can grow up to a maximum capacity. Keep in mind: ASAP peers send while processing
+ * a received PDU and do not read meanwhile. Two peers sending lots of data at the same time
+ * block each other if buffers are too small.
+ *
+ * @author thsc
+ */
+public class LocalPipe {
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private byte[] buffer;
+    private final int maxCapacity;
+    private int readIndex = 0; // next index to read from
+    private int size = 0; // bytes in buffer
+    private boolean closed = false;
+    private long bytesTransferred = 0;
+
+    private final InputStream is = new PipeInputStream();
+    private final OutputStream os = new PipeOutputStream();
+
+    public LocalPipe() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LocalPipe(int capacity) {
+        this(capacity, capacity);
+    }
+
+    /**
+     * @param capacity initial buffer size
+     * @param maxCapacity buffer doubles when full up to that size - writer waits afterwards
+     */
+    public LocalPipe(int capacity, int maxCapacity) {
+        if(capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        if(maxCapacity < capacity) throw new IllegalArgumentException("max capacity less than capacity");
+        this.buffer = new byte[capacity];
+        this.maxCapacity = maxCapacity;
+    }
+
+    public InputStream getInputStream() {
+        return this.is;
+    }
+
+    public OutputStream getOutputStream() {
+        return this.os;
+    }
+
+    public synchronized void close() {
+        this.closed = true;
+        this.notifyAll();
+    }
+
+    public synchronized boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * @return true if anything written was also read
+     */
+    public synchronized boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * @return number of bytes read from this pipe so far
+     */
+    public synchronized long getBytesTransferred() {
+        return this.bytesTransferred;
+    }
+
+    private synchronized int read() throws IOException {
+        while(this.size == 0) {
+            if(this.closed) return -1;
+            this.waitForOtherSide();
+        }
+
+        int b = this.buffer[this.readIndex] & 0xFF;
+        this.readIndex = (this.readIndex + 1) % this.buffer.length;
+        this.size--;
+        this.bytesTransferred++;
+        this.notifyAll();
+
+        return b;
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) return 0;
+
+        while(this.size == 0) {
+            if(this.closed) return -1;
+            this.waitForOtherSide();
+        }
+
+        int number = Math.min(len, this.size);
+        // at most two copies - buffer might wrap
+        int firstPart = Math.min(number, this.buffer.length - this.readIndex);
+        System.arraycopy(this.buffer, this.readIndex, b, off, firstPart);
+        if(firstPart < number) {
+            System.arraycopy(this.buffer, 0, b, off + firstPart, number - firstPart);
+        }
+
+        this.readIndex = (this.readIndex + number) % this.buffer.length;
+        this.size -= number;
+        this.bytesTransferred += number;
+
+        // wake up writer - if any
+        this.notifyAll();
+
+        return number;
+    }
+
+    private synchronized void write(int b) throws IOException {
+        while(this.isFull() && !this.closed) {
+            this.waitForOtherSide();
+        }
+        if(this.closed) throw new IOException("pipe closed");
+
+        this.buffer[(this.readIndex + this.size) % this.buffer.length] = (byte) b;
+        this.size++;
+        this.notifyAll();
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        while(len > 0) {
+            if(this.closed) throw new IOException("pipe closed");
+
+            if(this.isFull()) {
+                // full - wait for reader
+                this.waitForOtherSide();
+                continue;
+            }
+
+            int writeIndex = (this.readIndex + this.size) % this.buffer.length;
+            int number = Math.min(len, this.buffer.length - this.size);
+            int firstPart = Math.min(number, this.buffer.length - writeIndex);
+            System.arraycopy(b, off, this.buffer, writeIndex, firstPart);
+            if(firstPart < number) {
+                System.arraycopy(b, off + firstPart, this.buffer, 0, number - firstPart);
+            }
+
+            this.size += number;
+            off += number;
+            len -= number;
+
+            // wake up reader - if any
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * @return true if buffer is full and cannot grow any further
+     */
+    private boolean isFull() {
+        if(this.size < this.buffer.length) return false;
+        if(this.buffer.length >= this.maxCapacity) return true;
+
+        // grow - keep content in order
+        byte[] newBuffer = new byte[(int) Math.min((long) this.buffer.length * 2, this.maxCapacity)];
+        int firstPart = this.buffer.length - this.readIndex;
+        System.arraycopy(this.buffer, this.readIndex, newBuffer, 0, firstPart);
+        System.arraycopy(this.buffer, 0, newBuffer, firstPart, this.readIndex);
+        this.buffer = newBuffer;
+        this.readIndex = 0;
+
+        return false;
+    }
+
+    private void waitForOtherSide() throws InterruptedIOException {
+        try {
+            this.wait();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting on local pipe");
+        }
+    }
+
+    private class PipeInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            return LocalPipe.this.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return LocalPipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized(LocalPipe.this) {
+                return LocalPipe.this.size;
+            }
+        }
+
+        @Override
+        public void close() {
+            LocalPipe.this.close();
+        }
+    }
+
+    private class PipeOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            LocalPipe.this.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            LocalPipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            LocalPipe.this.close();
+        }
+    }
+}
@@ -1,10 +1,20 @@
 package net.sharksystem.asap;
 
+import net.sharksystem.asap.crypto.ASAPInMemoKeyStore;
+import net.sharksystem.asap.protocol.ASAP_1_0;
+import net.sharksystem.asap.protocol.ASAP_AssimilationPDU_1_0;
+import net.sharksystem.asap.protocol.ASAP_Interest_PDU_1_0;
+import net.sharksystem.asap.protocol.ASAP_Modem_Impl;
+import net.sharksystem.asap.protocol.ASAP_PDU_1_0;
 import net.sharksystem.cmdline.CmdLineUI;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
 import java.util.Set;
 
 public class MultihopTests {
@@ -251,6 +261,87 @@ public class MultihopTests {
         Assert.assertFalse(davidStorage.channelExists("sn2://closedChannel"));
     }
 
+    /**
+     * Bob relays chunks of Alice to Clara - each part with signature of Alice. Clara checks them against
+     * Alice. A part Bob got unsigned is not relayed.
+     */
+    @Test
+    public void signedChunksAreRelayed() throws IOException, ASAPException {
+        String folder = "tests/signedMultihop";
+        ASAPEngineFS.removeFolder(folder);
+
+        String format = "format";
+        String uri = "test://relayed";
+        ASAPEngine alice = ASAPEngineFS.getASAPStorage("Alice", folder + "/Alice", format);
+        ASAPEngine bob = ASAPEngineFS.getASAPStorage("Bob", folder + "/Bob", format);
+        ASAPEngine clara = ASAPEngineFS.getASAPStorage("Clara", folder + "/Clara", format);
+        bob.setSendReceivedChunks(true);
+
+        ASAPInMemoKeyStore aliceKeys = new ASAPInMemoKeyStore("Alice");
+        ASAPInMemoKeyStore bobKeys = new ASAPInMemoKeyStore("Bob");
+        ASAPInMemoKeyStore claraKeys = new ASAPInMemoKeyStore("Clara");
+        bobKeys.addPublicKey("Alice", aliceKeys.getPublicKey());
+        claraKeys.addPublicKey("Alice", aliceKeys.getPublicKey());
+        claraKeys.addPublicKey("Bob", bobKeys.getPublicKey());
+        ASAP_Modem_Impl aliceProtocol = new ASAP_Modem_Impl(aliceKeys);
+        ASAP_Modem_Impl bobProtocol = new ASAP_Modem_Impl(bobKeys);
+        ASAP_Modem_Impl claraProtocol = new ASAP_Modem_Impl(claraKeys);
+
+        int era = alice.getEra();
+        alice.add(uri, "first");
+        alice.add(uri, "second");
+        alice.newEra();
+
+        // Alice meets Bob
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        bobProtocol.interest("Bob", null, format, null, -1, -1, os, false);
+        ASAP_PDU_1_0 interest = aliceProtocol.readPDU(new ByteArrayInputStream(os.toByteArray()));
+        os.reset();
+        alice.handleASAPInterest((ASAP_Interest_PDU_1_0) interest, aliceProtocol, os);
+
+        // an unsigned part and another signed one
+        new ASAP_Modem_Impl().assimilate("Alice", "Bob", format, uri, era, null, "unsigned".getBytes(), os,
+                false);
+        aliceProtocol.assimilate("Alice", "Bob", format, uri, era, null, "third".getBytes(), os, true);
+        this.assimilateAll(bob, bobProtocol, os.toByteArray());
+        Assert.assertEquals(4, bob.getIncomingChunkStorage("Alice").getChunk(uri, era).getNumberMessage());
+        bob.newEra();
+
+        // Bob meets Clara - relays chunk of Alice
+        os.reset();
+        claraProtocol.interest("Clara", null, format, null, -1, -1, os, false);
+        interest = bobProtocol.readPDU(new ByteArrayInputStream(os.toByteArray()));
+        os.reset();
+        bob.handleASAPInterest((ASAP_Interest_PDU_1_0) interest, bobProtocol, os);
+        this.assimilateAll(clara, claraProtocol, os.toByteArray());
+
+        ASAPChunk claraAlice = clara.getIncomingChunkStorage("Alice").getChunk(uri, era);
+        Iterator<CharSequence> messages = claraAlice.getMessages();
+        Assert.assertEquals("first", messages.next().toString());
+        Assert.assertEquals("second", messages.next().toString());
+        Assert.assertEquals("third", messages.next().toString());
+        Assert.assertFalse(messages.hasNext());
+
+        // Clara could relay it as well
+        Assert.assertEquals(2, claraAlice.getSignatures().size());
+        Assert.assertEquals("Alice", claraAlice.getSignatures().get(1).getSigner());
+    }
+
+    /**
+     * Read pdus and assimilate chunks - chunks with invalid signature are rejected by engine
+     */
+    private void assimilateAll(ASAPEngine engine, ASAP_1_0 protocol, byte[] pdus)
+            throws IOException, ASAPException {
+
+        InputStream is = new ByteArrayInputStream(pdus);
+        while(is.available() > 0) {
+            ASAP_PDU_1_0 pdu = protocol.readPDU(is);
+            if(pdu.getCommand() == ASAP_1_0.ASSIMILATE_CMD) {
+                engine.handleASAPAssimilate((ASAP_AssimilationPDU_1_0) pdu, protocol, is, null, null);
+            }
+        }
+    }
+
     private ASAPStorage getFreshStorageByName(CmdLineUI ui, String storageName) throws ASAPException, IOException {
         String rootFolder = ui.getEngineRootFolderByStorageName(storageName);
         return ASAPEngineFS.getExistingASAPEngineFS(rootFolder);
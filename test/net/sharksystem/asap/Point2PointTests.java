@@ -170,6 +170,8 @@ public class Point2PointTests {
         Assert.assertEquals(2, bobStorage.getEra());
 
         Thread.sleep(1000);
+        aliceEngine.close();
+        bobEngine.close();
     }
 
     @Test
@@ -309,6 +311,8 @@ public class Point2PointTests {
         Assert.assertEquals(bobInitialEra+2, bobStorage.getEra());
 
         Thread.sleep(1000);
+        aliceEngine.close();
+        bobEngine.close();
     }
 
     @Test
@@ -452,6 +456,8 @@ public class Point2PointTests {
         Assert.assertEquals(ALICE2BOB_MESSAGE2, bobReceivedMessage);
 
         Thread.sleep(1000);
+        aliceEngine.close();
+        bobEngine.close();
     }
 
     @Test
@@ -530,5 +536,7 @@ public class Point2PointTests {
         System.err.flush();
 
         // check results
+        aliceEngine.close();
+        bobEngine.close();
     }
 }
@@ -1,8 +1,35 @@
 package net.sharksystem.asap;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 
+import net.sharksystem.asap.crypto.ASAPDHGroup;
+import net.sharksystem.asap.crypto.ASAPFixedBaseExponentiation;
+import net.sharksystem.asap.crypto.ASAPInMemoKeyStore;
+import net.sharksystem.asap.crypto.ASAPKeyTree;
+import net.sharksystem.asap.management.ASAPGroupKeyMessage;
+import net.sharksystem.asap.management.ASAPGroupKeyService;
+import net.sharksystem.asap.metrics.ASAPMetricsRegistry;
+import net.sharksystem.asap.protocol.*;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -115,4 +142,628 @@ public class WhiteBoxTests {
 
         Assert.assertEquals(storage.getChannelURIs().get(0), uri);
     }
+
+    @Test
+    public void chunkSchedulingByPriorityAndSize() throws IOException, ASAPException {
+        String folder = "tests/chunkScheduling";
+        ASAPEngineFS.removeFolder(folder);
+
+        String bigUri = "test://big";
+        String smallUri = "test://small";
+        String urgentUri = "test://urgent";
+
+        ASAPStorage storage = ASAPEngineFS.getASAPStorage(DUMMY_USER, folder, FORMAT);
+        storage.add(bigUri, "a quite long message which makes that chunk the biggest one");
+        storage.add(smallUri, "short");
+        storage.add(urgentUri, "an urgent but not that small message");
+        storage.putExtra(urgentUri, ASAPChunkScheduler.PRIORITY_EXTRA_KEY,
+                Integer.toString(ASAPChunkScheduler.PRIORITY_URGENT));
+
+        ASAPChunkScheduler scheduler = new ASAPChunkScheduler(ASAPChunkScheduler.Policy.SMALLEST_FIRST);
+        for(ASAPChunk chunk : storage.getChunkStorage().getChunks(storage.getEra())) {
+            scheduler.add(DUMMY_USER, storage.getEra(), chunk);
+        }
+
+        List<ASAPChunkScheduler.ScheduledChunk> schedule = scheduler.getSchedule();
+        Assert.assertEquals(3, schedule.size());
+        Assert.assertEquals(urgentUri, schedule.get(0).chunk.getUri());
+        Assert.assertEquals(smallUri, schedule.get(1).chunk.getUri());
+        Assert.assertEquals(bigUri, schedule.get(2).chunk.getUri());
+    }
+
+    @Test
+    public void deliveryIsKeptPerNumberOfMessages() throws IOException, ASAPException {
+        String folder = "tests/delivery";
+        ASAPEngineFS.removeFolder(folder);
+
+        String uri = "test://delivery";
+        ASAPStorage storage = ASAPEngineFS.getASAPStorage(DUMMY_USER, folder, FORMAT);
+        storage.add(uri, "first");
+        ASAPChunk chunk = storage.getChunkStorage().getChunk(uri, storage.getEra());
+        chunk.deliveredTo("Bob");
+        Assert.assertTrue(chunk.getDeliveredTo().contains("Bob"));
+
+        // grown after delivery - is to be sent again
+        storage.add(uri, "second");
+        chunk = storage.getChunkStorage().getChunk(uri, storage.getEra());
+        Assert.assertFalse(chunk.getDeliveredTo().contains("Bob"));
+
+        // persistent
+        storage = ASAPEngineFS.getASAPStorage(DUMMY_USER, folder, FORMAT);
+        chunk = storage.getChunkStorage().getChunk(uri, storage.getEra());
+        Assert.assertFalse(chunk.getDeliveredTo().contains("Bob"));
+        chunk.deliveredTo("Bob", 2);
+        chunk = storage.getChunkStorage().getChunk(uri, storage.getEra());
+        Assert.assertTrue(chunk.getDeliveredTo().contains("Bob"));
+
+        // copied into next era - not delivered after next message
+        storage.newEra();
+        ASAPChunk nextChunk = storage.getChunkStorage().getChunk(uri, storage.getEra());
+        Assert.assertTrue(nextChunk.getDeliveredTo().contains("Bob"));
+        storage.add(uri, "third");
+        nextChunk = storage.getChunkStorage().getChunk(uri, storage.getEra());
+        Assert.assertFalse(nextChunk.getDeliveredTo().contains("Bob"));
+    }
+
+    @Test
+    public void concurrentAddAndNewEra() throws IOException, ASAPException, InterruptedException {
+        String folder = "tests/concurrentAdd";
+        ASAPEngineFS.removeFolder(folder);
+
+        final String uri = "test://concurrent";
+        final int threads = 4;
+        final int messagesPerThread = 25;
+        final ASAPStorage storage = ASAPEngineFS.getASAPStorage(DUMMY_USER, folder, FORMAT);
+
+        // failures in other threads would not fail this test
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] adder = new Thread[threads];
+        for(int i = 0; i < threads; i++) {
+            adder[i] = new Thread() {
+                public void run() {
+                    try {
+                        for(int j = 0; j < messagesPerThread; j++) {
+                            storage.add(uri, "message " + j);
+                            if(j % 10 == 0) storage.newEra();
+                        }
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }
+            };
+            adder[i].start();
+        }
+
+        for(Thread t : adder) t.join();
+        Assert.assertTrue("failures in adding threads: " + failures, failures.isEmpty());
+
+        // no message lost - in whatever era
+        Assert.assertEquals(threads * messagesPerThread,
+                storage.getChunkChain(uri).getNumberMessage());
+    }
+
+    @Test
+    public void engineAndStorageMetrics() throws IOException, ASAPException {
+        String folder = "tests/metrics";
+        ASAPEngineFS.removeFolder(folder);
+
+        String uri = "test://metrics";
+        ASAPEngineFS engine = (ASAPEngineFS) ASAPEngineFS.getASAPStorage(DUMMY_USER, folder, FORMAT);
+        engine.add(uri, "first");
+        engine.add(uri, "second");
+        engine.newEra();
+
+        Assert.assertEquals(2, engine.getEngineMetrics().getMessagesAdded());
+        Assert.assertEquals(1, engine.getEngineMetrics().getEraRollovers());
+        Assert.assertTrue(engine.getEngineMetrics().getMementoSaves() > 0);
+        Assert.assertTrue(engine.getStorageMetrics().getBytesWritten() >= "firstsecond".length());
+
+        // second read of same position comes from cache
+        ASAPChannelMessages messages = engine.getChunkChain(uri);
+        messages.getMessage(0, true);
+        messages.getMessage(0, true);
+        Assert.assertEquals(1, engine.getStorageMetrics().getCacheMisses());
+        Assert.assertEquals(1, engine.getStorageMetrics().getCacheHits());
+    }
+
+    @Test
+    public void eraPolicies() throws IOException, ASAPException {
+        String folder = "tests/eraPolicies";
+        ASAPEngineFS.removeFolder(folder);
+
+        ASAPEngine engine = ASAPEngineFS.getASAPStorage(DUMMY_USER, folder, FORMAT);
+        ASAPEraPolicy.Trigger started = ASAPEraPolicy.Trigger.CONNECTION_STARTED;
+        ASAPEraPolicy.Trigger terminated = ASAPEraPolicy.Trigger.CONNECTION_TERMINATED;
+
+        // nothing changed - no new era
+        ASAPEraPolicy window = ASAPEraPolicies.parse("window:1000");
+        Assert.assertFalse(window.isNewEraRequired(engine, started, 0));
+
+        engine.add("test://era", "0123456789");
+        Assert.assertTrue(window.isNewEraRequired(engine, started, 0));
+        Assert.assertFalse(window.isNewEraRequired(engine, terminated, 999));
+        Assert.assertTrue(window.isNewEraRequired(engine, started, 1000));
+
+        ASAPEraPolicy size = ASAPEraPolicies.sizeThreshold(11, 0);
+        Assert.assertFalse(size.isNewEraRequired(engine, started, 0));
+        engine.add("test://era", "0");
+        Assert.assertTrue(size.isNewEraRequired(engine, started, 0));
+
+        // encounters within a minute are a single burst
+        ASAPEraPolicy coalescing = ASAPEraPolicies.coalescing(60000);
+        Assert.assertTrue(coalescing.isNewEraRequired(engine, started, 0));
+        Assert.assertFalse(coalescing.isNewEraRequired(engine, terminated, 10000));
+        Assert.assertFalse(coalescing.isNewEraRequired(engine, started, 20000));
+        Assert.assertFalse(coalescing.isNewEraRequired(engine, terminated, 30000));
+        Assert.assertTrue(coalescing.isNewEraRequired(engine, started, 90000));
+
+        // a burst does not keep an era forever
+        ASAPEraPolicy boundedCoalescing = ASAPEraPolicies.parse("coalesce:60000:100000");
+        Assert.assertTrue(boundedCoalescing.isNewEraRequired(engine, started, 0));
+        for(long now = 30000; now < 100000; now += 30000) {
+            Assert.assertFalse(boundedCoalescing.isNewEraRequired(engine, started, now));
+        }
+        Assert.assertTrue(boundedCoalescing.isNewEraRequired(engine, started, 120000));
+        Assert.assertFalse(boundedCoalescing.isNewEraRequired(engine, started, 150000));
+
+        // a new era resets content size
+        engine.newEra();
+        Assert.assertEquals(0, engine.getContentSizeInEra());
+        Assert.assertTrue(ASAPEraPolicies.perConnection().isNewEraRequired(engine, terminated, 0));
+    }
+
+    @Test
+    public void eraWrapAround() {
+        Assert.assertEquals(0, ASAPEngine.nextEra(Integer.MAX_VALUE));
+        Assert.assertEquals(Integer.MAX_VALUE, ASAPEngine.previousEra(0));
+
+        Assert.assertEquals(3, ASAPEngine.eraDistance(2, 5));
+        Assert.assertEquals(1, ASAPEngine.eraDistance(Integer.MAX_VALUE, 0));
+        Assert.assertEquals(Integer.MAX_VALUE, ASAPEngine.eraDistance(1, 0));
+
+        Assert.assertTrue(ASAPEngine.isEraInRange(3, 2, 5));
+        Assert.assertFalse(ASAPEngine.isEraInRange(6, 2, 5));
+        // range wraps
+        Assert.assertTrue(ASAPEngine.isEraInRange(1, Integer.MAX_VALUE - 1, 2));
+        Assert.assertTrue(ASAPEngine.isEraInRange(Integer.MAX_VALUE, Integer.MAX_VALUE - 1, 2));
+        Assert.assertFalse(ASAPEngine.isEraInRange(100, Integer.MAX_VALUE - 1, 2));
+    }
+
+    @Test
+    public void lazyEngineLoading() throws IOException, ASAPException, MalformedObjectNameException {
+        String folder = "tests/lazyEngineLoading";
+        ASAPEngineFS.removeFolder(folder);
+
+        ASAPEngine appEngine = ASAPEngineFS.getASAPStorage(DUMMY_USER, folder + "/app", FORMAT);
+        appEngine.add("test://lazy", "message");
+
+        MultiASAPEngineFS_Impl multiEngine = (MultiASAPEngineFS_Impl) MultiASAPEngineFS_Impl.createMultiEngine(
+                DUMMY_USER, folder, MultiASAPEngineFS.DEFAULT_MAX_PROCESSING_TIME, null);
+
+        // known from manifest - but not yet loaded
+        Assert.assertTrue(new File(folder, ASAPEngineManifestFS.MANIFEST_FILENAME).exists());
+        Assert.assertTrue(multiEngine.getFormats().contains(FORMAT));
+        Assert.assertFalse(multiEngine.isEngineLoaded(FORMAT));
+
+        ASAPEngine engine = multiEngine.useEngineByFormat(FORMAT);
+        Assert.assertTrue(multiEngine.isEngineLoaded(FORMAT));
+        Assert.assertSame(engine, multiEngine.useEngineByFormat(FORMAT));
+        Assert.assertEquals(1, engine.getChunkStorage().getChunk("test://lazy", engine.getEra()).getNumberMessage());
+
+        // management engine always stays
+        Assert.assertEquals(1, multiEngine.unloadIdleEngines(0));
+        Assert.assertFalse(multiEngine.isEngineLoaded(FORMAT));
+
+        // kept engine is unloaded but used again
+        engine = multiEngine.getEngineByFormat(FORMAT);
+        Assert.assertEquals(1, multiEngine.unloadIdleEngines(0));
+        Assert.assertSame(engine, multiEngine.useEngineByFormat(FORMAT));
+
+        // not while executing a pdu
+        EngineSetting setting = multiEngine.getEngineSettings(FORMAT);
+        setting.executionStarted();
+        Assert.assertEquals(0, multiEngine.unloadIdleEngines(0));
+        setting.executionFinished();
+
+        // new era is not loading engine - it catches up
+        engine.add("test://lazy", "second message");
+        int era = engine.getEra();
+        Assert.assertEquals(1, multiEngine.unloadIdleEngines(0));
+        multiEngine.newEra();
+        Assert.assertFalse(multiEngine.isEngineLoaded(FORMAT));
+        Assert.assertTrue(era != multiEngine.useEngineByFormat(FORMAT).getEra());
+
+        // metrics are unregistered when closed
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName connectionMetrics = new ObjectName(ASAPMetricsRegistry.DOMAIN + ":type="
+                + ASAPMetricsRegistry.TYPE_CONNECTION + ",owner=" + ObjectName.quote(DUMMY_USER));
+        Assert.assertTrue(server.isRegistered(connectionMetrics));
+        multiEngine.close();
+        Assert.assertFalse(server.isRegistered(connectionMetrics));
+
+        // restart - formats restored from manifest
+        multiEngine = (MultiASAPEngineFS_Impl) MultiASAPEngineFS_Impl.createMultiEngine(
+                DUMMY_USER, folder, MultiASAPEngineFS.DEFAULT_MAX_PROCESSING_TIME, null);
+        Assert.assertTrue(multiEngine.getFormats().contains(FORMAT));
+        Assert.assertFalse(multiEngine.isEngineLoaded(FORMAT));
+        multiEngine.close();
+    }
+
+    @Test
+    public void signedChunksAreStoredIfVerified() throws IOException, ASAPException {
+        String folder = "tests/signedChunks";
+        ASAPEngineFS.removeFolder(folder);
+
+        String uri = "test://signed";
+        ASAPEngine bob = ASAPEngineFS.getASAPStorage("Bob", folder + "/Bob", FORMAT);
+        ASAPInMemoKeyStore aliceKeys = new ASAPInMemoKeyStore("Alice");
+        ASAPInMemoKeyStore bobKeys = new ASAPInMemoKeyStore("Bob");
+        bobKeys.addPublicKey("Alice", aliceKeys.getPublicKey());
+
+        ASAP_Modem_Impl aliceProtocol = new ASAP_Modem_Impl(aliceKeys);
+        ASAP_Modem_Impl bobProtocol = new ASAP_Modem_Impl(bobKeys);
+        aliceProtocol.negotiateFeatures(ASAP_Modem_Impl.SUPPORTED_FEATURES & ~ASAP_1_0.FEATURE_COMPRESSION);
+
+        // changed payload - nothing stored
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        aliceProtocol.assimilate("Alice", "Bob", FORMAT, uri, 1, null, "message".getBytes(), os, true);
+        byte[] signedBytes = os.toByteArray();
+        byte[] changedBytes = signedBytes.clone();
+        changedBytes[new String(changedBytes, "ISO-8859-1").indexOf("message")] ^= 1;
+        InputStream is = new ByteArrayInputStream(changedBytes);
+        try {
+            bob.handleASAPAssimilate((ASAP_AssimilationPDU_1_0) bobProtocol.readPDU(is), bobProtocol, is, null, null);
+            Assert.fail("invalid signature");
+        } catch (ASAPException e) {
+            // expected
+        }
+        Assert.assertEquals(0, bob.getIncomingChunkStorage("Alice").getChunk(uri, 1).getNumberMessage());
+
+        // chunk of Clara signed by Alice - nothing stored
+        os.reset();
+        aliceProtocol.assimilate("Clara", "Bob", FORMAT, uri, 1, null, "message".getBytes(), os, true);
+        is = new ByteArrayInputStream(os.toByteArray());
+        try {
+            bob.handleASAPAssimilate((ASAP_AssimilationPDU_1_0) bobProtocol.readPDU(is), bobProtocol, is, null, null);
+            Assert.fail("signer is not sender");
+        } catch (ASAPException e) {
+            // expected
+        }
+        Assert.assertFalse(bob.getIncomingChunkStorage("Clara").existsChunk(uri, 1));
+
+        // verified - stored
+        is = new ByteArrayInputStream(signedBytes);
+        bob.handleASAPAssimilate((ASAP_AssimilationPDU_1_0) bobProtocol.readPDU(is), bobProtocol, is, null, null);
+        Assert.assertEquals(1, bob.getIncomingChunkStorage("Alice").getChunk(uri, 1).getNumberMessage());
+    }
+
+    @Test
+    public void offeredChunksAreSentIfWanted() throws IOException, ASAPException {
+        String folder = "tests/offers";
+        ASAPEngineFS.removeFolder(folder);
+
+        String uri = "test://offers";
+        ASAPEngine alice = ASAPEngineFS.getASAPStorage("Alice", folder + "/Alice", FORMAT);
+        ASAPEngine bob = ASAPEngineFS.getASAPStorage("Bob", folder + "/Bob", FORMAT);
+        alice.add(uri, "first message");
+        alice.add(uri, "second message");
+        alice.newEra();
+
+        ASAP_Modem_Impl aliceProtocol = new ASAP_Modem_Impl();
+        ASAP_Modem_Impl bobProtocol = new ASAP_Modem_Impl();
+        aliceProtocol.negotiateFeatures(ASAP_Modem_Impl.SUPPORTED_FEATURES);
+        bobProtocol.negotiateFeatures(ASAP_Modem_Impl.SUPPORTED_FEATURES);
+
+        // bob is interested - alice offers
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        bobProtocol.interest("Bob", null, FORMAT, null, -1, -1, os, false);
+        ASAP_PDU_1_0 pdu = aliceProtocol.readPDU(new ByteArrayInputStream(os.toByteArray()));
+        os.reset();
+        alice.handleASAPInterest((ASAP_Interest_PDU_1_0) pdu, aliceProtocol, os);
+        byte[] offer = os.toByteArray();
+
+        ASAP_OfferPDU_1_0 offerPDU = (ASAP_OfferPDU_1_0) bobProtocol.readPDU(new ByteArrayInputStream(offer));
+        Assert.assertTrue(offerPDU.inventorySet());
+        Assert.assertEquals("first messagesecond message".length(), offerPDU.getLength());
+
+        // not asked for - not delivered, offered again next time
+        alice.peerDisconnected("Bob");
+        os.reset();
+        alice.handleASAPInterest((ASAP_Interest_PDU_1_0) pdu, aliceProtocol, os);
+        Assert.assertArrayEquals(offer, os.toByteArray());
+
+        // bob asks for it - alice sends it
+        os.reset();
+        bob.handleASAPOffer(offerPDU, bobProtocol, os);
+        pdu = aliceProtocol.readPDU(new ByteArrayInputStream(os.toByteArray()));
+        Assert.assertEquals(ASAP_1_0.INTEREST_CMD, pdu.getCommand());
+        os.reset();
+        alice.handleASAPInterest((ASAP_Interest_PDU_1_0) pdu, aliceProtocol, os);
+
+        InputStream is = new ByteArrayInputStream(os.toByteArray());
+        pdu = bobProtocol.readPDU(is);
+        Assert.assertEquals(ASAP_1_0.ASSIMILATE_CMD, pdu.getCommand());
+        bob.handleASAPAssimilate((ASAP_AssimilationPDU_1_0) pdu, bobProtocol, is, null, null);
+        Assert.assertEquals(2, bob.getIncomingChunkStorage("Alice").getChunk(uri, 0).getNumberMessage());
+
+        // same offer again - already stored
+        os.reset();
+        bob.handleASAPOffer((ASAP_OfferPDU_1_0) bobProtocol.readPDU(new ByteArrayInputStream(offer)), bobProtocol, os);
+        Assert.assertEquals(0, os.size());
+
+        // same content in another era - another chunk, it is wanted
+        bobProtocol.offer("Clara", "Alice", FORMAT, uri, 5, offerPDU.getLength(), offerPDU.getDigest(), os, false);
+        pdu = bobProtocol.readPDU(new ByteArrayInputStream(os.toByteArray()));
+        os.reset();
+        bob.handleASAPOffer((ASAP_OfferPDU_1_0) pdu, bobProtocol, os);
+        Assert.assertTrue(os.size() > 0);
+        os.reset();
+
+        // too large
+        ASAPEngine clara = ASAPEngineFS.getASAPStorage("Clara", folder + "/Clara", FORMAT);
+        clara.setMaxIncomingChunkLength(10);
+        clara.handleASAPOffer((ASAP_OfferPDU_1_0) bobProtocol.readPDU(new ByteArrayInputStream(offer)), bobProtocol, os);
+        Assert.assertEquals(0, os.size());
+    }
+
+    @Test
+    public void deferredChunksAreSentLater() throws IOException, ASAPException {
+        String folder = "tests/deferred";
+        ASAPEngineFS.removeFolder(folder);
+
+        ASAPEngine alice = ASAPEngineFS.getASAPStorage("Alice", folder + "/Alice", FORMAT);
+        alice.add("test://first", "message of first era");
+        alice.newEra();
+        alice.add("test://second", "message of second era");
+        alice.newEra();
+
+        // nothing fits
+        ASAPEncounterBudget budget = new ASAPEncounterBudget() {
+            public long getRemainingBytes() {
+                return 10;
+            }
+        };
+
+        ASAP_Modem_Impl protocol = new ASAP_Modem_Impl();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        protocol.interest("Bob", null, FORMAT, null, -1, -1, os, false);
+        byte[] interest = os.toByteArray();
+
+        // one chunk per encounter anyway - other one is sent next time
+        for(int encounter = 0; encounter < 3; encounter++) {
+            os.reset();
+            alice.handleASAPInterest((ASAP_Interest_PDU_1_0) protocol.readPDU(new ByteArrayInputStream(interest)),
+                    protocol, os, budget);
+            alice.peerDisconnected("Bob");
+
+            InputStream is = new ByteArrayInputStream(os.toByteArray());
+            int chunks = 0;
+            while(is.available() > 0) {
+                ASAP_AssimilationPDU_1_0 pdu = (ASAP_AssimilationPDU_1_0) protocol.readPDU(is);
+                pdu.getData();
+                chunks++;
+            }
+            Assert.assertEquals(encounter < 2 ? 1 : 0, chunks);
+        }
+    }
+
+    @Test
+    public void channelTrieMatchesPatterns() {
+        ASAPChannelTrie trie = new ASAPChannelTrie(Arrays.asList("sn2://region/north/*", "sn2://chat"));
+
+        Assert.assertTrue(trie.matches("sn2://region/north/"));
+        Assert.assertTrue(trie.matches("sn2://region/north/harbour/east"));
+        Assert.assertTrue(trie.matches("sn2://chat"));
+        Assert.assertFalse(trie.matches("sn2://chat/private"));
+        Assert.assertFalse(trie.matches("sn2://region/south"));
+        Assert.assertFalse(trie.matches("sn2://region/north"));
+        Assert.assertFalse(trie.matches("sn2://"));
+    }
+
+    @Test
+    public void onlySubscribedChannelsAreSent() throws IOException, ASAPException {
+        String folder = "tests/subscriptions";
+        ASAPEngineFS.removeFolder(folder);
+
+        ASAPEngine alice = ASAPEngineFS.getASAPStorage("Alice", folder + "/Alice", FORMAT);
+        alice.add("sn2://region/north/harbour", "north message");
+        alice.add("sn2://region/south/harbour", "south message");
+        alice.add("sn2://region/north", "region message");
+        alice.newEra();
+
+        ASAPEngine bob = ASAPEngineFS.getASAPStorage("Bob", folder + "/Bob", FORMAT);
+        bob.addChannelSubscription("sn2://region/north/*");
+
+        // bob sends subscriptions with his handshake
+        ASAP_Modem_Impl protocol = new ASAP_Modem_Impl();
+        List<CharSequence> formats = new ArrayList<>();
+        formats.add(FORMAT);
+        List<List<CharSequence>> channelPatterns = new ArrayList<>();
+        channelPatterns.add(new ArrayList<CharSequence>(bob.getChannelSubscriptions()));
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        protocol.handshake("Bob", 0, formats, null, null, channelPatterns, os, false);
+        ASAP_HandshakePDU_1_0 handshakePDU =
+                (ASAP_HandshakePDU_1_0) protocol.readPDU(new ByteArrayInputStream(os.toByteArray()));
+
+        os.reset();
+        alice.handleASAPInterest(handshakePDU.getInterests().get(0), protocol, os);
+
+        // a single chunk is sent
+        InputStream is = new ByteArrayInputStream(os.toByteArray());
+        ASAP_AssimilationPDU_1_0 assimilationPDU = (ASAP_AssimilationPDU_1_0) protocol.readPDU(is);
+        Assert.assertEquals("sn2://region/north/harbour", assimilationPDU.getChannelUri());
+        assimilationPDU.getData();
+        Assert.assertEquals(0, is.available());
+    }
+
+    @Test
+    public void groupKeyTreesAgreeAfterMembershipChanges() throws IOException, ASAPException {
+        List<String> members = new ArrayList<>();
+        for(int i = 0; i < 7; i++) members.add("member" + i);
+
+        Map<String, ASAPKeyTree> trees = new HashMap<>();
+        Map<String, BigInteger> secrets = new HashMap<>();
+        for(String member : members) {
+            trees.put(member, new ASAPKeyTree(members));
+            secrets.put(member, ASAPDHGroup.createSecret());
+        }
+
+        // set up takes some log(n) rounds
+        int rounds = 0;
+        while(exchangeKeyTrees(trees, secrets, null)) rounds++;
+        Assert.assertTrue(rounds <= trees.get("member0").getHeight() + 1);
+        byte[] groupKey = agreedGroupKey(trees, secrets, null);
+
+        // member3 leaves - owner sends new tree, sponsor a single message
+        String sponsor = trees.get("member0").leave("member3");
+        distributeKeyTree(trees.get("member0"), trees);
+        secrets.remove("member3");
+        secrets.put(sponsor, ASAPDHGroup.createSecret());
+        exchangeKeyTrees(trees, secrets, sponsor);
+        byte[] leftGroupKey = agreedGroupKey(trees, secrets, sponsor);
+        Assert.assertFalse(Arrays.equals(groupKey, leftGroupKey));
+
+        // member7 joins and is sponsor
+        trees.get("member0").join("member7");
+        distributeKeyTree(trees.get("member0"), trees);
+        secrets.put("member7", ASAPDHGroup.createSecret());
+        exchangeKeyTrees(trees, secrets, "member7");
+        byte[] joinedGroupKey = agreedGroupKey(trees, secrets, "member7");
+        Assert.assertFalse(Arrays.equals(leftGroupKey, joinedGroupKey));
+    }
+
+    @Test
+    public void groupKeyMessagesAreTakenFromOwnerAndSponsors() throws IOException, ASAPException {
+        String folder = "tests/groupKeyService";
+        ASAPEngineFS.removeFolder(folder);
+        ASAPEngineFS.getASAPStorage("Bob", folder + "/app", FORMAT);
+
+        MultiASAPEngineFS multiEngine = MultiASAPEngineFS_Impl.createMultiEngine(
+                "Bob", folder, MultiASAPEngineFS.DEFAULT_MAX_PROCESSING_TIME, null);
+        ASAPGroupKeyService service = multiEngine.getGroupKeyService();
+        String uri = "test://closed";
+        multiEngine.useEngineByFormat(FORMAT).createChannel("Alice", uri,
+                new HashSet<CharSequence>(Arrays.asList("Bob", "Clara")));
+        Assert.assertEquals(1, service.getEpoch(FORMAT, uri));
+
+        List<String> members = Arrays.asList("Alice", "Bob", "Clara");
+        ASAPKeyTree aliceTree = new ASAPKeyTree(members);
+        aliceTree.computeKey("Alice", ASAPDHGroup.createSecret(), null);
+        ASAPKeyTree claraTree = new ASAPKeyTree(members);
+        claraTree.computeKey("Clara", ASAPDHGroup.createSecret(), null);
+
+        // new epoch from a member - kept until owner's tree is there
+        service.handleMessage("Clara", ASAPGroupKeyMessage.getGroupKeyMessage(FORMAT, uri, "Alice", 2, null,
+                claraTree, true));
+        Assert.assertEquals(1, service.getEpoch(FORMAT, uri));
+
+        // another owner
+        try {
+            service.handleMessage("Clara", ASAPGroupKeyMessage.getGroupKeyMessage(FORMAT, uri, "Clara", 2, null,
+                    claraTree, true));
+            Assert.fail("owner is Alice");
+        } catch (ASAPException e) {
+            // expected
+        }
+
+        // blinded key of Alice sent by Clara
+        try {
+            service.handleMessage("Clara", ASAPGroupKeyMessage.getGroupKeyMessage(FORMAT, uri, "Alice", 1, null,
+                    aliceTree, true));
+            Assert.fail("Clara is not sponsor of Alice's leaf");
+        } catch (ASAPException e) {
+            // expected
+        }
+        Assert.assertNull(service.getGroupKey(FORMAT, uri));
+
+        // owner's tree of new epoch - kept message of Clara is taken now
+        service.handleMessage("Alice", ASAPGroupKeyMessage.getGroupKeyMessage(FORMAT, uri, "Alice", 2, null,
+                aliceTree, false));
+        Assert.assertEquals(2, service.getEpoch(FORMAT, uri));
+        Assert.assertNotNull(service.getGroupKey(FORMAT, uri));
+        multiEngine.close();
+    }
+
+    /**
+     * Owner sends whole tree - members which are no longer in it drop theirs.
+     */
+    private static void distributeKeyTree(ASAPKeyTree ownerTree, Map<String, ASAPKeyTree> trees)
+            throws IOException, ASAPException {
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ownerTree.write(new DataOutputStream(baos), false);
+
+        trees.keySet().retainAll(ownerTree.getMembers());
+        for(String member : ownerTree.getMembers()) {
+            trees.put(member, ASAPKeyTree.read(new DataInputStream(new ByteArrayInputStream(baos.toByteArray()))));
+        }
+    }
+
+    /**
+     * Each member computes and sends new blinded keys to all others.
+     * @return true if anything was sent
+     */
+    private static boolean exchangeKeyTrees(Map<String, ASAPKeyTree> trees, Map<String, BigInteger> secrets,
+                                            String sponsor) throws IOException, ASAPException {
+        Map<String, byte[]> messages = new HashMap<>();
+        for(String member : trees.keySet()) {
+            ASAPKeyTree tree = trees.get(member);
+            tree.computeKey(member, secrets.get(member), sponsor);
+            if(tree.hasChanges()) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                tree.write(new DataOutputStream(baos), true);
+                tree.clearChanges();
+                messages.put(member, baos.toByteArray());
+            }
+        }
+
+        for(String sender : messages.keySet()) {
+            for(String member : trees.keySet()) {
+                if(member.equals(sender)) continue;
+                trees.get(member).merge(ASAPKeyTree.read(
+                        new DataInputStream(new ByteArrayInputStream(messages.get(sender)))), sender, sponsor);
+            }
+        }
+
+        return !messages.isEmpty();
+    }
+
+    private static byte[] agreedGroupKey(Map<String, ASAPKeyTree> trees, Map<String, BigInteger> secrets,
+                                         String sponsor) throws ASAPException {
+        byte[] groupKey = null;
+        for(String member : trees.keySet()) {
+            BigInteger rootKey = trees.get(member).computeKey(member, secrets.get(member), sponsor);
+            Assert.assertNotNull(rootKey);
+            byte[] memberGroupKey = ASAPKeyTree.getGroupKey(rootKey);
+            if(groupKey != null) Assert.assertArrayEquals(groupKey, memberGroupKey);
+            groupKey = memberGroupKey;
+        }
+
+        return groupKey;
+    }
+
+    @Test
+    public void fixedBaseExponentiationMatchesModPow() {
+        Random random = new Random(42);
+        BigInteger p = BigInteger.probablePrime(256, random);
+        BigInteger g = BigInteger.valueOf(5);
+        ASAPFixedBaseExponentiation powers = new ASAPFixedBaseExponentiation(g, p, 64, 3);
+
+        BigInteger[] exponents = new BigInteger[20];
+        for(int i = 0; i < exponents.length; i++) exponents[i] = new BigInteger(64, random);
+        exponents[0] = BigInteger.ZERO;
+        exponents[1] = BigInteger.ONE;
+        exponents[2] = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+        // not in table
+        exponents[3] = new BigInteger(100, random);
+
+        BigInteger[] results = powers.modPow(exponents);
+        for(int i = 0; i < exponents.length; i++) {
+            Assert.assertEquals(g.modPow(exponents[i], p), results[i]);
+        }
+
+        BigInteger secret = ASAPDHGroup.createSecret();
+        Assert.assertEquals(ASAPDHGroup.G.modPow(secret, ASAPDHGroup.P), ASAPDHGroup.blind(secret));
+    }
 }
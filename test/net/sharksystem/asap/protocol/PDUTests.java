@@ -1,6 +1,8 @@
 package net.sharksystem.asap.protocol;
 
 import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.crypto.ASAPInMemoKeyStore;
+import net.sharksystem.asap.crypto.ASAPPayloadKeys;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -39,6 +41,35 @@ public class PDUTests {
         Assert.assertTrue(offerPDU.getFormat().equalsIgnoreCase(format));
         Assert.assertTrue(offerPDU.getPeer().equalsIgnoreCase(peer));
         Assert.assertEquals(offerPDU.getEra(), era);
+        Assert.assertFalse(offerPDU.inventorySet());
+    }
+
+    @Test
+    public void sendAndReceiveChunkOffer() throws IOException, ASAPException {
+        ASAP_1_0 protocolEngine = new ASAP_Modem_Impl();
+        byte[] digest = new byte[32];
+        for(int i = 0; i < digest.length; i++) digest[i] = (byte) (i * 7);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        protocolEngine.offer("Bob", "Alice", "format", "uri", 3, 5000000000L, digest, os, false);
+        // plain offer after it - decoded into same object
+        protocolEngine.offer("Bob", "format", "uri", 4, os, false);
+
+        InputStream is = new ByteArrayInputStream(os.toByteArray());
+        ASAPPDUDecoder decoder = new ASAPPDUDecoder();
+        ASAP_OfferPDU_1_0 offerPDU = (ASAP_OfferPDU_1_0) decoder.readPDU(is);
+        Assert.assertTrue(offerPDU.inventorySet());
+        Assert.assertEquals("Bob", offerPDU.getPeer());
+        Assert.assertEquals("Alice", offerPDU.getSourcePeer());
+        Assert.assertEquals(3, offerPDU.getEra());
+        Assert.assertEquals(5000000000L, offerPDU.getLength());
+        Assert.assertArrayEquals(digest, offerPDU.getDigest());
+
+        offerPDU = (ASAP_OfferPDU_1_0) decoder.readPDU(is);
+        Assert.assertFalse(offerPDU.inventorySet());
+        Assert.assertNull(offerPDU.getSourcePeer());
+        Assert.assertEquals(-1, offerPDU.getLength());
+        Assert.assertNull(offerPDU.getDigest());
     }
 
     @Test
@@ -121,9 +152,9 @@ public class PDUTests {
         Assert.assertEquals(assimilationPDU.getEra(), era);
 
         byte[] data_received = assimilationPDU.getData();
-        List<Integer> offsets_received = assimilationPDU.getMessageOffsets();
+        long[] offsets_received = assimilationPDU.getMessageOffsetArray();
         // one entry assumed
-        int offset = offsets_received.get(0);
+        int offset = (int) offsets_received[0];
 
         byte[] data_r1 = new byte[offset];
         for(int i = 0; i < offset; i++) {
@@ -176,4 +207,729 @@ public class PDUTests {
         Assert.assertFalse(interestPDU.eraFromSet());
         Assert.assertFalse(interestPDU.eraToSet());
     }
+
+    @Test
+    public void sendAndReceiveLongParameters() throws IOException, ASAPException {
+        ASAP_1_0 protocolEngine = new ASAP_Modem_Impl();
+
+        // lengths with highest bit set in a byte
+        StringBuilder channel = new StringBuilder();
+        for(int i = 0; i < 200; i++) channel.append('c');
+        byte[] data = new byte[0x80FF];
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        protocolEngine.assimilate("Alice", "Bob", "format", channel, 1, null, data, os, false);
+
+        InputStream is = new ByteArrayInputStream(os.toByteArray());
+        ASAP_AssimilationPDU_1_0 assimilationPDU = (ASAP_AssimilationPDU_1_0) protocolEngine.readPDU(is);
+
+        Assert.assertEquals(channel.toString(), assimilationPDU.getChannelUri());
+        Assert.assertEquals(data.length, assimilationPDU.getLength());
+    }
+
+    @Test
+    public void sendAndReceiveWideEras() throws IOException, ASAPException {
+        ASAP_1_0 protocolEngine = new ASAP_Modem_Impl();
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        protocolEngine.offer("Alice", "format", "AliceURI", 100000, os, false);
+        protocolEngine.interest("Alice", null, "format", null, 255, Integer.MAX_VALUE, os, false);
+
+        InputStream is = new ByteArrayInputStream(os.toByteArray());
+        ASAP_OfferPDU_1_0 offerPDU = (ASAP_OfferPDU_1_0) protocolEngine.readPDU(is);
+        Assert.assertEquals(100000, offerPDU.getEra());
+
+        ASAP_Interest_PDU_1_0 interestPDU = (ASAP_Interest_PDU_1_0) protocolEngine.readPDU(is);
+        Assert.assertEquals(255, interestPDU.getEraFrom());
+        Assert.assertEquals(Integer.MAX_VALUE, interestPDU.getEraTo());
+
+        // small eras take a single byte
+        ByteArrayOutputStream small = new ByteArrayOutputStream();
+        protocolEngine.offer("Alice", "format", "AliceURI", 1, small, false);
+        ByteArrayOutputStream none = new ByteArrayOutputStream();
+        protocolEngine.offer("Alice", "format", "AliceURI", ASAP_1_0.ERA_NOT_DEFINED, none, false);
+        Assert.assertEquals(1, small.size() - none.size());
+    }
+
+    @Test
+    public void sendAndReceiveHandshake() throws IOException, ASAPException {
+        ASAP_1_0 protocolEngine = new ASAP_Modem_Impl();
+
+        List<CharSequence> formats = new ArrayList<>();
+        formats.add(ASAP_1_0.ASAP_MANAGEMENT_FORMAT);
+        formats.add("format");
+        List<Integer> erasFrom = new ArrayList<>();
+        erasFrom.add(ASAP_1_0.ERA_NOT_DEFINED);
+        erasFrom.add(0);
+        List<Integer> erasTo = new ArrayList<>();
+        erasTo.add(ASAP_1_0.ERA_NOT_DEFINED);
+        erasTo.add(Integer.MAX_VALUE);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        int features = ASAP_1_0.FEATURE_BATCHING | ASAP_1_0.FEATURE_DIGEST_SYNC;
+        protocolEngine.handshake("Alice", features, formats, erasFrom, erasTo, null, os, false);
+
+        InputStream is = new ByteArrayInputStream(os.toByteArray());
+        ASAP_HandshakePDU_1_0 handshakePDU = (ASAP_HandshakePDU_1_0) protocolEngine.readPDU(is);
+
+        Assert.assertEquals("Alice", handshakePDU.getPeer());
+        Assert.assertEquals(ASAP_1_0.PROTOCOL_VERSION, handshakePDU.getVersion());
+        Assert.assertEquals(features, handshakePDU.getFeatures());
+
+        List<ASAP_Interest_PDU_1_0> interests = handshakePDU.getInterests();
+        Assert.assertEquals(2, interests.size());
+        Assert.assertEquals(ASAP_1_0.ASAP_MANAGEMENT_FORMAT, interests.get(0).getFormat());
+        Assert.assertEquals("Alice", interests.get(0).getPeer());
+        Assert.assertFalse(interests.get(0).eraFromSet());
+        Assert.assertEquals("format", interests.get(1).getFormat());
+        Assert.assertEquals(0, interests.get(1).getEraFrom());
+        Assert.assertEquals(Integer.MAX_VALUE, interests.get(1).getEraTo());
+
+        // only features both sides know survive
+        Assert.assertEquals(ASAP_1_0.FEATURE_BATCHING, protocolEngine.negotiateFeatures(handshakePDU.getFeatures()));
+        Assert.assertTrue(protocolEngine.isFeatureNegotiated(ASAP_1_0.FEATURE_BATCHING));
+        Assert.assertFalse(protocolEngine.isFeatureNegotiated(ASAP_1_0.FEATURE_DIGEST_SYNC));
+
+        // version follows peer - other versions are rejected
+        byte[] handshake = os.toByteArray();
+        int version = new String(handshake, "UTF-8").indexOf("Alice") + "Alice".length();
+        Assert.assertEquals(ASAP_1_0.PROTOCOL_VERSION, handshake[version]);
+        handshake[version] = ASAP_1_0.PROTOCOL_VERSION + 1;
+        try {
+            protocolEngine.readPDU(new ByteArrayInputStream(handshake));
+            Assert.fail("handshake of another protocol version accepted");
+        } catch (ASAPException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void sendAndReceiveHandshakeWithSubscriptions() throws IOException, ASAPException {
+        ASAP_1_0 protocolEngine = new ASAP_Modem_Impl();
+
+        List<CharSequence> formats = new ArrayList<>();
+        formats.add(ASAP_1_0.ASAP_MANAGEMENT_FORMAT);
+        formats.add("format");
+        List<List<CharSequence>> channelPatterns = new ArrayList<>();
+        channelPatterns.add(null);
+        List<CharSequence> patterns = new ArrayList<>();
+        patterns.add("sn2://region/north/*");
+        patterns.add("sn2://chat");
+        channelPatterns.add(patterns);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        protocolEngine.handshake("Alice", 0, formats, null, null, channelPatterns, os, false);
+
+        InputStream is = new ByteArrayInputStream(os.toByteArray());
+        ASAP_HandshakePDU_1_0 handshakePDU = (ASAP_HandshakePDU_1_0) protocolEngine.readPDU(is);
+
+        List<ASAP_Interest_PDU_1_0> interests = handshakePDU.getInterests();
+        Assert.assertTrue(interests.get(0).getChannelPatterns().isEmpty());
+        Assert.assertEquals(2, interests.get(1).getChannelPatterns().size());
+        Assert.assertEquals("sn2://region/north/*", interests.get(1).getChannelPatterns().get(0));
+        Assert.assertEquals("sn2://chat", interests.get(1).getChannelPatterns().get(1));
+        // not a request for a single channel
+        Assert.assertFalse(interests.get(1).channelSet());
+    }
+
+    @Test
+    public void signedPDUsAreVerified() throws IOException, ASAPException {
+        ASAPInMemoKeyStore aliceKeys = new ASAPInMemoKeyStore("Alice");
+        ASAPInMemoKeyStore bobKeys = new ASAPInMemoKeyStore("Bob");
+        bobKeys.addPublicKey("Alice", aliceKeys.getPublicKey());
+
+        ASAP_1_0 alice = new ASAP_Modem_Impl(aliceKeys);
+        ASAP_1_0 bob = new ASAP_Modem_Impl(bobKeys);
+        alice.negotiateFeatures(ASAP_Modem_Impl.SUPPORTED_FEATURES & ~ASAP_1_0.FEATURE_COMPRESSION);
+        Assert.assertTrue(alice.isSigning());
+
+        byte[] large = new byte[100 * 1024];
+        for(int i = 0; i < large.length; i++) large[i] = (byte) (i % 13);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        alice.interest("Alice", null, "format", null, 1, 2, os, false);
+        alice.assimilate("Alice", "Bob", "format", "uri", 1, null, "small".getBytes(), os, true);
+        alice.assimilate("Alice", "Bob", "format", "uri", 1, null, large, os, true);
+        alice.negotiateFeatures(ASAP_Modem_Impl.SUPPORTED_FEATURES);
+        alice.assimilate("Alice", "Bob", "format", "uri", 1, null, large, os, true);
+        byte[] signedBytes = os.toByteArray();
+
+        InputStream is = new ByteArrayInputStream(signedBytes);
+        ASAPPDUDecoder decoder = new ASAPPDUDecoder(bob);
+        ASAP_PDU_1_0 pdu = decoder.readPDU(is);
+        Assert.assertTrue(pdu.isSigned());
+        Assert.assertEquals("Alice", pdu.getSigner());
+        Assert.assertTrue(pdu.verify());
+
+        // small, large and compressed payload - signature follows payload
+        ASAP_AssimilationPDU_1_0 assimilationPDU = (ASAP_AssimilationPDU_1_0) decoder.readPDU(is);
+        Assert.assertArrayEquals("small".getBytes(), assimilationPDU.getData());
+        Assert.assertTrue(assimilationPDU.verify());
+        for(int i = 0; i < 2; i++) {
+            assimilationPDU = (ASAP_AssimilationPDU_1_0) decoder.readPDU(is);
+            try {
+                assimilationPDU.verify();
+                Assert.fail("signature cannot be known before payload was read");
+            } catch (IOException e) {
+                // expected
+            }
+            Assert.assertArrayEquals(large, assimilationPDU.getData());
+            Assert.assertTrue(assimilationPDU.verify());
+        }
+        Assert.assertEquals(0, is.available());
+
+        // same pdus again - not checked again
+        long verifications = bob.getSignatureVerifier().getVerifications();
+        pdu = bob.readPDU(new ByteArrayInputStream(signedBytes));
+        Assert.assertTrue(pdu.verify());
+        Assert.assertEquals(verifications, bob.getSignatureVerifier().getVerifications());
+
+        // changed payload of large pdu
+        signedBytes[signedBytes.length / 2] ^= 1;
+        is = new ByteArrayInputStream(signedBytes);
+        Assert.assertTrue(decoder.readPDU(is).verify());
+        assimilationPDU = (ASAP_AssimilationPDU_1_0) decoder.readPDU(is);
+        assimilationPDU.getData();
+        Assert.assertTrue(assimilationPDU.verify());
+        assimilationPDU = (ASAP_AssimilationPDU_1_0) decoder.readPDU(is);
+        assimilationPDU.getData();
+        Assert.assertFalse(assimilationPDU.verify());
+
+        // unknown signer
+        os.reset();
+        new ASAP_Modem_Impl(new ASAPInMemoKeyStore("Clara")).interest("Clara", null, "format", null, os, false);
+        pdu = decoder.readPDU(new ByteArrayInputStream(os.toByteArray()));
+        Assert.assertTrue(pdu.isSigned());
+        Assert.assertFalse(pdu.verify());
+
+        // cannot sign without keys
+        try {
+            new ASAP_Modem_Impl().interest("Alice", null, "format", null, os, true);
+            Assert.fail("signed without key store");
+        } catch (ASAPException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void relayedChunksKeepSignatureOfOrigin() throws IOException, ASAPException {
+        ASAPInMemoKeyStore aliceKeys = new ASAPInMemoKeyStore("Alice");
+        ASAPInMemoKeyStore bobKeys = new ASAPInMemoKeyStore("Bob");
+        ASAPInMemoKeyStore claraKeys = new ASAPInMemoKeyStore("Clara");
+        bobKeys.addPublicKey("Alice", aliceKeys.getPublicKey());
+        claraKeys.addPublicKey("Alice", aliceKeys.getPublicKey());
+
+        ASAP_1_0 alice = new ASAP_Modem_Impl(aliceKeys);
+        ASAP_1_0 bob = new ASAP_Modem_Impl(bobKeys);
+        ASAP_1_0 clara = new ASAP_Modem_Impl(claraKeys);
+        alice.negotiateFeatures(ASAP_Modem_Impl.SUPPORTED_FEATURES);
+
+        byte[] data = new byte[20 * 1024];
+        for(int i = 0; i < data.length; i++) data[i] = (byte) (i % 7);
+        List<Long> offsets = new ArrayList<>();
+        offsets.add(100L);
+        offsets.add(5000L);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        alice.assimilate("Alice", "Bob", "format", "uri", 1, offsets, data, os, true);
+        ASAP_AssimilationPDU_1_0 pdu =
+                (ASAP_AssimilationPDU_1_0) bob.readPDU(new ByteArrayInputStream(os.toByteArray()));
+        Assert.assertArrayEquals(data, pdu.getData());
+        Assert.assertTrue(pdu.verify());
+
+        // Bob relays with signature of Alice - another recipient, another encoding
+        os.reset();
+        bob.assimilate("Alice", "Clara", "format", "uri", 1, data.length, offsets, new ByteArrayInputStream(data),
+                os, pdu.getSigner(), pdu.getSignature());
+        pdu = (ASAP_AssimilationPDU_1_0) clara.readPDU(new ByteArrayInputStream(os.toByteArray()));
+        Assert.assertArrayEquals(data, pdu.getData());
+        Assert.assertEquals("Alice", pdu.getSigner());
+        Assert.assertTrue(pdu.verify());
+        byte[] signature = pdu.getSignature();
+        Assert.assertEquals(1, clara.getSignatureVerifier().getVerifications());
+
+        // same chunk relayed by David - compressed this time, not checked again
+        ASAP_1_0 david = new ASAP_Modem_Impl(new ASAPInMemoKeyStore("David"));
+        david.negotiateFeatures(ASAP_Modem_Impl.SUPPORTED_FEATURES);
+        os.reset();
+        david.assimilate("Alice", "Clara", "format", "uri", 1, data.length, offsets,
+                new ByteArrayInputStream(data), os, "Alice", signature);
+        pdu = (ASAP_AssimilationPDU_1_0) clara.readPDU(new ByteArrayInputStream(os.toByteArray()));
+        Assert.assertArrayEquals(data, pdu.getData());
+        Assert.assertTrue(pdu.verify());
+        Assert.assertEquals(1, clara.getSignatureVerifier().getVerifications());
+
+        // relay cannot change content
+        data[data.length / 2] ^= 1;
+        os.reset();
+        bob.assimilate("Alice", "Clara", "format", "uri", 1, data.length, offsets, new ByteArrayInputStream(data),
+                os, "Alice", signature);
+        pdu = (ASAP_AssimilationPDU_1_0) clara.readPDU(new ByteArrayInputStream(os.toByteArray()));
+        pdu.getData();
+        Assert.assertFalse(pdu.verify());
+    }
+
+    @Test
+    public void encryptedPayloadsAreStreamed() throws IOException, ASAPException {
+        byte[] groupKey = new byte[32];
+        for(int i = 0; i < groupKey.length; i++) groupKey[i] = (byte) i;
+
+        ASAPPayloadKeys aliceKeys = new ASAPPayloadKeys(groupKey);
+        ASAP_1_0 alice = new ASAP_Modem_Impl(null, null, aliceKeys);
+        ASAP_1_0 bob = new ASAP_Modem_Impl(null, null, new ASAPPayloadKeys(groupKey));
+        Assert.assertSame(aliceKeys.getKey("uri", 1), aliceKeys.getKey("uri", 1));
+
+        // last record is empty - payload fills records completely
+        byte[] large = new byte[2 * PayloadEncryption.RECORD_SIZE];
+        for(int i = 0; i < large.length; i++) large[i] = (byte) (i % 13);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        alice.assimilate("Alice", "Bob", "format", "uri", 1, null, "small".getBytes(), os, false);
+        alice.assimilate("Alice", "Bob", "format", null, -1, null, large, os, false);
+        alice.negotiateFeatures(ASAP_Modem_Impl.SUPPORTED_FEATURES);
+        alice.assimilate("Alice", "Bob", "format", "uri", 2, null, large, os, false);
+        alice.assimilate("Alice", "Bob", ASAP_1_0.ASAP_MANAGEMENT_FORMAT, "uri", 1, null,
+                "small".getBytes(), os, false);
+        byte[] encryptedBytes = os.toByteArray();
+
+        InputStream is = new ByteArrayInputStream(encryptedBytes);
+        ASAPPDUDecoder decoder = new ASAPPDUDecoder(bob);
+        ASAP_AssimilationPDU_1_0 pdu = (ASAP_AssimilationPDU_1_0) decoder.readPDU(is);
+        Assert.assertEquals(ASAP_1_0.ENCODING_AES_GCM, pdu.getEncoding() & ASAP_1_0.ENCODING_AES_GCM);
+        Assert.assertArrayEquals("small".getBytes(), pdu.getData());
+        Assert.assertArrayEquals(large, ((ASAP_AssimilationPDU_1_0) decoder.readPDU(is)).getData());
+        pdu = (ASAP_AssimilationPDU_1_0) decoder.readPDU(is);
+        Assert.assertEquals(ASAP_1_0.ENCODING_AES_GCM | ASAP_1_0.ENCODING_DEFLATE,
+                pdu.getEncoding() & (ASAP_1_0.ENCODING_AES_GCM | ASAP_1_0.ENCODING_DEFLATE));
+        Assert.assertArrayEquals(large, pdu.getData());
+        // management format in clear
+        pdu = (ASAP_AssimilationPDU_1_0) decoder.readPDU(is);
+        Assert.assertEquals(0, pdu.getEncoding() & ASAP_1_0.ENCODING_AES_GCM);
+        Assert.assertArrayEquals("small".getBytes(), pdu.getData());
+        Assert.assertEquals(0, is.available());
+
+        // changed ciphertext of large pdu
+        encryptedBytes[encryptedBytes.length / 3] ^= 1;
+        is = new ByteArrayInputStream(encryptedBytes);
+        Assert.assertArrayEquals("small".getBytes(), ((ASAP_AssimilationPDU_1_0) decoder.readPDU(is)).getData());
+        try {
+            ((ASAP_AssimilationPDU_1_0) decoder.readPDU(is)).getData();
+            Assert.fail("changed payload not detected");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // same payload with changed header - another sender
+        os.reset();
+        alice.assimilate("Alice", "Bob", "format", "uri", 1, null, "small".getBytes(), os, false);
+        byte[] changedHeader = os.toByteArray();
+        changedHeader[new String(changedHeader, "ISO-8859-1").indexOf("Alice")] = 'E';
+        try {
+            ASAP_AssimilationPDU_1_0 changedPDU =
+                    (ASAP_AssimilationPDU_1_0) bob.readPDU(new ByteArrayInputStream(changedHeader));
+            Assert.assertEquals("Elice", changedPDU.getPeer());
+            changedPDU.getData();
+            Assert.fail("changed header not detected");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // other group key
+        os.reset();
+        groupKey[0]++;
+        new ASAP_Modem_Impl(null, null, new ASAPPayloadKeys(groupKey)).assimilate(
+                "Clara", "Bob", "format", "uri", 1, null, "small".getBytes(), os, false);
+        try {
+            pdu = (ASAP_AssimilationPDU_1_0) bob.readPDU(new ByteArrayInputStream(os.toByteArray()));
+            Assert.assertFalse(pdu.canDecrypt());
+            pdu.getData();
+            Assert.fail("payload of other group decrypted");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // no group key - payload is skipped, next pdu can be read
+        alice.assimilate("Alice", "Bob", "format", "uri", 1, null, large, os, false);
+        is = new ByteArrayInputStream(os.toByteArray());
+        ASAPPDUDecoder keylessDecoder = new ASAPPDUDecoder();
+        for(int i = 0; i < 2; i++) {
+            pdu = (ASAP_AssimilationPDU_1_0) keylessDecoder.readPDU(is);
+            Assert.assertFalse(pdu.canDecrypt());
+            pdu.skipPayload();
+        }
+        Assert.assertEquals(0, is.available());
+
+        // new group key - payloads of previous one can still be read, not those of the one before
+        ASAPPayloadKeys bobKeys = bob.getPayloadKeys();
+        bobKeys.setGroupKey(groupKey);
+        is = new ByteArrayInputStream(os.toByteArray());
+        Assert.assertArrayEquals("small".getBytes(), ((ASAP_AssimilationPDU_1_0) bob.readPDU(is)).getData());
+        Assert.assertArrayEquals(large, ((ASAP_AssimilationPDU_1_0) bob.readPDU(is)).getData());
+
+        groupKey[0]++;
+        bobKeys.setGroupKey(groupKey);
+        is = new ByteArrayInputStream(os.toByteArray());
+        Assert.assertArrayEquals("small".getBytes(), ((ASAP_AssimilationPDU_1_0) bob.readPDU(is)).getData());
+        Assert.assertFalse(((ASAP_AssimilationPDU_1_0) bob.readPDU(is)).canDecrypt());
+    }
+
+    @Test
+    public void pduIsWrittenInBlocks() throws IOException, ASAPException {
+        ASAP_1_0 protocolEngine = new ASAP_Modem_Impl();
+        final int[] writes = new int[1];
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream os = new OutputStream() {
+            @Override
+            public void write(int b) { writes[0]++; baos.write(b); }
+
+            @Override
+            public void write(byte[] b, int off, int len) { writes[0]++; baos.write(b, off, len); }
+        };
+
+        // small pdus: one write each
+        protocolEngine.offer("Alice", "format", "uri", 1, os, false);
+        Assert.assertEquals(1, writes[0]);
+        protocolEngine.assimilate("Alice", null, "format", "uri", 1, null, "data".getBytes(), os, false);
+        Assert.assertEquals(2, writes[0]);
+
+        // large payload: header and blocks - not byte by byte
+        byte[] data = new byte[100000];
+        for(int i = 0; i < data.length; i++) data[i] = (byte) i;
+        writes[0] = 0;
+        protocolEngine.assimilate("Alice", null, "format", "uri", 1, null, data, os, false);
+        Assert.assertTrue(writes[0] < 20);
+
+        InputStream is = new ByteArrayInputStream(baos.toByteArray());
+        Assert.assertTrue(protocolEngine.readPDU(is) instanceof ASAP_OfferPDU_1_0);
+        Assert.assertEquals("data", new String(((ASAP_AssimilationPDU_1_0) protocolEngine.readPDU(is)).getData()));
+        Assert.assertArrayEquals(data, ((ASAP_AssimilationPDU_1_0) protocolEngine.readPDU(is)).getData());
+    }
+
+    @Test
+    public void sendAndReceiveBinaryOffsets() throws IOException, ASAPException {
+        ASAP_1_0 textEngine = new ASAP_Modem_Impl();
+        ASAP_1_0 binaryEngine = new ASAP_Modem_Impl();
+        binaryEngine.negotiateFeatures(ASAP_1_0.FEATURE_BINARY_OFFSETS);
+
+        // 100k messages of 100 bytes - chunk beyond 2 GB would not fit into an int, let's not allocate that
+        List<Long> offsets = new ArrayList<>();
+        for(long i = 1; i < 100000; i++) offsets.add(i * 100);
+        byte[] data = new byte[100000 * 100];
+
+        ByteArrayOutputStream textOS = new ByteArrayOutputStream();
+        textEngine.assimilate("Alice", null, "format", "uri", 1, offsets, data, textOS, false);
+        ByteArrayOutputStream binaryOS = new ByteArrayOutputStream();
+        binaryEngine.assimilate("Alice", null, "format", "uri", 1, offsets, data, binaryOS, false);
+
+        long textOffsetSize = textOS.size() - data.length;
+        long binaryOffsetSize = binaryOS.size() - data.length;
+        Assert.assertTrue(binaryOffsetSize * 3 < textOffsetSize);
+
+        // any modem reads both
+        ASAP_AssimilationPDU_1_0 textPDU = (ASAP_AssimilationPDU_1_0)
+                binaryEngine.readPDU(new ByteArrayInputStream(textOS.toByteArray()));
+        ASAP_AssimilationPDU_1_0 binaryPDU = (ASAP_AssimilationPDU_1_0)
+                textEngine.readPDU(new ByteArrayInputStream(binaryOS.toByteArray()));
+
+        Assert.assertEquals(0, textPDU.getEncoding());
+        Assert.assertEquals(ASAP_1_0.ENCODING_BINARY_OFFSETS, binaryPDU.getEncoding());
+        Assert.assertEquals("uri", binaryPDU.getChannelUri());
+        Assert.assertEquals(1, binaryPDU.getEra());
+        Assert.assertEquals(data.length, binaryPDU.getLength());
+
+        long[] textOffsets = textPDU.getMessageOffsetArray();
+        long[] binaryOffsets = binaryPDU.getMessageOffsetArray();
+        Assert.assertEquals(offsets.size(), binaryOffsets.length);
+        for(int i = 0; i < offsets.size(); i++) {
+            Assert.assertEquals((long) offsets.get(i), binaryOffsets[i]);
+            Assert.assertEquals((long) offsets.get(i), textOffsets[i]);
+        }
+
+        // offsets beyond 2 GB
+        offsets.clear();
+        offsets.add(3L * Integer.MAX_VALUE);
+        binaryOS.reset();
+        try {
+            binaryEngine.assimilate("Alice", null, "format", "uri", 1, 4L * Integer.MAX_VALUE, offsets,
+                    new ByteArrayInputStream(new byte[0]), binaryOS, false);
+            Assert.fail("there is no payload");
+        }
+        catch(IOException e) {
+            // expected - header was written before payload
+        }
+        binaryPDU = (ASAP_AssimilationPDU_1_0) textEngine.readPDU(new ByteArrayInputStream(binaryOS.toByteArray()));
+        Assert.assertEquals(3L * Integer.MAX_VALUE, binaryPDU.getMessageOffsetArray()[0]);
+    }
+
+    @Test
+    public void decoderReusesPDUsAndHandlesPartialReads() throws IOException, ASAPException {
+        ASAP_1_0 protocolEngine = new ASAP_Modem_Impl();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+        List<Long> offsets = new ArrayList<>();
+        offsets.add(2L);
+        offsets.add(5L);
+        protocolEngine.assimilate("Alice", "Bob", "format", "uri", 1, offsets, "abcdefg".getBytes(), os, false);
+        protocolEngine.assimilate("Alice", null, "format", "otherUri", 2, null, "xyz".getBytes(), os, false);
+        protocolEngine.interest("Alice", null, "format", "uri", 1, 2, os, false);
+
+        // stream delivers a single byte per read call - like a slow socket
+        InputStream is = new FilterInputStream(new ByteArrayInputStream(os.toByteArray())) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+
+        ASAPPDUDecoder decoder = new ASAPPDUDecoder();
+
+        ASAP_AssimilationPDU_1_0 first = (ASAP_AssimilationPDU_1_0) decoder.readPDU(is);
+        Assert.assertEquals("Bob", first.getRecipientPeer());
+        Assert.assertEquals(2, first.getMessageOffsetArray().length);
+        Assert.assertEquals(5, first.getMessageOffsetArray()[1]);
+        Assert.assertEquals("abcdefg", new String(first.getData()));
+        String peer = first.getPeer();
+        String format = first.getFormat();
+
+        ASAP_AssimilationPDU_1_0 second = (ASAP_AssimilationPDU_1_0) decoder.readPDU(is);
+        Assert.assertSame(first, second);
+        Assert.assertNull(second.getRecipientPeer());
+        Assert.assertEquals(0, second.getMessageOffsetArray().length);
+        Assert.assertEquals("otherUri", second.getChannelUri());
+        Assert.assertEquals(2, second.getEra());
+        Assert.assertEquals("xyz", new String(second.getData()));
+        // strings come from cache
+        Assert.assertSame(peer, second.getPeer());
+        Assert.assertSame(format, second.getFormat());
+
+        ASAP_Interest_PDU_1_0 interest = (ASAP_Interest_PDU_1_0) decoder.readPDU(is);
+        Assert.assertSame(peer, interest.getPeer());
+        Assert.assertEquals("uri", interest.getChannelUri());
+        Assert.assertEquals(2, interest.getEraTo());
+    }
+
+    @Test
+    public void sendAndReceiveCompressedPayload() throws IOException, ASAPException {
+        ASAPCompression receiverCompression = new ASAPCompression();
+        ASAPCompression senderCompression = new ASAPCompression();
+        ASAP_1_0 plainEngine = new ASAP_Modem_Impl(null, null, null, receiverCompression);
+        ASAP_1_0 compressingEngine = new ASAP_Modem_Impl(null, null, null, senderCompression);
+        compressingEngine.negotiateFeatures(ASAP_1_0.FEATURE_COMPRESSION | ASAP_1_0.FEATURE_BINARY_OFFSETS);
+
+        // text - small one goes along with header, large one is streamed
+        StringBuilder sb = new StringBuilder();
+        List<Long> offsets = new ArrayList<>();
+        while(sb.length() < 100000) {
+            sb.append("{\"sender\":\"Alice\",\"text\":\"meet you at ").append(sb.length() % 97).append("\"}");
+            offsets.add((long) sb.length());
+        }
+        offsets.remove(offsets.size() - 1);
+        byte[] large = sb.toString().getBytes();
+        byte[] small = "{\"sender\":\"Alice\",\"text\":\"meet you at the station at noon, bring the map\"}".getBytes();
+
+        ByteArrayOutputStream plainOS = new ByteArrayOutputStream();
+        plainEngine.assimilate("Alice", null, "text/json", "uri", 1, offsets, large, plainOS, false);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        compressingEngine.assimilate("Alice", null, "text/json", "uri", 1, offsets, large, os, false);
+        Assert.assertTrue(os.size() * 4 < plainOS.size());
+
+        int withoutDictionary = os.size();
+        compressingEngine.assimilate("Alice", null, "text/json", "uri", 2, null, small, os, false);
+        withoutDictionary = os.size() - withoutDictionary;
+
+        byte[] dictionary = "{\"sender\":\"\",\"text\":\"meet you at the station\"}".getBytes();
+        senderCompression.setDictionary("text/json", dictionary);
+        receiverCompression.setDictionary("text/json", dictionary);
+        int withDictionary = os.size();
+        compressingEngine.assimilate("Alice", null, "text/json", "uri", 3, null, small, os, false);
+        withDictionary = os.size() - withDictionary;
+        Assert.assertTrue(withDictionary < withoutDictionary);
+
+        // a pdu after compressed ones - stream must be positioned correctly
+        compressingEngine.offer("Alice", "text/json", "uri", 4, os, false);
+
+        // slow stream - a single byte per read
+        InputStream is = new FilterInputStream(new ByteArrayInputStream(os.toByteArray())) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+
+        ASAP_AssimilationPDU_1_0 pdu = (ASAP_AssimilationPDU_1_0) plainEngine.readPDU(is);
+        Assert.assertEquals(ASAP_1_0.ENCODING_DEFLATE | ASAP_1_0.ENCODING_BINARY_OFFSETS, pdu.getEncoding());
+        Assert.assertEquals(large.length, pdu.getLength());
+        Assert.assertEquals(offsets.size(), pdu.getMessageOffsetArray().length);
+        Assert.assertArrayEquals(large, pdu.getData());
+
+        pdu = (ASAP_AssimilationPDU_1_0) plainEngine.readPDU(is);
+        Assert.assertArrayEquals(small, pdu.getData());
+        pdu = (ASAP_AssimilationPDU_1_0) plainEngine.readPDU(is);
+        Assert.assertEquals(3, pdu.getEra());
+        Assert.assertArrayEquals(small, pdu.getData());
+
+        Assert.assertTrue(plainEngine.readPDU(is) instanceof ASAP_OfferPDU_1_0);
+
+        // receiver without that dictionary
+        os.reset();
+        compressingEngine.assimilate("Alice", null, "text/json", "uri", 3, null, small, os, false);
+        receiverCompression.setDictionary("text/json", "something else".getBytes());
+        pdu = (ASAP_AssimilationPDU_1_0) plainEngine.readPDU(new ByteArrayInputStream(os.toByteArray()));
+        try {
+            pdu.getData();
+            Assert.fail("dictionary does not match");
+        }
+        catch(IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void multiplexedStreamsAreSentInFrames() throws IOException, ASAPException, InterruptedException {
+        final List<Long> streamOrder = new ArrayList<>();
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final ASAPMultiplexer[] multiplexer = new ASAPMultiplexer[1];
+        final Thread[] priorityWriter = new Thread[1];
+
+        multiplexer[0] = new ASAPMultiplexer(new OutputStream() {
+            public void write(int b) { baos.write(b); }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                baos.write(b, off, len);
+                if(priorityWriter[0] != null) return;
+
+                // first frame of bulk data on its way - online message comes in
+                priorityWriter[0] = new Thread() {
+                    public void run() {
+                        try {
+                            multiplexer[0].getPriorityStream().write("online".getBytes());
+                        } catch (IOException e) {
+                            // test fails
+                        }
+                    }
+                };
+                priorityWriter[0].start();
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    // go ahead
+                }
+            }
+        });
+
+        byte[] bulk = new byte[ASAPMultiplexer.MAX_FRAME_SIZE * 3 + 10];
+        for(int i = 0; i < bulk.length; i++) bulk[i] = (byte) i;
+        ASAPMultiplexer.LogicalOutputStream formatStream = multiplexer[0].getFormatStream("application/x-bulk");
+        Assert.assertEquals(formatStream, multiplexer[0].getFormatStream("application/x-bulk"));
+        formatStream.write(bulk);
+        priorityWriter[0].join();
+
+        // reassemble
+        InputStream is = new ByteArrayInputStream(baos.toByteArray());
+        ByteArrayOutputStream bulkReceived = new ByteArrayOutputStream();
+        ByteArrayOutputStream priorityReceived = new ByteArrayOutputStream();
+        while(is.available() > 0) {
+            long streamID = PDU_Impl.readUnsignedVarLong(is);
+            byte[] frame = new byte[(int) PDU_Impl.readUnsignedVarLong(is)];
+            Assert.assertTrue(frame.length <= ASAPMultiplexer.MAX_FRAME_SIZE);
+            PDU_Impl.readFully(is, frame, frame.length);
+            streamOrder.add(streamID);
+            if(streamID == formatStream.getStreamID()) bulkReceived.write(frame);
+            else priorityReceived.write(frame);
+        }
+
+        // online message did not wait for the whole bulk transfer
+        Assert.assertEquals(5, streamOrder.size());
+        Assert.assertEquals(ASAPMultiplexer.PRIORITY_STREAM, streamOrder.get(1).intValue());
+        Assert.assertArrayEquals(bulk, bulkReceived.toByteArray());
+        Assert.assertEquals("online", priorityReceived.toString());
+
+        multiplexer[0].close();
+        try {
+            formatStream.write(1);
+            Assert.fail("multiplexer closed");
+        }
+        catch(IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void streamWithoutCreditDoesNotStallOthers() throws IOException, ASAPException, InterruptedException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ASAPMultiplexer multiplexer = new ASAPMultiplexer(baos);
+        final ASAPMultiplexer.LogicalOutputStream slowStream = multiplexer.getFormatStream("application/x-slow");
+        ASAPMultiplexer.LogicalOutputStream otherStream = multiplexer.getFormatStream("application/x-other");
+
+        // use up any credit of that stream
+        slowStream.write(new byte[ASAPMultiplexer.STREAM_WINDOW]);
+        final boolean[] sent = new boolean[1];
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    slowStream.write(new byte[10]);
+                    sent[0] = true;
+                } catch (IOException e) {
+                    // test fails
+                }
+            }
+        };
+        writer.start();
+        writer.join(200);
+        Assert.assertTrue(writer.isAlive());
+
+        // other streams still go ahead
+        otherStream.write(new byte[100]);
+
+        // receiver drained some data of slow stream
+        byte[] grant = new byte[10];
+        int length = ASAPMultiplexer.putUnsignedVarInt(slowStream.getStreamID(), grant, 0);
+        length = ASAPMultiplexer.putUnsignedVarInt(ASAPMultiplexer.STREAM_WINDOW / 2, grant, length);
+        multiplexer.readCreditGrants(grant, length);
+        writer.join(5000);
+        Assert.assertTrue(sent[0]);
+
+        // no credit for unknown streams
+        length = ASAPMultiplexer.putUnsignedVarInt(42, grant, 0);
+        length = ASAPMultiplexer.putUnsignedVarInt(1, grant, length);
+        try {
+            multiplexer.readCreditGrants(grant, length);
+            Assert.fail("unknown stream");
+        }
+        catch(ASAPException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void stalledStreamsDoNotStallPriorityStream() throws IOException, InterruptedException {
+        ASAPMultiplexer multiplexer = new ASAPMultiplexer(new ByteArrayOutputStream());
+
+        // stalled streams use up connection credit - but reserve
+        for(int i = 0; i < 4; i++) {
+            multiplexer.getFormatStream("application/x-stalled" + i).write(new byte[ASAPMultiplexer.STREAM_WINDOW]);
+        }
+        final ASAPMultiplexer.LogicalOutputStream otherStream = multiplexer.getFormatStream("application/x-other");
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    otherStream.write(new byte[10]);
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        };
+        writer.start();
+        writer.join(200);
+        Assert.assertTrue(writer.isAlive());
+
+        // online messages still go ahead
+        multiplexer.getPriorityStream().write(new byte[100]);
+
+        multiplexer.close();
+        writer.join(5000);
+        Assert.assertFalse(writer.isAlive());
+    }
 }
@@ -0,0 +1,111 @@
+package net.sharksystem.asap.sim;
+
+import net.sharksystem.asap.ASAPChunkReceivedListener;
+import net.sharksystem.asap.ASAPEngineFS;
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.MultiASAPEngineFS;
+import net.sharksystem.asap.MultiASAPEngineFS_Impl;
+import net.sharksystem.asap.metrics.ASAPMetricsRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+public class SimulatorTests {
+    private static final String SIMULATION_FOLDER = "tests/simulation";
+
+    @Test
+    public void readTrace() throws IOException, ASAPException {
+        String trace = "# time peerA peerB duration\n"
+                + "5000 Bob Clara 1000\n"
+                + "\n"
+                + "0 Alice Bob 2000\n";
+
+        ASAPEncounterSchedule schedule = ASAPEncounterSchedule.read(new StringReader(trace));
+        List<ASAPEncounter> encounters = schedule.getEncounters();
+
+        Assert.assertEquals(2, encounters.size());
+        Assert.assertEquals("Alice", encounters.get(0).getPeerA());
+        Assert.assertEquals(2000, encounters.get(0).getEndTime());
+        Assert.assertEquals(5000, encounters.get(1).getTime());
+        Assert.assertEquals(3, schedule.getPeers().size());
+    }
+
+    @Test(expected = ASAPException.class)
+    public void malformedTrace() throws IOException, ASAPException {
+        ASAPEncounterSchedule.read(new StringReader("0 Alice Alice 100\n"));
+    }
+
+    @Test
+    public void multiplexedExecutionIsObserved() throws IOException, ASAPException, InterruptedException {
+        String folder = SIMULATION_FOLDER + "/observed";
+        String format = "application/x-observed";
+        ASAPEngineFS.removeFolder(folder);
+        ASAPEngineFS.getASAPStorage("Alice", folder + "/Alice/app", format).add("test://observed", "message");
+        ASAPEngineFS.getASAPStorage("Bob", folder + "/Bob/app", format);
+
+        MultiASAPEngineFS_Impl alice = (MultiASAPEngineFS_Impl) MultiASAPEngineFS_Impl.createMultiEngine(
+                "Alice", folder + "/Alice", MultiASAPEngineFS.DEFAULT_MAX_PROCESSING_TIME, null);
+        // handling a received chunk takes longer than allowed
+        MultiASAPEngineFS_Impl bob = (MultiASAPEngineFS_Impl) MultiASAPEngineFS_Impl.createMultiEngine(
+                "Bob", folder + "/Bob", 200, new ASAPChunkReceivedListener() {
+                    @Override
+                    public void chunkReceived(String sender, String uri, int era) {
+                        try {
+                            Thread.sleep(2000);
+                        } catch (InterruptedException e) {
+                            // go ahead
+                        }
+                    }
+                });
+
+        ASAPSimulatedLink link = new ASAPSimulatedLink(Long.MAX_VALUE);
+        alice.handleConnection(link.getInputStreamA(), link.getOutputStreamA());
+        bob.handleConnection(link.getInputStreamB(), link.getOutputStreamB());
+
+        long until = System.currentTimeMillis() + 5000;
+        while(bob.getConnectionMetrics().getExecutionTimeouts() == 0 && System.currentTimeMillis() < until) {
+            Thread.sleep(50);
+        }
+        link.close();
+
+        // pdu executed on a logical stream - connection is terminated anyway
+        Assert.assertEquals(1, bob.getConnectionMetrics().getExecutionTimeouts());
+        Assert.assertEquals(1, bob.getConnectionMetrics().getConnectionsClosed());
+
+        alice.close();
+        bob.close();
+    }
+
+    /**
+     * Same as MultihopTests.twoHops - without network and sleeps
+     */
+    @Test
+    public void twoHops() throws IOException, ASAPException, InterruptedException, MalformedObjectNameException {
+        ASAPEncounterSchedule schedule = new ASAPEncounterSchedule();
+        schedule.add(new ASAPEncounter(1000, "Alice", "Bob", 1000));
+        schedule.add(new ASAPEncounter(5000, "Bob", "Clara", 1000));
+
+        ASAPSimulator simulator = new ASAPSimulator(SIMULATION_FOLDER);
+        simulator.addMessage(0, "Alice", "Clara", 100);
+
+        ASAPSimulationReport report = simulator.run(schedule);
+        report.print(System.out, true);
+
+        Assert.assertEquals(1, report.getDeliveries());
+        Assert.assertEquals(1.0, report.getDeliveryRatio(), 0.0001);
+        // unlimited bandwidth - delivered when Bob meets Clara
+        Assert.assertEquals(5000, report.getMaxLatency());
+        Assert.assertTrue(report.getBytesTransferred() > 100);
+
+        // metrics of simulated peers are unregistered
+        ObjectName peerMetrics = new ObjectName(ASAPMetricsRegistry.DOMAIN + ":owner=" + ObjectName.quote("Clara")
+                + ",*");
+        Assert.assertTrue(ManagementFactory.getPlatformMBeanServer().queryNames(peerMetrics, null).isEmpty());
+    }
+}